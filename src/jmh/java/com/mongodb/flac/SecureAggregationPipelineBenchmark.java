@@ -0,0 +1,121 @@
+package com.mongodb.flac;
+
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.flac.RedactedDBCollection.SecureAggregationPipeline;
+import com.mongodb.flac.capco.CapcoRedactExpression;
+import com.mongodb.flac.capco.CapcoSecurityAttributes;
+
+/**
+ * Benchmarks of building the secure aggregation pipeline, i.e. everything a find/findOne/aggregate does
+ * before the request goes over the wire.  No mongod is needed, the pipelines are built but never sent.
+ *
+ * <p>The <tt>cache</tt> parameter compares the {@link RedactCommandCache} with building and parsing
+ * the $redact stage on every request.  Run with the gc profiler to see the allocation rate:</p>
+ * <pre>
+ *     mvn -P benchmarks compile exec:exec -Djmh.args="SecureAggregationPipelineBenchmark -prof gc"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SecureAggregationPipelineBenchmark {
+
+    @Param({"true", "false"})
+    public boolean cache;
+
+    private MongoClient mongoClient;
+    private RedactedDBCollection redactedDBCollection;
+
+    private final DBObject query = new BasicDBObject("firstName", "Alice");
+    private final DBObject fields = new BasicDBObject("firstName", 1).append("country", 1);
+    private final DBObject orderBy = new BasicDBObject("lastName", 1);
+    private final List<DBObject> pipeline = new ArrayList<DBObject>();
+
+    @Setup
+    public void setup() throws UnknownHostException {
+        final CapcoSecurityAttributes userSecurityAttributes = new CapcoSecurityAttributes();
+        userSecurityAttributes.setClearance("TS");
+        userSecurityAttributes.setSci(Arrays.asList("TK", "SI", "G", "HCS"));
+
+        // the collection is only used for its name, no operation is ever sent to the server
+        mongoClient = new MongoClient();
+        redactedDBCollection = new RedactedDBCollection(mongoClient.getDB("benchmark").getCollection("person"),
+                userSecurityAttributes, new CapcoRedactExpression("sl"));
+        redactedDBCollection.setRedactCommandCache(cache ? new RedactCommandCache(RedactCommandCache.DEFAULT_MAXIMUM_SIZE,
+                RedactCommandCache.DEFAULT_EXPIRE_AFTER_WRITE_MINUTES, TimeUnit.MINUTES) : null);
+
+        pipeline.add(new BasicDBObject("$match", query));
+        pipeline.add(new BasicDBObject("$group", new BasicDBObject("_id", "$lastName").append("n", new BasicDBObject("$sum", 1))));
+    }
+
+    @TearDown
+    public void tearDown() {
+        mongoClient.close();
+    }
+
+    /** the $redact stage alone */
+    @Benchmark
+    public SecureAggregationPipeline getSecureAggregationPipelineForUser() {
+        return redactedDBCollection.getSecureAggregationPipelineForUser();
+    }
+
+    /** find(query) and find(query, fields) */
+    @Benchmark
+    public SecureAggregationPipeline findQueryFields() {
+        return redactedDBCollection.buildFindPipeline(query, fields, 0, 0, null);
+    }
+
+    /** find(query, fields, numToSkip, batchSize, limit, options, readPref, decoder[, encoder]) */
+    @Benchmark
+    public SecureAggregationPipeline findSkipLimit() {
+        return redactedDBCollection.buildFindPipeline(query, fields, 20, 10, null);
+    }
+
+    /** find(query, fields, numToSkip, batchSize, limit, options, readPref, orderBy) */
+    @Benchmark
+    public SecureAggregationPipeline findSkipLimitOrderBy() {
+        return redactedDBCollection.buildFindPipeline(query, fields, 20, 10, orderBy);
+    }
+
+    /** find(query, fields, limit, readPref, orderBy) */
+    @Benchmark
+    public SecureAggregationPipeline findLimitOrderBy() {
+        return redactedDBCollection.buildFindPipeline(query, fields, 0, 10, orderBy);
+    }
+
+    /** every findOne overload */
+    @Benchmark
+    public SecureAggregationPipeline findOne() {
+        return redactedDBCollection.buildFindOnePipeline(query, fields, orderBy);
+    }
+
+    /** every aggregate overload */
+    @Benchmark
+    public SecureAggregationPipeline aggregate() {
+        return redactedDBCollection.buildAggregatePipeline(pipeline);
+    }
+}
@@ -0,0 +1,83 @@
+package com.mongodb.flac;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mongodb.DBObject;
+import com.mongodb.flac.capco.CapcoRedactExpression;
+import com.mongodb.flac.capco.CapcoSecurityAttributes;
+
+/**
+ * Benchmarks of the user attribute handling done for every request: encoding the attributes,
+ * expanding a clearance and formatting the CAPCO redact expression.
+ *
+ * <p>Run with the gc profiler to see the allocation rate next to the throughput:</p>
+ * <pre>
+ *     mvn -P benchmarks compile exec:exec -Djmh.args="SecurityAttributesBenchmark -prof gc"
+ * </pre>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SecurityAttributesBenchmark {
+
+    private CapcoSecurityAttributes userSecurityAttributes;
+    private CapcoRedactExpression capcoRedactExpression;
+
+    @Setup
+    public void setup() {
+        userSecurityAttributes = new CapcoSecurityAttributes();
+        userSecurityAttributes.setClearance("TS");
+        userSecurityAttributes.setSci(Arrays.asList("TK", "SI", "G", "HCS"));
+        userSecurityAttributes.setCitizenship(Arrays.asList("USA"));
+        capcoRedactExpression = new CapcoRedactExpression("sl");
+    }
+
+    @Benchmark
+    public String encodeAttributes() {
+        return userSecurityAttributes.encodeAttributes();
+    }
+
+    @Benchmark
+    public String getFingerprint() {
+        return userSecurityAttributes.getFingerprint();
+    }
+
+    @Benchmark
+    public CapcoSecurityAttributes setClearance() {
+        final CapcoSecurityAttributes attributes = new CapcoSecurityAttributes();
+        attributes.setClearance("TS");
+        return attributes;
+    }
+
+    @Benchmark
+    public String getRedactExpression() {
+        return capcoRedactExpression.getRedactExpression(userSecurityAttributes);
+    }
+
+    @Benchmark
+    public DBObject parseRedactExpression() {
+        return RedactCommandCache.buildRedactExpression(new StringRedactExpression(
+                capcoRedactExpression.getSecurityFieldName(), CapcoRedactExpression.CAPCO_REDACT_EXPRESSION),
+                userSecurityAttributes);
+    }
+
+    @Benchmark
+    public DBObject getRedactExpressionObject() {
+        return capcoRedactExpression.getRedactExpressionObject(userSecurityAttributes);
+    }
+}
@@ -0,0 +1,150 @@
+package com.mongodb.flac;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+import com.mongodb.ReadPreference;
+
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * An asynchronous facade over a {@link RedactedDBCollection}: the finds and aggregates run on an executor, and
+ * return a <code>Future</code> instead of blocking the caller's thread on the server round trip.
+ *
+ * <p>The cursors handed out are {@link PrefetchingCursor}'s, which read ahead of the caller so the getMore round
+ * trips of large redacted results overlap with the caller's processing.  For demand driven consumption, e.g. to
+ * bridge to a reactive library, use {@link #publishFind(DBObject, DBObject)} and
+ * {@link #publishAggregate(java.util.List, com.mongodb.AggregationOptions)}.</p>
+ *
+ * <p>The executor is supplied, and shut down, by the application.  Each open prefetching cursor, and each
+ * active publisher subscription, holds one of its threads (a subscription two), so use an executor that can
+ * grow, or one sized for the expected number of concurrent results.</p>
+ * <pre>
+ *     AsyncRedactedDBCollection async = new AsyncRedactedDBCollection(redactedDBCollection, executorService);
+ *     Future&lt;Cursor&gt; future = async.find(query, fields);
+ *     ... do other work ...
+ *     Cursor cursor = future.get();
+ * </pre>
+ */
+public class AsyncRedactedDBCollection {
+
+    private final RedactedDBCollection redactedDBCollection;
+    private final ExecutorService executor;
+    private int prefetch = PrefetchingCursor.DEFAULT_PREFETCH;
+
+    /**
+     * @param redactedDBCollection the collection the requests run on
+     * @param executor             runs the requests and the prefetching
+     */
+    public AsyncRedactedDBCollection(RedactedDBCollection redactedDBCollection, ExecutorService executor) {
+        this.redactedDBCollection = RedactedDBCollection.checkNotNull(redactedDBCollection, "redactedDBCollection can't be null");
+        this.executor = RedactedDBCollection.checkNotNull(executor, "executor can't be null");
+    }
+
+    public RedactedDBCollection getRedactedDBCollection() {
+        return redactedDBCollection;
+    }
+
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    public int getPrefetch() {
+        return prefetch;
+    }
+
+    /**
+     * @param prefetch the maximum number of documents read ahead of the caller per cursor
+     */
+    public void setPrefetch(int prefetch) {
+        if (prefetch <= 0) {
+            throw new IllegalArgumentException("prefetch must be greater than 0");
+        }
+        this.prefetch = prefetch;
+    }
+
+    /**
+     * @see RedactedDBCollection#find(DBObject, DBObject)
+     */
+    public Future<Cursor> find(final DBObject query, final DBObject fields) {
+        return submit(new Callable<Cursor>() {
+            public Cursor call() throws Exception {
+                return redactedDBCollection.find(query, fields);
+            }
+        });
+    }
+
+    /**
+     * @see RedactedDBCollection#find(DBObject, DBObject, int, ReadPreference, DBObject)
+     */
+    public Future<Cursor> find(final DBObject query, final DBObject fields, final int limit,
+                               final ReadPreference readPref, final DBObject orderBy) {
+        return submit(new Callable<Cursor>() {
+            public Cursor call() throws Exception {
+                return redactedDBCollection.find(query, fields, limit, readPref, orderBy);
+            }
+        });
+    }
+
+    /**
+     * @see RedactedDBCollection#findOne(DBObject, DBObject, DBObject, ReadPreference)
+     */
+    public Future<DBObject> findOne(final DBObject query, final DBObject fields, final DBObject orderBy,
+                                    final ReadPreference readPref) {
+        return executor.submit(new Callable<DBObject>() {
+            public DBObject call() throws Exception {
+                return redactedDBCollection.findOne(query, fields, orderBy, readPref);
+            }
+        });
+    }
+
+    /**
+     * @see RedactedDBCollection#aggregate(java.util.List, com.mongodb.AggregationOptions)
+     */
+    public Future<Cursor> aggregate(final List<DBObject> pipeline, final AggregationOptions options) {
+        return submit(new Callable<Cursor>() {
+            public Cursor call() throws Exception {
+                return redactedDBCollection.aggregate(pipeline, options);
+            }
+        });
+    }
+
+    /**
+     * @return a publisher of the documents of {@link RedactedDBCollection#find(DBObject, DBObject)}; the find runs
+     * when the subscriber first requests documents
+     */
+    public CursorPublisher publishFind(final DBObject query, final DBObject fields) {
+        return new CursorPublisher(new Callable<Cursor>() {
+            public Cursor call() throws Exception {
+                return redactedDBCollection.find(query, fields);
+            }
+        }, executor, prefetch);
+    }
+
+    /**
+     * @return a publisher of the documents of {@link RedactedDBCollection#aggregate(java.util.List, AggregationOptions)};
+     * the aggregate runs when the subscriber first requests documents
+     */
+    public CursorPublisher publishAggregate(final List<DBObject> pipeline, final AggregationOptions options) {
+        return new CursorPublisher(new Callable<Cursor>() {
+            public Cursor call() throws Exception {
+                return redactedDBCollection.aggregate(pipeline, options);
+            }
+        }, executor, prefetch);
+    }
+
+    /**
+     * run the request on the executor and wrap its cursor to prefetch
+     */
+    private Future<Cursor> submit(final Callable<Cursor> request) {
+        final int cursorPrefetch = prefetch;
+        return executor.submit(new Callable<Cursor>() {
+            public Cursor call() throws Exception {
+                return new PrefetchingCursor(request.call(), executor, cursorPrefetch);
+            }
+        });
+    }
+}
@@ -0,0 +1,56 @@
+package com.mongodb.flac;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+/**
+ * A {@link RedactPrefilter} on the clause masks that {@link LabelMaskAnnotator} stores next to the security
+ * marking, see {@link LabelDictionary}.
+ *
+ * <p>The root of a document is visible when every non zero clause mask shares a bit with the user's mask, so the
+ * prefilter excludes documents holding a non zero mask with none of the user's bits set.  For a user granted the
+ * labels at bits 1, 2 and 3 this generates:</p>
+ * <pre><tt>
+ *     { slm : { $not : { $elemMatch : { $ne : 0, $bitsAllClear : [ 1, 2, 3 ] } } } }
+ * </tt></pre>
+ *
+ * <p>Unlike {@link EntitlementPrefilter} this is exact for the root marking, including clauses with several
+ * labels, but it is a negated match that an index can not narrow down: it saves the $redact traversal of the
+ * documents it excludes, not their scan.  Documents without masks, e.g. not yet backfilled, always pass and are
+ * left to $redact.</p>
+ */
+public class BitmaskPrefilter implements RedactPrefilter {
+
+    private final String maskFieldName;
+    private final LabelDictionary labelDictionary;
+
+    /**
+     * @param maskFieldName   the field holding the clause masks, like slm
+     * @param labelDictionary the dictionary the masks were encoded with
+     */
+    public BitmaskPrefilter(String maskFieldName, LabelDictionary labelDictionary) {
+        this.maskFieldName = RedactedDBCollection.checkNotNull(maskFieldName, "maskFieldName can't be null");
+        this.labelDictionary = RedactedDBCollection.checkNotNull(labelDictionary, "labelDictionary can't be null");
+    }
+
+    public String getMaskFieldName() {
+        return maskFieldName;
+    }
+
+    public LabelDictionary getLabelDictionary() {
+        return labelDictionary;
+    }
+
+    public DBObject getPrefilter(SecurityAttributes securityAttributes) {
+        // bit positions rather than a numeric bitmask, which $bitsAllClear limits to 31 bits
+        final DBObject unsatisfiedClause = new BasicDBObject("$ne", 0L)
+                .append("$bitsAllClear", labelDictionary.getUserBitPositions(securityAttributes));
+        return new BasicDBObject(maskFieldName,
+                new BasicDBObject("$not", new BasicDBObject("$elemMatch", unsatisfiedClause)));
+    }
+
+    @Override
+    public String toString() {
+        return "BitmaskPrefilter{maskFieldName=" + maskFieldName + ", labelDictionary=" + labelDictionary + "}";
+    }
+}
@@ -0,0 +1,116 @@
+package com.mongodb.flac;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+/**
+ * A $redact expression evaluated on the clause masks that {@link LabelMaskAnnotator} stores next to the security
+ * marking, see {@link LabelDictionary}, instead of intersecting the label documents of each clause.
+ *
+ * <p>For every (sub-)document that carries a mask field the expression is:</p>
+ * <pre><tt>
+ *     $allElementsTrue : { $map : { input : "$slm", as : "m",
+ *         in : { $or : [ { $eq : [ "$$m", 0 ] }, { $ne : [ { $bitAnd : [ "$$m", userMask ] }, 0 ] } ] } } }
+ * </tt></pre>
+ * <p>Documents without a mask field, e.g. not yet backfilled or with a marking that the dictionary can not encode,
+ * are evaluated with the fallback expression on the security marking itself, so the result is the same as the
+ * fallback's, as long as the masks are kept in step with the markings.</p>
+ *
+ * <p>$bitAnd requires MongoDB 6.3 or later.  Expressions with the same mask field, dictionary and fallback are
+ * equal, and share the entries of a {@link RedactCommandCache}.</p>
+ */
+public class BitmaskRedactExpression implements DBObjectRedactExpression {
+
+    private final String maskFieldName;
+    private final LabelDictionary labelDictionary;
+    private final DBObjectRedactExpression fallback;
+
+    // "$slm", and the test that a clause mask is 0, shared by every expression built, never modified
+    private final String maskFieldPath;
+    private final DBObject emptyClauseTest;
+
+    /**
+     * @param maskFieldName   the field holding the clause masks, like slm
+     * @param labelDictionary the dictionary the masks were encoded with
+     * @param fallback        the expression on the security marking, e.g. a
+     *                        {@link com.mongodb.flac.capco.CapcoRedactExpression}, for documents without masks
+     */
+    public BitmaskRedactExpression(String maskFieldName, LabelDictionary labelDictionary, DBObjectRedactExpression fallback) {
+        this.maskFieldName = RedactedDBCollection.checkNotNull(maskFieldName, "maskFieldName can't be null");
+        this.labelDictionary = RedactedDBCollection.checkNotNull(labelDictionary, "labelDictionary can't be null");
+        this.fallback = RedactedDBCollection.checkNotNull(fallback, "fallback can't be null");
+        this.maskFieldPath = "$" + maskFieldName;
+        this.emptyClauseTest = new BasicDBObject("$eq", pair("$$m", 0L));
+    }
+
+    public String getMaskFieldName() {
+        return maskFieldName;
+    }
+
+    public LabelDictionary getLabelDictionary() {
+        return labelDictionary;
+    }
+
+    public DBObjectRedactExpression getFallback() {
+        return fallback;
+    }
+
+    public DBObject getRedactExpressionObject(SecurityAttributes securityAttributes) {
+        final long userMask = labelDictionary.getUserMask(securityAttributes);
+
+        final DBObject sharesUserBit = new BasicDBObject("$ne",
+                pair(new BasicDBObject("$bitAnd", pair("$$m", userMask)), 0L));
+        final DBObject map = new BasicDBObject("input", maskFieldPath)
+                .append("as", "m")
+                .append("in", new BasicDBObject("$or", pair(emptyClauseTest, sharesUserBit)));
+        final DBObject bitwise = new BasicDBObject("$cond",
+                new BasicDBObject("if", new BasicDBObject("$allElementsTrue", new BasicDBObject("$map", map)))
+                        .append("then", "$$DESCEND")
+                        .append("else", "$$PRUNE"));
+
+        return new BasicDBObject("$cond",
+                new BasicDBObject("if", new BasicDBObject("$isArray", maskFieldPath))
+                        .append("then", bitwise)
+                        .append("else", fallback.getRedactExpressionObject(securityAttributes)));
+    }
+
+    /**
+     * @return the JSON form of {@link #getRedactExpressionObject(SecurityAttributes)}
+     */
+    public String getRedactExpression(SecurityAttributes securityAttributes) {
+        return JSON.serialize(getRedactExpressionObject(securityAttributes));
+    }
+
+    private static BasicDBList pair(Object first, Object second) {
+        final BasicDBList list = new BasicDBList();
+        list.add(first);
+        list.add(second);
+        return list;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || o.getClass() != getClass()) {
+            return false;
+        }
+        final BitmaskRedactExpression other = (BitmaskRedactExpression) o;
+        return maskFieldName.equals(other.maskFieldName) && labelDictionary.equals(other.labelDictionary)
+                && fallback.equals(other.fallback);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * maskFieldName.hashCode() + labelDictionary.hashCode()) + fallback.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "BitmaskRedactExpression{maskFieldName=" + maskFieldName + ", labelDictionary=" + labelDictionary
+                + ", fallback=" + fallback + "}";
+    }
+}
@@ -0,0 +1,62 @@
+package com.mongodb.flac;
+
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+import com.mongodb.ServerAddress;
+
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A <code>Cursor</code> over documents already in memory, optionally followed by the rest of a server cursor.
+ */
+class BufferedCursor implements Cursor {
+
+    private final Iterator<DBObject> buffered;
+    private final Cursor rest;
+
+    /**
+     * @param buffered the documents to return first
+     * @param rest     the cursor to continue with, or null
+     */
+    BufferedCursor(List<DBObject> buffered, Cursor rest) {
+        this.buffered = buffered.iterator();
+        this.rest = rest;
+    }
+
+    public boolean hasNext() {
+        return buffered.hasNext() || (rest != null && rest.hasNext());
+    }
+
+    public DBObject next() {
+        if (buffered.hasNext()) {
+            return buffered.next();
+        }
+        if (rest == null) {
+            throw new NoSuchElementException();
+        }
+        return rest.next();
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException("can't remove a document from a buffered cursor");
+    }
+
+    /**
+     * @return the id of the server cursor, 0 if all documents are in memory
+     */
+    public long getCursorId() {
+        return (rest == null) ? 0 : rest.getCursorId();
+    }
+
+    public ServerAddress getServerAddress() {
+        return (rest == null) ? null : rest.getServerAddress();
+    }
+
+    public void close() {
+        if (rest != null) {
+            rest.close();
+        }
+    }
+}
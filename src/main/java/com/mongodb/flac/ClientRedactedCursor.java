@@ -0,0 +1,172 @@
+package com.mongodb.flac;
+
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+import com.mongodb.ServerAddress;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A <code>Cursor</code> that redacts the documents of an underlying, un-redacted, cursor in the JVM with a
+ * {@link DocumentRedactor}.
+ *
+ * <p>Documents the user may not see at all are skipped.  Skip and limit count the documents the user can see,
+ * just as a $skip and $limit after $redact would, so they must not be applied to the underlying cursor.  An
+ * optional projection of top-level fields is applied after redaction, since projecting on the server could
+ * drop the security fields the redaction relies on.</p>
+ *
+ * <p>The underlying cursor can be any find, e.g. with a hint, snapshot or tailable option:</p>
+ * <pre>
+ *     DBCursor raw = dbCollection.find(new BasicDBObject("year", 2014)).hint("year_1");
+ *     Cursor redacted = new ClientRedactedCursor(raw, redactedDBCollection.getDocumentRedactor());
+ * </pre>
+ */
+public class ClientRedactedCursor implements Cursor {
+
+    private final Cursor source;
+    private final DocumentRedactor documentRedactor;
+    private final DBObject fields;
+    private final int limit;
+
+    private int toSkip;
+    private int returned;
+    private DBObject nextDocument;
+
+    /**
+     * @param source           the cursor over the un-redacted documents
+     * @param documentRedactor the redactor for the current user
+     */
+    public ClientRedactedCursor(Cursor source, DocumentRedactor documentRedactor) {
+        this(source, documentRedactor, null, 0, 0);
+    }
+
+    /**
+     * @param source           the cursor over the un-redacted documents
+     * @param documentRedactor the redactor for the current user
+     * @param fields           top-level fields to return, see {@link #isClientSideProjection(com.mongodb.DBObject)}, or null
+     * @param numToSkip        number of visible documents to skip
+     * @param limit            maximum number of documents to return, 0 for no limit
+     */
+    public ClientRedactedCursor(Cursor source, DocumentRedactor documentRedactor, DBObject fields, int numToSkip, int limit) {
+        this.source = RedactedDBCollection.checkNotNull(source, "source can't be null");
+        this.documentRedactor = RedactedDBCollection.checkNotNull(documentRedactor, "documentRedactor can't be null");
+        if (fields != null && !isClientSideProjection(fields)) {
+            throw new IllegalArgumentException("only inclusion or exclusion of top-level fields is supported: " + fields);
+        }
+        this.fields = (fields == null || fields.keySet().isEmpty()) ? null : fields;
+        this.toSkip = Math.max(numToSkip, 0);
+        this.limit = Math.abs(limit);
+    }
+
+    public boolean hasNext() {
+        if (nextDocument != null) {
+            return true;
+        }
+        if (limit != 0 && returned >= limit) {
+            return false;
+        }
+        while (source.hasNext()) {
+            final DBObject redacted = documentRedactor.redact(source.next());
+            if (redacted == null) {
+                continue;
+            }
+            if (toSkip > 0) {
+                toSkip--;
+                continue;
+            }
+            nextDocument = (fields == null) ? redacted : project(redacted, fields);
+            return true;
+        }
+        return false;
+    }
+
+    public DBObject next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final DBObject result = nextDocument;
+        nextDocument = null;
+        returned++;
+        return result;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException("can't remove a document from a redacted cursor");
+    }
+
+    public long getCursorId() {
+        return source.getCursorId();
+    }
+
+    public ServerAddress getServerAddress() {
+        return source.getServerAddress();
+    }
+
+    public void close() {
+        source.close();
+    }
+
+    /**
+     * @param fields a projection
+     * @return true if the projection only includes, or only excludes, top-level fields, which this cursor can
+     * apply after redaction
+     */
+    public static boolean isClientSideProjection(DBObject fields) {
+        if (fields == null) {
+            return true;
+        }
+        Boolean inclusion = null;
+        for (String key : fields.keySet()) {
+            if (key.indexOf('.') >= 0 || key.startsWith("$")) {
+                return false;
+            }
+            final Object value = fields.get(key);
+            if (!(value instanceof Number || value instanceof Boolean)) {
+                return false;
+            }
+            if (!"_id".equals(key)) {
+                final boolean include = isTrue(value);
+                if (inclusion != null && inclusion != include) {
+                    return false;
+                }
+                inclusion = include;
+            }
+        }
+        return true;
+    }
+
+    static DBObject project(DBObject document, DBObject fields) {
+        // like the server, a projection of only { _id : 1 } is an inclusion of _id alone
+        boolean inclusion = fields.keySet().size() == 1 && fields.containsField("_id") && isTrue(fields.get("_id"));
+        for (String key : fields.keySet()) {
+            if (!"_id".equals(key) && isTrue(fields.get(key))) {
+                inclusion = true;
+                break;
+            }
+        }
+        final Iterator<String> it = document.keySet().iterator();
+        while (it.hasNext()) {
+            final String key = it.next();
+            final Object spec = fields.get(key);
+            final boolean keep;
+            if ("_id".equals(key)) {
+                keep = spec == null || isTrue(spec);
+            } else {
+                keep = inclusion ? (spec != null && isTrue(spec)) : (spec == null || isTrue(spec));
+            }
+            if (!keep) {
+                it.remove();
+            }
+        }
+        document.markAsPartialObject();
+        return document;
+    }
+
+    private static boolean isTrue(Object value) {
+        if (value instanceof Boolean) {
+            return (Boolean) value;
+        }
+        return ((Number) value).doubleValue() != 0;
+    }
+}
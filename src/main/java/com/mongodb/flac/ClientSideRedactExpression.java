@@ -0,0 +1,20 @@
+package com.mongodb.flac;
+
+/**
+ * A <code>RedactExpression</code> whose semantics can also be evaluated in the JVM, allowing
+ * a {@link RedactedDBCollection} to redact the documents of a plain find on the client, see
+ * {@link RedactedDBCollection.RedactionMode#CLIENT}.
+ *
+ */
+public interface ClientSideRedactExpression extends RedactExpression {
+
+    /**
+     * Return a <code>DocumentRedactor</code> that applies this expression's semantics, for the
+     * specified <code>SecurityAttributes</code>, to documents in the JVM.
+     *
+     * @param securityAttributes
+     * @return the <code>DocumentRedactor</code>
+     */
+    public DocumentRedactor getDocumentRedactor(SecurityAttributes securityAttributes);
+
+}
@@ -0,0 +1,206 @@
+package com.mongodb.flac;
+
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Publishes the documents of a cursor to a {@link Subscriber}, on an executor, as fast as the subscriber asks for
+ * them.  The interfaces follow the shape of the Reactive Streams <tt>Publisher</tt>, so they are easily adapted to
+ * a reactive library.
+ *
+ * <p>The cursor is only opened once the subscriber first requests documents, and documents are only read from it
+ * while there is outstanding demand; the underlying cursor is a {@link PrefetchingCursor}, so the next documents
+ * are fetched while the subscriber processes the current ones.  The subscriber is signalled serially, never
+ * concurrently, and always from an executor thread.  A publisher can be subscribed to once.</p>
+ *
+ * <p>Publishing and prefetching each hold an executor thread while a subscription is active, so the executor
+ * must be able to run at least two tasks per active subscription; a single threaded executor deadlocks.</p>
+ * <pre>
+ *     asyncCollection.publishFind(query, fields).subscribe(new CursorPublisher.Subscriber() {
+ *         public void onSubscribe(CursorPublisher.Subscription subscription) { subscription.request(100); }
+ *         ...
+ *     });
+ * </pre>
+ */
+public class CursorPublisher {
+
+    /**
+     * receives the documents of a {@link CursorPublisher}
+     */
+    public interface Subscriber {
+        /**
+         * called once, before any other signal; documents flow after {@link Subscription#request(long)}
+         */
+        void onSubscribe(Subscription subscription);
+
+        void onNext(DBObject document);
+
+        /**
+         * called once if opening or reading the cursor fails; no further signals follow
+         */
+        void onError(Throwable t);
+
+        /**
+         * called once when all documents were published; no further signals follow
+         */
+        void onComplete();
+    }
+
+    /**
+     * the link between a {@link CursorPublisher} and its {@link Subscriber}
+     */
+    public interface Subscription {
+        /**
+         * @param n the number of additional documents the subscriber is ready for, greater than 0
+         */
+        void request(long n);
+
+        /**
+         * stop publishing and close the cursor
+         */
+        void cancel();
+    }
+
+    private final Callable<Cursor> cursorFactory;
+    private final Executor executor;
+    private final int prefetch;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    /**
+     * @param cursorFactory opens the cursor, on an executor thread
+     * @param executor      runs the publishing, and the prefetching of the cursor
+     * @param prefetch      the maximum number of documents read ahead of the subscriber
+     */
+    public CursorPublisher(Callable<Cursor> cursorFactory, Executor executor, int prefetch) {
+        this.cursorFactory = RedactedDBCollection.checkNotNull(cursorFactory, "cursorFactory can't be null");
+        this.executor = RedactedDBCollection.checkNotNull(executor, "executor can't be null");
+        if (prefetch <= 0) {
+            throw new IllegalArgumentException("prefetch must be greater than 0");
+        }
+        this.prefetch = prefetch;
+    }
+
+    public void subscribe(Subscriber subscriber) {
+        RedactedDBCollection.checkNotNull(subscriber, "subscriber can't be null");
+        if (!subscribed.compareAndSet(false, true)) {
+            throw new IllegalStateException("a CursorPublisher can only be subscribed to once");
+        }
+        final CursorSubscription subscription = new CursorSubscription(subscriber);
+        executor.execute(new Runnable() {
+            public void run() {
+                subscription.start();
+            }
+        });
+    }
+
+    private final class CursorSubscription implements Subscription, Runnable {
+        private final Subscriber subscriber;
+        private final AtomicLong demand = new AtomicLong();
+        private final AtomicInteger pending = new AtomicInteger();   // drain requests, only one drain runs at a time
+        private volatile boolean cancelled;
+        private volatile long invalidRequest = 1;
+        private boolean done;
+        private Cursor cursor;
+
+        CursorSubscription(Subscriber subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        void start() {
+            pending.incrementAndGet();             // hold off drains until onSubscribe returned
+            try {
+                subscriber.onSubscribe(this);
+            } catch (RuntimeException e) {
+                cancelled = true;
+            }
+            run();
+        }
+
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = n;
+                cancelled = true;
+            } else {
+                long current;
+                do {
+                    current = demand.get();
+                } while (!demand.compareAndSet(current, (current + n < 0) ? Long.MAX_VALUE : current + n));
+            }
+            schedule();
+        }
+
+        public void cancel() {
+            cancelled = true;
+            schedule();
+        }
+
+        private void schedule() {
+            if (pending.getAndIncrement() == 0) {
+                executor.execute(this);
+            }
+        }
+
+        /**
+         * drain loop, runs on the executor, never concurrently with itself
+         */
+        public void run() {
+            int missed = 1;
+            do {
+                drain();
+                missed = pending.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void drain() {
+            if (done) {
+                return;
+            }
+            if (cancelled) {
+                finish();
+                if (invalidRequest <= 0) {
+                    subscriber.onError(new IllegalArgumentException(
+                            "the number of documents requested must be greater than 0: " + invalidRequest));
+                }
+                return;
+            }
+            try {
+                while (demand.get() > 0 && !cancelled) {
+                    if (cursor == null) {
+                        cursor = new PrefetchingCursor(cursorFactory.call(), executor, prefetch);
+                    }
+                    if (!cursor.hasNext()) {
+                        finish();
+                        subscriber.onComplete();
+                        return;
+                    }
+                    final DBObject document = cursor.next();
+                    demand.decrementAndGet();
+                    subscriber.onNext(document);
+                }
+                if (cancelled) {
+                    finish();
+                }
+            } catch (Exception e) {
+                finish();
+                subscriber.onError(e);
+            } catch (Error e) {
+                finish();
+                subscriber.onError(e);
+                throw e;
+            }
+        }
+
+        private void finish() {
+            done = true;
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.mongodb.flac;
+
+import com.mongodb.DBObject;
+
+/**
+ * A <code>RedactExpression</code> that builds the redaction expression directly as a <code>DBObject</code>,
+ * avoiding the <code>String.format()</code> templating and the JSON parse of the <code>String</code> form.
+ *
+ * <p>Since the user's labels are placed into the expression as values rather than formatted into a JSON
+ * <code>String</code>, no quoting of label keys or values is needed.  {@link RedactedDBCollection} uses this form
+ * whenever it is available, and falls back to {@link #getRedactExpression(SecurityAttributes)} otherwise.</p>
+ *
+ */
+public interface DBObjectRedactExpression extends RedactExpression {
+
+    /**
+     * Return the redaction expression, the value of the $redact stage, based on the
+     * specified <code>SecurityAttributes</code>.
+     *
+     * <p>The returned expression may share sub-documents with other expressions returned by this
+     * instance, it must be treated as read only.</p>
+     *
+     * @param securityAttributes
+     * @return the redaction expression <code>DBObject</code>
+     */
+    public DBObject getRedactExpressionObject(SecurityAttributes securityAttributes);
+
+}
@@ -0,0 +1,21 @@
+package com.mongodb.flac;
+
+import com.mongodb.DBObject;
+
+/**
+ * Stores values derived from the security markings of a document in the document itself, for a
+ * <code>RedactExpression</code> to evaluate instead of the markings, e.g. a {@link LabelMaskAnnotator} or a
+ * {@link LabelSummaryAnnotator}.  Existing documents are annotated with a {@link LabelMaskBackfill}.
+ *
+ */
+public interface DocumentAnnotator {
+
+    /**
+     * Set, or remove, the derived values of the document, in place.
+     *
+     * @param document the document
+     * @return true if the document was changed
+     */
+    public boolean annotate(DBObject document);
+
+}
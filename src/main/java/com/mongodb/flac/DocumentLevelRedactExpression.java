@@ -0,0 +1,25 @@
+package com.mongodb.flac;
+
+import com.mongodb.DBObject;
+
+/**
+ * A <code>RedactExpression</code> whose test of the document root can also be written as a query, allowing a
+ * {@link RedactedDBCollection} to replace its $redact stage with a $match, see
+ * {@link RedactedDBCollection.RedactionMode#DOCUMENT_LEVEL}.
+ *
+ * <p>The query is only equivalent to the $redact stage for collections whose documents are marked at the root
+ * alone: markings of sub-documents are ignored by it.</p>
+ *
+ */
+public interface DocumentLevelRedactExpression extends RedactExpression {
+
+    /**
+     * Return the query that matches exactly the documents whose root marking is satisfied by the specified
+     * <code>SecurityAttributes</code>.
+     *
+     * @param securityAttributes
+     * @return the query for the $match stage that takes the place of the $redact stage
+     */
+    public DBObject getDocumentLevelQuery(SecurityAttributes securityAttributes);
+
+}
@@ -0,0 +1,144 @@
+package com.mongodb.flac;
+
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Checks that {@link RedactedDBCollection.RedactionMode#DOCUMENT_LEVEL} still gives the results of the $redact
+ * stage, by running a sample of the requests through both plans and comparing their documents.
+ *
+ * <p>A document-level collection relies on its documents being marked at the root only; a document written with a
+ * marked sub-document breaks that, and its sub-document is then returned to users who may not see it.  Of the
+ * requests that qualify, every n-th is run twice, once with the $match of the document-level plan and once with the
+ * $redact stage in its place.  If their documents differ, {@link #onDivergence(String, List, List, List)} is called,
+ * which logs an error, and the documents of the $redact plan are returned.</p>
+ *
+ * <p>Only requests whose documents don't depend on the order the server reads them in qualify, that is pipelines of
+ * $match, $sort, $project and $unwind stages, e.g. finds without skip or limit.  A verified request reads all its
+ * documents before the first is returned.</p>
+ * <pre>
+ *     redactedDBCollection.setRedactionMode(RedactionMode.DOCUMENT_LEVEL);
+ *     redactedDBCollection.setDocumentLevelVerifier(new DocumentLevelVerifier(100));
+ * </pre>
+ */
+public class DocumentLevelVerifier {
+
+    protected static final org.slf4j.Logger logger = LoggerFactory.getLogger(DocumentLevelVerifier.class);
+
+    private static final Set<String> ORDER_INDEPENDENT_STAGES = new HashSet<String>(Arrays.asList("$match", "$sort",
+            "$project", "$unwind"));
+
+    private final int sampleEvery;
+    private final AtomicLong qualifyingCount = new AtomicLong();
+    private final AtomicLong verifiedCount = new AtomicLong();
+    private final AtomicLong divergenceCount = new AtomicLong();
+
+    /**
+     * @param sampleEvery verify one of this many qualifying requests, 1 to verify them all
+     */
+    public DocumentLevelVerifier(int sampleEvery) {
+        if (sampleEvery <= 0) {
+            throw new IllegalArgumentException("sampleEvery must be greater than 0");
+        }
+        this.sampleEvery = sampleEvery;
+    }
+
+    /**
+     * @param pipeline the document-level pipeline of a request
+     * @return true if the request is to be verified
+     */
+    boolean isSampled(List<DBObject> pipeline) {
+        for (DBObject stage : pipeline) {
+            if (stage.keySet().size() != 1 || !ORDER_INDEPENDENT_STAGES.contains(stage.keySet().iterator().next())) {
+                return false;
+            }
+        }
+        return qualifyingCount.getAndIncrement() % sampleEvery == 0;
+    }
+
+    /**
+     * compare the documents of both plans of a request
+     *
+     * @param namespace     the namespace of the collection
+     * @param pipeline      the document-level pipeline
+     * @param documentLevel the documents of the document-level pipeline
+     * @param redacted      the documents of the same pipeline with a $redact stage in place of the document-level $match
+     * @return the documents to return, those of the $redact plan
+     */
+    List<DBObject> verify(String namespace, List<DBObject> pipeline, List<DBObject> documentLevel, List<DBObject> redacted) {
+        verifiedCount.incrementAndGet();
+
+        final Map<DBObject, Integer> unmatched = new HashMap<DBObject, Integer>();
+        for (DBObject document : redacted) {
+            final Integer count = unmatched.get(document);
+            unmatched.put(document, (count == null) ? 1 : count + 1);
+        }
+        final List<DBObject> onlyDocumentLevel = new ArrayList<DBObject>();
+        for (DBObject document : documentLevel) {
+            final Integer count = unmatched.get(document);
+            if (count == null) {
+                onlyDocumentLevel.add(document);
+            } else if (count == 1) {
+                unmatched.remove(document);
+            } else {
+                unmatched.put(document, count - 1);
+            }
+        }
+
+        if (!onlyDocumentLevel.isEmpty() || !unmatched.isEmpty()) {
+            final List<DBObject> onlyRedacted = new ArrayList<DBObject>();
+            for (DBObject document : redacted) {
+                if (unmatched.containsKey(document)) {
+                    onlyRedacted.add(document);
+                }
+            }
+            divergenceCount.incrementAndGet();
+            onDivergence(namespace, pipeline, onlyDocumentLevel, onlyRedacted);
+        }
+        return redacted;
+    }
+
+    /**
+     * Called when the plans of a request gave different documents, which means the collection holds marked
+     * sub-documents and must not be read document-level.  Override to raise an alert, by default an error is logged.
+     *
+     * @param namespace         the namespace of the collection
+     * @param pipeline          the document-level pipeline
+     * @param onlyDocumentLevel the documents only the document-level plan returned
+     * @param onlyRedacted      the documents only the $redact plan returned
+     */
+    protected void onDivergence(String namespace, List<DBObject> pipeline, List<DBObject> onlyDocumentLevel,
+                                List<DBObject> onlyRedacted) {
+        logger.error("document-level redaction of " + namespace + " diverges from $redact for " + JSON.serialize(pipeline)
+                + ": " + onlyDocumentLevel.size() + " document(s) only document-level, " + onlyRedacted.size()
+                + " only redacted, e.g. _id " + (onlyDocumentLevel.isEmpty() ? onlyRedacted : onlyDocumentLevel).get(0).get("_id"));
+    }
+
+    public int getSampleEvery() {
+        return sampleEvery;
+    }
+
+    /**
+     * @return the number of requests that were verified
+     */
+    public long getVerifiedCount() {
+        return verifiedCount.get();
+    }
+
+    /**
+     * @return the number of verified requests whose plans gave different documents
+     */
+    public long getDivergenceCount() {
+        return divergenceCount.get();
+    }
+
+    @Override
+    public String toString() {
+        return "DocumentLevelVerifier{sampleEvery=" + sampleEvery + ", verifiedCount=" + getVerifiedCount()
+                + ", divergenceCount=" + getDivergenceCount() + "}";
+    }
+}
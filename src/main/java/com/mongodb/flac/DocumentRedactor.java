@@ -0,0 +1,134 @@
+package com.mongodb.flac;
+
+import com.mongodb.DBObject;
+
+import java.util.*;
+
+/**
+ * An in-JVM implementation of the CAPCO $redact semantics, see {@link com.mongodb.flac.capco.CapcoRedactExpression}.
+ *
+ * <p>Every document, starting at the root and including documents embedded in arrays, is checked against its
+ * own security field: when the user satisfies the marking the document is kept and its content is examined
+ * in turn ($$DESCEND), otherwise it is removed ($$PRUNE).  Values that are not documents are always kept.</p>
+ *
+ * <p>This lets an application redact documents fetched with a plain {@link com.mongodb.DBCollection#find}, e.g. to
+ * move the redaction CPU from the server to the application nodes, or to use find features (hint, snapshot,
+ * tailable cursors) that the aggregation framework lacks.  Note that the query of such a find runs on the
+ * <b>un-redacted</b> documents, so it should only reference fields that carry no security markings.</p>
+ *
+ * <p>Documents are redacted in place; the walk allocates nothing beyond an occasional list of keys to remove
+ * from documents that are not a {@link java.util.Map}.  Instances are immutable and can be shared between
+ * threads.</p>
+ */
+public class DocumentRedactor {
+
+    private final String securityFieldName;
+    private final UserLabels userLabels;
+
+    /**
+     * @param securityFieldName      a field name, like sl , that we use in our documentation describing FLAC
+     * @param userSecurityAttributes the user's security attributes
+     */
+    public DocumentRedactor(String securityFieldName, SecurityAttributes userSecurityAttributes) {
+        this(securityFieldName, new UserLabels(userSecurityAttributes));
+    }
+
+    /**
+     * @param securityFieldName a field name, like sl , that we use in our documentation describing FLAC
+     * @param userLabels        the user's precomputed labels
+     */
+    public DocumentRedactor(String securityFieldName, UserLabels userLabels) {
+        this.securityFieldName = RedactedDBCollection.checkNotNull(securityFieldName, "securityFieldName can't be null");
+        this.userLabels = RedactedDBCollection.checkNotNull(userLabels, "userLabels can't be null");
+    }
+
+    public String getSecurityFieldName() {
+        return securityFieldName;
+    }
+
+    public UserLabels getUserLabels() {
+        return userLabels;
+    }
+
+    /**
+     * @param document a document or sub-document
+     * @return true if the user satisfies the document's own marking; its content is not examined
+     */
+    public boolean isVisible(DBObject document) {
+        return userLabels.satisfies(document.get(securityFieldName));
+    }
+
+    /**
+     * Redact the document in place.
+     *
+     * @param document the document, as returned by the server
+     * @return the same document with the sub-documents the user may not see removed,
+     * or null if the user may not see the document at all
+     */
+    public DBObject redact(DBObject document) {
+        if (document == null || !isVisible(document)) {
+            return null;
+        }
+        descend(document);
+        return document;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void descend(DBObject document) {
+        if (document instanceof Map) {
+            final Iterator<Map.Entry<String, Object>> it = ((Map<String, Object>) document).entrySet().iterator();
+            while (it.hasNext()) {
+                if (!keepValue(it.next().getValue())) {
+                    it.remove();
+                }
+            }
+        } else {
+            List<String> pruned = null;
+            for (String key : document.keySet()) {
+                if (!keepValue(document.get(key))) {
+                    if (pruned == null) {
+                        pruned = new ArrayList<String>(2);
+                    }
+                    pruned.add(key);
+                }
+            }
+            if (pruned != null) {
+                for (String key : pruned) {
+                    document.removeField(key);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return false if the value is a document the user may not see, after redacting whatever it contains
+     */
+    private boolean keepValue(Object value) {
+        if (value instanceof List) {
+            descendList((List<?>) value);
+            return true;
+        }
+        if (value instanceof DBObject) {
+            final DBObject subDocument = (DBObject) value;
+            if (!isVisible(subDocument)) {
+                return false;
+            }
+            descend(subDocument);
+        }
+        return true;
+    }
+
+    private void descendList(List<?> list) {
+        final Iterator<?> it = list.iterator();
+        while (it.hasNext()) {
+            if (!keepValue(it.next())) {
+                it.remove();
+            }
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DocumentRedactor{securityFieldName=" + securityFieldName + ", userLabels=" + userLabels + "}";
+    }
+}
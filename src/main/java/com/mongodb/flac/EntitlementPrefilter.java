@@ -0,0 +1,134 @@
+package com.mongodb.flac;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+
+import java.util.*;
+
+/**
+ * A {@link RedactPrefilter} that excludes documents whose root security marking can not be satisfied by the user,
+ * based on a declared universe of labels.
+ *
+ * <p>The root marking is a CNF, e.g. <tt>sl : [ [ { c:"TS" } ], [ { sci:"SI" }, { sci:"TK" } ] ]</tt>, and a
+ * document is visible only if every clause shares a label with the user.  Given the universe of values of a
+ * label key, e.g. <tt>c : [ TS, S, C, U ]</tt>, any single-label clause holding a value the user was not granted
+ * can never be satisfied.  For a user with clearance S this generates:</p>
+ * <pre><tt>
+ *     { sl : { $nin : [ [ { c:"TS" } ] ] } }
+ * </tt></pre>
+ *
+ * <p>If every document carries exactly one single-label clause for a key (typically the classification "c"),
+ * the key can be declared mandatory with {@link #setMandatoryKeys(java.util.Collection)}, and the prefilter
+ * becomes a positive, index selective, match on the clauses the user can satisfy:</p>
+ * <pre><tt>
+ *     { sl : { $in : [ [ { c:"S" } ], [ { c:"C" } ], [ { c:"U" } ] ] } }
+ * </tt></pre>
+ * <p>Documents without that clause, including unmarked documents, are then excluded, so only declare a key
+ * mandatory when the data guarantees it.</p>
+ *
+ * <p>Clauses with several labels are never used to exclude documents, they are left to $redact.  Create an
+ * index on the security field, see {@link #ensureIndex(com.mongodb.DBCollection)}, so the prefilter can use it.</p>
+ */
+public class EntitlementPrefilter implements RedactPrefilter {
+
+    private final String securityFieldName;
+    private final Map<String, List<String>> labelUniverse;
+    private Set<String> mandatoryKeys = Collections.emptySet();
+
+    /**
+     * @param securityFieldName a field name, like sl , that we use in our documentation describing FLAC
+     * @param labelUniverse     for each label key, every value that may appear in documents, e.g. c=[TS, S, C, U]
+     */
+    public EntitlementPrefilter(String securityFieldName, Map<String, ? extends Collection<String>> labelUniverse) {
+        this.securityFieldName = RedactedDBCollection.checkNotNull(securityFieldName, "securityFieldName can't be null");
+        RedactedDBCollection.checkNotNull(labelUniverse, "labelUniverse can't be null");
+        final Map<String, List<String>> universe = new LinkedHashMap<String, List<String>>();
+        for (Map.Entry<String, ? extends Collection<String>> entry : labelUniverse.entrySet()) {
+            universe.put(entry.getKey(), Collections.unmodifiableList(new ArrayList<String>(entry.getValue())));
+        }
+        this.labelUniverse = Collections.unmodifiableMap(universe);
+    }
+
+    public String getSecurityFieldName() {
+        return securityFieldName;
+    }
+
+    public Map<String, List<String>> getLabelUniverse() {
+        return labelUniverse;
+    }
+
+    public Set<String> getMandatoryKeys() {
+        return mandatoryKeys;
+    }
+
+    /**
+     * declare label keys for which every document root carries exactly one single-label clause
+     *
+     * @param mandatoryKeys keys of the label universe
+     */
+    public void setMandatoryKeys(Collection<String> mandatoryKeys) {
+        RedactedDBCollection.checkNotNull(mandatoryKeys, "mandatoryKeys can't be null");
+        for (String key : mandatoryKeys) {
+            if (!labelUniverse.containsKey(key)) {
+                throw new IllegalArgumentException("mandatory key " + key + " is not part of the label universe");
+            }
+        }
+        this.mandatoryKeys = Collections.unmodifiableSet(new LinkedHashSet<String>(mandatoryKeys));
+    }
+
+    public DBObject getPrefilter(SecurityAttributes securityAttributes) {
+        final List<DBObject> conditions = new ArrayList<DBObject>();
+        final BasicDBList excludedClauses = new BasicDBList();
+
+        for (Map.Entry<String, List<String>> entry : labelUniverse.entrySet()) {
+            final String key = entry.getKey();
+            final Set<String> granted = securityAttributes.getLabelValues(key);
+            if (mandatoryKeys.contains(key)) {
+                final BasicDBList allowedClauses = new BasicDBList();
+                for (String value : entry.getValue()) {
+                    if (granted.contains(value)) {
+                        allowedClauses.add(singleLabelClause(key, value));
+                    }
+                }
+                conditions.add(new BasicDBObject(securityFieldName, new BasicDBObject("$in", allowedClauses)));
+            } else {
+                for (String value : entry.getValue()) {
+                    if (!granted.contains(value)) {
+                        excludedClauses.add(singleLabelClause(key, value));
+                    }
+                }
+            }
+        }
+        if (!excludedClauses.isEmpty()) {
+            conditions.add(new BasicDBObject(securityFieldName, new BasicDBObject("$nin", excludedClauses)));
+        }
+
+        if (conditions.isEmpty()) {
+            return null;
+        }
+        return (conditions.size() == 1) ? conditions.get(0) : new BasicDBObject("$and", conditions);
+    }
+
+    /**
+     * create the (multikey) index on the security field that the prefilter relies on
+     *
+     * @param collection the raw collection holding the marked documents
+     */
+    public void ensureIndex(DBCollection collection) {
+        collection.createIndex(new BasicDBObject(securityFieldName, 1));
+    }
+
+    private static BasicDBList singleLabelClause(String key, String value) {
+        final BasicDBList clause = new BasicDBList();
+        clause.add(new BasicDBObject(key, value));
+        return clause;
+    }
+
+    @Override
+    public String toString() {
+        return "EntitlementPrefilter{securityFieldName=" + securityFieldName + ", labelUniverse=" + labelUniverse
+                + ", mandatoryKeys=" + mandatoryKeys + "}";
+    }
+}
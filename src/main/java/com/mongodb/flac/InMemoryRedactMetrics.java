@@ -0,0 +1,223 @@
+package com.mongodb.flac;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A {@link RedactMetrics} that keeps, per namespace and operation, {@link LatencyHistogram}s of the pipeline build
+ * time, the time to the first document and the drain time, and totals of the documents, bytes and batches returned.
+ * A monitoring exporter periodically calls {@link #snapshotAndReset()}, or {@link #snapshot()} for running totals.
+ *
+ * <p>One instance is typically shared by all the RedactedDBCollection's of an application.</p>
+ * <pre>
+ *     InMemoryRedactMetrics metrics = new InMemoryRedactMetrics();
+ *     redactedDBCollection.setMetrics(metrics);
+ *     ...
+ *     for (InMemoryRedactMetrics.Stats stats : metrics.snapshotAndReset()) {
+ *         export(stats.getNamespace(), stats.getOperation(), stats.getFirstDocument().getValueAtPercentile(99));
+ *     }
+ * </pre>
+ */
+public class InMemoryRedactMetrics implements RedactMetrics {
+
+    private static final Operation[] OPERATIONS = Operation.values();
+
+    private final ConcurrentMap<String, OperationMetrics[]> namespaces = new ConcurrentHashMap<String, OperationMetrics[]>();
+    private final boolean recordingBytes;
+
+    /**
+     * metrics without the BSON size of the returned documents
+     */
+    public InMemoryRedactMetrics() {
+        this(false);
+    }
+
+    /**
+     * @param recordingBytes true to measure the BSON size of the returned documents, which costs an encoding of
+     *                       every document
+     */
+    public InMemoryRedactMetrics(boolean recordingBytes) {
+        this.recordingBytes = recordingBytes;
+    }
+
+    public boolean isRecordingBytes() {
+        return recordingBytes;
+    }
+
+    public void recordPipelineBuild(String namespace, Operation operation, long nanos) {
+        get(namespace, operation).pipelineBuild.record(nanos);
+    }
+
+    public void recordFirstDocument(String namespace, Operation operation, long nanos) {
+        get(namespace, operation).firstDocument.record(nanos);
+    }
+
+    public void recordDrain(String namespace, Operation operation, long nanos, long documents, long bytes, long batches) {
+        final OperationMetrics operationMetrics = get(namespace, operation);
+        operationMetrics.drain.record(nanos);
+        operationMetrics.documents.addAndGet(documents);
+        operationMetrics.bytes.addAndGet(bytes);
+        operationMetrics.batches.addAndGet(batches);
+    }
+
+    private OperationMetrics get(String namespace, Operation operation) {
+        OperationMetrics[] operations = namespaces.get(namespace);
+        if (operations == null) {
+            operations = new OperationMetrics[OPERATIONS.length];
+            for (int i = 0; i < operations.length; i++) {
+                operations[i] = new OperationMetrics();
+            }
+            final OperationMetrics[] existing = namespaces.putIfAbsent(namespace, operations);
+            if (existing != null) {
+                operations = existing;
+            }
+        }
+        return operations[operation.ordinal()];
+    }
+
+    /**
+     * @return the running totals of every namespace and operation that recorded something
+     */
+    public List<Stats> snapshot() {
+        return snapshot(false);
+    }
+
+    /**
+     * @return the totals of every namespace and operation that recorded something since the previous reset, which
+     * are reset to 0
+     */
+    public List<Stats> snapshotAndReset() {
+        return snapshot(true);
+    }
+
+    public void reset() {
+        snapshot(true);
+    }
+
+    private List<Stats> snapshot(boolean reset) {
+        final List<Stats> snapshot = new ArrayList<Stats>();
+        for (Map.Entry<String, OperationMetrics[]> entry : namespaces.entrySet()) {
+            for (Operation operation : OPERATIONS) {
+                final Stats stats = entry.getValue()[operation.ordinal()].snapshot(entry.getKey(), operation, reset);
+                if (stats.getPipelineBuild().getCount() + stats.getFirstDocument().getCount() + stats.getDrain().getCount() > 0) {
+                    snapshot.add(stats);
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    /**
+     * @param namespace the namespace of the wrapped collection
+     * @param operation the read
+     * @return the running totals of the namespace and operation, all 0 if nothing was recorded
+     */
+    public Stats getStats(String namespace, Operation operation) {
+        return get(namespace, operation).snapshot(namespace, operation, false);
+    }
+
+    @Override
+    public String toString() {
+        return "InMemoryRedactMetrics" + snapshot();
+    }
+
+    private static final class OperationMetrics {
+        final LatencyHistogram pipelineBuild = new LatencyHistogram();
+        final LatencyHistogram firstDocument = new LatencyHistogram();
+        final LatencyHistogram drain = new LatencyHistogram();
+        final AtomicLong documents = new AtomicLong();
+        final AtomicLong bytes = new AtomicLong();
+        final AtomicLong batches = new AtomicLong();
+
+        Stats snapshot(String namespace, Operation operation, boolean reset) {
+            if (reset) {
+                return new Stats(namespace, operation, pipelineBuild.snapshotAndReset(), firstDocument.snapshotAndReset(),
+                        drain.snapshotAndReset(), documents.getAndSet(0), bytes.getAndSet(0), batches.getAndSet(0));
+            }
+            return new Stats(namespace, operation, pipelineBuild.snapshot(), firstDocument.snapshot(),
+                    drain.snapshot(), documents.get(), bytes.get(), batches.get());
+        }
+    }
+
+    /**
+     * The metrics of one namespace and operation at some point in time.
+     */
+    public static final class Stats {
+        private final String namespace;
+        private final Operation operation;
+        private final LatencyHistogram.Snapshot pipelineBuild;
+        private final LatencyHistogram.Snapshot firstDocument;
+        private final LatencyHistogram.Snapshot drain;
+        private final long documents;
+        private final long bytes;
+        private final long batches;
+
+        Stats(String namespace, Operation operation, LatencyHistogram.Snapshot pipelineBuild,
+              LatencyHistogram.Snapshot firstDocument, LatencyHistogram.Snapshot drain,
+              long documents, long bytes, long batches) {
+            this.namespace = namespace;
+            this.operation = operation;
+            this.pipelineBuild = pipelineBuild;
+            this.firstDocument = firstDocument;
+            this.drain = drain;
+            this.documents = documents;
+            this.bytes = bytes;
+            this.batches = batches;
+        }
+
+        public String getNamespace() {
+            return namespace;
+        }
+
+        public Operation getOperation() {
+            return operation;
+        }
+
+        /**
+         * @return the times to build the secure pipelines, none for client side redacted finds
+         */
+        public LatencyHistogram.Snapshot getPipelineBuild() {
+            return pipelineBuild;
+        }
+
+        /**
+         * @return the times from sending a read until its first document
+         */
+        public LatencyHistogram.Snapshot getFirstDocument() {
+            return firstDocument;
+        }
+
+        /**
+         * @return the times from sending a read until its cursor was exhausted or closed, one per cursor
+         */
+        public LatencyHistogram.Snapshot getDrain() {
+            return drain;
+        }
+
+        public long getDocuments() {
+            return documents;
+        }
+
+        /**
+         * @return the BSON size of the documents, 0 unless bytes are recorded
+         */
+        public long getBytes() {
+            return bytes;
+        }
+
+        public long getBatches() {
+            return batches;
+        }
+
+        @Override
+        public String toString() {
+            return "{ namespace: " + namespace + ", operation: " + operation
+                    + ", pipelineBuild: " + pipelineBuild + ", firstDocument: " + firstDocument + ", drain: " + drain
+                    + ", documents: " + documents + ", bytes: " + bytes + ", batches: " + batches + " }";
+        }
+    }
+}
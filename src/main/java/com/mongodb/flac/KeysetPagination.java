@@ -0,0 +1,235 @@
+package com.mongodb.flac;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import org.bson.BSON;
+import org.bson.BSONObject;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The sort, seek query and continuation token of {@link RedactedDBCollection#findPage}.
+ *
+ * <p>A page is read by a range $match on the sort keys of the last document of the previous page instead of a
+ * $skip, so every page costs the same whatever its depth.  The sort is made total by adding <tt>_id</tt> as the
+ * last key, unless it already contains <tt>_id</tt>.  The continuation token is the unpadded url safe base64 of a small
+ * BSON document holding the sort and the sort values of the last document.  The token only positions the next
+ * page, every page still runs through $redact, so a forged token can not reveal anything.</p>
+ *
+ * <p>Seeking follows the server's sort order for values of one BSON type, and for missing or null values, which
+ * sort first, so last in a descending sort: after a value, a descending key also seeks to the documents where it is
+ * missing or null.  A sort key whose values mix other types, e.g. numbers and strings, can skip documents.</p>
+ */
+final class KeysetPagination {
+
+    private static final char[] BASE64_URL = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789-_".toCharArray();
+
+    private KeysetPagination() {
+    }
+
+    /**
+     * @param orderBy the requested sort, or null for _id order
+     * @return the sort with _id added as the tie breaker
+     */
+    static DBObject totalSort(DBObject orderBy) {
+        final BasicDBObject sort = new BasicDBObject();
+        if (orderBy != null) {
+            for (String key : orderBy.keySet()) {
+                final Object direction = orderBy.get(key);
+                if (!(direction instanceof Number) || Math.abs(((Number) direction).intValue()) != 1) {
+                    throw new IllegalArgumentException("a page sort direction must be 1 or -1, not " + direction + " for " + key);
+                }
+                sort.put(key, ((Number) direction).intValue());
+            }
+        }
+        if (!sort.containsField("_id")) {
+            sort.put("_id", 1);
+        }
+        return sort;
+    }
+
+    /**
+     * @param sort   the total sort
+     * @param values the sort values of the last document of the previous page
+     * @return the query of the documents that sort after them
+     */
+    static DBObject seekQuery(DBObject sort, List<?> values) {
+        final List<String> keys = new ArrayList<String>(sort.keySet());
+        final BasicDBList or = new BasicDBList();
+        for (int i = 0; i < keys.size(); i++) {
+            final Object value = values.get(i);
+            final boolean ascending = ((Number) sort.get(keys.get(i))).intValue() > 0;
+            if (value == null) {
+                if (!ascending) {
+                    continue;               // nothing sorts before null
+                }
+                or.add(seekClause(keys, values, i, new BasicDBObject("$ne", null)));
+            } else if (ascending) {
+                or.add(seekClause(keys, values, i, new BasicDBObject("$gt", value)));
+            } else {
+                // missing and null values sort after every other value when descending
+                or.add(seekClause(keys, values, i, new BasicDBObject("$lt", value)));
+                or.add(seekClause(keys, values, i, null));
+            }
+        }
+        if (or.isEmpty()) {
+            // only possible for a descending sort at null in every key, which _id never is
+            return new BasicDBObject("_id", new BasicDBObject("$exists", false));
+        }
+        return (or.size() == 1) ? (DBObject) or.get(0) : new BasicDBObject("$or", or);
+    }
+
+    /**
+     * @return the clause matching the previous page's values on the keys before i, and after on key i
+     */
+    private static DBObject seekClause(List<String> keys, List<?> values, int i, Object after) {
+        final BasicDBObject clause = new BasicDBObject();
+        for (int j = 0; j < i; j++) {
+            clause.put(keys.get(j), values.get(j));
+        }
+        clause.put(keys.get(i), after);
+        return clause;
+    }
+
+    /**
+     * @param sort     the total sort
+     * @param document the last document of a page
+     * @return the continuation token of the page after it
+     */
+    static String encodeToken(DBObject sort, DBObject document) {
+        final BasicDBList values = new BasicDBList();
+        for (String key : sort.keySet()) {
+            values.add(getPath(document, key));
+        }
+        final byte[] bson = BSON.encode(new BasicDBObject("s", sort).append("v", values));
+        return encodeBase64Url(bson);
+    }
+
+    /**
+     * @param sort  the total sort of the request
+     * @param token a continuation token of {@link #encodeToken(DBObject, DBObject)}
+     * @return the sort values of the token
+     * @throws IllegalArgumentException if the token is malformed or was issued for another sort
+     */
+    static List<?> decodeToken(DBObject sort, String token) {
+        final BSONObject decoded;
+        try {
+            decoded = BSON.decode(decodeBase64Url(token));
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("malformed continuation token: " + token, e);
+        }
+        final Object tokenSort = decoded.get("s");
+        final Object values = decoded.get("v");
+        if (!(values instanceof List) || ((List<?>) values).size() != sort.keySet().size()) {
+            throw new IllegalArgumentException("malformed continuation token: " + token);
+        }
+        if (!(tokenSort instanceof BSONObject) || !sort.toMap().equals(((BSONObject) tokenSort).toMap())
+                || !new ArrayList<String>(sort.keySet()).equals(new ArrayList<String>(((BSONObject) tokenSort).keySet()))) {
+            throw new IllegalArgumentException("the continuation token was issued for the sort " + tokenSort + ", not " + sort);
+        }
+        return (List<?>) values;
+    }
+
+    /**
+     * @return the url safe base64 of the bytes, without padding
+     */
+    static String encodeBase64Url(byte[] bytes) {
+        final StringBuilder encoded = new StringBuilder((bytes.length * 4 + 2) / 3);
+        for (int i = 0; i < bytes.length; i += 3) {
+            final int remaining = Math.min(3, bytes.length - i);
+            int bits = (bytes[i] & 0xff) << 16;
+            if (remaining > 1) bits |= (bytes[i + 1] & 0xff) << 8;
+            if (remaining > 2) bits |= bytes[i + 2] & 0xff;
+            for (int j = 0; j <= remaining; j++) {
+                encoded.append(BASE64_URL[(bits >>> (18 - 6 * j)) & 0x3f]);
+            }
+        }
+        return encoded.toString();
+    }
+
+    /**
+     * @param encoded url safe base64, with or without padding
+     * @return the bytes
+     * @throws IllegalArgumentException if it is not url safe base64
+     */
+    static byte[] decodeBase64Url(String encoded) {
+        int length = encoded.length();
+        while (length > 0 && encoded.charAt(length - 1) == '=') {
+            length--;
+        }
+        if (length % 4 == 1) {
+            throw new IllegalArgumentException("not url safe base64: " + encoded);
+        }
+        final byte[] decoded = new byte[length * 3 / 4];
+        int bits = 0;
+        int count = 0;
+        int position = 0;
+        for (int i = 0; i < length; i++) {
+            final char c = encoded.charAt(i);
+            final int value;
+            if (c >= 'A' && c <= 'Z') value = c - 'A';
+            else if (c >= 'a' && c <= 'z') value = c - 'a' + 26;
+            else if (c >= '0' && c <= '9') value = c - '0' + 52;
+            else if (c == '-') value = 62;
+            else if (c == '_') value = 63;
+            else throw new IllegalArgumentException("not url safe base64: " + encoded);
+            bits = (bits << 6) | value;
+            count += 6;
+            if (count >= 8) {
+                count -= 8;
+                decoded[position++] = (byte) (bits >>> count);
+            }
+        }
+        return decoded;
+    }
+
+    /**
+     * @return the value at a dotted path, or null if a part of it is missing or not a document
+     */
+    static Object getPath(DBObject document, String path) {
+        Object value = document;
+        for (String part : path.split("\\.")) {
+            if (!(value instanceof DBObject) || value instanceof List) {
+                return null;
+            }
+            value = ((DBObject) value).get(part);
+        }
+        return value;
+    }
+
+    /**
+     * add the sort keys to an inclusion projection, so the last document of a page still has them
+     *
+     * @param fields the projection, or null
+     * @param sort   the total sort
+     * @return the projection to use
+     * @throws IllegalArgumentException if the projection excludes a sort key
+     */
+    static DBObject projectionWithSortKeys(DBObject fields, DBObject sort) {
+        if (fields == null || fields.keySet().isEmpty()) {
+            return fields;
+        }
+        boolean inclusion = false;
+        for (String key : fields.keySet()) {
+            if (!"_id".equals(key) && !isExcluded(fields.get(key))) {
+                inclusion = true;
+            }
+        }
+        final BasicDBObject projection = new BasicDBObject(fields.toMap());
+        for (String key : sort.keySet()) {
+            if (fields.containsField(key) && isExcluded(fields.get(key))) {
+                throw new IllegalArgumentException("the projection of a page can't exclude the sort key " + key);
+            }
+            if (inclusion && !"_id".equals(key)) {
+                projection.put(key, 1);
+            }
+        }
+        return projection;
+    }
+
+    private static boolean isExcluded(Object value) {
+        return (value instanceof Number && ((Number) value).doubleValue() == 0) || Boolean.FALSE.equals(value);
+    }
+}
@@ -0,0 +1,185 @@
+package com.mongodb.flac;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.DBObject;
+
+import java.util.*;
+
+/**
+ * Assigns every label, a key/value pair like <tt>{ c:"TS" }</tt>, a bit position in a 64 bit mask, so that a
+ * clause of a security marking, and the set of labels granted to a user, can each be encoded as a single long.
+ *
+ * <p>A clause <tt>[ { sci:"SI" }, { sci:"TK" } ]</tt> is then satisfied by the user when its mask shares a bit
+ * with the user's mask, or when the clause is empty (mask 0).  A marking becomes a list of clause masks, e.g.
+ * <tt>[ [ { c:"TS" } ], [ { sci:"SI" }, { sci:"TK" } ] ]</tt> with c:TS at bit 0, sci:SI at bit 4 and sci:TK at
+ * bit 5 becomes <tt>[ 1, 48 ]</tt>.</p>
+ *
+ * <p>Bit positions are assigned in the iteration order of the label universe given to the constructor.  The masks
+ * stored in documents are only meaningful for that exact assignment: labels may be appended to the universe
+ * later, but existing labels must never be reordered or removed without re-encoding every document,
+ * see {@link LabelMaskBackfill}.  Instances are immutable and can be shared between threads.</p>
+ *
+ * @see BitmaskPrefilter
+ * @see BitmaskRedactExpression
+ */
+public class LabelDictionary {
+
+    public static final int MAX_LABELS = 64;
+
+    private final Map<String, Map<String, Integer>> bits;
+    private final int size;
+
+    /**
+     * @param labelUniverse for each label key, every value that may appear in documents, e.g. c=[TS, S, C, U];
+     *                      at most {@link #MAX_LABELS} labels in total
+     */
+    public LabelDictionary(Map<String, ? extends Collection<String>> labelUniverse) {
+        RedactedDBCollection.checkNotNull(labelUniverse, "labelUniverse can't be null");
+        final Map<String, Map<String, Integer>> map = new LinkedHashMap<String, Map<String, Integer>>();
+        int bit = 0;
+        for (Map.Entry<String, ? extends Collection<String>> entry : labelUniverse.entrySet()) {
+            final Map<String, Integer> values = new LinkedHashMap<String, Integer>();
+            for (String value : entry.getValue()) {
+                if (value == null || values.containsKey(value)) {
+                    continue;
+                }
+                if (bit >= MAX_LABELS) {
+                    throw new IllegalArgumentException("a label dictionary can hold at most " + MAX_LABELS + " labels");
+                }
+                values.put(value, bit++);
+            }
+            map.put(entry.getKey(), Collections.unmodifiableMap(values));
+        }
+        this.bits = Collections.unmodifiableMap(map);
+        this.size = bit;
+    }
+
+    /**
+     * @return the number of labels, and bits used
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * @param key   a label key like "c"
+     * @param value a label value like "TS"
+     * @return the bit position of the label, or -1 if the label is not in the dictionary
+     */
+    public int getBit(String key, String value) {
+        final Map<String, Integer> values = bits.get(key);
+        final Integer bit = (values == null) ? null : values.get(value);
+        return (bit == null) ? -1 : bit;
+    }
+
+    /**
+     * @param securityAttributes the user's security attributes
+     * @return the mask of the dictionary labels granted to the user; granted labels unknown to the dictionary
+     * can not appear in any encoded marking and are ignored
+     */
+    public long getUserMask(SecurityAttributes securityAttributes) {
+        long mask = 0;
+        for (String key : securityAttributes.keySet()) {
+            for (String value : securityAttributes.getLabelValues(key)) {
+                final int bit = getBit(key, value);
+                if (bit >= 0) {
+                    mask |= 1L << bit;
+                }
+            }
+        }
+        return mask;
+    }
+
+    /**
+     * @param securityAttributes the user's security attributes
+     * @return the bit positions of {@link #getUserMask(SecurityAttributes)}, ascending, as used by $bitsAllClear
+     */
+    public List<Integer> getUserBitPositions(SecurityAttributes securityAttributes) {
+        final long mask = getUserMask(securityAttributes);
+        final List<Integer> positions = new ArrayList<Integer>(Long.bitCount(mask));
+        for (int bit = 0; bit < MAX_LABELS; bit++) {
+            if ((mask & (1L << bit)) != 0) {
+                positions.add(bit);
+            }
+        }
+        return positions;
+    }
+
+    /**
+     * @param clause one clause of a marking, a list of alternative labels like <tt>[ { sci:"SI" }, { sci:"TK" } ]</tt>
+     * @return the mask of the clause, 0 for an empty clause, or null if the clause is malformed or holds a label
+     * that is not in the dictionary
+     */
+    public Long getClauseMask(Object clause) {
+        if (!(clause instanceof List)) {
+            return null;
+        }
+        long mask = 0;
+        for (Object label : (List<?>) clause) {
+            final int bit = getBit(label);
+            if (bit < 0) {
+                return null;
+            }
+            mask |= 1L << bit;
+        }
+        return mask;
+    }
+
+    /**
+     * @param marking the value of a security field, e.g. <tt>[ [ { c:"TS" } ], [ { sci:"SI" }, { sci:"TK" } ] ]</tt>
+     * @return the list of clause masks, or null if the marking can not be encoded: it is missing, malformed, or
+     * holds a label that is not in the dictionary
+     */
+    public BasicDBList encodeMarking(Object marking) {
+        if (!(marking instanceof List)) {
+            return null;
+        }
+        final BasicDBList masks = new BasicDBList();
+        for (Object clause : (List<?>) marking) {
+            final Long mask = getClauseMask(clause);
+            if (mask == null) {
+                return null;
+            }
+            masks.add(mask);
+        }
+        return masks;
+    }
+
+    private int getBit(Object label) {
+        if (!(label instanceof DBObject) || label instanceof List) {
+            return -1;
+        }
+        final DBObject labelDocument = (DBObject) label;
+        if (labelDocument.keySet().size() != 1) {
+            return -1;
+        }
+        final String key = labelDocument.keySet().iterator().next();
+        final Object value = labelDocument.get(key);
+        return (value instanceof String) ? getBit(key, (String) value) : -1;
+    }
+
+    /**
+     * @return label key to value to bit position
+     */
+    public Map<String, Map<String, Integer>> asMap() {
+        return bits;
+    }
+
+    /**
+     * @return true if the other dictionary assigns the same bits to the same labels
+     */
+    @Override
+    public boolean equals(Object o) {
+        return this == o || (o instanceof LabelDictionary && bits.equals(((LabelDictionary) o).bits));
+    }
+
+    @Override
+    public int hashCode() {
+        return bits.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "LabelDictionary" + bits;
+    }
+}
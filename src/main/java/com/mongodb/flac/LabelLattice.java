@@ -0,0 +1,246 @@
+package com.mongodb.flac;
+
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+import java.io.Serializable;
+import java.util.*;
+
+/**
+ * The implications between the label values of each label key, e.g. that clearance TS implies S, C and U, or that
+ * relto USA implies FVEY, used to expand a user's granted labels into every label they hold.
+ *
+ * <p>Implications are declared per label key, as hierarchies, where each value implies the values after it, and
+ * as single implications.  The transitive closure of every declared value is computed once, when the lattice is
+ * built, into immutable lists of interned values, so expanding a value is a map lookup that returns a shared list.
+ * A closure starts with the value itself, followed by the implied values nearest first; a value that is not part
+ * of the lattice expands to itself.</p>
+ *
+ * <p>A lattice can be loaded from configuration:</p>
+ * <pre><tt>
+ *     {
+ *         c     : { hierarchy : [ "TS", "S", "C", "U" ] },
+ *         relto : { implies : { USA : [ "FVEY", "NOFORN" ], GBR : [ "FVEY" ] } },
+ *         sci   : { implies : { TK : [ "TK-BLUE" ] } }
+ *     }
+ * </tt></pre>
+ *
+ * <p>Instances are immutable and can be shared between threads.  They are serializable, so that the
+ * {@link com.mongodb.flac.capco.CapcoSecurityAttributes} holding one are too.</p>
+ *
+ * @see com.mongodb.flac.capco.CapcoSecurityAttributes
+ */
+public final class LabelLattice implements Serializable {
+
+    private static final long serialVersionUID = 1L;
+
+    public static final LabelLattice EMPTY = new Builder().build();
+
+    /**
+     * collects the implications of a {@link LabelLattice}
+     */
+    public static class Builder {
+        private final Map<String, Map<String, Set<String>>> implications = new LinkedHashMap<String, Map<String, Set<String>>>();
+
+        /**
+         * @param key    a label key like "c"
+         * @param values the values from highest to lowest, each implying the next
+         * @return this
+         */
+        public Builder hierarchy(String key, String... values) {
+            for (int i = 0; i + 1 < values.length; i++) {
+                implies(key, values[i], values[i + 1]);
+            }
+            if (values.length == 1) {
+                implies(key, values[0]);
+            }
+            return this;
+        }
+
+        /**
+         * @param key     a label key like "relto"
+         * @param value   the implying value
+         * @param implied the values it implies
+         * @return this
+         */
+        public Builder implies(String key, String value, String... implied) {
+            RedactedDBCollection.checkNotNull(key, "key can't be null");
+            RedactedDBCollection.checkNotNull(value, "value can't be null");
+            Map<String, Set<String>> values = implications.get(key);
+            if (values == null) {
+                values = new LinkedHashMap<String, Set<String>>();
+                implications.put(key, values);
+            }
+            final Set<String> direct = implicationsOf(values, value);
+            for (String other : implied) {
+                direct.add(RedactedDBCollection.checkNotNull(other, "implied values can't be null"));
+                implicationsOf(values, other);
+            }
+            return this;
+        }
+
+        private static Set<String> implicationsOf(Map<String, Set<String>> values, String value) {
+            Set<String> direct = values.get(value);
+            if (direct == null) {
+                direct = new LinkedHashSet<String>();
+                values.put(value, direct);
+            }
+            return direct;
+        }
+
+        public LabelLattice build() {
+            return new LabelLattice(implications);
+        }
+    }
+
+    private final Map<String, Map<String, List<String>>> closures;
+
+    private LabelLattice(Map<String, Map<String, Set<String>>> implications) {
+        final Map<String, Map<String, List<String>>> keys = new HashMap<String, Map<String, List<String>>>();
+        for (Map.Entry<String, Map<String, Set<String>>> key : implications.entrySet()) {
+            final Map<String, List<String>> values = new HashMap<String, List<String>>();
+            for (String value : key.getValue().keySet()) {
+                values.put(value, closure(key.getValue(), value));
+            }
+            keys.put(key.getKey(), Collections.unmodifiableMap(values));
+        }
+        this.closures = Collections.unmodifiableMap(keys);
+    }
+
+    /**
+     * breadth first, so nearer implications come first; cycles are harmless
+     */
+    private static List<String> closure(Map<String, Set<String>> implications, String value) {
+        final Set<String> closure = new LinkedHashSet<String>();
+        final LinkedList<String> queue = new LinkedList<String>();
+        queue.add(value);
+        while (!queue.isEmpty()) {
+            final String next = queue.removeFirst();
+            if (closure.add(next.intern())) {
+                queue.addAll(implications.get(next));
+            }
+        }
+        return Collections.unmodifiableList(Arrays.asList(closure.toArray(new String[closure.size()])));
+    }
+
+    /**
+     * Load a lattice from its configuration, see the class comment.
+     *
+     * @param json the configuration
+     * @return the lattice
+     * @throws IllegalArgumentException if the configuration is malformed
+     */
+    public static LabelLattice fromJSON(String json) {
+        final Object config = JSON.parse(json);
+        if (!(config instanceof DBObject) || config instanceof List) {
+            throw new IllegalArgumentException("a label lattice configuration must be a document: " + json);
+        }
+        return fromDBObject((DBObject) config);
+    }
+
+    /**
+     * @param config the configuration, see the class comment
+     * @return the lattice
+     * @throws IllegalArgumentException if the configuration is malformed
+     */
+    public static LabelLattice fromDBObject(DBObject config) {
+        final Builder builder = new Builder();
+        for (String key : config.keySet()) {
+            final DBObject rules = asDocument(config.get(key), key);
+            for (String rule : rules.keySet()) {
+                if ("hierarchy".equals(rule)) {
+                    builder.hierarchy(key, asStrings(rules.get(rule), key + ".hierarchy"));
+                } else if ("implies".equals(rule)) {
+                    final DBObject implies = asDocument(rules.get(rule), key + ".implies");
+                    for (String value : implies.keySet()) {
+                        builder.implies(key, value, asStrings(implies.get(value), key + ".implies." + value));
+                    }
+                } else {
+                    throw new IllegalArgumentException("unknown label lattice rule " + key + "." + rule);
+                }
+            }
+        }
+        return builder.build();
+    }
+
+    private static DBObject asDocument(Object value, String path) {
+        if (!(value instanceof DBObject) || value instanceof List) {
+            throw new IllegalArgumentException("label lattice " + path + " must be a document");
+        }
+        return (DBObject) value;
+    }
+
+    private static String[] asStrings(Object value, String path) {
+        if (!(value instanceof List)) {
+            throw new IllegalArgumentException("label lattice " + path + " must be a list of values");
+        }
+        final List<?> list = (List<?>) value;
+        final String[] strings = new String[list.size()];
+        for (int i = 0; i < strings.length; i++) {
+            if (!(list.get(i) instanceof String)) {
+                throw new IllegalArgumentException("label lattice " + path + " must be a list of values");
+            }
+            strings[i] = (String) list.get(i);
+        }
+        return strings;
+    }
+
+    /**
+     * @return the label keys with implications
+     */
+    public Set<String> getKeys() {
+        return closures.keySet();
+    }
+
+    /**
+     * @param key   a label key like "c"
+     * @param value a label value like "TS"
+     * @return true if the lattice declares the value
+     */
+    public boolean contains(String key, String value) {
+        final Map<String, List<String>> values = closures.get(key);
+        return values != null && values.containsKey(value);
+    }
+
+    /**
+     * @param key   a label key like "c"
+     * @param value a label value like "TS"
+     * @return the value followed by every value it implies, e.g. <tt>[ TS, S, C, U ]</tt>; an immutable, shared, list
+     */
+    public List<String> getClosure(String key, String value) {
+        final Map<String, List<String>> values = closures.get(key);
+        final List<String> closure = (values == null) ? null : values.get(value);
+        return (closure == null) ? Collections.singletonList(value) : closure;
+    }
+
+    /**
+     * @param key    a label key like "relto"
+     * @param values granted label values
+     * @return the values followed by every value they imply, without duplicates
+     */
+    public List<String> expand(String key, Collection<String> values) {
+        if (values.size() == 1) {
+            return getClosure(key, values.iterator().next());
+        }
+        final Set<String> expanded = new LinkedHashSet<String>();
+        for (String value : values) {
+            expanded.addAll(getClosure(key, value));
+        }
+        return Collections.unmodifiableList(new ArrayList<String>(expanded));
+    }
+
+    /**
+     * @param key    a label key like "c"
+     * @param higher a label value like "TS"
+     * @param lower  a label value like "C"
+     * @return true if holding the higher value implies holding the lower one, or they are the same
+     */
+    public boolean dominates(String key, String higher, String lower) {
+        return getClosure(key, higher).contains(lower);
+    }
+
+    @Override
+    public String toString() {
+        return "LabelLattice" + closures;
+    }
+}
@@ -0,0 +1,95 @@
+package com.mongodb.flac;
+
+import com.mongodb.DBObject;
+
+import java.util.List;
+
+/**
+ * Stores the clause masks of a document's security markings, see {@link LabelDictionary}, next to each marking.
+ *
+ * <p>Every document, starting at the root and including documents embedded in arrays, that carries a marking the
+ * dictionary can encode gets its mask field set, e.g.
+ * <tt>{ sl : [ [ { c:"TS" } ], [ { sci:"SI" }, { sci:"TK" } ] ], slm : [ 1, 48 ] }</tt>.  The mask field is
+ * removed from documents whose marking is missing or can not be encoded, so that they are evaluated on the
+ * marking itself, see {@link BitmaskRedactExpression}.</p>
+ *
+ * <p>Masks must be kept in step with the markings: annotate every document that is inserted or whose markings
+ * are updated, and run a {@link LabelMaskBackfill} for existing documents.  Instances are immutable and can be
+ * shared between threads.</p>
+ */
+public class LabelMaskAnnotator implements DocumentAnnotator {
+
+    private final String securityFieldName;
+    private final String maskFieldName;
+    private final LabelDictionary labelDictionary;
+
+    /**
+     * @param securityFieldName a field name, like sl , that we use in our documentation describing FLAC
+     * @param maskFieldName     the field to hold the clause masks, like slm
+     * @param labelDictionary   the dictionary to encode the markings with
+     */
+    public LabelMaskAnnotator(String securityFieldName, String maskFieldName, LabelDictionary labelDictionary) {
+        this.securityFieldName = RedactedDBCollection.checkNotNull(securityFieldName, "securityFieldName can't be null");
+        this.maskFieldName = RedactedDBCollection.checkNotNull(maskFieldName, "maskFieldName can't be null");
+        this.labelDictionary = RedactedDBCollection.checkNotNull(labelDictionary, "labelDictionary can't be null");
+        if (securityFieldName.equals(maskFieldName)) {
+            throw new IllegalArgumentException("maskFieldName must differ from securityFieldName");
+        }
+    }
+
+    public String getSecurityFieldName() {
+        return securityFieldName;
+    }
+
+    public String getMaskFieldName() {
+        return maskFieldName;
+    }
+
+    public LabelDictionary getLabelDictionary() {
+        return labelDictionary;
+    }
+
+    /**
+     * Set, or remove, the mask field of the document and all its sub-documents, in place.
+     *
+     * @param document the document
+     * @return true if any mask field was added, changed or removed
+     */
+    public boolean annotate(DBObject document) {
+        boolean changed = false;
+        final List<?> masks = labelDictionary.encodeMarking(document.get(securityFieldName));
+        if (masks == null) {
+            if (document.containsField(maskFieldName)) {
+                document.removeField(maskFieldName);
+                changed = true;
+            }
+        } else if (!masks.equals(document.get(maskFieldName))) {
+            document.put(maskFieldName, masks);
+            changed = true;
+        }
+
+        for (String key : document.keySet()) {
+            if (!key.equals(securityFieldName) && !key.equals(maskFieldName)) {
+                changed |= annotateValue(document.get(key));
+            }
+        }
+        return changed;
+    }
+
+    private boolean annotateValue(Object value) {
+        if (value instanceof List) {
+            boolean changed = false;
+            for (Object element : (List<?>) value) {
+                changed |= annotateValue(element);
+            }
+            return changed;
+        }
+        return (value instanceof DBObject) && annotate((DBObject) value);
+    }
+
+    @Override
+    public String toString() {
+        return "LabelMaskAnnotator{securityFieldName=" + securityFieldName + ", maskFieldName=" + maskFieldName
+                + ", labelDictionary=" + labelDictionary + "}";
+    }
+}
@@ -0,0 +1,173 @@
+package com.mongodb.flac;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Migration utility that stores the clause masks of a {@link LabelMaskAnnotator}, or the values of any other
+ * {@link DocumentAnnotator}, e.g. the summaries of a {@link LabelSummaryAnnotator}, in the existing documents of a
+ * collection, in batches.
+ *
+ * <p>Documents are read in <code>_id</code> order, a batch at a time, and only the documents whose masks changed
+ * are written back, replaced by <code>_id</code> with an unordered bulk write.  Each batch is a separate query
+ * that starts after the last <code>_id</code> seen, so a backfill that was interrupted can be resumed from
+ * {@link #getLastId()} with {@link #run(Object)}.</p>
+ *
+ * <p>Documents are replaced as a whole: writers that change the markings concurrently must annotate their
+ * documents themselves, or the backfill should run while such writes are paused.</p>
+ * <pre>
+ *     LabelMaskBackfill backfill = new LabelMaskBackfill(collection, new LabelMaskAnnotator("sl", "slm", dictionary));
+ *     backfill.setBatchSize(500);
+ *     long updated = backfill.run();
+ * </pre>
+ */
+public class LabelMaskBackfill {
+
+    protected static final org.slf4j.Logger logger = LoggerFactory.getLogger(LabelMaskBackfill.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private final DBCollection collection;
+    private final DocumentAnnotator annotator;
+    private int batchSize = DEFAULT_BATCH_SIZE;
+    private WriteConcern writeConcern;
+
+    private Object lastId;
+    private long scannedCount;
+    private long updatedCount;
+
+    /**
+     * @param collection the raw collection holding the marked documents
+     * @param annotator  the annotator computing the masks, or other values
+     */
+    public LabelMaskBackfill(DBCollection collection, DocumentAnnotator annotator) {
+        this.collection = RedactedDBCollection.checkNotNull(collection, "collection can't be null");
+        this.annotator = RedactedDBCollection.checkNotNull(annotator, "annotator can't be null");
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @param batchSize the number of documents read, and at most written, per batch
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be greater than 0");
+        }
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * @return the write concern of the bulk writes, null for the collection's
+     */
+    public WriteConcern getWriteConcern() {
+        return writeConcern;
+    }
+
+    public void setWriteConcern(WriteConcern writeConcern) {
+        this.writeConcern = writeConcern;
+    }
+
+    /**
+     * @return the <code>_id</code> of the last document processed, to resume from, or null
+     */
+    public Object getLastId() {
+        return lastId;
+    }
+
+    public long getScannedCount() {
+        return scannedCount;
+    }
+
+    public long getUpdatedCount() {
+        return updatedCount;
+    }
+
+    /**
+     * backfill the whole collection
+     *
+     * @return the number of documents updated
+     */
+    public long run() {
+        return run(null);
+    }
+
+    /**
+     * backfill the documents after the given <code>_id</code>
+     *
+     * @param startAfterId the <code>_id</code> to resume after, e.g. a previous {@link #getLastId()}, or null to start
+     *                     at the beginning
+     * @return the number of documents updated by this run
+     */
+    public long run(Object startAfterId) {
+        final long updatedBefore = updatedCount;
+        lastId = startAfterId;
+        int read;
+        do {
+            read = runBatch();
+        } while (read == batchSize);
+
+        if (logger.isInfoEnabled()) {
+            logger.info("label mask backfill of " + collection.getFullName() + " done, scanned " + scannedCount
+                    + " updated " + updatedCount);
+        }
+        return updatedCount - updatedBefore;
+    }
+
+    /**
+     * @return the number of documents read
+     */
+    private int runBatch() {
+        final DBObject query = (lastId == null) ? new BasicDBObject()
+                : new BasicDBObject("_id", new BasicDBObject("$gt", lastId));
+        final DBCursor cursor = collection.find(query).sort(new BasicDBObject("_id", 1)).limit(batchSize);
+
+        BulkWriteOperation bulk = null;
+        int read = 0;
+        int toWrite = 0;
+        try {
+            while (cursor.hasNext()) {
+                final DBObject document = cursor.next();
+                read++;
+                lastId = document.get("_id");
+                if (annotator.annotate(document)) {
+                    if (bulk == null) {
+                        bulk = collection.initializeUnorderedBulkOperation();
+                    }
+                    bulk.find(new BasicDBObject("_id", lastId)).replaceOne(document);
+                    toWrite++;
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+
+        if (bulk != null) {
+            if (writeConcern == null) {
+                bulk.execute();
+            } else {
+                bulk.execute(writeConcern);
+            }
+        }
+        scannedCount += read;
+        updatedCount += toWrite;
+        if (logger.isDebugEnabled()) {
+            logger.debug("label mask backfill of " + collection.getFullName() + " batch read " + read
+                    + " updated " + toWrite + " last _id " + lastId);
+        }
+        return read;
+    }
+
+    @Override
+    public String toString() {
+        return "LabelMaskBackfill{collection=" + collection.getFullName() + ", annotator=" + annotator
+                + ", batchSize=" + batchSize + ", scannedCount=" + scannedCount + ", updatedCount=" + updatedCount + "}";
+    }
+}
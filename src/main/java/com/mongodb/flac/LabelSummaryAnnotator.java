@@ -0,0 +1,207 @@
+package com.mongodb.flac;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Stores at the root of a document the summary of its security markings: every label that any marking, of the
+ * root or of any sub-document, holds, e.g.
+ * <tt>{ sl : [ [ { c:"U" } ] ], ssn : { sl : [ [ { c:"TS" } ] ], ... }, sls : [ { c:"TS" }, { c:"U" } ] }</tt>.
+ *
+ * <p>A user who holds every label of the summary satisfies every clause of every marking, so sees the whole
+ * document, which {@link LabelSummaryRedactExpression} keeps without descending into it.  Documents holding a
+ * marking that is not a list of clauses get no summary, and are evaluated node by node.</p>
+ *
+ * <p>The summary must be kept in step with the markings: a summary missing a label would show sub-documents to
+ * users who may not see them.  {@link RedactedDBCollection} annotates the documents it inserts and replaces when it
+ * has a label summary annotator, see {@link RedactedDBCollection#setLabelSummaryAnnotator(LabelSummaryAnnotator)},
+ * and removes the summary of documents whose markings an update may change, see {@link #annotateUpdate(DBObject)};
+ * run a {@link LabelMaskBackfill} to (re-)annotate existing documents.  Instances are immutable and can be shared
+ * between threads.</p>
+ */
+public class LabelSummaryAnnotator implements DocumentAnnotator {
+
+    private final String securityFieldName;
+    private final String summaryFieldName;
+
+    /**
+     * @param securityFieldName a field name, like sl , that we use in our documentation describing FLAC
+     * @param summaryFieldName  the root field to hold the summary, like sls
+     */
+    public LabelSummaryAnnotator(String securityFieldName, String summaryFieldName) {
+        this.securityFieldName = RedactedDBCollection.checkNotNull(securityFieldName, "securityFieldName can't be null");
+        this.summaryFieldName = RedactedDBCollection.checkNotNull(summaryFieldName, "summaryFieldName can't be null");
+        if (securityFieldName.equals(summaryFieldName)) {
+            throw new IllegalArgumentException("summaryFieldName must differ from securityFieldName");
+        }
+    }
+
+    public String getSecurityFieldName() {
+        return securityFieldName;
+    }
+
+    public String getSummaryFieldName() {
+        return summaryFieldName;
+    }
+
+    /**
+     * Set, or remove, the summary of the document, in place.
+     *
+     * @param document the document
+     * @return true if the summary was added, changed or removed
+     */
+    public boolean annotate(DBObject document) {
+        final BasicDBList summary = summarize(document);
+        if (summary == null) {
+            if (document.containsField(summaryFieldName)) {
+                document.removeField(summaryFieldName);
+                return true;
+            }
+            return false;
+        }
+        if (!summary.equals(document.get(summaryFieldName))) {
+            document.put(summaryFieldName, summary);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @param document the document
+     * @return the labels of all its markings, ordered by their JSON form, or null if a marking is not a list of clauses
+     */
+    BasicDBList summarize(DBObject document) {
+        final Map<String, DBObject> labels = new TreeMap<String, DBObject>();
+        for (String key : document.keySet()) {
+            if (!key.equals(summaryFieldName) && !collectLabels(key, document.get(key), labels)) {
+                return null;
+            }
+        }
+        final BasicDBList summary = new BasicDBList();
+        summary.addAll(labels.values());
+        return summary;
+    }
+
+    /**
+     * Make an update keep the summary in step: a replacement is annotated, in place; an update that may change a
+     * marking also removes the summary, so the document is evaluated node by node until it is annotated again.
+     *
+     * @param update the update operators, or a replacement document
+     * @return the update to run, which is the given one unless the summary must be removed
+     * @throws IllegalArgumentException if the update writes the summary field
+     */
+    public DBObject annotateUpdate(DBObject update) {
+        if (!isOperatorUpdate(update)) {
+            annotate(update);
+            return update;
+        }
+        boolean changesMarking = false;
+        for (String operator : update.keySet()) {
+            final Object operands = update.get(operator);
+            if (!(operands instanceof DBObject)) {
+                continue;
+            }
+            for (String path : ((DBObject) operands).keySet()) {
+                if (path.equals(summaryFieldName) || path.startsWith(summaryFieldName + ".")) {
+                    throw new IllegalArgumentException("the label summary field " + summaryFieldName + " can't be updated");
+                }
+                changesMarking |= operator.equals("$rename") || isMarkingPath(path)
+                        || containsMarking(((DBObject) operands).get(path));
+            }
+        }
+        if (!changesMarking) {
+            return update;
+        }
+
+        final BasicDBObject unsummarized = new BasicDBObject(update.toMap());
+        final BasicDBObject unset = (update.get("$unset") instanceof DBObject)
+                ? new BasicDBObject(((DBObject) update.get("$unset")).toMap()) : new BasicDBObject();
+        unset.put(summaryFieldName, "");
+        unsummarized.put("$unset", unset);
+        return unsummarized;
+    }
+
+    /**
+     * @param key the field name of the value, null for an array element
+     * @return false if the value holds a marking that is not a list of clauses
+     */
+    private boolean collectLabels(String key, Object value, Map<String, DBObject> labels) {
+        if (securityFieldName.equals(key)) {
+            if (value == null) {
+                return true;
+            }
+            if (!(value instanceof List)) {
+                return false;
+            }
+            for (Object clause : (List<?>) value) {
+                if (!(clause instanceof List)) {
+                    return false;
+                }
+                for (Object label : (List<?>) clause) {
+                    if (!(label instanceof DBObject)) {
+                        return false;
+                    }
+                    labels.put(JSON.serialize(label), (DBObject) label);
+                }
+            }
+            return true;
+        }
+        if (value instanceof List) {
+            for (Object element : (List<?>) value) {
+                if (!collectLabels(null, element, labels)) {
+                    return false;
+                }
+            }
+        } else if (value instanceof DBObject) {
+            final DBObject document = (DBObject) value;
+            for (String field : document.keySet()) {
+                if (!collectLabels(field, document.get(field), labels)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean isMarkingPath(String path) {
+        for (String field : path.split("\\.")) {
+            if (field.equals(securityFieldName)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private boolean containsMarking(Object value) {
+        if (value instanceof List) {
+            for (Object element : (List<?>) value) {
+                if (containsMarking(element)) {
+                    return true;
+                }
+            }
+        } else if (value instanceof DBObject) {
+            final DBObject document = (DBObject) value;
+            for (String field : document.keySet()) {
+                if (field.equals(securityFieldName) || containsMarking(document.get(field))) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    private static boolean isOperatorUpdate(DBObject update) {
+        return !update.keySet().isEmpty() && update.keySet().iterator().next().startsWith("$");
+    }
+
+    @Override
+    public String toString() {
+        return "LabelSummaryAnnotator{securityFieldName=" + securityFieldName + ", summaryFieldName=" + summaryFieldName + "}";
+    }
+}
@@ -0,0 +1,119 @@
+package com.mongodb.flac;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.flac.capco.CapcoRedactExpression;
+import com.mongodb.util.JSON;
+
+/**
+ * A $redact expression that keeps a whole document when the user holds every label of the summary that
+ * {@link LabelSummaryAnnotator} stores at its root, and otherwise evaluates the base expression node by node:
+ * <pre><tt>
+ *     $cond : { if : { $setIsSubset : [ { $ifNull : [ "$$ROOT.sls", [ false ] ] }, [ { c:"S" }, { c:"C" }, ... ] ] },
+ *               then : "$$KEEP", else : base }
+ * </tt></pre>
+ *
+ * <p>For readers who may see most documents whole, $redact then stops at the root of those documents instead of
+ * descending into every sub-document to prove it.  The summary is read from <tt>$$ROOT</tt>, so a field of that
+ * name in a sub-document is never taken for a summary; documents without a summary are evaluated with the base
+ * expression only.  The test is repeated at every node of a document that is not kept whole, a set comparison that
+ * is small next to the base expression.</p>
+ *
+ * <p>The result is the base expression's as long as the summaries are kept in step with the markings.  Expressions
+ * with equal bases and the same summary field are equal, and share the entries of a {@link RedactCommandCache}.
+ * The version is the base expression's, if it has one, so the cached expressions change with it.</p>
+ */
+public class LabelSummaryRedactExpression implements DBObjectRedactExpression, ClientSideRedactExpression,
+        VersionedRedactExpression {
+
+    private final DBObjectRedactExpression base;
+    private final String summaryFieldName;
+
+    // the summary, or a label no user holds if there is none, shared by every expression built, never modified
+    private final DBObject summaryInput;
+
+    /**
+     * @param base             the expression evaluated node by node, e.g. a
+     *                         {@link com.mongodb.flac.capco.CapcoRedactExpression}
+     * @param summaryFieldName the root field holding the summary, like sls, see {@link LabelSummaryAnnotator}
+     */
+    public LabelSummaryRedactExpression(DBObjectRedactExpression base, String summaryFieldName) {
+        this.base = RedactedDBCollection.checkNotNull(base, "base can't be null");
+        this.summaryFieldName = RedactedDBCollection.checkNotNull(summaryFieldName, "summaryFieldName can't be null");
+
+        final BasicDBList noSummary = new BasicDBList();
+        noSummary.add(false);
+        this.summaryInput = new BasicDBObject("$ifNull", pair("$$ROOT." + summaryFieldName, noSummary));
+    }
+
+    public DBObjectRedactExpression getBase() {
+        return base;
+    }
+
+    public String getSummaryFieldName() {
+        return summaryFieldName;
+    }
+
+    /**
+     * @return the version of the base expression, 0 if it is not a {@link VersionedRedactExpression}
+     */
+    public long getVersion() {
+        return (base instanceof VersionedRedactExpression) ? ((VersionedRedactExpression) base).getVersion() : 0;
+    }
+
+    public DBObject getRedactExpressionObject(SecurityAttributes securityAttributes) {
+        return new BasicDBObject("$cond",
+                new BasicDBObject("if", new BasicDBObject("$setIsSubset", pair(summaryInput, CapcoRedactExpression.getUserLabels(securityAttributes))))
+                        .append("then", "$$KEEP")
+                        .append("else", base.getRedactExpressionObject(securityAttributes)));
+    }
+
+    /**
+     * @return the JSON form of {@link #getRedactExpressionObject(SecurityAttributes)}
+     */
+    public String getRedactExpression(SecurityAttributes securityAttributes) {
+        return JSON.serialize(getRedactExpressionObject(securityAttributes));
+    }
+
+    /**
+     * the result is the base expression's, so is its redactor
+     *
+     * @throws IllegalStateException if the base expression has no in-JVM implementation
+     */
+    public DocumentRedactor getDocumentRedactor(SecurityAttributes securityAttributes) {
+        if (!(base instanceof ClientSideRedactExpression)) {
+            throw new IllegalStateException("the base RedactExpression can't be evaluated client side: " + base);
+        }
+        return ((ClientSideRedactExpression) base).getDocumentRedactor(securityAttributes);
+    }
+
+    private static BasicDBList pair(Object first, Object second) {
+        final BasicDBList list = new BasicDBList();
+        list.add(first);
+        list.add(second);
+        return list;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || o.getClass() != getClass()) {
+            return false;
+        }
+        final LabelSummaryRedactExpression other = (LabelSummaryRedactExpression) o;
+        return summaryFieldName.equals(other.summaryFieldName) && base.equals(other.base);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * summaryFieldName.hashCode() + base.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "LabelSummaryRedactExpression{summaryFieldName=" + summaryFieldName + ", base=" + base + "}";
+    }
+}
@@ -0,0 +1,165 @@
+package com.mongodb.flac;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free histogram of latencies in nanoseconds, with log-linear buckets in the style of HdrHistogram: every
+ * power of two range is split into 32 buckets, so any value from 0 to {@link Long#MAX_VALUE} is recorded with a
+ * relative error of at most 1/32 (about 3%) in a fixed array of counters.
+ *
+ * <p>Recording is an increment of three atomic counters and, rarely, an update of the maximum, so it can be done on
+ * the request threads.  {@link #snapshot()} copies the counters; a snapshot taken while values are recorded may
+ * miss some of them in the total but is otherwise consistent.</p>
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 5;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int LENGTH = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(LENGTH);
+    private final AtomicLong count = new AtomicLong();
+    private final AtomicLong sum = new AtomicLong();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * @param nanos the latency, negative values are recorded as 0
+     */
+    public void record(long nanos) {
+        final long value = Math.max(0, nanos);
+        counts.incrementAndGet(indexOf(value));
+        count.incrementAndGet();
+        sum.addAndGet(value);
+        long current = max.get();
+        while (value > current && !max.compareAndSet(current, value)) {
+            current = max.get();
+        }
+    }
+
+    /**
+     * @return a copy of the counters
+     */
+    public Snapshot snapshot() {
+        final long[] copy = new long[LENGTH];
+        for (int i = 0; i < LENGTH; i++) {
+            copy[i] = counts.get(i);
+        }
+        return new Snapshot(copy, count.get(), sum.get(), max.get());
+    }
+
+    /**
+     * @return a copy of the counters, which are reset to 0, so consecutive snapshots don't overlap
+     */
+    public Snapshot snapshotAndReset() {
+        final long[] copy = new long[LENGTH];
+        long total = 0;
+        for (int i = 0; i < LENGTH; i++) {
+            copy[i] = counts.getAndSet(i, 0);
+            total += copy[i];
+        }
+        count.addAndGet(-total);
+        return new Snapshot(copy, total, sum.getAndSet(0), max.getAndSet(0));
+    }
+
+    public void reset() {
+        snapshotAndReset();
+    }
+
+    static int indexOf(long value) {
+        final int bucket = Math.max(0, 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS);
+        final int subBucket = (int) (value >>> bucket);    // in [32, 64) but in bucket 0, where it is in [0, 64)
+        return bucket * SUB_BUCKETS + subBucket;
+    }
+
+    /**
+     * @return the highest value that is recorded at the index
+     */
+    static long highestValueAt(int index) {
+        final int bucket = Math.max(0, index / SUB_BUCKETS - 1);
+        final long subBucket = index - bucket * SUB_BUCKETS;
+        return ((subBucket + 1) << bucket) - 1;
+    }
+
+    /**
+     * The immutable counters of a {@link LatencyHistogram} at some point in time.
+     */
+    public static final class Snapshot {
+        private final long[] counts;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        private Snapshot(long[] counts, long count, long sum, long max) {
+            this.counts = counts;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /**
+         * @return the number of recorded values
+         */
+        public long getCount() {
+            return count;
+        }
+
+        /**
+         * @return the sum of the recorded values in nanoseconds
+         */
+        public long getSum() {
+            return sum;
+        }
+
+        /**
+         * @return the exact maximum in nanoseconds, 0 if nothing was recorded
+         */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @return the exact mean in nanoseconds, 0 if nothing was recorded
+         */
+        public double getMean() {
+            return (count == 0) ? 0 : (double) sum / count;
+        }
+
+        /**
+         * @param percentile e.g. 99.9
+         * @return the value in nanoseconds that the percentile of the recorded values are at or below, within the
+         * resolution of the histogram; 0 if nothing was recorded
+         */
+        public long getValueAtPercentile(double percentile) {
+            if (percentile < 0 || percentile > 100) {
+                throw new IllegalArgumentException("percentile must be between 0 and 100");
+            }
+            long total = 0;
+            for (long c : counts) {
+                total += c;
+            }
+            if (total == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * total));
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= rank) {
+                    return Math.min(highestValueAt(i), max);
+                }
+            }
+            return max;
+        }
+
+        @Override
+        public String toString() {
+            return "{ count: " + count
+                    + ", mean: " + TimeUnit.NANOSECONDS.toMicros((long) getMean()) + "us"
+                    + ", p50: " + TimeUnit.NANOSECONDS.toMicros(getValueAtPercentile(50)) + "us"
+                    + ", p99: " + TimeUnit.NANOSECONDS.toMicros(getValueAtPercentile(99)) + "us"
+                    + ", max: " + TimeUnit.NANOSECONDS.toMicros(max) + "us }";
+        }
+    }
+}
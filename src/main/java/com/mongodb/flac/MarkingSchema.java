@@ -0,0 +1,91 @@
+package com.mongodb.flac;
+
+import java.util.*;
+
+/**
+ * The paths of a collection's documents at which sub-documents carry the security field, e.g. <tt>""</tt> for the
+ * root, <tt>"ssn"</tt>, or <tt>"phones"</tt> for the sub-documents in the phones array, learned by a
+ * {@link MarkingSchemaSampler} or declared with {@link #of(String...)}.
+ *
+ * <p>Its {@link #getDescendFields() descend fields} are the field names on the way from the root to any marked
+ * sub-document.  A visible sub-document with none of them has no marked sub-document below it, so a
+ * {@link MarkingSchemaRedactExpression} keeps it whole instead of descending into it.</p>
+ *
+ * <p>Which paths are marked is knowledge about the data that a schema can not prove: a document written with a
+ * marking at a path the schema doesn't know is not redacted below the last known path until the schema is
+ * refreshed.  Instances are immutable.</p>
+ */
+public final class MarkingSchema {
+
+    private final SortedSet<String> markedPaths;
+    private final SortedSet<String> descendFields;
+    private final long version;
+    private final long sampledDocuments;
+    private final long sampledAt;
+
+    /**
+     * @param markedPaths      the marked paths, in dot notation without array indexes, "" for the root
+     * @param version          the version, see {@link VersionedRedactExpression}
+     * @param sampledDocuments the number of documents the paths were learned from, 0 if they were declared
+     * @param sampledAt        the time, in milliseconds, the paths were learned
+     */
+    public MarkingSchema(Collection<String> markedPaths, long version, long sampledDocuments, long sampledAt) {
+        RedactedDBCollection.checkNotNull(markedPaths, "markedPaths can't be null");
+        final SortedSet<String> fields = new TreeSet<String>();
+        for (String path : markedPaths) {
+            if (path.length() > 0) {
+                fields.addAll(Arrays.asList(path.split("\\.")));
+            }
+        }
+        this.markedPaths = Collections.unmodifiableSortedSet(new TreeSet<String>(markedPaths));
+        this.descendFields = Collections.unmodifiableSortedSet(fields);
+        this.version = version;
+        this.sampledDocuments = sampledDocuments;
+        this.sampledAt = sampledAt;
+    }
+
+    /**
+     * @param markedPaths the marked paths, in dot notation without array indexes, "" for the root
+     * @return a declared schema of version 0
+     */
+    public static MarkingSchema of(String... markedPaths) {
+        return new MarkingSchema(Arrays.asList(markedPaths), 0, 0, System.currentTimeMillis());
+    }
+
+    public SortedSet<String> getMarkedPaths() {
+        return markedPaths;
+    }
+
+    /**
+     * @return the field names of every path to a marked sub-document
+     */
+    public SortedSet<String> getDescendFields() {
+        return descendFields;
+    }
+
+    public long getVersion() {
+        return version;
+    }
+
+    public long getSampledDocuments() {
+        return sampledDocuments;
+    }
+
+    public long getSampledAt() {
+        return sampledAt;
+    }
+
+    /**
+     * @param other a schema
+     * @return true if both have the same marked paths
+     */
+    public boolean hasSamePaths(MarkingSchema other) {
+        return markedPaths.equals(other.markedPaths);
+    }
+
+    @Override
+    public String toString() {
+        return "MarkingSchema{version=" + version + ", markedPaths=" + markedPaths + ", sampledDocuments=" + sampledDocuments
+                + ", sampledAt=" + new Date(sampledAt) + "}";
+    }
+}
@@ -0,0 +1,170 @@
+package com.mongodb.flac;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+/**
+ * A <code>RedactExpression</code> that, where another expression would <tt>$$DESCEND</tt> into a visible
+ * sub-document, keeps it whole with <tt>$$KEEP</tt> when the {@link MarkingSchema} says that no sub-document below
+ * it is marked.  So the server does not walk large unmarked sub-documents and arrays, e.g. attachments or telemetry.
+ *
+ * <p>A visible sub-document is descended into if it has any of the schema's
+ * {@link MarkingSchema#getDescendFields() descend fields} with a value that is not false, null or 0; such values
+ * can't hold a marked sub-document.  For a <tt>"phones"</tt> marked path, e.g., the expression becomes</p>
+ * <pre><tt>
+ *     { $cond : { if : visible, then : { $cond : { if : { $or : [ "$phones" ] }, then : "$$DESCEND", else : "$$KEEP" } },
+ *                 else : "$$PRUNE" } }
+ * </tt></pre>
+ *
+ * <p>The base expression must be a tree of <tt>$cond</tt>s, like those of {@link com.mongodb.flac.capco.CapcoRedactExpression}
+ * and {@link BitmaskRedactExpression}.  The expressions built are versioned by the schema, see
+ * {@link VersionedRedactExpression}, and the schema must be refreshed when documents are written with markings at
+ * new paths, see {@link MarkingSchema}.  Expressions with equal bases are equal if they share the sampler, or
+ * declare schemas with the same marked paths, and then share the entries of a {@link RedactCommandCache}.</p>
+ */
+public class MarkingSchemaRedactExpression implements DBObjectRedactExpression, ClientSideRedactExpression,
+        VersionedRedactExpression {
+
+    private final DBObjectRedactExpression base;
+    private final MarkingSchemaSampler sampler;
+    private final MarkingSchema declared;
+
+    /**
+     * the schema the keep or descend expression was last built from, and that expression, replaced together
+     */
+    private volatile Object[] keepOrDescend = new Object[]{null, null};
+
+    /**
+     * @param base    the expression to build on
+     * @param sampler the source of the latest schema
+     */
+    public MarkingSchemaRedactExpression(DBObjectRedactExpression base, MarkingSchemaSampler sampler) {
+        this.base = RedactedDBCollection.checkNotNull(base, "base can't be null");
+        this.sampler = RedactedDBCollection.checkNotNull(sampler, "sampler can't be null");
+        this.declared = null;
+    }
+
+    /**
+     * @param base   the expression to build on
+     * @param schema a declared schema
+     */
+    public MarkingSchemaRedactExpression(DBObjectRedactExpression base, MarkingSchema schema) {
+        this.base = RedactedDBCollection.checkNotNull(base, "base can't be null");
+        this.sampler = null;
+        this.declared = RedactedDBCollection.checkNotNull(schema, "schema can't be null");
+    }
+
+    /**
+     * @return the schema the expressions are built from now
+     */
+    public MarkingSchema getSchema() {
+        return (sampler != null) ? sampler.getSchema() : declared;
+    }
+
+    /**
+     * @return the version of the schema
+     */
+    public long getVersion() {
+        return getSchema().getVersion();
+    }
+
+    public DBObject getRedactExpressionObject(SecurityAttributes securityAttributes) {
+        return replaceDescend(base.getRedactExpressionObject(securityAttributes), getKeepOrDescend(getSchema()));
+    }
+
+    /**
+     * @return the JSON form of {@link #getRedactExpressionObject(SecurityAttributes)}
+     */
+    public String getRedactExpression(SecurityAttributes securityAttributes) {
+        return JSON.serialize(getRedactExpressionObject(securityAttributes));
+    }
+
+    /**
+     * the client side redactor walks every sub-document anyway, so it is the base one
+     *
+     * @throws IllegalStateException if the base expression has no in-JVM implementation
+     */
+    public DocumentRedactor getDocumentRedactor(SecurityAttributes securityAttributes) {
+        if (!(base instanceof ClientSideRedactExpression)) {
+            throw new IllegalStateException("the RedactExpression can't be evaluated client side: " + base);
+        }
+        return ((ClientSideRedactExpression) base).getDocumentRedactor(securityAttributes);
+    }
+
+    private Object getKeepOrDescend(MarkingSchema schema) {
+        final Object[] current = keepOrDescend;
+        if (current[0] == schema) {
+            return current[1];
+        }
+        final Object built = buildKeepOrDescend(schema);
+        keepOrDescend = new Object[]{schema, built};
+        return built;
+    }
+
+    static Object buildKeepOrDescend(MarkingSchema schema) {
+        if (schema.getDescendFields().isEmpty()) {
+            return "$$KEEP";
+        }
+        final BasicDBList fields = new BasicDBList();
+        for (String field : schema.getDescendFields()) {
+            fields.add("$" + field);
+        }
+        return new BasicDBObject("$cond", new BasicDBObject("if", new BasicDBObject("$or", fields))
+                .append("then", "$$DESCEND")
+                .append("else", "$$KEEP"));
+    }
+
+    /**
+     * @return a copy of the path of the $cond tree down to each "$$DESCEND" result, which is replaced; the
+     * conditions are shared
+     */
+    static Object replaceDescend(Object expression, Object replacement) {
+        if ("$$DESCEND".equals(expression)) {
+            return replacement;
+        }
+        if (expression instanceof DBObject && !(expression instanceof BasicDBList)) {
+            final Object cond = ((DBObject) expression).get("$cond");
+            if (cond instanceof DBObject && !(cond instanceof BasicDBList) && ((DBObject) expression).keySet().size() == 1) {
+                final DBObject branches = (DBObject) cond;
+                return new BasicDBObject("$cond", new BasicDBObject("if", branches.get("if"))
+                        .append("then", replaceDescend(branches.get("then"), replacement))
+                        .append("else", replaceDescend(branches.get("else"), replacement)));
+            }
+        }
+        return expression;
+    }
+
+    /**
+     * @return the root of {@link #replaceDescend(Object, Object)}, which is always a document
+     */
+    private static DBObject replaceDescend(DBObject expression, Object replacement) {
+        return (DBObject) replaceDescend((Object) expression, replacement);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || o.getClass() != getClass()) {
+            return false;
+        }
+        final MarkingSchemaRedactExpression other = (MarkingSchemaRedactExpression) o;
+        if (!base.equals(other.base) || sampler != other.sampler) {
+            return false;
+        }
+        return (declared == null) ? other.declared == null : other.declared != null && declared.hasSamePaths(other.declared);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * base.hashCode() + ((sampler != null) ? System.identityHashCode(sampler) : declared.getMarkedPaths().hashCode());
+    }
+
+    @Override
+    public String toString() {
+        return "MarkingSchemaRedactExpression{base=" + base + ", schema=" + getSchema() + "}";
+    }
+}
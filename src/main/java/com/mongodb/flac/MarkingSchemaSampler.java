@@ -0,0 +1,141 @@
+package com.mongodb.flac;
+
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Learns the {@link MarkingSchema} of a collection by scanning its documents for sub-documents that carry the
+ * security field, and keeps the latest one.
+ *
+ * <p>The first {@link #getSchema()} scans the collection, later calls return the kept schema until
+ * {@link #refresh()} scans again, e.g. from a scheduled task or after a load.  A refresh that finds different
+ * paths increments the version, so expressions built from the previous schema are no longer used.</p>
+ *
+ * <p>By default every document is scanned.  With a {@link #setSampleSize(int) sample size} the scan is cheaper,
+ * but a path that only occurs in documents outside the sample is missed; only sample when every document has the
+ * same marked paths.</p>
+ * <pre>
+ *     MarkingSchemaSampler sampler = new MarkingSchemaSampler(dbCollection, "sl");
+ *     RedactExpression redactExpression = new MarkingSchemaRedactExpression(new CapcoRedactExpression("sl"), sampler);
+ * </pre>
+ */
+public class MarkingSchemaSampler {
+
+    protected static final org.slf4j.Logger logger = LoggerFactory.getLogger(MarkingSchemaSampler.class);
+
+    private final DBCollection collection;
+    private final String securityFieldName;
+    private volatile int sampleSize;
+    private volatile MarkingSchema schema;
+
+    /**
+     * @param collection        the wrapped, un-redacted, collection
+     * @param securityFieldName the field holding the document markings, e.g. "sl"
+     */
+    public MarkingSchemaSampler(DBCollection collection, String securityFieldName) {
+        this.collection = RedactedDBCollection.checkNotNull(collection, "collection can't be null");
+        this.securityFieldName = RedactedDBCollection.checkNotNull(securityFieldName, "securityFieldName can't be null");
+    }
+
+    /**
+     * @return the latest schema, scanning the collection if there is none yet
+     */
+    public MarkingSchema getSchema() {
+        MarkingSchema current = schema;
+        if (current == null) {
+            synchronized (this) {
+                current = schema;
+                if (current == null) {
+                    current = refresh();
+                }
+            }
+        }
+        return current;
+    }
+
+    /**
+     * Scan the collection again.
+     *
+     * @return the new schema; the previous one, with its version, if the paths are the same
+     */
+    public synchronized MarkingSchema refresh() {
+        final Set<String> paths = new TreeSet<String>();
+        long documents = 0;
+        final DBCursor cursor = collection.find();
+        try {
+            if (sampleSize > 0) {
+                cursor.limit(sampleSize);
+            }
+            while (cursor.hasNext()) {
+                collectMarkedPaths(cursor.next(), "", securityFieldName, paths);
+                documents++;
+            }
+        } finally {
+            cursor.close();
+        }
+
+        final MarkingSchema previous = schema;
+        final long version = (previous == null) ? 1 : previous.getVersion() + 1;
+        final MarkingSchema sampled = new MarkingSchema(paths, version, documents, System.currentTimeMillis());
+        if (previous != null && previous.hasSamePaths(sampled)) {
+            return previous;
+        }
+        if (logger.isDebugEnabled()) {
+            logger.debug("marking schema of " + collection.getFullName() + ": " + sampled);
+        }
+        schema = sampled;
+        return sampled;
+    }
+
+    /**
+     * add the paths of the sub-documents of the value that carry the security field
+     */
+    static void collectMarkedPaths(Object value, String path, String securityFieldName, Set<String> paths) {
+        if (value instanceof List) {
+            for (Object element : (List<?>) value) {
+                collectMarkedPaths(element, path, securityFieldName, paths);
+            }
+        } else if (value instanceof DBObject) {
+            final DBObject document = (DBObject) value;
+            for (String key : document.keySet()) {
+                if (key.equals(securityFieldName)) {
+                    paths.add(path);
+                } else {
+                    collectMarkedPaths(document.get(key), path.length() == 0 ? key : path + "." + key, securityFieldName, paths);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the number of documents a scan reads, 0 for all (the default)
+     */
+    public int getSampleSize() {
+        return sampleSize;
+    }
+
+    /**
+     * @param sampleSize the number of documents a scan reads, 0 for all
+     */
+    public void setSampleSize(int sampleSize) {
+        if (sampleSize < 0) {
+            throw new IllegalArgumentException("sampleSize can't be negative");
+        }
+        this.sampleSize = sampleSize;
+    }
+
+    public String getSecurityFieldName() {
+        return securityFieldName;
+    }
+
+    @Override
+    public String toString() {
+        return "MarkingSchemaSampler{collection=" + collection.getFullName() + ", schema=" + schema + "}";
+    }
+}
@@ -0,0 +1,368 @@
+package com.mongodb.flac;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.Cursor;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.ReadPreference;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Keeps pre-redacted copies, views, of a collection for registered entitlement profiles, so that the reads of the
+ * users with one of those profiles run on the view without a $redact stage, and with the view's indexes.
+ *
+ * <p>A profile is registered with the security attributes it grants; the users whose
+ * {@link SecurityAttributes#getFingerprint() fingerprint} is the same are routed to its view by every
+ * {@link RedactedDBCollection} that has this manager set, see
+ * {@link RedactedDBCollection#setMaterializedRedactionManager(MaterializedRedactionManager)}.  The reads of all other
+ * users, and the reads of a profile whose view is not built yet, was last refreshed longer than
+ * {@link #getMaxStalenessMillis()} ago, or last rebuilt longer than {@link #getMaxRebuildAgeMillis()} ago, are
+ * redacted live.</p>
+ *
+ * <p>{@link View#rebuild()} writes the whole view with $redact and $out.  {@link View#refresh()} then only
+ * redacts the documents whose watermark field is at or above the highest value seen by the previous refresh,
+ * upserts them into the view, and removes those the profile can no longer see.  The watermark must be a field that
+ * every write sets to the time of the write, and should be indexed; <tt>_id</tt> is refused, as it misses updates.
+ * Deleted documents, and documents written with a watermark below the one already seen, are only picked up by a
+ * rebuild, which is why a view is no longer read once its last rebuild is too old.</p>
+ *
+ * <p>A view is as fresh as its last refresh, and holds everything the profile may see: protect the views like the
+ * collection itself, and create on them the indexes the queries need.</p>
+ * <pre>
+ *     MaterializedRedactionManager manager = new MaterializedRedactionManager(dbCollection, redactExpression, "modified");
+ *     manager.register(secretProfile).rebuild();
+ *     ...
+ *     redactedDBCollection.setMaterializedRedactionManager(manager);
+ *     ...
+ *     manager.refreshAll();      // e.g. from a scheduled task
+ * </pre>
+ */
+public class MaterializedRedactionManager {
+
+    protected static final org.slf4j.Logger logger = LoggerFactory.getLogger(MaterializedRedactionManager.class);
+
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+    public static final long DEFAULT_MAX_STALENESS_MILLIS = 60 * 1000L;
+    public static final long DEFAULT_MAX_REBUILD_AGE_MILLIS = 60 * 60 * 1000L;
+
+    private final DBCollection source;
+    private final RedactExpression redactExpression;
+    private final String watermarkField;
+    private final ConcurrentMap<String, View> views = new ConcurrentHashMap<String, View>();
+    private volatile long maxStalenessMillis = DEFAULT_MAX_STALENESS_MILLIS;
+    private volatile long maxRebuildAgeMillis = DEFAULT_MAX_REBUILD_AGE_MILLIS;
+    private volatile int batchSize = DEFAULT_BATCH_SIZE;
+
+    /**
+     * @param source           the wrapped, un-redacted, collection
+     * @param redactExpression the security model's redact expression
+     * @param watermarkField   the unmarked root field that every write sets to the time of the write
+     * @throws IllegalArgumentException if the watermark is _id, which misses updates
+     */
+    public MaterializedRedactionManager(DBCollection source, RedactExpression redactExpression, String watermarkField) {
+        this.source = RedactedDBCollection.checkNotNull(source, "source can't be null");
+        this.redactExpression = RedactedDBCollection.checkNotNull(redactExpression, "redactExpression can't be null");
+        this.watermarkField = RedactedDBCollection.checkNotNull(watermarkField, "watermarkField can't be null");
+        if (watermarkField.equals("_id")) {
+            throw new IllegalArgumentException("_id misses updates, the watermark must be a field every write sets to the time of the write");
+        }
+    }
+
+    /**
+     * Register a profile; its view is used once it is built, by {@link View#rebuild()} or {@link View#refresh()}.
+     *
+     * @param profile the security attributes of the profile
+     * @return the view of the profile, the one registered before if there is one
+     */
+    public View register(SecurityAttributes profile) {
+        RedactedDBCollection.checkNotNull(profile, "profile can't be null");
+        final SecurityAttributesSnapshot snapshot = profile.snapshot();
+        final View view = new View(snapshot);
+        final View registered = views.putIfAbsent(snapshot.getFingerprint(), view);
+        return (registered == null) ? view : registered;
+    }
+
+    /**
+     * Stop routing the users of a profile to its view; the view's collection is kept.
+     *
+     * @param profile the security attributes of the profile
+     * @return the view of the profile, or null if it was not registered
+     */
+    public View unregister(SecurityAttributes profile) {
+        RedactedDBCollection.checkNotNull(profile, "profile can't be null");
+        return views.remove(profile.getFingerprint());
+    }
+
+    /**
+     * @return the views of the registered profiles
+     */
+    public Collection<View> getViews() {
+        return Collections.unmodifiableCollection(views.values());
+    }
+
+    /**
+     * refresh every view, see {@link View#refresh()}
+     */
+    public void refreshAll() {
+        for (View view : views.values()) {
+            view.refresh();
+        }
+    }
+
+    /**
+     * @param userSecurityAttributes the user's security attributes
+     * @return the view collection to read instead of redacting, or null to redact live
+     */
+    DBCollection route(SecurityAttributes userSecurityAttributes) {
+        if (views.isEmpty()) {
+            return null;
+        }
+        final View view = views.get(userSecurityAttributes.getFingerprint());
+        return (view != null && view.isFresh()) ? view.getCollection() : null;
+    }
+
+    public DBCollection getSource() {
+        return source;
+    }
+
+    public RedactExpression getRedactExpression() {
+        return redactExpression;
+    }
+
+    public String getWatermarkField() {
+        return watermarkField;
+    }
+
+    /**
+     * @return how long after its last rebuild or refresh a view is still read, by default
+     *         {@link #DEFAULT_MAX_STALENESS_MILLIS}
+     */
+    public long getMaxStalenessMillis() {
+        return maxStalenessMillis;
+    }
+
+    /**
+     * @param maxStalenessMillis how long after its last rebuild or refresh a view is still read
+     */
+    public void setMaxStalenessMillis(long maxStalenessMillis) {
+        if (maxStalenessMillis <= 0) {
+            throw new IllegalArgumentException("maxStalenessMillis must be greater than 0");
+        }
+        this.maxStalenessMillis = maxStalenessMillis;
+    }
+
+    /**
+     * @return how long after its last rebuild a view is still read, since only a rebuild removes deleted documents,
+     *         by default {@link #DEFAULT_MAX_REBUILD_AGE_MILLIS}
+     */
+    public long getMaxRebuildAgeMillis() {
+        return maxRebuildAgeMillis;
+    }
+
+    /**
+     * @param maxRebuildAgeMillis how long after its last rebuild a view is still read
+     */
+    public void setMaxRebuildAgeMillis(long maxRebuildAgeMillis) {
+        if (maxRebuildAgeMillis <= 0) {
+            throw new IllegalArgumentException("maxRebuildAgeMillis must be greater than 0");
+        }
+        this.maxRebuildAgeMillis = maxRebuildAgeMillis;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @param batchSize the number of writes per bulk operation of a refresh
+     */
+    public void setBatchSize(int batchSize) {
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be greater than 0");
+        }
+        this.batchSize = batchSize;
+    }
+
+    @Override
+    public String toString() {
+        return "MaterializedRedactionManager{source=" + source.getFullName() + ", watermarkField=" + watermarkField
+                + ", views=" + views.values() + "}";
+    }
+
+    /**
+     * The pre-redacted copy of the source collection for one profile, in the collection
+     * <tt>&lt;source&gt;.redacted.&lt;fingerprint hash&gt;</tt>.  Rebuilds and refreshes of a view are serialized.
+     */
+    public final class View {
+
+        private final SecurityAttributesSnapshot profile;
+        private final DBCollection collection;
+        private final RedactedDBCollection redacted;
+        private volatile Object watermark;
+        private volatile long refreshedAt;
+        private volatile long rebuiltAt;
+
+        View(SecurityAttributesSnapshot profile) {
+            this.profile = profile;
+            this.collection = source.getDB().getCollection(source.getName() + ".redacted." + profile.getFingerprintHash());
+            this.redacted = new RedactedDBCollection(source, profile, redactExpression);
+            this.redacted.setPredicatePushdown(PredicatePushdown.allowlist(watermarkField));
+        }
+
+        public SecurityAttributesSnapshot getProfile() {
+            return profile;
+        }
+
+        public DBCollection getCollection() {
+            return collection;
+        }
+
+        /**
+         * @return the highest watermark read, or null if none
+         */
+        public Object getWatermark() {
+            return watermark;
+        }
+
+        /**
+         * @return the time, in milliseconds, of the last rebuild or refresh, 0 if the view was not built yet
+         */
+        public long getRefreshedAt() {
+            return refreshedAt;
+        }
+
+        /**
+         * @return the time, in milliseconds, of the last rebuild, 0 if the view was not built yet
+         */
+        public long getRebuiltAt() {
+            return rebuiltAt;
+        }
+
+        boolean isFresh() {
+            final long refreshed = refreshedAt;
+            final long rebuilt = rebuiltAt;
+            final long now = System.currentTimeMillis();
+            return rebuilt != 0 && now - refreshed <= maxStalenessMillis && now - rebuilt <= maxRebuildAgeMillis;
+        }
+
+        /**
+         * Write the whole view again, replacing its documents, but not its indexes, at once.
+         */
+        public synchronized void rebuild() {
+            final long started = System.currentTimeMillis();
+            final Object highest = readHighestWatermark();
+
+            final List<DBObject> pipeline = redacted.buildAggregatePipeline(Collections.<DBObject>emptyList());
+            pipeline.add(new BasicDBObject("$out", collection.getName()));
+            source.aggregate(pipeline, AggregationOptions.builder().
+                    outputMode(AggregationOptions.OutputMode.CURSOR).
+                    allowDiskUse(true).
+                    build(), ReadPreference.primary()).close();
+
+            watermark = highest;
+            refreshedAt = started;
+            rebuiltAt = started;
+            if (logger.isInfoEnabled()) {
+                logger.info("materialized view " + collection.getFullName() + " rebuilt, watermark " + highest);
+            }
+        }
+
+        /**
+         * Redact the documents written since the last refresh into the view, rebuilding it if it was not built yet.
+         *
+         * @return the number of documents upserted into, or removed from, the view
+         */
+        public synchronized long refresh() {
+            if (refreshedAt == 0) {
+                rebuild();
+                return collection.count();
+            }
+            final long started = System.currentTimeMillis();
+            final DBObject range = (watermark == null) ? new BasicDBObject()
+                    : new BasicDBObject(watermarkField, new BasicDBObject("$gte", watermark));
+
+            // the _id's are read before the redacted documents, so documents written in between are read again next time
+            final Set<Object> unseen = new HashSet<Object>();
+            Object highest = watermark;
+            final DBCursor ids = source.find(range, new BasicDBObject(watermarkField, 1)).sort(new BasicDBObject(watermarkField, 1));
+            try {
+                while (ids.hasNext()) {
+                    final DBObject document = ids.next();
+                    unseen.add(document.get("_id"));
+                    highest = document.get(watermarkField);
+                }
+            } finally {
+                ids.close();
+            }
+
+            final List<DBObject> pipeline = redacted.buildAggregatePipeline(
+                    range.keySet().isEmpty() ? Collections.<DBObject>emptyList() : Collections.<DBObject>singletonList(new BasicDBObject("$match", range)));
+            final Cursor documents = source.aggregate(pipeline, AggregationOptions.builder().
+                    batchSize(batchSize).
+                    outputMode(AggregationOptions.OutputMode.CURSOR).
+                    build(), ReadPreference.primary());
+            long written = 0;
+            BulkWriteOperation bulk = null;
+            try {
+                while (documents.hasNext()) {
+                    final DBObject document = documents.next();
+                    unseen.remove(document.get("_id"));
+                    if (bulk == null) {
+                        bulk = collection.initializeUnorderedBulkOperation();
+                    }
+                    bulk.find(new BasicDBObject("_id", document.get("_id"))).upsert().replaceOne(document);
+                    if (++written % batchSize == 0) {
+                        bulk.execute();
+                        bulk = null;
+                    }
+                }
+            } finally {
+                documents.close();
+            }
+            for (Object id : unseen) {
+                if (bulk == null) {
+                    bulk = collection.initializeUnorderedBulkOperation();
+                }
+                bulk.find(new BasicDBObject("_id", id)).remove();
+                if (++written % batchSize == 0) {
+                    bulk.execute();
+                    bulk = null;
+                }
+            }
+            if (bulk != null) {
+                bulk.execute();
+            }
+
+            watermark = highest;
+            refreshedAt = started;
+            if (logger.isDebugEnabled()) {
+                logger.debug("materialized view " + collection.getFullName() + " refreshed, wrote " + written
+                        + " watermark " + highest);
+            }
+            return written;
+        }
+
+        private Object readHighestWatermark() {
+            final DBCursor cursor = source.find(new BasicDBObject(), new BasicDBObject(watermarkField, 1))
+                    .sort(new BasicDBObject(watermarkField, -1)).limit(1);
+            try {
+                return cursor.hasNext() ? cursor.next().get(watermarkField) : null;
+            } finally {
+                cursor.close();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "View{collection=" + collection.getFullName() + ", profile=" + profile.getFingerprint()
+                    + ", watermark=" + watermark + ", refreshedAt=" + refreshedAt + ", rebuiltAt=" + rebuiltAt + "}";
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.mongodb.flac;
+
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBEncoder;
+import com.mongodb.ServerAddress;
+import org.bson.io.BasicOutputBuffer;
+
+/**
+ * A <code>Cursor</code> that reports the time to its first document, and its drain time, documents, bytes and
+ * batches to a {@link RedactMetrics} once it is exhausted or closed.
+ *
+ * <p>The driver does not expose the batches of a cursor, so they are estimated from where the server ends them:
+ * every batch size documents if one was given, otherwise after the default first batch of 101 documents and then
+ * every 16MB of documents, the most a reply holds, as measured when the metrics record bytes.</p>
+ */
+class MeteredCursor implements Cursor {
+
+    static final int DEFAULT_FIRST_BATCH_SIZE = 101;
+    static final long MAX_BATCH_BYTES = 16 * 1024 * 1024;
+
+    /** a buffer grown past this is dropped, rather than kept for the life of the cursor */
+    private static final int MAX_RETAINED_BUFFER = 64 * 1024;
+
+    private final Cursor cursor;
+    private final RedactMetrics metrics;
+    private final String namespace;
+    private final RedactMetrics.Operation operation;
+    private final long started;
+    private final int batchSize;
+    private final DefaultDBEncoder encoder;
+    private BasicOutputBuffer buffer;
+
+    private long documents;
+    private long bytes;
+    private long firstBatchBytes;
+    private boolean first = true;
+    private boolean recorded;
+
+    /**
+     * @param cursor    the cursor to measure
+     * @param metrics   where to record
+     * @param namespace the namespace of the wrapped collection
+     * @param operation the read
+     * @param started   the {@link System#nanoTime()} the read was sent to the server
+     * @param batchSize the requested batch size, 0 for the server's default
+     */
+    MeteredCursor(Cursor cursor, RedactMetrics metrics, String namespace, RedactMetrics.Operation operation,
+                  long started, int batchSize) {
+        this.cursor = cursor;
+        this.metrics = metrics;
+        this.namespace = namespace;
+        this.operation = operation;
+        this.started = started;
+        this.batchSize = batchSize;
+        if (metrics.isRecordingBytes()) {
+            encoder = new DefaultDBEncoder();
+            buffer = new BasicOutputBuffer();
+        } else {
+            encoder = null;
+            buffer = null;
+        }
+    }
+
+    public boolean hasNext() {
+        final boolean hasNext = cursor.hasNext();
+        if (!hasNext) {
+            if (first) {
+                first = false;
+                metrics.recordFirstDocument(namespace, operation, System.nanoTime() - started);
+            }
+            record();
+        }
+        return hasNext;
+    }
+
+    public DBObject next() {
+        final DBObject next = cursor.next();
+        if (first) {
+            first = false;
+            metrics.recordFirstDocument(namespace, operation, System.nanoTime() - started);
+        }
+        documents++;
+        if (encoder != null) {
+            if (buffer.size() > MAX_RETAINED_BUFFER) {
+                buffer = new BasicOutputBuffer();
+            }
+            bytes += encoder.writeObject(buffer, next);
+            if (documents == DEFAULT_FIRST_BATCH_SIZE) {
+                firstBatchBytes = bytes;
+            }
+        }
+        return next;
+    }
+
+    public void remove() {
+        cursor.remove();
+    }
+
+    public long getCursorId() {
+        return cursor.getCursorId();
+    }
+
+    public ServerAddress getServerAddress() {
+        return cursor.getServerAddress();
+    }
+
+    public void close() {
+        try {
+            cursor.close();
+        } finally {
+            record();
+        }
+    }
+
+    private void record() {
+        if (recorded) {
+            return;
+        }
+        recorded = true;
+        metrics.recordDrain(namespace, operation, System.nanoTime() - started, documents, bytes, getBatches());
+    }
+
+    long getBatches() {
+        if (batchSize > 0) {
+            return Math.max(1, (documents + batchSize - 1) / batchSize);
+        }
+        if (documents <= DEFAULT_FIRST_BATCH_SIZE) {
+            return 1;
+        }
+        return 1 + Math.max(1, (bytes - firstBatchBytes + MAX_BATCH_BYTES - 1) / MAX_BATCH_BYTES);
+    }
+
+    /**
+     * @return the documents returned so far
+     */
+    long getDocuments() {
+        return documents;
+    }
+
+    /**
+     * @return the BSON size of the documents returned so far, 0 if the metrics don't record bytes
+     */
+    long getBytes() {
+        return bytes;
+    }
+}
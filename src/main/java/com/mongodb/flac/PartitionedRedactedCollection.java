@@ -0,0 +1,708 @@
+package com.mongodb.flac;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
+import com.mongodb.DBCollection;
+import com.mongodb.DBCursor;
+import com.mongodb.DBObject;
+import com.mongodb.ServerAddress;
+import com.mongodb.WriteConcern;
+import com.mongodb.WriteResult;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * A collection stored as one <code>DBCollection</code> per value of a classification label, e.g. one each for the
+ * documents marked TS, S, C and U, read and written for one user.
+ *
+ * <p>Every document's root marking must hold exactly one single-label clause of the partition key, e.g.
+ * <tt>[ { c:"S" } ]</tt>; an insert writes the document to the partition of that value, and an update can't
+ * change it.  A read only queries the partitions whose value the user holds, or dominates in the
+ * {@link #setLabelLattice(LabelLattice) label lattice}: the other partitions only hold documents whose root the user
+ * can't see.  Each partition is redacted as a {@link RedactedDBCollection} of its own, whose settings can be changed
+ * through {@link #getPartition(String)}, e.g. to {@link RedactedDBCollection.RedactionMode#DOCUMENT_LEVEL}, except
+ * for the partitions declared {@link #setUnredacted(String...) unredacted}: their documents carry no marking but
+ * their classification, which inserts and updates check, so they are read with a plain find or aggregate, without
+ * $redact.  Writes to an unredacted partition through {@link #getPartition(String)} are refused, they must go
+ * through this class.</p>
+ *
+ * <p>The partitions are queried concurrently when an executor is set, and their cursors merged in the order of the
+ * sort, if there is one, or one after the other.  A skip is applied to the merged documents, so each partition
+ * returns up to skip + limit documents.  Aggregates are restricted to pipelines whose documents can be merged:
+ * $match, $project and $unwind stages, optionally followed by a $sort and a $limit.</p>
+ * <pre>
+ *     Map&lt;String, DBCollection&gt; partitions = new LinkedHashMap&lt;String, DBCollection&gt;();
+ *     for (String classification : CapcoEntitlementPrefilter.CAPCO_CLASSIFICATIONS) {
+ *         partitions.put(classification, db.getCollection("persons." + classification));
+ *     }
+ *     PartitionedRedactedCollection persons = new PartitionedRedactedCollection(partitions, "sl", "c",
+ *             userSecurityAttributes, new CapcoRedactExpression("sl"));
+ *     persons.setUnredacted("U");
+ *     persons.setExecutor(executor);
+ * </pre>
+ */
+public class PartitionedRedactedCollection {
+
+    protected static final org.slf4j.Logger logger = LoggerFactory.getLogger(PartitionedRedactedCollection.class);
+
+    private static final Set<String> MERGEABLE_STAGES = new HashSet<String>(Arrays.asList("$match", "$project", "$unwind"));
+
+    private final Map<String, RedactedDBCollection> partitions = new LinkedHashMap<String, RedactedDBCollection>();
+    private final String securityFieldName;
+    private final String partitionKey;
+    private final SecurityAttributes userSecurityAttributes;
+    private Set<String> unredacted = Collections.emptySet();
+    private LabelLattice labelLattice = LabelLattice.EMPTY;
+    private ExecutorService executor;
+
+    /**
+     * @param partitions             the collection of each value of the partition key, e.g. TS, S, C and U
+     * @param securityFieldName      a field name, like sl , that we use in our documentation describing FLAC
+     * @param partitionKey           the label key of the partitions, e.g. "c"
+     * @param userSecurityAttributes the user's security attributes
+     * @param redactExpression       the security model's redact expression
+     */
+    public PartitionedRedactedCollection(Map<String, DBCollection> partitions, String securityFieldName, String partitionKey,
+                                         SecurityAttributes userSecurityAttributes, RedactExpression redactExpression) {
+        RedactedDBCollection.checkNotNull(partitions, "partitions can't be null");
+        this.securityFieldName = RedactedDBCollection.checkNotNull(securityFieldName, "securityFieldName can't be null");
+        this.partitionKey = RedactedDBCollection.checkNotNull(partitionKey, "partitionKey can't be null");
+        this.userSecurityAttributes = RedactedDBCollection.checkNotNull(userSecurityAttributes, "userSecurityAttributes can't be null");
+        RedactedDBCollection.checkNotNull(redactExpression, "redactExpression can't be null");
+        if (partitions.isEmpty()) {
+            throw new IllegalArgumentException("partitions can't be empty");
+        }
+        for (Map.Entry<String, DBCollection> partition : partitions.entrySet()) {
+            this.partitions.put(partition.getKey(), new RedactedDBCollection(partition.getValue(), userSecurityAttributes, redactExpression));
+        }
+    }
+
+    /**
+     * @return the values of the partition key, one per partition
+     */
+    public Set<String> getPartitionValues() {
+        return Collections.unmodifiableSet(partitions.keySet());
+    }
+
+    /**
+     * @param value a value of the partition key
+     * @return the partition of the value, redacted for the user
+     * @throws IllegalArgumentException if there is no partition for the value
+     */
+    public RedactedDBCollection getPartition(String value) {
+        final RedactedDBCollection partition = partitions.get(value);
+        if (partition == null) {
+            throw new IllegalArgumentException("no partition for " + partitionKey + " " + value);
+        }
+        return partition;
+    }
+
+    public String getPartitionKey() {
+        return partitionKey;
+    }
+
+    public Set<String> getUnredacted() {
+        return unredacted;
+    }
+
+    /**
+     * declare the partitions whose documents carry no marking but their classification, so are read without $redact
+     *
+     * @param values values of the partition key
+     */
+    public void setUnredacted(String... values) {
+        for (String value : values) {
+            getPartition(value);
+        }
+        this.unredacted = Collections.unmodifiableSet(new LinkedHashSet<String>(Arrays.asList(values)));
+        for (Map.Entry<String, RedactedDBCollection> partition : partitions.entrySet()) {
+            partition.getValue().setWritesRefused(unredacted.contains(partition.getKey())
+                    ? "the " + partition.getKey() + " partition is read without $redact, write it through the PartitionedRedactedCollection"
+                    : null);
+        }
+    }
+
+    public LabelLattice getLabelLattice() {
+        return labelLattice;
+    }
+
+    /**
+     * @param labelLattice the implications between the values of the partition key, by default none, for security
+     *                     attributes that don't expand their labels themselves
+     */
+    public void setLabelLattice(LabelLattice labelLattice) {
+        this.labelLattice = RedactedDBCollection.checkNotNull(labelLattice, "labelLattice can't be null");
+    }
+
+    /**
+     * @return the executor the partitions are queried on, or null if they are queried one after the other (the default)
+     */
+    public ExecutorService getExecutor() {
+        return executor;
+    }
+
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
+
+    /**
+     * @return the values of the partitions the user may read, in the order of the partitions
+     */
+    public List<String> getReadablePartitionValues() {
+        final Set<String> granted = userSecurityAttributes.getLabelValues(partitionKey);
+        final List<String> readable = new ArrayList<String>();
+        for (String value : partitions.keySet()) {
+            for (String held : granted) {
+                if (labelLattice.dominates(partitionKey, held, value)) {
+                    readable.add(value);
+                    break;
+                }
+            }
+        }
+        return readable;
+    }
+
+    /**
+     * Insert documents into the partitions of their classifications, after checking that the user satisfies every
+     * security marking in them.  None of the documents is inserted if one fails the checks.
+     *
+     * @param documents the documents
+     * @throws IllegalArgumentException if a document has no partition, holds a marking the user does not satisfy, or
+     *                                  holds other markings than its classification and is for an unredacted partition
+     */
+    public void insert(List<DBObject> documents, WriteConcern writeConcern) {
+        final Map<String, List<DBObject>> byPartition = new LinkedHashMap<String, List<DBObject>>();
+        for (DBObject document : documents) {
+            final String value = getPartitionValue(document);
+            getPartition(value).getWriteValidator().validateDocument(document);
+            List<DBObject> partitionDocuments = byPartition.get(value);
+            if (partitionDocuments == null) {
+                partitionDocuments = new ArrayList<DBObject>();
+                byPartition.put(value, partitionDocuments);
+            }
+            partitionDocuments.add(document);
+        }
+        for (Map.Entry<String, List<DBObject>> partition : byPartition.entrySet()) {
+            if (unredacted.contains(partition.getKey())) {
+                getPartition(partition.getKey()).getWrappedDBCollection().insert(partition.getValue(), writeConcern);
+            } else {
+                getPartition(partition.getKey()).insert(partition.getValue(), writeConcern);
+            }
+        }
+    }
+
+    /**
+     * @see #insert(java.util.List, WriteConcern)
+     */
+    public void insert(DBObject... documents) {
+        insert(Arrays.asList(documents), WriteConcern.ACKNOWLEDGED);
+    }
+
+    /**
+     * Update documents of the partitions the user may read, after the checks of
+     * {@link RedactedDBCollection#update(DBObject, DBObject, boolean, boolean, WriteConcern)}.  An update can't move
+     * a document to another partition: a replacement document must be of the partition of the document it replaces,
+     * and the root marking can't be updated.  In an unredacted partition an update can't write any marking.  No
+     * partition is updated if the update fails the checks of one of them.
+     *
+     * @param query        the documents to update; the query runs on the un-redacted documents
+     * @param update       the update operators, or a replacement document
+     * @param multi        update every matching document instead of the first
+     * @param writeConcern the write concern
+     * @return the number of documents updated, 0 if the write concern does not acknowledge the writes; without
+     *         acknowledgement and multi the first matching document of every partition is updated
+     * @throws IllegalArgumentException if the update fails the checks
+     */
+    public int update(DBObject query, DBObject update, boolean multi, WriteConcern writeConcern) {
+        RedactedDBCollection.checkNotNull(update, "update can not be null");
+        final List<String> values = getReadablePartitionValues();
+        for (String value : values) {
+            checkUpdate(value, update);
+        }
+        int updated = 0;
+        for (String value : values) {
+            final RedactedDBCollection partition = partitions.get(value);
+            final WriteResult result;
+            if (unredacted.contains(value)) {
+                result = partition.getWrappedDBCollection().update(partition.getWriteValidator().guardQuery(query, update),
+                        update, false, multi, writeConcern);
+            } else {
+                result = partition.update(query, update, false, multi, writeConcern);
+            }
+            if (writeConcern.callGetLastError()) {
+                updated += result.getN();
+                if (!multi && updated > 0) {
+                    break;
+                }
+            }
+        }
+        return updated;
+    }
+
+    /**
+     * Remove documents of the partitions the user may read, those whose root marking the user satisfies, see
+     * {@link WriteValidator#guardQuery(DBObject, DBObject)}.
+     *
+     * @param query        the documents to remove; the query runs on the un-redacted documents
+     * @param writeConcern the write concern
+     * @return the number of documents removed, 0 if the write concern does not acknowledge the writes
+     */
+    public int remove(DBObject query, WriteConcern writeConcern) {
+        int removed = 0;
+        for (String value : getReadablePartitionValues()) {
+            final RedactedDBCollection partition = partitions.get(value);
+            final WriteResult result = partition.getWrappedDBCollection().remove(
+                    partition.getWriteValidator().guardQuery(query, null), writeConcern);
+            if (writeConcern.callGetLastError()) {
+                removed += result.getN();
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * check an update of a partition's documents
+     *
+     * @throws IllegalArgumentException if the update writes above the user's entitlements, changes a document's
+     *                                  partition, or writes a marking into an unredacted partition
+     */
+    void checkUpdate(String value, DBObject update) {
+        getPartition(value).getWriteValidator().validateUpdate(update);
+        if (!WriteValidator.isOperatorUpdate(update)) {
+            if (!value.equals(getPartitionValue(update))) {
+                throw new IllegalArgumentException("a replacement document can't move a document out of the " + value + " partition");
+            }
+            return;
+        }
+        for (String operator : update.keySet()) {
+            final DBObject spec = (DBObject) update.get(operator);
+            for (String path : spec.keySet()) {
+                if (path.equals(securityFieldName)) {
+                    throw new IllegalArgumentException("the root marking can't be updated, it decides the partition of a document");
+                }
+                if (unredacted.contains(value)) {
+                    final Set<String> markedPaths = new HashSet<String>();
+                    MarkingSchemaSampler.collectMarkedPaths(spec.get(path), path, securityFieldName, markedPaths);
+                    if (path.endsWith("." + securityFieldName) || !markedPaths.isEmpty()) {
+                        throw new IllegalArgumentException("the " + value + " partition is unredacted, an update can't write a marking at " + path);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param document a document
+     * @return the value of the partition key of the single-label clause of its root marking
+     * @throws IllegalArgumentException if the document has no partition, or holds other markings than its
+     *                                  classification and is for an unredacted partition
+     */
+    String getPartitionValue(DBObject document) {
+        String value = null;
+        int clauses = 0;
+        final Object marking = document.get(securityFieldName);
+        if (marking instanceof List) {
+            for (Object clause : (List<?>) marking) {
+                if (!(clause instanceof List) || ((List<?>) clause).isEmpty()) {
+                    continue;
+                }
+                clauses++;
+                final List<?> labels = (List<?>) clause;
+                if (labels.size() == 1 && labels.get(0) instanceof DBObject) {
+                    final DBObject label = (DBObject) labels.get(0);
+                    if (label.keySet().size() == 1 && label.get(partitionKey) instanceof String) {
+                        if (value != null) {
+                            throw new IllegalArgumentException("the document has more than one " + partitionKey + " clause, _id " + document.get("_id"));
+                        }
+                        value = (String) label.get(partitionKey);
+                    }
+                }
+            }
+        }
+        if (value == null || !partitions.containsKey(value)) {
+            throw new IllegalArgumentException("the document has no partition, its root marking needs one of "
+                    + partitions.keySet() + " as a single " + partitionKey + " clause, _id " + document.get("_id"));
+        }
+        if (unredacted.contains(value)) {
+            final Set<String> markedPaths = new HashSet<String>();
+            MarkingSchemaSampler.collectMarkedPaths(document, "", securityFieldName, markedPaths);
+            if (clauses != 1 || markedPaths.size() != 1) {
+                throw new IllegalArgumentException("the " + value + " partition is unredacted, its documents can only be marked "
+                        + partitionKey + " " + value + ", _id " + document.get("_id"));
+            }
+        }
+        return value;
+    }
+
+    /**
+     * @see #find(DBObject, DBObject, int, int, DBObject)
+     */
+    public Cursor find(DBObject query, DBObject fields) {
+        return find(query, fields, 0, 0, null);
+    }
+
+    /**
+     * Query the partitions the user may read, and merge their documents.
+     *
+     * @param query     the query, or null
+     * @param fields    the projection, or null; it must keep the fields of the sort, which the merge compares
+     * @param numToSkip number of documents to skip, 0 for none
+     * @param limit     maximum number of documents, 0 for no limit
+     * @param orderBy   the sort, or null
+     * @return a cursor over the merged documents
+     * @throws IllegalArgumentException if the projection drops a field of the sort
+     */
+    public Cursor find(final DBObject query, final DBObject fields, int numToSkip, int limit, final DBObject orderBy) {
+        if (numToSkip < 0 || limit < 0) {
+            throw new IllegalArgumentException("numToSkip and limit can't be negative");
+        }
+        checkKeepsSortKeys(fields, orderBy);
+        final int partitionLimit = (limit == 0) ? 0 : numToSkip + limit;
+        final List<Callable<Cursor>> reads = new ArrayList<Callable<Cursor>>();
+        for (final String value : getReadablePartitionValues()) {
+            final RedactedDBCollection partition = partitions.get(value);
+            reads.add(new Callable<Cursor>() {
+                public Cursor call() {
+                    if (unredacted.contains(value)) {
+                        final DBCursor cursor = partition.getWrappedDBCollection().find(
+                                (query == null) ? new BasicDBObject() : query, fields);
+                        if (orderBy != null) cursor.sort(orderBy);
+                        if (partitionLimit != 0) cursor.limit(partitionLimit);
+                        cursor.setReadPreference(partition.getReadPreference());
+                        cursor.hasNext();    // a DBCursor is lazy, run the query on this thread
+                        return cursor;
+                    }
+                    return partition.find(query, fields, partitionLimit, partition.getReadPreference(), orderBy);
+                }
+            });
+        }
+        return new MergedCursor(open(reads), orderBy, numToSkip, limit);
+    }
+
+    /**
+     * @param fields  a projection, or null
+     * @param orderBy a sort, or null
+     * @throws IllegalArgumentException if the projection drops a field of the sort, or the part of it the sort is on
+     */
+    static void checkKeepsSortKeys(DBObject fields, DBObject orderBy) {
+        if (fields == null || orderBy == null) {
+            return;
+        }
+        boolean inclusion = false;
+        for (String field : fields.keySet()) {
+            final Object spec = fields.get(field);
+            if (!field.equals("_id") && !(spec instanceof DBObject) && !isExcluded(spec)) {
+                inclusion = true;
+            }
+        }
+        for (String path : orderBy.keySet()) {
+            // an inclusion keeps _id unless it is excluded
+            boolean kept = !inclusion || path.equals("_id") || path.startsWith("_id.");
+            for (String field : fields.keySet()) {
+                if (path.equals(field) || path.startsWith(field + ".")) {
+                    kept = !isExcluded(fields.get(field));
+                }
+            }
+            if (!kept) {
+                throw new IllegalArgumentException("the projection drops the sort key " + path + ", the partitions can't be merged without it");
+            }
+        }
+    }
+
+    private static boolean isExcluded(Object spec) {
+        return (spec instanceof Number && ((Number) spec).doubleValue() == 0) || Boolean.FALSE.equals(spec);
+    }
+
+    /**
+     * Run the pipeline on the partitions the user may read, and merge their documents.
+     *
+     * @param pipeline $match, $project and $unwind stages, optionally followed by a $sort and a $limit
+     * @param options  options to apply to the aggregation
+     * @return a cursor over the merged documents
+     * @throws IllegalArgumentException if the documents of the pipeline can't be merged
+     */
+    public Cursor aggregate(final List<DBObject> pipeline, final AggregationOptions options) {
+        RedactedDBCollection.checkNotNull(pipeline, "pipeline can not be null");
+        RedactedDBCollection.checkNotNull(options, "options can not be null");
+        DBObject orderBy = null;
+        int limit = 0;
+        for (int i = 0; i < pipeline.size(); i++) {
+            final DBObject stage = pipeline.get(i);
+            final String name = (stage.keySet().size() == 1) ? stage.keySet().iterator().next() : String.valueOf(stage.keySet());
+            final boolean last = i == pipeline.size() - 1;
+            if (name.equals("$sort") && orderBy == null && limit == 0 && stage.get("$sort") instanceof DBObject
+                    && (last || (i == pipeline.size() - 2 && pipeline.get(i + 1).containsField("$limit")))) {
+                orderBy = (DBObject) stage.get("$sort");
+            } else if (name.equals("$limit") && last && stage.get("$limit") instanceof Number) {
+                limit = ((Number) stage.get("$limit")).intValue();
+            } else if (!MERGEABLE_STAGES.contains(name) || orderBy != null) {
+                throw new IllegalArgumentException("the documents of a " + name + " stage can't be merged across partitions");
+            }
+        }
+
+        final List<Callable<Cursor>> reads = new ArrayList<Callable<Cursor>>();
+        for (final String value : getReadablePartitionValues()) {
+            final RedactedDBCollection partition = partitions.get(value);
+            reads.add(new Callable<Cursor>() {
+                public Cursor call() {
+                    if (unredacted.contains(value)) {
+                        return partition.getWrappedDBCollection().aggregate(pipeline, options, partition.getReadPreference());
+                    }
+                    return partition.aggregate(pipeline, options, partition.getReadPreference());
+                }
+            });
+        }
+        return new MergedCursor(open(reads), orderBy, 0, limit);
+    }
+
+    /**
+     * @param query the query, or null
+     * @return the number of documents of the partitions the user may read that match the query
+     */
+    public long count(DBObject query) {
+        long count = 0;
+        for (String value : getReadablePartitionValues()) {
+            final RedactedDBCollection partition = partitions.get(value);
+            count += unredacted.contains(value) ? partition.getWrappedDBCollection().count(query) : partition.count(query);
+        }
+        return count;
+    }
+
+    /**
+     * open the cursors of the partitions, concurrently if there is an executor
+     */
+    private List<Cursor> open(List<Callable<Cursor>> reads) {
+        final List<Cursor> cursors = new ArrayList<Cursor>(reads.size());
+        try {
+            if (executor == null || reads.size() < 2) {
+                for (Callable<Cursor> read : reads) {
+                    cursors.add(read.call());
+                }
+                return cursors;
+            }
+            RuntimeException failure = null;
+            for (Future<Cursor> future : executor.invokeAll(reads)) {
+                try {
+                    cursors.add(future.get());
+                } catch (ExecutionException e) {
+                    if (failure == null) {
+                        failure = (e.getCause() instanceof RuntimeException)
+                                ? (RuntimeException) e.getCause() : new IllegalStateException(e.getCause());
+                    }
+                }
+            }
+            if (failure != null) {
+                throw failure;
+            }
+            return cursors;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closeAll(cursors);
+            throw new IllegalStateException("interrupted while querying the partitions", e);
+        } catch (RuntimeException e) {
+            closeAll(cursors);
+            throw e;
+        } catch (Exception e) {
+            closeAll(cursors);
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void closeAll(List<Cursor> cursors) {
+        for (Cursor cursor : cursors) {
+            cursor.close();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "PartitionedRedactedCollection{partitionKey=" + partitionKey + ", partitions=" + partitions.keySet()
+                + ", unredacted=" + unredacted + "}";
+    }
+
+    /**
+     * Orders documents as a sort document does; values of different types are ordered as the server orders them, a
+     * missing value is ordered as null.
+     */
+    static final class SortOrder implements Comparator<DBObject> {
+
+        private final String[] paths;
+        private final int[] directions;
+
+        SortOrder(DBObject orderBy) {
+            this.paths = orderBy.keySet().toArray(new String[0]);
+            this.directions = new int[paths.length];
+            for (int i = 0; i < paths.length; i++) {
+                final Object direction = orderBy.get(paths[i]);
+                directions[i] = (direction instanceof Number && ((Number) direction).intValue() < 0) ? -1 : 1;
+            }
+        }
+
+        public int compare(DBObject first, DBObject second) {
+            for (int i = 0; i < paths.length; i++) {
+                final int compared = compareValues(get(first, paths[i]), get(second, paths[i]));
+                if (compared != 0) {
+                    return directions[i] * compared;
+                }
+            }
+            return 0;
+        }
+
+        private static Object get(DBObject document, String path) {
+            Object value = document;
+            for (String field : path.split("\\.")) {
+                if (!(value instanceof DBObject)) {
+                    return null;
+                }
+                value = ((DBObject) value).get(field);
+            }
+            return value;
+        }
+
+        @SuppressWarnings("unchecked")
+        static int compareValues(Object first, Object second) {
+            final int firstRank = rank(first);
+            final int secondRank = rank(second);
+            if (firstRank != secondRank) {
+                return (firstRank < secondRank) ? -1 : 1;
+            }
+            if (first instanceof Number) {
+                final Number a = (Number) first;
+                final Number b = (Number) second;
+                if ((a instanceof Double || a instanceof Float) || (b instanceof Double || b instanceof Float)) {
+                    return Double.compare(a.doubleValue(), b.doubleValue());
+                }
+                return (a.longValue() < b.longValue()) ? -1 : (a.longValue() == b.longValue() ? 0 : 1);
+            }
+            if (first instanceof Comparable && first.getClass() == second.getClass()) {
+                return ((Comparable<Object>) first).compareTo(second);
+            }
+            return 0;
+        }
+
+        /**
+         * @return the position of the value's type in the server's order of types
+         */
+        private static int rank(Object value) {
+            if (value == null) return 0;
+            if (value instanceof Number) return 1;
+            if (value instanceof String) return 2;
+            if (value instanceof List) return 4;
+            if (value instanceof DBObject) return 3;
+            if (value instanceof byte[]) return 5;
+            if (value instanceof org.bson.types.ObjectId) return 6;
+            if (value instanceof Boolean) return 7;
+            if (value instanceof Date) return 8;
+            return 9;
+        }
+    }
+
+    /**
+     * the documents of the partitions' cursors, in the sort order if there is one, otherwise one cursor after the other
+     */
+    private static final class MergedCursor implements Cursor {
+        private final List<Cursor> cursors;
+        private final SortOrder sortOrder;
+        private final PriorityQueue<Head> heads;
+        private int current;
+        private int toSkip;
+        private int remaining;    // -1 for no limit
+
+        MergedCursor(List<Cursor> cursors, DBObject orderBy, int numToSkip, int limit) {
+            this.cursors = cursors;
+            this.toSkip = numToSkip;
+            this.remaining = (limit == 0) ? -1 : limit;
+            if (orderBy != null && orderBy.keySet().size() > 0 && cursors.size() > 1) {
+                this.sortOrder = new SortOrder(orderBy);
+                this.heads = new PriorityQueue<Head>(cursors.size());
+                for (int i = 0; i < cursors.size(); i++) {
+                    if (cursors.get(i).hasNext()) {
+                        heads.add(new Head(cursors.get(i).next(), i));
+                    }
+                }
+            } else {
+                this.sortOrder = null;
+                this.heads = null;
+            }
+        }
+
+        private final class Head implements Comparable<Head> {
+            private final DBObject document;
+            private final int index;
+
+            Head(DBObject document, int index) {
+                this.document = document;
+                this.index = index;
+            }
+
+            public int compareTo(Head other) {
+                final int compared = sortOrder.compare(document, other.document);
+                return (compared != 0) ? compared : (index < other.index ? -1 : (index == other.index ? 0 : 1));
+            }
+        }
+
+        private boolean hasNextMerged() {
+            if (heads != null) {
+                return !heads.isEmpty();
+            }
+            while (current < cursors.size() && !cursors.get(current).hasNext()) {
+                current++;
+            }
+            return current < cursors.size();
+        }
+
+        private DBObject nextMerged() {
+            if (heads != null) {
+                final Head head = heads.poll();
+                if (cursors.get(head.index).hasNext()) {
+                    heads.add(new Head(cursors.get(head.index).next(), head.index));
+                }
+                return head.document;
+            }
+            return cursors.get(current).next();
+        }
+
+        public boolean hasNext() {
+            if (remaining == 0) {
+                return false;
+            }
+            while (toSkip > 0 && hasNextMerged()) {
+                nextMerged();
+                toSkip--;
+            }
+            return hasNextMerged();
+        }
+
+        public DBObject next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            if (remaining > 0) {
+                remaining--;
+            }
+            return nextMerged();
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException("can't remove a document from a partitioned cursor");
+        }
+
+        public long getCursorId() {
+            return 0;
+        }
+
+        public ServerAddress getServerAddress() {
+            return null;
+        }
+
+        public void close() {
+            closeAll(cursors);
+        }
+    }
+}
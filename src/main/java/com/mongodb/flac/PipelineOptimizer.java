@@ -0,0 +1,140 @@
+package com.mongodb.flac;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static java.util.concurrent.TimeUnit.MILLISECONDS;
+
+/**
+ * Rewrites of a secure aggregation pipeline that keep its results but let the server do less work.
+ *
+ * <ul>
+ *     <li>{@link #canonicalizeFind(List)} puts the stages that a find appends after the $redact stage in the order
+ *     a find means: $match, $sort, $skip, $limit, $project.  So the sort sees all matching documents, and the
+ *     projection can't drop the sort keys.</li>
+ *     <li>{@link #optimize(List)} merges adjacent $match stages, and turns <tt>$sort, $skip n, $limit m</tt> into
+ *     <tt>$sort, $limit n+m, $skip n</tt>, so the server can keep only the top n+m documents while it sorts,
+ *     instead of sorting them all within its 100MB memory limit.</li>
+ *     <li>{@link #withDiskUseIfUnbounded(List, AggregationOptions)} allows the server to sort on disk, but only
+ *     when a sort is not bounded by a limit.</li>
+ * </ul>
+ *
+ * <p>None of the rewrites moves a stage across the $redact stage, or merges the $match that takes its place in
+ * {@link RedactedDBCollection.RedactionMode#DOCUMENT_LEVEL}; the server merges that one itself.</p>
+ */
+final class PipelineOptimizer {
+
+    private static final List<String> FIND_STAGES = Arrays.asList("$match", "$sort", "$skip", "$limit", "$project");
+
+    private PipelineOptimizer() {
+    }
+
+    /**
+     * Order the stages after the $redact stage of a find pipeline as $match, $sort, $skip, $limit, $project, then
+     * {@link #optimize(List)}.  A pipeline with other stages after the $redact stage, or with more than one
+     * $sort, $skip, $limit or $project, is only optimized.
+     *
+     * @param pipeline the pipeline, modified in place
+     */
+    static void canonicalizeFind(List<DBObject> pipeline) {
+        final int tail = RedactedDBCollection.indexOfSecurityStage(pipeline) + 1;
+        final List<List<DBObject>> ranked = new ArrayList<List<DBObject>>();
+        for (int i = 0; i < FIND_STAGES.size(); i++) {
+            ranked.add(new ArrayList<DBObject>(1));
+        }
+        boolean canonical = true;
+        for (DBObject stage : pipeline.subList(tail, pipeline.size())) {
+            final int rank = FIND_STAGES.indexOf(getStageName(stage));
+            if (rank < 0 || (rank > 0 && !ranked.get(rank).isEmpty())) {
+                canonical = false;
+                break;
+            }
+            ranked.get(rank).add(stage);
+        }
+        if (canonical) {
+            final List<DBObject> stages = pipeline.subList(tail, pipeline.size());
+            stages.clear();
+            for (List<DBObject> rank : ranked) {
+                stages.addAll(rank);
+            }
+        }
+        optimize(pipeline);
+    }
+
+    /**
+     * Merge adjacent $match stages, other than a {@link RedactedDBCollection.DocumentLevelMatch}, and bound every
+     * <tt>$sort, $skip, $limit</tt> as <tt>$sort, $limit, $skip</tt>.
+     *
+     * @param pipeline the pipeline, modified in place
+     */
+    static void optimize(List<DBObject> pipeline) {
+        for (int i = 0; i + 1 < pipeline.size(); ) {
+            if (isMergeableMatch(pipeline.get(i)) && isMergeableMatch(pipeline.get(i + 1))
+                    && pipeline.get(i).get("$match") instanceof DBObject && pipeline.get(i + 1).get("$match") instanceof DBObject) {
+                final List<DBObject> conjuncts = new ArrayList<DBObject>(2);
+                conjuncts.add((DBObject) pipeline.get(i).get("$match"));
+                conjuncts.add((DBObject) pipeline.remove(i + 1).get("$match"));
+                pipeline.set(i, new BasicDBObject("$match", PredicatePushdown.combine(conjuncts)));
+            } else {
+                i++;
+            }
+        }
+
+        for (int i = 0; i + 2 < pipeline.size(); i++) {
+            if (isStage(pipeline.get(i), "$sort") && isStage(pipeline.get(i + 1), "$skip") && isStage(pipeline.get(i + 2), "$limit")
+                    && pipeline.get(i + 1).get("$skip") instanceof Number && pipeline.get(i + 2).get("$limit") instanceof Number) {
+                final DBObject skip = pipeline.get(i + 1);
+                final long bound = ((Number) skip.get("$skip")).longValue() + ((Number) pipeline.get(i + 2).get("$limit")).longValue();
+                pipeline.set(i + 1, new BasicDBObject("$limit", (bound <= Integer.MAX_VALUE) ? (Object) (int) bound : (Object) bound));
+                pipeline.set(i + 2, skip);
+            }
+        }
+    }
+
+    /**
+     * @param pipeline the pipeline
+     * @return true if every $sort is immediately followed by a $limit, so the server sorts a bounded top-k
+     */
+    static boolean isSortBounded(List<DBObject> pipeline) {
+        for (int i = 0; i < pipeline.size(); i++) {
+            if (isStage(pipeline.get(i), "$sort") && (i + 1 == pipeline.size() || !isStage(pipeline.get(i + 1), "$limit"))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param pipeline the pipeline
+     * @param options  the options of the aggregation
+     * @return the options, with allowDiskUse if the pipeline has an unbounded sort and the options don't say
+     */
+    static AggregationOptions withDiskUseIfUnbounded(List<DBObject> pipeline, AggregationOptions options) {
+        if (options.getAllowDiskUse() != null || isSortBounded(pipeline)) {
+            return options;
+        }
+        return AggregationOptions.builder().
+                batchSize(options.getBatchSize()).
+                outputMode(options.getOutputMode()).
+                maxTime(options.getMaxTime(MILLISECONDS), MILLISECONDS).
+                allowDiskUse(true).
+                build();
+    }
+
+    private static boolean isMergeableMatch(DBObject stage) {
+        return isStage(stage, "$match") && !(stage instanceof RedactedDBCollection.DocumentLevelMatch);
+    }
+
+    private static boolean isStage(DBObject stage, String name) {
+        return name.equals(getStageName(stage));
+    }
+
+    private static String getStageName(DBObject stage) {
+        return (stage != null && stage.keySet().size() == 1) ? stage.keySet().iterator().next() : null;
+    }
+}
@@ -0,0 +1,198 @@
+package com.mongodb.flac;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import java.util.*;
+
+/**
+ * Decides which predicates of a query may be evaluated <b>before</b> the $redact stage of a secure pipeline.
+ *
+ * <p>A secure pipeline normally starts with $redact, so the user's $match runs on redacted documents and the
+ * server can not use any index: every query, even <tt>{ _id: X }</tt>, is a collection scan followed by a full
+ * $redact traversal of every document.  A predicate on a field whose value is never changed by $redact gives
+ * exactly the same answer before and after redaction, so such predicates can be moved in front of $redact where
+ * the query planner can use indexes.  A field qualifies when it is a top-level field that is not, and does not
+ * contain, any sub-document carrying the security field (e.g. "sl").</p>
+ *
+ * <p>Which fields are unmarked is knowledge about the data that this class can not prove by itself, so it is
+ * declared by the application:</p>
+ * <ul>
+ *     <li>{@link Mode#DISABLED} - nothing is pushed down, the whole query runs after $redact (the default)</li>
+ *     <li>{@link Mode#STRICT} - only predicates on <tt>_id</tt> are pushed down; <tt>_id</tt> is assumed to never
+ *         be a marked sub-document</li>
+ *     <li>{@link Mode#ALLOWLIST} - predicates on <tt>_id</tt> and on the declared unmarked top-level fields
+ *         (and any path below them, e.g. <tt>year</tt> and <tt>year.month</tt>) are pushed down</li>
+ * </ul>
+ *
+ * <p>Only conjuncts are split: the top level fields of the query and the clauses of a top level $and.  A $or or
+ * $nor is pushed down only if every field it references qualifies.  Anything else ($text, $where, unknown
+ * operators) always stays after $redact.</p>
+ */
+public class PredicatePushdown {
+
+    public enum Mode {
+        DISABLED, STRICT, ALLOWLIST
+    }
+
+    public static final PredicatePushdown DISABLED = new PredicatePushdown(Mode.DISABLED, Collections.<String>emptySet());
+
+    private final Mode mode;
+    private final Set<String> unmarkedFields;
+
+    /**
+     * @param mode           the pushdown mode
+     * @param unmarkedFields top-level field names known to never carry, or contain, security markings;
+     *                       only used in {@link Mode#ALLOWLIST} mode
+     */
+    public PredicatePushdown(Mode mode, Collection<String> unmarkedFields) {
+        this.mode = RedactedDBCollection.checkNotNull(mode, "mode can't be null");
+        RedactedDBCollection.checkNotNull(unmarkedFields, "unmarkedFields can't be null");
+        final Set<String> fields = new HashSet<String>();
+        for (String field : unmarkedFields) {
+            if (field == null || field.length() == 0 || field.indexOf('.') >= 0 || field.startsWith("$")) {
+                throw new IllegalArgumentException("unmarkedFields must be top-level field names, not: " + field);
+            }
+            fields.add(field);
+        }
+        this.unmarkedFields = Collections.unmodifiableSet(fields);
+    }
+
+    /**
+     * @return a policy that pushes down predicates on _id only
+     */
+    public static PredicatePushdown strict() {
+        return new PredicatePushdown(Mode.STRICT, Collections.<String>emptySet());
+    }
+
+    /**
+     * @param unmarkedFields top-level field names known to never carry, or contain, security markings
+     * @return a policy that pushes down predicates on _id and the given fields
+     */
+    public static PredicatePushdown allowlist(String... unmarkedFields) {
+        return new PredicatePushdown(Mode.ALLOWLIST, Arrays.asList(unmarkedFields));
+    }
+
+    public Mode getMode() {
+        return mode;
+    }
+
+    public Set<String> getUnmarkedFields() {
+        return unmarkedFields;
+    }
+
+    public boolean isEnabled() {
+        return mode != Mode.DISABLED;
+    }
+
+    /**
+     * @param fieldPath a (possibly dotted) field path, as used in a query
+     * @return true if a predicate on this path gives the same result before and after $redact
+     */
+    public boolean isPushable(String fieldPath) {
+        if (mode == Mode.DISABLED || fieldPath == null || fieldPath.startsWith("$")) {
+            return false;
+        }
+        final int dot = fieldPath.indexOf('.');
+        final String topLevelField = (dot < 0) ? fieldPath : fieldPath.substring(0, dot);
+        if ("_id".equals(topLevelField)) {
+            return true;
+        }
+        return mode == Mode.ALLOWLIST && unmarkedFields.contains(topLevelField);
+    }
+
+    /**
+     * Split a query into the part that may run before $redact and the residual that must run after it.
+     * Either part is null if it would be empty.  The query itself is not modified.
+     *
+     * @param query the user's query, may be null
+     * @return a two element array: { pushed down query, residual query }
+     */
+    public DBObject[] split(DBObject query) {
+        if (query == null || query.keySet().isEmpty()) {
+            return new DBObject[]{null, null};
+        }
+        if (mode == Mode.DISABLED) {
+            return new DBObject[]{null, query};
+        }
+
+        final List<DBObject> pushed = new ArrayList<DBObject>();
+        final List<DBObject> residual = new ArrayList<DBObject>();
+        splitConjuncts(query, pushed, residual);
+        return new DBObject[]{combine(pushed), combine(residual)};
+    }
+
+    private void splitConjuncts(DBObject query, List<DBObject> pushed, List<DBObject> residual) {
+        for (String key : query.keySet()) {
+            final Object value = query.get(key);
+            if ("$and".equals(key) && value instanceof List) {
+                for (Object clause : (List<?>) value) {
+                    if (clause instanceof DBObject) {
+                        splitConjuncts((DBObject) clause, pushed, residual);
+                    } else {
+                        residual.add(new BasicDBObject(key, value));    // malformed, let the server complain
+                        return;
+                    }
+                }
+            } else {
+                final BasicDBObject conjunct = new BasicDBObject(key, value);
+                if (isPushableClause(key, value)) {
+                    pushed.add(conjunct);
+                } else {
+                    residual.add(conjunct);
+                }
+            }
+        }
+    }
+
+    private boolean isPushableClause(String key, Object value) {
+        if ("$and".equals(key) || "$or".equals(key) || "$nor".equals(key)) {
+            if (!(value instanceof List)) {
+                return false;
+            }
+            for (Object clause : (List<?>) value) {
+                if (!(clause instanceof DBObject) || !isPushableQuery((DBObject) clause)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        return isPushable(key);
+    }
+
+    private boolean isPushableQuery(DBObject query) {
+        for (String key : query.keySet()) {
+            if (!isPushableClause(key, query.get(key))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * combine conjuncts into one query, as a flat document when the keys do not clash, $and otherwise
+     */
+    static DBObject combine(List<DBObject> conjuncts) {
+        if (conjuncts.isEmpty()) {
+            return null;
+        }
+        if (conjuncts.size() == 1) {
+            return conjuncts.get(0);
+        }
+        final BasicDBObject flat = new BasicDBObject();
+        for (DBObject conjunct : conjuncts) {
+            for (String key : conjunct.keySet()) {
+                if (flat.containsField(key)) {
+                    return new BasicDBObject("$and", new ArrayList<DBObject>(conjuncts));
+                }
+                flat.put(key, conjunct.get(key));
+            }
+        }
+        return flat;
+    }
+
+    @Override
+    public String toString() {
+        return "PredicatePushdown{mode=" + mode + ", unmarkedFields=" + unmarkedFields + "}";
+    }
+}
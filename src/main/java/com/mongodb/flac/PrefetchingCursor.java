@@ -0,0 +1,159 @@
+package com.mongodb.flac;
+
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+import com.mongodb.ServerAddress;
+
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A <code>Cursor</code> that reads ahead of the caller on an executor thread, so that the getMore round trips of
+ * the underlying cursor overlap with the caller's processing of the documents already read.
+ *
+ * <p>At most <code>prefetch</code> documents are read ahead: when the caller falls behind, the reading thread
+ * waits, which bounds the memory used per cursor.  The reading thread is held for as long as the cursor is
+ * open and not exhausted, so size the executor for the number of concurrently open prefetching cursors, and
+ * close cursors that are not read to the end.</p>
+ *
+ * <p>Exceptions and <code>Error</code>s of the underlying cursor are rethrown to the caller by {@link #hasNext()} once the documents read
+ * before the error have been consumed.</p>
+ */
+public class PrefetchingCursor implements Cursor {
+
+    public static final int DEFAULT_PREFETCH = 100;
+
+    private static final Object END = new Object();
+
+    private final Cursor source;
+    private final BlockingQueue<Object> queue;
+    private volatile boolean closed;
+
+    private Object nextItem;
+
+    /**
+     * Start reading ahead.
+     *
+     * @param source   the cursor to read from, it is closed by this cursor
+     * @param executor runs the reading task
+     * @param prefetch the maximum number of documents read ahead
+     * @throws RejectedExecutionException if the executor rejects the reading task, the source is closed then
+     */
+    public PrefetchingCursor(Cursor source, Executor executor, int prefetch) {
+        this.source = RedactedDBCollection.checkNotNull(source, "source can't be null");
+        RedactedDBCollection.checkNotNull(executor, "executor can't be null");
+        if (prefetch <= 0) {
+            throw new IllegalArgumentException("prefetch must be greater than 0");
+        }
+        this.queue = new ArrayBlockingQueue<Object>(prefetch);
+        try {
+            executor.execute(new Runnable() {
+                public void run() {
+                    readAhead();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            closed = true;
+            source.close();
+            throw e;
+        }
+    }
+
+    private void readAhead() {
+        Object last = null;
+        try {
+            while (!closed && source.hasNext()) {
+                if (!put(source.next())) {
+                    return;
+                }
+            }
+            last = END;
+        } catch (RuntimeException e) {
+            last = e;
+        } catch (Error e) {
+            last = e;
+            throw e;
+        } finally {
+            try {
+                source.close();
+            } finally {
+                // the caller waits for the last item, whatever ended the reading
+                if (last != null) {
+                    put(last);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return false if the cursor was closed while waiting for room
+     */
+    private boolean put(Object item) {
+        try {
+            while (!closed) {
+                if (queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+                    return true;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            closed = true;
+        }
+        return false;
+    }
+
+    public boolean hasNext() {
+        if (nextItem == null) {
+            if (closed) {
+                return false;
+            }
+            try {
+                nextItem = queue.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while waiting for the next document", e);
+            }
+        }
+        if (nextItem instanceof RuntimeException) {
+            throw (RuntimeException) nextItem;
+        }
+        if (nextItem instanceof Error) {
+            throw (Error) nextItem;
+        }
+        return nextItem != END;
+    }
+
+    public DBObject next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        final DBObject result = (DBObject) nextItem;
+        nextItem = null;
+        return result;
+    }
+
+    public void remove() {
+        throw new UnsupportedOperationException("can't remove a document from a prefetching cursor");
+    }
+
+    public long getCursorId() {
+        return source.getCursorId();
+    }
+
+    public ServerAddress getServerAddress() {
+        return source.getServerAddress();
+    }
+
+    /**
+     * stop reading ahead; the underlying cursor is closed by the reading thread
+     */
+    public void close() {
+        closed = true;
+        nextItem = null;
+        queue.clear();
+    }
+}
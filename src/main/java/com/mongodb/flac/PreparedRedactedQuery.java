@@ -0,0 +1,289 @@
+package com.mongodb.flac;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+
+import java.util.*;
+
+/**
+ * A query shape that is compiled once and run many times with different parameter values, see
+ * {@link RedactedDBCollection#prepare(DBObject, DBObject, DBObject, int)}.
+ *
+ * <p>The query is a template whose values may be {@link #parameter(String) parameters}.  Preparing it splits it with
+ * the {@link PredicatePushdown} policy of the collection and builds the $sort, $limit and $project stages once; a run
+ * only copies the parts of the query that contain parameters, binding their values, and adds the user's prefilter and
+ * $redact stage, which come from the {@link RedactCommandCache}.  The stages that don't depend on parameters are
+ * shared by all runs, so they must not be modified.</p>
+ * <pre>
+ *     PreparedRedactedQuery byName = redactedDBCollection.prepare(
+ *             new BasicDBObject("lastName", PreparedRedactedQuery.parameter("lastName")), keys, null, 10);
+ *     ...
+ *     Cursor cursor = byName.find(Collections.singletonMap("lastName", "Smith"));
+ * </pre>
+ *
+ * <p>A prepared query uses the settings of its collection at the time it was prepared, and always runs as an
+ * aggregation on the server, whatever the {@link RedactedDBCollection.RedactionMode}.  It is thread safe if its
+ * collection is.</p>
+ */
+public final class PreparedRedactedQuery {
+
+    /**
+     * The placeholder of a parameter in a query template.
+     */
+    public static final class Parameter {
+        private final String name;
+
+        private Parameter(String name) {
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public String toString() {
+            return "?" + name;
+        }
+    }
+
+    /**
+     * @param name the parameter name
+     * @return the placeholder of the parameter, to use as a value in a query template
+     */
+    public static Parameter parameter(String name) {
+        return new Parameter(RedactedDBCollection.checkNotNull(name, "name can't be null"));
+    }
+
+    private final RedactedDBCollection collection;
+    private final Set<String> parameterNames;
+    private final Object pushedMatch;
+    private final Object residualMatch;
+    private final DBObject pushedSortStage;
+    private final DBObject sortStage;
+    private final DBObject limitStage;
+    private final DBObject projectStage;
+
+    private static final DBObject LIMIT_ONE_STAGE = new BasicDBObject("$limit", 1);
+
+    PreparedRedactedQuery(RedactedDBCollection collection, PredicatePushdown predicatePushdown, boolean pushableSort,
+                          DBObject query, DBObject fields, DBObject orderBy, int limit) {
+        if (limit < 0) {
+            throw new IllegalArgumentException("limit can't be negative");
+        }
+        this.collection = collection;
+
+        final Set<String> names = new LinkedHashSet<String>();
+        final DBObject[] pushedAndResidual = predicatePushdown.split(query);
+        this.pushedMatch = (pushedAndResidual[0] == null) ? null : compile(pushedAndResidual[0], names);
+        this.residualMatch = (pushedAndResidual[1] == null) ? null : compile(pushedAndResidual[1], names);
+        this.parameterNames = Collections.unmodifiableSet(names);
+
+        final boolean hasSort = orderBy != null && !orderBy.keySet().isEmpty();
+        final DBObject sort = hasSort ? new BasicDBObject("$sort", copy(orderBy)) : null;
+        if (hasSort && pushableSort && predicatePushdown.isEnabled()) {
+            // $redact and $match keep the order, so the sort can run on the index in front of them
+            this.pushedSortStage = sort;
+            this.sortStage = null;
+        } else {
+            this.pushedSortStage = null;
+            this.sortStage = sort;
+        }
+        this.limitStage = (limit == 0) ? null : new BasicDBObject("$limit", limit);
+        this.projectStage = (fields == null || fields.keySet().isEmpty()) ? null : new BasicDBObject("$project", copy(fields));
+    }
+
+    /**
+     * @return the names of the parameters of the query, in the order they appear
+     */
+    public Set<String> getParameterNames() {
+        return parameterNames;
+    }
+
+    /**
+     * Run the query for the collection's user.
+     *
+     * @param parameters the value of every parameter
+     * @return a cursor to iterate over results
+     * @throws IllegalArgumentException if a parameter has no value, or a value is not a parameter of the query
+     */
+    public Cursor find(Map<String, ?> parameters) {
+        final long started = System.nanoTime();
+        return collection.aggregatePrepared(RedactMetrics.Operation.FIND, started, buildPipeline(parameters, limitStage));
+    }
+
+    /**
+     * Run the query for the collection's user, and return its first document.
+     *
+     * @param parameters the value of every parameter
+     * @return the first document, or null if there is none
+     * @throws IllegalArgumentException if a parameter has no value, or a value is not a parameter of the query
+     */
+    public DBObject findOne(Map<String, ?> parameters) {
+        final long started = System.nanoTime();
+        final Cursor cursor = collection.aggregatePrepared(RedactMetrics.Operation.FIND_ONE, started,
+                buildPipeline(parameters, LIMIT_ONE_STAGE));
+        try {
+            final DBObject document = cursor.hasNext() ? cursor.next() : null;
+            if (document != null && projectStage != null) {
+                document.markAsPartialObject();
+            }
+            return document;
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * @param parameters the value of every parameter
+     * @param limitStage the $limit stage, or null
+     * @return new pipeline with the SecurityRedact phase on the front
+     */
+    RedactedDBCollection.SecureAggregationPipeline buildPipeline(Map<String, ?> parameters, DBObject limitStage) {
+        RedactedDBCollection.checkNotNull(parameters, "parameters can't be null");
+        for (String name : parameters.keySet()) {
+            if (!parameterNames.contains(name)) {
+                throw new IllegalArgumentException("the query has no parameter " + name + ", its parameters are " + parameterNames);
+            }
+        }
+
+        final RedactedDBCollection.SecureAggregationPipeline pipelineSecure = collection.getSecureAggregationPipelineForUser();
+        int redactStage = RedactedDBCollection.indexOfSecurityStage(pipelineSecure);
+        if (pushedMatch != null) {
+            pipelineSecure.add(redactStage++, new BasicDBObject("$match", bind(pushedMatch, parameters)));
+        }
+        if (pushedSortStage != null) {
+            pipelineSecure.add(redactStage, pushedSortStage);
+        }
+        if (residualMatch != null) {
+            pipelineSecure.add(new BasicDBObject("$match", bind(residualMatch, parameters)));
+        }
+        if (sortStage != null) pipelineSecure.add(sortStage);
+        if (limitStage != null) pipelineSecure.add(limitStage);
+        if (projectStage != null) pipelineSecure.add(projectStage);
+        return pipelineSecure;
+    }
+
+    @Override
+    public String toString() {
+        return "PreparedRedactedQuery{parameters=" + parameterNames + ", sort=" + (pushedSortStage != null ? pushedSortStage : sortStage)
+                + ", limit=" + limitStage + ", project=" + projectStage + "}";
+    }
+
+    // templates
+
+    /**
+     * A part of the query that contains parameters, the other parts are constants.
+     */
+    private static abstract class Template {
+        abstract Object bind(Map<String, ?> parameters);
+    }
+
+    private static final class ParameterTemplate extends Template {
+        private final String name;
+
+        ParameterTemplate(String name) {
+            this.name = name;
+        }
+
+        Object bind(Map<String, ?> parameters) {
+            if (!parameters.containsKey(name)) {
+                throw new IllegalArgumentException("no value for parameter " + name);
+            }
+            return parameters.get(name);
+        }
+    }
+
+    private static final class DocumentTemplate extends Template {
+        private final String[] keys;
+        private final Object[] values;
+
+        DocumentTemplate(String[] keys, Object[] values) {
+            this.keys = keys;
+            this.values = values;
+        }
+
+        Object bind(Map<String, ?> parameters) {
+            final BasicDBObject document = new BasicDBObject();
+            for (int i = 0; i < keys.length; i++) {
+                document.put(keys[i], PreparedRedactedQuery.bind(values[i], parameters));
+            }
+            return document;
+        }
+    }
+
+    private static final class ListTemplate extends Template {
+        private final Object[] elements;
+
+        ListTemplate(Object[] elements) {
+            this.elements = elements;
+        }
+
+        Object bind(Map<String, ?> parameters) {
+            final BasicDBList list = new BasicDBList();
+            for (Object element : elements) {
+                list.add(PreparedRedactedQuery.bind(element, parameters));
+            }
+            return list;
+        }
+    }
+
+    private static Object bind(Object compiled, Map<String, ?> parameters) {
+        return (compiled instanceof Template) ? ((Template) compiled).bind(parameters) : compiled;
+    }
+
+    /**
+     * @return a Template if the value contains parameters, otherwise a copy of the value
+     */
+    private static Object compile(Object value, Set<String> names) {
+        if (value instanceof Parameter) {
+            names.add(((Parameter) value).getName());
+            return new ParameterTemplate(((Parameter) value).getName());
+        }
+        if (value instanceof List) {
+            final List<?> list = (List<?>) value;
+            final Object[] elements = new Object[list.size()];
+            boolean constant = true;
+            for (int i = 0; i < elements.length; i++) {
+                elements[i] = compile(list.get(i), names);
+                constant &= !(elements[i] instanceof Template);
+            }
+            if (constant) {
+                final BasicDBList copy = new BasicDBList();
+                Collections.addAll(copy, elements);
+                return copy;
+            }
+            return new ListTemplate(elements);
+        }
+        if (value instanceof DBObject) {
+            final DBObject document = (DBObject) value;
+            final String[] keys = document.keySet().toArray(new String[0]);
+            final Object[] values = new Object[keys.length];
+            boolean constant = true;
+            for (int i = 0; i < keys.length; i++) {
+                values[i] = compile(document.get(keys[i]), names);
+                constant &= !(values[i] instanceof Template);
+            }
+            if (constant) {
+                final BasicDBObject copy = new BasicDBObject();
+                for (int i = 0; i < keys.length; i++) {
+                    copy.put(keys[i], values[i]);
+                }
+                return copy;
+            }
+            return new DocumentTemplate(keys, values);
+        }
+        return value;
+    }
+
+    private static DBObject copy(DBObject value) {
+        final Set<String> names = new HashSet<String>();
+        final Object copy = compile(value, names);
+        if (!names.isEmpty()) {
+            throw new IllegalArgumentException("only the query can have parameters, not the projection or sort: " + names);
+        }
+        return (DBObject) copy;
+    }
+}
@@ -0,0 +1,249 @@
+package com.mongodb.flac;
+
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+import org.slf4j.LoggerFactory;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded cache of parsed $redact expressions.
+ *
+ * <p>Building the $redact stage for a user means encoding the user's {@link SecurityAttributes}, formatting
+ * them into the (long) redact expression template and then parsing the resulting JSON, or, for a
+ * {@link DBObjectRedactExpression}, assembling the expression tree.  None of that depends on
+ * anything but the {@link RedactExpression} and the labels granted to the user, so this cache keeps the parsed
+ * expression keyed by the <code>RedactExpression</code>, by its <code>equals</code> and <code>hashCode</code>, plus
+ * {@link SecurityAttributes#getFingerprint()}.  The expressions of this library are equal when they are of the same
+ * class with the same settings, e.g. every <code>new CapcoRedactExpression("sl")</code>, so collections built with
+ * their own expression instance share the entries.  Repeated requests of the same user, as well as requests of
+ * different users with identical entitlements, then skip the template formatting and the JSON parse entirely.</p>
+ *
+ * <p>The cache is least-recently-used ordered, bounded by a maximum number of entries, and entries expire a
+ * fixed time after they were created.  Hit, miss and eviction counts are kept for monitoring.
+ * A single shared instance, see {@link #getSharedInstance()}, is used by default by every
+ * {@link RedactedDBCollection}.</p>
+ *
+ * <p>The <code>DBObject</code>'s handed out by this cache are shared between threads and callers,
+ * they must be treated as read only.</p>
+ */
+public class RedactCommandCache {
+
+    protected static final org.slf4j.Logger logger = LoggerFactory.getLogger(RedactCommandCache.class);
+
+    public static final int DEFAULT_MAXIMUM_SIZE = 1024;
+    public static final long DEFAULT_EXPIRE_AFTER_WRITE_MINUTES = 10;
+
+    private static final RedactCommandCache SHARED_INSTANCE = new RedactCommandCache(DEFAULT_MAXIMUM_SIZE,
+            DEFAULT_EXPIRE_AFTER_WRITE_MINUTES, TimeUnit.MINUTES);
+
+    private final int maximumSize;
+    private final long expireAfterWriteNanos;
+    private final LinkedHashMap<Key, Entry> entries;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong evictionCount = new AtomicLong();
+
+    /**
+     * @param maximumSize      the maximum number of parsed expressions held, least recently used ones are evicted first
+     * @param expireAfterWrite how long an entry stays valid after it was created, 0 means entries never expire
+     * @param unit             the unit of expireAfterWrite
+     */
+    public RedactCommandCache(int maximumSize, long expireAfterWrite, TimeUnit unit) {
+        if (maximumSize <= 0) {
+            throw new IllegalArgumentException("maximumSize must be greater than 0");
+        }
+        if (expireAfterWrite < 0) {
+            throw new IllegalArgumentException("expireAfterWrite can't be negative");
+        }
+        RedactedDBCollection.checkNotNull(unit, "unit can't be null");
+
+        this.maximumSize = maximumSize;
+        this.expireAfterWriteNanos = unit.toNanos(expireAfterWrite);
+        this.entries = new LinkedHashMap<Key, Entry>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Key, RedactCommandCache.Entry> eldest) {
+                if (size() > RedactCommandCache.this.maximumSize) {
+                    evictionCount.incrementAndGet();
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @return the cache shared by default among all {@link RedactedDBCollection} instances
+     */
+    public static RedactCommandCache getSharedInstance() {
+        return SHARED_INSTANCE;
+    }
+
+    /**
+     * Return the parsed redact expression (the value of the "$redact" stage) for the user, building and caching
+     * it if it is not already present.
+     *
+     * @param redactExpression       the security model's redact expression
+     * @param userSecurityAttributes the user's security attributes
+     * @return the parsed redact expression, shared and not to be modified
+     */
+    public DBObject get(RedactExpression redactExpression, SecurityAttributes userSecurityAttributes) {
+        RedactedDBCollection.checkNotNull(redactExpression, "redactExpression can't be null");
+        RedactedDBCollection.checkNotNull(userSecurityAttributes, "userSecurityAttributes can't be null");
+
+        final long version = (redactExpression instanceof VersionedRedactExpression)
+                ? ((VersionedRedactExpression) redactExpression).getVersion() : 0;
+        final Key key = new Key(redactExpression, version, userSecurityAttributes.getFingerprint());
+        final long now = System.nanoTime();
+
+        synchronized (entries) {
+            final Entry entry = entries.get(key);
+            if (entry != null) {
+                if (!entry.isExpired(now, expireAfterWriteNanos)) {
+                    hitCount.incrementAndGet();
+                    return entry.redactExpression;
+                }
+                entries.remove(key);
+                evictionCount.incrementAndGet();
+            }
+        }
+
+        // build outside of the lock, two threads racing on the same key simply both build the same value
+        missCount.incrementAndGet();
+        final DBObject built = buildRedactExpression(redactExpression, userSecurityAttributes);
+        synchronized (entries) {
+            entries.put(key, new Entry(built, now));
+        }
+        return built;
+    }
+
+    /**
+     * build the parsed redact expression, without any caching
+     */
+    static DBObject buildRedactExpression(RedactExpression redactExpression, SecurityAttributes userSecurityAttributes) {
+        if (redactExpression instanceof DBObjectRedactExpression) {
+            final DBObject userSecurityExpression = ((DBObjectRedactExpression) redactExpression)
+                    .getRedactExpressionObject(userSecurityAttributes);
+            if (logger.isDebugEnabled()) {
+                logger.debug("**************** find/aggregate() userSecurityExpression: " + userSecurityExpression);
+            }
+            return userSecurityExpression;
+        }
+
+        // String form: format the template and parse it
+        String userSecurityExpression = redactExpression.getRedactExpression(userSecurityAttributes);
+        if (logger.isDebugEnabled()) {
+            logger.debug("**************** find/aggregate() userSecurityExpression: " + userSecurityExpression);
+        }
+        return (DBObject) JSON.parse(userSecurityExpression);
+    }
+
+    /**
+     * Discard all cached expressions, e.g. after the redact expression template or label expansion rules changed.
+     */
+    public void invalidateAll() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    /**
+     * @return the number of cached expressions, which may include expired ones not yet removed
+     */
+    public int size() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    public long getEvictionCount() {
+        return evictionCount.get();
+    }
+
+    /**
+     * @return the ratio of hits to requests, 1.0 if there were no requests yet
+     */
+    public double getHitRate() {
+        final long hits = hitCount.get();
+        final long requests = hits + missCount.get();
+        return (requests == 0) ? 1.0 : (double) hits / requests;
+    }
+
+    /**
+     * reset the hit, miss and eviction counts
+     */
+    public void resetStats() {
+        hitCount.set(0);
+        missCount.set(0);
+        evictionCount.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "RedactCommandCache{size=" + size() + ", maximumSize=" + maximumSize + ", hitCount=" + getHitCount()
+                + ", missCount=" + getMissCount() + ", evictionCount=" + getEvictionCount() + "}";
+    }
+
+
+    /**
+     * cache key: the RedactExpression (by equals), its version if it is a {@link VersionedRedactExpression},
+     * and the canonical fingerprint of the user's attributes
+     */
+    private static final class Key {
+        private final RedactExpression redactExpression;
+        private final long version;
+        private final String fingerprint;
+
+        Key(RedactExpression redactExpression, long version, String fingerprint) {
+            this.redactExpression = redactExpression;
+            this.version = version;
+            this.fingerprint = fingerprint;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (!(o instanceof Key)) return false;
+            final Key other = (Key) o;
+            return version == other.version && fingerprint.equals(other.fingerprint)
+                    && redactExpression.equals(other.redactExpression);
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * (31 * redactExpression.hashCode() + (int) (version ^ (version >>> 32)))
+                    + fingerprint.hashCode();
+        }
+    }
+
+    private static final class Entry {
+        private final DBObject redactExpression;
+        private final long createdNanos;
+
+        Entry(DBObject redactExpression, long createdNanos) {
+            this.redactExpression = redactExpression;
+            this.createdNanos = createdNanos;
+        }
+
+        boolean isExpired(long now, long expireAfterWriteNanos) {
+            return expireAfterWriteNanos > 0 && now - createdNanos >= expireAfterWriteNanos;
+        }
+    }
+
+}
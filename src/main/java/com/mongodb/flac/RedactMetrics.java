@@ -0,0 +1,78 @@
+package com.mongodb.flac;
+
+/**
+ * This interface receives the measurements of the reads of a {@link RedactedDBCollection}, per namespace and
+ * operation, e.g. to export them to a monitoring system.  See {@link InMemoryRedactMetrics} for an implementation
+ * that keeps latency histograms.
+ *
+ * <p>The methods are called on the request threads, concurrently, so an implementation must be thread safe and
+ * cheap: record the values and return, export them somewhere else.  All times are in nanoseconds.</p>
+ *
+ * @see RedactedDBCollection#setMetrics(RedactMetrics)
+ */
+public interface RedactMetrics {
+
+    /**
+     * The measured reads.
+     */
+    public enum Operation {
+        FIND, FIND_ONE, AGGREGATE
+    }
+
+    /**
+     * records nothing, the default of a RedactedDBCollection
+     */
+    public static final RedactMetrics NONE = new RedactMetrics() {
+        public boolean isRecordingBytes() {
+            return false;
+        }
+
+        public void recordPipelineBuild(String namespace, Operation operation, long nanos) {
+        }
+
+        public void recordFirstDocument(String namespace, Operation operation, long nanos) {
+        }
+
+        public void recordDrain(String namespace, Operation operation, long nanos, long documents, long bytes, long batches) {
+        }
+
+        @Override
+        public String toString() {
+            return "RedactMetrics.NONE";
+        }
+    };
+
+    /**
+     * @return true if the BSON size of the returned documents should be measured, which costs an encoding of
+     * every document
+     */
+    public boolean isRecordingBytes();
+
+    /**
+     * @param namespace the namespace of the wrapped collection
+     * @param operation the read
+     * @param nanos     the time to build the secure aggregation pipeline, including the $redact expression
+     */
+    public void recordPipelineBuild(String namespace, Operation operation, long nanos);
+
+    /**
+     * @param namespace the namespace of the wrapped collection
+     * @param operation the read
+     * @param nanos     the time from sending the read to the server until its first document, or until the server
+     *                  found none, was returned
+     */
+    public void recordFirstDocument(String namespace, Operation operation, long nanos);
+
+    /**
+     * called once per cursor, when it is exhausted or closed
+     *
+     * @param namespace the namespace of the wrapped collection
+     * @param operation the read
+     * @param nanos     the time from sending the read to the server until the cursor was exhausted or closed
+     * @param documents the number of documents returned
+     * @param bytes     their BSON size, or 0 if {@link #isRecordingBytes()} is false
+     * @param batches   the number of batches the documents arrived in
+     */
+    public void recordDrain(String namespace, Operation operation, long nanos, long documents, long bytes, long batches);
+
+}
@@ -0,0 +1,23 @@
+package com.mongodb.flac;
+
+import com.mongodb.DBObject;
+
+/**
+ * This interface encapsulates an optional query that runs in front of the $redact stage and narrows the
+ * candidate documents down to those the user can at least partially see.
+ *
+ * <p>A prefilter must be conservative: it may let through documents that $redact later prunes entirely,
+ * but it must never exclude a document whose root the user is allowed to see.</p>
+ *
+ */
+public interface RedactPrefilter {
+
+    /**
+     * Return the prefilter query based on the specified <code>SecurityAttributes</code>.
+     *
+     * @param securityAttributes
+     * @return the query for a leading $match stage, or null if nothing can be excluded for this user
+     */
+    public DBObject getPrefilter(SecurityAttributes securityAttributes);
+
+}
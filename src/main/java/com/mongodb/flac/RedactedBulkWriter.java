@@ -0,0 +1,206 @@
+package com.mongodb.flac;
+
+import com.mongodb.BulkWriteOperation;
+import com.mongodb.BulkWriteRequestBuilder;
+import com.mongodb.BulkWriteResult;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+
+/**
+ * Bulk writes of one user, validated by a {@link WriteValidator} and sent as unordered bulk operations of
+ * {@link #getBatchSize()} writes, e.g. to ingest millions of marked documents.
+ *
+ * <p>Every write is validated when it is added, and a full batch is executed right away, so memory stays bounded
+ * whatever the number of writes; call {@link #flush()} to execute the last, partial, batch.  A write failing the
+ * validation throws and is not added, the batches executed before it stay written.  Updates and replacements are
+ * restricted to the documents the writer may write to, see {@link WriteValidator#guardQuery(DBObject, DBObject)};
+ * note that a replacement also overwrites any sub-documents of the target that the writer can not see.</p>
+ *
+ * <p>The counts add up the results of the executed batches; with an unacknowledged write concern they stay 0.
+ * Instances are not thread safe.</p>
+ * <pre>
+ *     RedactedBulkWriter writer = redactedDBCollection.initializeBulkWriter();
+ *     for (DBObject document : documents) {
+ *         writer.insert(document);
+ *     }
+ *     writer.flush();
+ * </pre>
+ */
+public class RedactedBulkWriter {
+
+    public static final int DEFAULT_BATCH_SIZE = 1000;
+
+    private final DBCollection collection;
+    private final WriteValidator validator;
+    private final int batchSize;
+    private WriteConcern writeConcern;
+    private LabelSummaryAnnotator labelSummaryAnnotator;
+
+    private BulkWriteOperation batch;
+    private int pending;
+    private int batches;
+    private long insertedCount;
+    private long matchedCount;
+    private long upsertedCount;
+
+    /**
+     * @param collection the wrapped collection to write to
+     * @param validator  the writer's validator
+     * @param batchSize  the number of writes per bulk operation
+     */
+    public RedactedBulkWriter(DBCollection collection, WriteValidator validator, int batchSize) {
+        this.collection = RedactedDBCollection.checkNotNull(collection, "collection can't be null");
+        this.validator = RedactedDBCollection.checkNotNull(validator, "validator can't be null");
+        if (batchSize <= 0) {
+            throw new IllegalArgumentException("batchSize must be greater than 0");
+        }
+        this.batchSize = batchSize;
+        this.writeConcern = collection.getWriteConcern();
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public WriteConcern getWriteConcern() {
+        return writeConcern;
+    }
+
+    public void setWriteConcern(WriteConcern writeConcern) {
+        this.writeConcern = RedactedDBCollection.checkNotNull(writeConcern, "writeConcern can't be null");
+    }
+
+    /**
+     * @return the annotator of the documents written, or null if they are not annotated
+     */
+    public LabelSummaryAnnotator getLabelSummaryAnnotator() {
+        return labelSummaryAnnotator;
+    }
+
+    /**
+     * @param labelSummaryAnnotator the annotator of the documents written, see
+     *                              {@link RedactedDBCollection#setLabelSummaryAnnotator(LabelSummaryAnnotator)}, or null
+     */
+    public void setLabelSummaryAnnotator(LabelSummaryAnnotator labelSummaryAnnotator) {
+        this.labelSummaryAnnotator = labelSummaryAnnotator;
+    }
+
+    /**
+     * @param document the document to insert
+     * @throws IllegalArgumentException if the document holds a marking the writer does not satisfy
+     */
+    public void insert(DBObject document) {
+        validator.validateDocument(document);
+        if (labelSummaryAnnotator != null) {
+            labelSummaryAnnotator.annotate(document);
+        }
+        batch().insert(document);
+        added();
+    }
+
+    /**
+     * @param query  the documents to update
+     * @param update the update operators
+     * @param upsert insert a document if none matches
+     * @param multi  update every matching document instead of the first
+     * @throws IllegalArgumentException if the update writes a marking the writer does not satisfy
+     */
+    public void update(DBObject query, DBObject update, boolean upsert, boolean multi) {
+        validator.validateUpdate(update);
+        final BulkWriteRequestBuilder find = batch().find(validator.guardQuery(query, update));
+        if (labelSummaryAnnotator != null) {
+            update = labelSummaryAnnotator.annotateUpdate(update);
+        }
+        if (upsert) {
+            if (multi) {
+                find.upsert().update(update);
+            } else {
+                find.upsert().updateOne(update);
+            }
+        } else if (multi) {
+            find.update(update);
+        } else {
+            find.updateOne(update);
+        }
+        added();
+    }
+
+    /**
+     * @param query    the document to replace
+     * @param document the replacement
+     * @param upsert   insert the document if none matches
+     * @throws IllegalArgumentException if the replacement holds a marking the writer does not satisfy
+     */
+    public void replace(DBObject query, DBObject document, boolean upsert) {
+        validator.validateDocument(document);
+        final BulkWriteRequestBuilder find = batch().find(validator.guardQuery(query, document));
+        if (labelSummaryAnnotator != null) {
+            labelSummaryAnnotator.annotate(document);
+        }
+        if (upsert) {
+            find.upsert().replaceOne(document);
+        } else {
+            find.replaceOne(document);
+        }
+        added();
+    }
+
+    /**
+     * execute the pending writes, if any
+     */
+    public void flush() {
+        if (pending == 0) {
+            return;
+        }
+        final BulkWriteOperation executing = batch;
+        batch = null;
+        pending = 0;
+        batches++;
+        final BulkWriteResult result = executing.execute(writeConcern);
+        if (result.isAcknowledged()) {
+            insertedCount += result.getInsertedCount();
+            matchedCount += result.getMatchedCount();
+            upsertedCount += result.getUpserts().size();
+        }
+    }
+
+    private BulkWriteOperation batch() {
+        if (batch == null) {
+            batch = collection.initializeUnorderedBulkOperation();
+        }
+        return batch;
+    }
+
+    private void added() {
+        if (++pending == batchSize) {
+            flush();
+        }
+    }
+
+    /**
+     * @return the number of writes added and not executed yet
+     */
+    public int getPendingCount() {
+        return pending;
+    }
+
+    /**
+     * @return the number of bulk operations executed
+     */
+    public int getBatchCount() {
+        return batches;
+    }
+
+    public long getInsertedCount() {
+        return insertedCount;
+    }
+
+    public long getMatchedCount() {
+        return matchedCount;
+    }
+
+    public long getUpsertedCount() {
+        return upsertedCount;
+    }
+}
@@ -116,6 +116,52 @@ public class RedactedDBCollection {
     public static class SecureAggregationPipeline extends ArrayList<DBObject> {
     }
 
+    /**
+     * Where the redaction of find and findOne results happens.
+     */
+    public enum RedactionMode {
+        /** the server redacts, every find runs as an aggregation pipeline starting with $redact (the default) */
+        SERVER,
+        /**
+         * the documents of a plain find are redacted in the JVM by a {@link DocumentRedactor}, which moves the
+         * redaction CPU off the server.  Only finds whose query and sort reference fields that the
+         * {@link PredicatePushdown} policy allows, and whose projection only includes or excludes top-level
+         * fields, qualify; any other find, and every aggregate, still runs server side.
+         */
+        CLIENT,
+        /**
+         * the collection is marked at the document root only, so every read, find, aggregate, count, etc., runs with
+         * the user's test of the root marking as a $match, see {@link DocumentLevelRedactExpression}, in place of the
+         * $redact stage.  The server can then use indexes for the whole query, and sort on them, and no longer
+         * walks every sub-document.  Markings of sub-documents are ignored, so only use it when the data guarantees
+         * there are none, e.g. as found by a {@link MarkingSchemaSampler}, and see {@link DocumentLevelVerifier}.
+         */
+        DOCUMENT_LEVEL;
+
+        /**
+         * @param schema the marking schema of the collection
+         * @return {@link #DOCUMENT_LEVEL} if only the document root is marked, or nothing is, otherwise {@link #SERVER}
+         */
+        public static RedactionMode forSchema(MarkingSchema schema) {
+            checkNotNull(schema, "schema can't be null");
+            final Set<String> markedPaths = schema.getMarkedPaths();
+            return (markedPaths.isEmpty() || (markedPaths.size() == 1 && markedPaths.contains(""))) ? DOCUMENT_LEVEL : SERVER;
+        }
+    }
+
+    /**
+     * The $match stage that takes the place of the $redact stage in {@link RedactionMode#DOCUMENT_LEVEL}, a type of
+     * its own so that the stages after it can still be told from the stages in front of it.
+     */
+    static final class DocumentLevelMatch extends BasicDBObject {
+
+        private static final long serialVersionUID = 1L;
+
+        DocumentLevelMatch(DBObject query) {
+            super("$match", query);
+        }
+    }
+
     protected static final org.slf4j.Logger logger = LoggerFactory.getLogger(RedactedDBCollection.class);
 
     final ReadPreference readPreferenceDefault = ReadPreference.primary();
@@ -128,6 +174,64 @@ public class RedactedDBCollection {
     private SecurityAttributes userSecurityAttributes;
     
     private RedactExpression redactExpression;
+
+    /**
+     * cache of parsed $redact expressions, shared by all RedactedDBCollection's unless set otherwise; null disables caching
+     */
+    private RedactCommandCache redactCommandCache = RedactCommandCache.getSharedInstance();
+
+    /**
+     * the in-JVM redactor and write validator last built for the user, reused while the fingerprint of the user's
+     * attributes and the version of the redact expression are unchanged
+     */
+    private volatile ClientSideRedaction clientSideRedaction;
+
+    /**
+     * which query predicates may be placed in front of the $redact stage, by default none
+     */
+    private PredicatePushdown predicatePushdown = PredicatePushdown.DISABLED;
+
+    /**
+     * optional query placed in front of the $redact stage to skip documents the user can not see at all
+     */
+    private RedactPrefilter redactPrefilter;
+
+    private RedactionMode redactionMode = RedactionMode.SERVER;
+
+    /**
+     * optional, shared, collapsing of concurrent identical aggregates of users with the same entitlements
+     */
+    private RequestCoalescer requestCoalescer;
+
+    /**
+     * number of writes per bulk operation of the bulk writers of this collection
+     */
+    private int writeBatchSize = RedactedBulkWriter.DEFAULT_BATCH_SIZE;
+
+    /**
+     * where the latencies and sizes of finds and aggregates are recorded, by default nowhere
+     */
+    private RedactMetrics metrics = RedactMetrics.NONE;
+
+    /**
+     * optional check of {@link RedactionMode#DOCUMENT_LEVEL} reads against the $redact stage
+     */
+    private DocumentLevelVerifier documentLevelVerifier;
+
+    /**
+     * optional annotation of written documents with the summary of their labels
+     */
+    private LabelSummaryAnnotator labelSummaryAnnotator;
+
+    /**
+     * optional pre-redacted views that the reads of registered entitlement profiles are routed to
+     */
+    private MaterializedRedactionManager materializedRedactionManager;
+
+    /**
+     * why writes through this collection are refused, e.g. for an unredacted partition, or null if they are allowed
+     */
+    private volatile String writesRefused;
     
     public static final BasicDBObject EMPTY_OBJECT = new BasicDBObject(); // i.e. "{}";
 
@@ -177,6 +281,18 @@ public class RedactedDBCollection {
         namespace = wrappedDBCollection.getFullName();
     }
 
+    /**
+     * Build a collection for a user's session wide snapshot; the encodings of the user's attributes are then
+     * computed once, by the snapshot, for all the collections and requests of the session.
+     *
+     * @param wrappedDBCollection the wrapped DB collection on which we operate
+     * @param userSnapshot        the snapshot of the user's SecurityAttributes
+     * @param redactExpression    the security model's redact expression
+     */
+    public RedactedDBCollection(DBCollection wrappedDBCollection, SecurityAttributesSnapshot userSnapshot, RedactExpression redactExpression) {
+        this(wrappedDBCollection, checkNotNull(userSnapshot, "userSnapshot can't be null").getSecurityAttributes(), redactExpression);
+    }
+
 
     private DBCollection _wrapped;
     private final String namespace;
@@ -186,18 +302,20 @@ public class RedactedDBCollection {
         if (willTrace()) {
             trace("RedactedDBCollection find: " + namespace + " " + JSON.serialize(query) + " fields " + JSON.serialize(safeDref(fields, EMPTY_OBJECT)));
         }
+        final long started = System.nanoTime();
 
-        final SecureAggregationPipeline pipelineSecure = getSecureAggregationPipelineForUser();
+        final Cursor clientRedacted = findClientRedacted(query, fields, numToSkip, batchSize, limit, options, readPref, null, 0, MILLISECONDS);
+        if (clientRedacted != null) {
+            return metered(RedactMetrics.Operation.FIND, started, clientRedacted, batchSize);
+        }
 
-        appendQueryToSecureAggregationPipeline(pipelineSecure, query);
-        appendProjectToSecureAggregationPipeline(pipelineSecure, fields);
-        appendSkipToSecureAggregationPipeline(pipelineSecure, numToSkip);
-        appendLimitToSecureAggregationPipeline(pipelineSecure, limit);
+        final SecureAggregationPipeline pipelineSecure = buildFindPipeline(query, fields, numToSkip, limit, null);
+        final long sent = recordPipelineBuild(RedactMetrics.Operation.FIND, started);
 
-        return _wrapped.aggregate(pipelineSecure, AggregationOptions.builder().
+        return metered(RedactMetrics.Operation.FIND, sent, aggregateSecure(pipelineSecure, AggregationOptions.builder().
                 batchSize(batchSize).
                 outputMode(AggregationOptions.OutputMode.CURSOR).
-                build(), readPref);
+                build(), readPref), batchSize);
     }
 
 
@@ -209,18 +327,20 @@ public class RedactedDBCollection {
         if (willTrace()) {
             trace("RedactedDBCollection find: " + namespace + " " + JSON.serialize(query) + " fields " + JSON.serialize(safeDref(fields, EMPTY_OBJECT)));
         }
+        final long started = System.nanoTime();
 
-        final SecureAggregationPipeline pipelineSecure = getSecureAggregationPipelineForUser();
+        final Cursor clientRedacted = findClientRedacted(query, fields, numToSkip, batchSize, limit, options, readPref, null, 0, MILLISECONDS);
+        if (clientRedacted != null) {
+            return metered(RedactMetrics.Operation.FIND, started, clientRedacted, batchSize);
+        }
 
-        appendQueryToSecureAggregationPipeline(pipelineSecure, query);
-        appendProjectToSecureAggregationPipeline(pipelineSecure, fields);
-        appendSkipToSecureAggregationPipeline(pipelineSecure, numToSkip);
-        appendLimitToSecureAggregationPipeline(pipelineSecure, limit);
+        final SecureAggregationPipeline pipelineSecure = buildFindPipeline(query, fields, numToSkip, limit, null);
+        final long sent = recordPipelineBuild(RedactMetrics.Operation.FIND, started);
 
-        return _wrapped.aggregate(pipelineSecure, AggregationOptions.builder().
+        return metered(RedactMetrics.Operation.FIND, sent, aggregateSecure(pipelineSecure, AggregationOptions.builder().
                 batchSize(batchSize).
                 outputMode(AggregationOptions.OutputMode.CURSOR).
-                build(), readPref);
+                build(), readPref), batchSize);
     }
 
     public Cursor find(DBObject query, DBObject fields, int numToSkip, int batchSize, int limit, int options,
@@ -228,19 +348,20 @@ public class RedactedDBCollection {
         if (willTrace()) {
             trace("RedactedDBCollection find: " + namespace + " " + JSON.serialize(query) + " fields " + JSON.serialize(safeDref(fields, EMPTY_OBJECT)));
         }
+        final long started = System.nanoTime();
 
-        final SecureAggregationPipeline pipelineSecure = getSecureAggregationPipelineForUser();
+        final Cursor clientRedacted = findClientRedacted(query, fields, numToSkip, batchSize, limit, options, readPref, orderBy, 0, MILLISECONDS);
+        if (clientRedacted != null) {
+            return metered(RedactMetrics.Operation.FIND, started, clientRedacted, batchSize);
+        }
 
-        appendQueryToSecureAggregationPipeline(pipelineSecure, query);
-        appendProjectToSecureAggregationPipeline(pipelineSecure, fields);
-        appendSkipToSecureAggregationPipeline(pipelineSecure, numToSkip);
-        appendLimitToSecureAggregationPipeline(pipelineSecure, limit);
-        appendSortToSecureAggregationPipeline(pipelineSecure, orderBy);
+        final SecureAggregationPipeline pipelineSecure = buildFindPipeline(query, fields, numToSkip, limit, orderBy);
+        final long sent = recordPipelineBuild(RedactMetrics.Operation.FIND, started);
 
-        return _wrapped.aggregate(pipelineSecure, AggregationOptions.builder().
+        return metered(RedactMetrics.Operation.FIND, sent, aggregateSecure(pipelineSecure, AggregationOptions.builder().
                 batchSize(batchSize).
                 outputMode(AggregationOptions.OutputMode.CURSOR).
-                build(), readPref);
+                build(), readPref), batchSize);
     }
 
 
@@ -250,17 +371,19 @@ public class RedactedDBCollection {
         if (willTrace()) {
             trace("RedactedDBCollection find: " + namespace + " " + JSON.serialize(query) + " fields " + JSON.serialize(safeDref(fields, EMPTY_OBJECT)));
         }
+        final long started = System.nanoTime();
 
-        final SecureAggregationPipeline pipelineSecure = getSecureAggregationPipelineForUser();
+        final Cursor clientRedacted = findClientRedacted(query, fields, 0, 0, limit, 0, readPref, orderBy, 0, MILLISECONDS);
+        if (clientRedacted != null) {
+            return metered(RedactMetrics.Operation.FIND, started, clientRedacted, 0);
+        }
 
-        appendQueryToSecureAggregationPipeline(pipelineSecure, query);
-        appendProjectToSecureAggregationPipeline(pipelineSecure, fields);
-        appendLimitToSecureAggregationPipeline(pipelineSecure, limit);
-        appendSortToSecureAggregationPipeline(pipelineSecure, orderBy);
+        final SecureAggregationPipeline pipelineSecure = buildFindPipeline(query, fields, 0, limit, orderBy);
+        final long sent = recordPipelineBuild(RedactMetrics.Operation.FIND, started);
 
-        return _wrapped.aggregate(pipelineSecure, AggregationOptions.builder().
+        return metered(RedactMetrics.Operation.FIND, sent, aggregateSecure(pipelineSecure, AggregationOptions.builder().
                 outputMode(AggregationOptions.OutputMode.CURSOR).
-                build(), readPref);
+                build(), readPref), 0);
     }
 
 
@@ -304,13 +427,17 @@ public class RedactedDBCollection {
         if (willTrace()) {
             trace("RedactedDBCollection find: " + namespace + " " + JSON.serialize(query) + " fields " + JSON.serialize(safeDref(fields, EMPTY_OBJECT)));
         }
+        final long started = System.nanoTime();
 
-        final SecureAggregationPipeline pipelineSecure = getSecureAggregationPipelineForUser();
+        final Cursor clientRedacted = findClientRedacted(query, fields, 0, 0, 0, 0, getReadPreference(), null, 0, MILLISECONDS);
+        if (clientRedacted != null) {
+            return metered(RedactMetrics.Operation.FIND, started, clientRedacted, 0);
+        }
 
-        appendQueryToSecureAggregationPipeline(pipelineSecure, query);
-        appendProjectToSecureAggregationPipeline(pipelineSecure, fields);
+        final SecureAggregationPipeline pipelineSecure = buildFindPipeline(query, fields, 0, 0, null);
+        final long sent = recordPipelineBuild(RedactMetrics.Operation.FIND, started);
 
-        return _wrapped.aggregate(pipelineSecure, AggregationOptions.builder().outputMode(AggregationOptions.OutputMode.CURSOR).build(), getReadPreference());
+        return metered(RedactMetrics.Operation.FIND, sent, aggregateSecure(pipelineSecure, AggregationOptions.builder().outputMode(AggregationOptions.OutputMode.CURSOR).build(), getReadPreference()), 0);
     }
 
 
@@ -423,19 +550,27 @@ public class RedactedDBCollection {
             trace("RedactedDBCollection findOne: " + namespace + " " + JSON.serialize(query) + " fields " + JSON.serialize(safeDref(fields, EMPTY_OBJECT)));
         }
 
-        final SecureAggregationPipeline pipelineSecure = getSecureAggregationPipelineForUser();
-
-        appendQueryToSecureAggregationPipeline(pipelineSecure, query);
-        appendProjectToSecureAggregationPipeline(pipelineSecure, fields);
-        appendSortToSecureAggregationPipeline(pipelineSecure, orderBy);
-
-        Cursor i = _wrapped.aggregate(pipelineSecure, AggregationOptions.builder().
-                outputMode(AggregationOptions.OutputMode.CURSOR).
-                maxTime(maxTime, maxTimeUnit).
-                build(), readPref);
+        final long started = System.nanoTime();
+        Cursor i = findClientRedacted(query, fields, 0, 0, 1, 0, readPref, orderBy, maxTime, maxTimeUnit);
+        if (i == null) {
+            final SecureAggregationPipeline pipelineSecure = buildFindOnePipeline(query, fields, orderBy);
+            final long sent = recordPipelineBuild(RedactMetrics.Operation.FIND_ONE, started);
+
+            i = metered(RedactMetrics.Operation.FIND_ONE, sent, aggregateSecure(pipelineSecure, AggregationOptions.builder().
+                    outputMode(AggregationOptions.OutputMode.CURSOR).
+                    maxTime(maxTime, maxTimeUnit).
+                    build(), readPref), 0);
+        } else {
+            i = metered(RedactMetrics.Operation.FIND_ONE, started, i, 0);
+        }
 
 
-        DBObject obj = (i.hasNext() ? i.next() : null);
+        DBObject obj;
+        try {
+            obj = (i.hasNext() ? i.next() : null);
+        } finally {
+            i.close();
+        }
         if (obj != null && (fields != null && fields.keySet().size() > 0)) {
             obj.markAsPartialObject();
         }
@@ -459,10 +594,12 @@ public class RedactedDBCollection {
         checkNotNull(pipeline,"pipeline can not be null");
         checkNotNull(options,"options can not be null");
 
-        final List<DBObject> pipelineSecure = getSecureAggregationPipelineForUser();
-        pipelineSecure.addAll(pipeline);
+        final long started = System.nanoTime();
+        final SecureAggregationPipeline pipelineSecure = buildAggregatePipeline(pipeline);
+        final long sent = recordPipelineBuild(RedactMetrics.Operation.AGGREGATE, started);
 
-        return _wrapped.aggregate(pipelineSecure, options, readPreference);
+        return metered(RedactMetrics.Operation.AGGREGATE, sent, aggregateSecure(pipelineSecure, options, readPreference),
+                options.getBatchSize() == null ? 0 : options.getBatchSize());
 
     }
 
@@ -528,113 +665,1270 @@ public class RedactedDBCollection {
 
 
     /**
-     * get the Secure Aggregation Pipeline for the user.
+     * @see #prepare(DBObject, DBObject, DBObject, int)
+     */
+    public PreparedRedactedQuery prepare(DBObject query, DBObject fields) {
+        return prepare(query, fields, null, 0);
+    }
+
+    /**
+     * Compile a query shape once, to run it many times with different parameter values, e.g.
+     * <pre>
+     *     prepare(new BasicDBObject("lastName", PreparedRedactedQuery.parameter("lastName")), keys, null, 10)
+     * </pre>
      *
-     * @return new pipeline {@link java.util.ArrayList} with SecurityRedact phase on the front.
+     * @param query   the query template, whose values may be {@link PreparedRedactedQuery#parameter(String) parameters}
+     * @param fields  the projection, or null
+     * @param orderBy the sort, or null
+     * @param limit   maximum number of documents, 0 for no limit
+     * @return the prepared query, it uses the current settings of this collection
+     * @see PreparedRedactedQuery
      */
-    protected SecureAggregationPipeline getSecureAggregationPipelineForUser() {
-        return getSecureAggregationPipelineForUserWorker(userSecurityAttributes);
+    public PreparedRedactedQuery prepare(DBObject query, DBObject fields, DBObject orderBy, int limit) {
+        return new PreparedRedactedQuery(this, predicatePushdown, isPushableSort(orderBy), query, fields, orderBy, limit);
     }
 
-    protected SecureAggregationPipeline getSecureAggregationPipelineForUserWorker(SecurityAttributes userSecurityAttributes) {
-        SecureAggregationPipeline redactPipeline = new SecureAggregationPipeline();
-        redactPipeline = prependSecurityRedactToPipelineWorker(redactPipeline, userSecurityAttributes);
-        return redactPipeline;
+    /**
+     * run the pipeline of a {@link PreparedRedactedQuery}, which was built since started
+     */
+    Cursor aggregatePrepared(RedactMetrics.Operation operation, long started, SecureAggregationPipeline pipelineSecure) {
+        if (willTrace()) {
+            trace("RedactedDBCollection prepared " + operation + ": " + namespace);
+        }
+        final long sent = recordPipelineBuild(operation, started);
+        return metered(operation, sent, aggregateSecure(pipelineSecure, AggregationOptions.builder().
+                outputMode(AggregationOptions.OutputMode.CURSOR).
+                build(), getReadPreference()), 0);
     }
 
     /**
-     * prepend the SecurityRedact Phrase To Pipeline and return a new redactPipeline and also
+     * @see #findPage(DBObject, DBObject, DBObject, int, String)
+     */
+    public RedactedPage findPage(DBObject query, DBObject fields, DBObject orderBy, int pageSize) {
+        return findPage(query, fields, orderBy, pageSize, null);
+    }
+
+    /**
+     * Read one page of a sorted find using Secure AggregationPipeline, an implementation of FLAC (field level
+     * access control).  Instead of a $skip, which makes the server redact and discard every document of the
+     * earlier pages, a page resumes with a range $match after the sort values of the last document of the
+     * previous page, carried by its continuation token, so every page costs the same whatever its depth.
      *
-     * @param redactPipeline              pipeline that we need to modify to prepend the $redact phase onto
-     * @param userSecurityAttributes      visibility Attributes For User suitable for FLAC $redact operation
-     * @return a new  List<DBObject> that has a $redact operation on the front
+     * <p>The sort is made total by adding <tt>_id</tt> as its last key.  An inclusion projection gets the sort
+     * keys added, a projection excluding a sort key is rejected.  When the {@link PredicatePushdown} policy allows
+     * every sort key, the $sort and the range $match run in front of the $redact stage, where an index on the sort
+     * keys can serve them.  Pages are read server side whatever the {@link RedactionMode}.</p>
+     *
+     * @param query             the query, or null
+     * @param fields            the projection, or null
+     * @param orderBy           the sort, or null for _id order; directions must be 1 or -1
+     * @param pageSize          the maximum number of documents of the page
+     * @param continuationToken the token of the previous page, or null for the first page; it must come from a
+     *                          request with the same sort
+     * @return the page
+     * @throws IllegalArgumentException if the token is malformed or was issued for another sort
+     * @throws MongoException
      */
-    private SecureAggregationPipeline prependSecurityRedactToPipelineWorker(final ArrayList<DBObject> redactPipeline, final SecurityAttributes userSecurityAttributes) {
-        final SecureAggregationPipeline redactPipelineNew = new SecureAggregationPipeline();
-        final DBObject redactCommandForPipeline = getRedactCommand(userSecurityAttributes);
+    public RedactedPage findPage(DBObject query, DBObject fields, DBObject orderBy, int pageSize, String continuationToken) {
+        if (willTrace()) {
+            trace("RedactedDBCollection findPage: " + namespace + " " + JSON.serialize(query) + " fields " + JSON.serialize(safeDref(fields, EMPTY_OBJECT)));
+        }
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize must be greater than 0");
+        }
 
-        redactPipelineNew.add(redactCommandForPipeline);       // make sure that the $redact is the first thing in the aggregate pipeline
-        redactPipelineNew.addAll(redactPipeline);
-        return redactPipelineNew;
+        final DBObject sort = KeysetPagination.totalSort(orderBy);
+        final DBObject seek = (continuationToken == null) ? null
+                : KeysetPagination.seekQuery(sort, KeysetPagination.decodeToken(sort, continuationToken));
+        final SecureAggregationPipeline pipelineSecure = buildPagePipeline(query,
+                KeysetPagination.projectionWithSortKeys(fields, sort), sort, seek, pageSize + 1);
+
+        final Cursor cursor = aggregateSecure(pipelineSecure, AggregationOptions.builder().
+                batchSize(pageSize + 1).
+                outputMode(AggregationOptions.OutputMode.CURSOR).
+                build(), getReadPreference());
+        final List<DBObject> documents = new ArrayList<DBObject>(pageSize);
+        boolean more = false;
+        try {
+            while (cursor.hasNext()) {
+                final DBObject document = cursor.next();
+                if (documents.size() == pageSize) {
+                    more = true;           // the one extra document read tells there is a next page
+                    break;
+                }
+                documents.add(document);
+            }
+        } finally {
+            cursor.close();
+        }
+        return new RedactedPage(documents, more ? KeysetPagination.encodeToken(sort, documents.get(pageSize - 1)) : null);
     }
 
     /**
-     * build the "$redact" mongodb command based on specified userSecurityAttributes
+     * Count the documents of this collection the user can see, using Secure AggregationPipeline, an implementation
+     * of FLAC (field level access control).
+     *
+     * @return the number of documents
+     * @throws MongoException
      */
-    private DBObject getRedactCommand(SecurityAttributes userSecurityAttributes) {
-        
-        //String userSecurityExpression = String.format(com.mongodb.flac.RedactedDBCollectionConstants.getSecurityExpression(), visibilityAttributesForUser);
-        String userSecurityExpression = redactExpression.getRedactExpression(userSecurityAttributes);
-        logger.debug("**************** find/aggregate() userSecurityExpression: " + userSecurityExpression);
-        DBObject redactCommand = (DBObject) JSON.parse(userSecurityExpression);
-        return new BasicDBObject("$redact", redactCommand);
+    public long count() {
+        return getCount(null, null, 0, 0, getReadPreference());
     }
 
+    /**
+     * Count the documents matching the query, as {@link #find(DBObject)} would return them, using Secure
+     * AggregationPipeline, an implementation of FLAC (field level access control).
+     *
+     * @param query the query, or null
+     * @return the number of documents
+     * @throws MongoException
+     */
+    public long count(DBObject query) {
+        return getCount(query, null, 0, 0, getReadPreference());
+    }
 
-    /////
-    //  Following are all the operations that can be added to a MongoDB aggregation pipeline that are supported:
-    //  appendClauseToSecureAggregationPipeline() can add any clause, but we have named all the key clauses below,
-    //  like  Query = "$match", etc.
-    /////
-    private void appendLimitToSecureAggregationPipeline(SecureAggregationPipeline pipelineSecure, int limit) {
-        if (limit != 0) appendClauseToSecureAggregationPipeline(pipelineSecure, "$limit", limit);
+    /**
+     * @param query          the query, or null
+     * @param readPreference the read preference specifying where to run the count
+     * @return the number of documents
+     * @throws MongoException
+     * @see #count(DBObject)
+     */
+    public long count(DBObject query, ReadPreference readPreference) {
+        return getCount(query, null, 0, 0, readPreference);
     }
 
-    private void appendSkipToSecureAggregationPipeline(SecureAggregationPipeline pipelineSecure, int numToSkip) {
-        if (numToSkip != 0) appendClauseToSecureAggregationPipeline(pipelineSecure, "$skip", numToSkip);
+    /**
+     * @see #count()
+     */
+    public long getCount() {
+        return getCount(null, null, 0, 0, getReadPreference());
     }
 
-    private void appendProjectToSecureAggregationPipeline(SecureAggregationPipeline pipelineSecure, DBObject fields) {
-        if (fields != null) if (dbObjectHasData(fields)) appendClauseToSecureAggregationPipeline(pipelineSecure, "$project", fields);
+    /**
+     * @see #count(DBObject)
+     */
+    public long getCount(DBObject query) {
+        return getCount(query, null, 0, 0, getReadPreference());
     }
 
-    private void appendQueryToSecureAggregationPipeline(SecureAggregationPipeline pipelineSecure, DBObject query) {
-        if (query != null) if (dbObjectHasData(query)) appendClauseToSecureAggregationPipeline(pipelineSecure, "$match", query);
+    /**
+     * @param query  the query, or null
+     * @param fields ignored, as for {@link DBCollection#getCount(DBObject, DBObject)}
+     * @see #count(DBObject)
+     */
+    public long getCount(DBObject query, DBObject fields) {
+        return getCount(query, fields, 0, 0, getReadPreference());
     }
 
-    private void appendSortToSecureAggregationPipeline(SecureAggregationPipeline pipelineSecure, DBObject orderBy) {
-        if (orderBy != null) if (dbObjectHasData(orderBy)) appendClauseToSecureAggregationPipeline(pipelineSecure, "$sort", orderBy);
+    /**
+     * @param query  the query, or null
+     * @param fields ignored, as for {@link DBCollection#getCount(DBObject, DBObject)}
+     * @param limit  count at most this many documents, 0 for no limit
+     * @param skip   the number of documents to skip before counting
+     * @see #count(DBObject)
+     */
+    public long getCount(DBObject query, DBObject fields, long limit, long skip) {
+        return getCount(query, fields, limit, skip, getReadPreference());
     }
 
-    private void appendClauseToSecureAggregationPipeline(SecureAggregationPipeline pipelineSecure, final String clauseKey, Object criteria) {
-        if (criteria != null) {
-            DBObject match = new BasicDBObject(clauseKey, criteria);
-            pipelineSecure.add(match);
+    /**
+     * Count the documents matching the query, as a find with the same skip and limit would return them, using
+     * Secure AggregationPipeline, an implementation of FLAC (field level access control).  The count runs on the
+     * server, and only the count is returned, whatever the {@link RedactionMode}.
+     *
+     * @param query          the query, or null
+     * @param fields         ignored, as for {@link DBCollection#getCount(DBObject, DBObject)}
+     * @param limit          count at most this many documents, 0 for no limit
+     * @param skip           the number of documents to skip before counting
+     * @param readPreference the read preference specifying where to run the count
+     * @return the number of documents
+     * @throws MongoException
+     */
+    public long getCount(DBObject query, DBObject fields, long limit, long skip, ReadPreference readPreference) {
+        if (willTrace()) {
+            trace("RedactedDBCollection count: " + namespace + " " + JSON.serialize(query));
+        }
+        if (limit < 0 || limit > Integer.MAX_VALUE || skip < 0 || skip > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("limit and skip must be between 0 and " + Integer.MAX_VALUE);
+        }
+
+        final SecureAggregationPipeline pipelineSecure = buildCountPipeline(query, (int) skip, (int) limit);
+
+        final Cursor cursor = aggregateSecure(pipelineSecure, AggregationOptions.builder().
+                outputMode(AggregationOptions.OutputMode.CURSOR).
+                build(), readPreference);
+        try {
+            return cursor.hasNext() ? ((Number) cursor.next().get("count")).longValue() : 0;
+        } finally {
+            cursor.close();
         }
     }
 
-    private boolean dbObjectHasData(DBObject dbObject) {
-        if (dbObject != null) {
-            if (dbObject instanceof BasicDBObject) {
+    /**
+     * Find the distinct values of a key in the documents of this collection, as the user can see them, using
+     * Secure AggregationPipeline, an implementation of FLAC (field level access control).
+     *
+     * @param key the field, in dot notation
+     * @return the distinct values
+     * @throws MongoException
+     */
+    public List<Object> distinct(String key) {
+        return distinct(key, null, getReadPreference());
+    }
 
-                if (((BasicDBObject) dbObject).size() > 0) {
-                    return true;
-                }
+    /**
+     * @param key            the field, in dot notation
+     * @param readPreference the read preference specifying where to run the distinct
+     * @see #distinct(String, DBObject, ReadPreference)
+     */
+    public List<Object> distinct(String key, ReadPreference readPreference) {
+        return distinct(key, null, readPreference);
+    }
 
-            } else {
-                return true;
+    /**
+     * @param key   the field, in dot notation
+     * @param query the query, or null
+     * @see #distinct(String, DBObject, ReadPreference)
+     */
+    public List<Object> distinct(String key, DBObject query) {
+        return distinct(key, query, getReadPreference());
+    }
+
+    /**
+     * Find the distinct values of a key in the documents matching the query, using Secure AggregationPipeline, an
+     * implementation of FLAC (field level access control).  Only values the user can see are returned: the values
+     * are collected after the $redact stage.  As with {@link DBCollection#distinct(String, DBObject)}, the
+     * elements of array values are returned rather than the arrays.  The distinct runs on the server, whatever
+     * the {@link RedactionMode}.
+     *
+     * @param key            the field, in dot notation
+     * @param query          the query, or null
+     * @param readPreference the read preference specifying where to run the distinct
+     * @return the distinct values, in no particular order
+     * @throws MongoException
+     */
+    public List<Object> distinct(String key, DBObject query, ReadPreference readPreference) {
+        if (willTrace()) {
+            trace("RedactedDBCollection distinct: " + namespace + " " + key + " " + JSON.serialize(query));
+        }
+
+        final SecureAggregationPipeline pipelineSecure = buildDistinctPipeline(checkNotNull(key, "key can't be null"), query);
+
+        final Cursor cursor = aggregateSecure(pipelineSecure, AggregationOptions.builder().
+                outputMode(AggregationOptions.OutputMode.CURSOR).
+                build(), readPreference);
+        final List<Object> values = new ArrayList<Object>();
+        try {
+            while (cursor.hasNext()) {
+                values.add(cursor.next().get("_id"));
             }
+        } finally {
+            cursor.close();
         }
-        return false;
+        return values;
     }
 
 
     /**
-     * get the provided or default ReadPreference (currently ReadPreference.primary() ).
+     * @see #explainFind(DBObject, DBObject, int, int, DBObject)
+     */
+    public RedactedExplanation explainFind(DBObject query) {
+        return explainFind(query, null, 0, 0, null);
+    }
+
+    /**
+     * @see #explainFind(DBObject, DBObject, int, int, DBObject)
+     */
+    public RedactedExplanation explainFind(DBObject query, DBObject fields) {
+        return explainFind(query, fields, 0, 0, null);
+    }
+
+    /**
+     * Explain a find, without running it, see {@link #explainFind(DBObject, DBObject, int, int, DBObject, boolean)}.
      *
-     * @return
+     * @param query     the query, or null
+     * @param fields    the projection, or null
+     * @param numToSkip number of documents to skip, 0 for none
+     * @param limit     maximum number of documents, 0 for no limit
+     * @param orderBy   the sort, or null
+     * @return the explanation
+     * @throws MongoException
      */
-    public ReadPreference getReadPreference() {
-        return (readPreference == null) ? readPreferenceDefault : readPreference;
+    public RedactedExplanation explainFind(DBObject query, DBObject fields, int numToSkip, int limit, DBObject orderBy) {
+        return explainFind(query, fields, numToSkip, limit, orderBy, false);
     }
 
     /**
-     * set the default ReadPreference
+     * Explain a find: the secure pipeline it sends to the server, or the plain find if it is redacted client side,
+     * the server's explain output, whether the server uses an index, and whether a $match runs in front of the
+     * $redact stage.  Look for {@link RedactedExplanation#isCollectionScan()} without
+     * {@link RedactedExplanation#isMatchBeforeRedact()}: every document of the collection goes through $redact.
      *
-     * @param readPreference the ReadPreference
+     * <p>With execution stats the server runs the read, once, and its stats tell how many documents reach the
+     * $redact stage and how many it lets through.  That is as expensive as the read itself.</p>
+     *
+     * @param query          the query, or null
+     * @param fields         the projection, or null
+     * @param numToSkip      number of documents to skip, 0 for none
+     * @param limit          maximum number of documents, 0 for no limit
+     * @param orderBy        the sort, or null
+     * @param executionStats true to run the read for the document counts, false to only have it planned
+     * @return the explanation
+     * @throws MongoException
+     * @see RedactedExplanation
      */
-    public void setReadPreference(ReadPreference readPreference) {
-        this.readPreference = readPreference;
+    public RedactedExplanation explainFind(DBObject query, DBObject fields, int numToSkip, int limit, DBObject orderBy,
+                                           boolean executionStats) {
+        final DBCursor cursor = findClientRedactedSource(query, fields, 0, 0, getReadPreference(), orderBy, 0, MILLISECONDS);
+        if (cursor != null) {
+            return explainClientRedacted(cursor, orderBy, executionStats);
+        }
+        return explainSecure(buildFindPipeline(query, fields, numToSkip, limit, orderBy),
+                AggregationOptions.builder().outputMode(AggregationOptions.OutputMode.CURSOR).build(), executionStats);
+    }
+
+    /**
+     * @see #explainFindOne(DBObject, DBObject, DBObject)
+     */
+    public RedactedExplanation explainFindOne(DBObject query) {
+        return explainFindOne(query, null, null);
+    }
+
+    /**
+     * Explain a findOne, without running it, see {@link #explainFind(DBObject, DBObject, int, int, DBObject, boolean)}.
+     *
+     * @param query   the query, or null
+     * @param fields  the projection, or null
+     * @param orderBy the sort, or null
+     * @return the explanation
+     * @throws MongoException
+     */
+    public RedactedExplanation explainFindOne(DBObject query, DBObject fields, DBObject orderBy) {
+        return explainFindOne(query, fields, orderBy, false);
+    }
+
+    /**
+     * Explain a findOne, see {@link #explainFind(DBObject, DBObject, int, int, DBObject, boolean)}.
+     *
+     * @param query          the query, or null
+     * @param fields         the projection, or null
+     * @param orderBy        the sort, or null
+     * @param executionStats true to run the read for the document counts, false to only have it planned
+     * @return the explanation
+     * @throws MongoException
+     */
+    public RedactedExplanation explainFindOne(DBObject query, DBObject fields, DBObject orderBy, boolean executionStats) {
+        final DBCursor cursor = findClientRedactedSource(query, fields, 0, 0, getReadPreference(), orderBy, 0, MILLISECONDS);
+        if (cursor != null) {
+            return explainClientRedacted(cursor, orderBy, executionStats);
+        }
+        return explainSecure(buildFindOnePipeline(query, fields, orderBy),
+                AggregationOptions.builder().outputMode(AggregationOptions.OutputMode.CURSOR).build(), executionStats);
+    }
+
+    /**
+     * @see #explainAggregate(List, AggregationOptions)
+     */
+    public RedactedExplanation explainAggregate(List<DBObject> pipeline) {
+        return explainAggregate(pipeline, AggregationOptions.builder().outputMode(AggregationOptions.OutputMode.CURSOR).build());
+    }
+
+    /**
+     * Explain an aggregate, without running it, see {@link #explainFind(DBObject, DBObject, int, int, DBObject, boolean)}.
+     *
+     * @param pipeline the user's aggregation pipeline
+     * @param options  options to apply to the aggregation
+     * @return the explanation
+     * @throws MongoException
+     */
+    public RedactedExplanation explainAggregate(List<DBObject> pipeline, AggregationOptions options) {
+        return explainAggregate(pipeline, options, false);
+    }
+
+    /**
+     * Explain an aggregate, see {@link #explainFind(DBObject, DBObject, int, int, DBObject, boolean)}.
+     *
+     * @param pipeline       the user's aggregation pipeline
+     * @param options        options to apply to the aggregation
+     * @param executionStats true to run the aggregate for the document counts, false to only have it planned
+     * @return the explanation
+     * @throws MongoException
+     */
+    public RedactedExplanation explainAggregate(List<DBObject> pipeline, AggregationOptions options, boolean executionStats) {
+        checkNotNull(pipeline, "pipeline can not be null");
+        checkNotNull(options, "options can not be null");
+        return explainSecure(buildAggregatePipeline(pipeline), options, executionStats);
+    }
+
+    private RedactedExplanation explainSecure(SecureAggregationPipeline pipelineSecure, AggregationOptions options,
+                                              boolean executionStats) {
+        final BasicDBObject aggregate = new BasicDBObject("aggregate", _wrapped.getName())
+                .append("pipeline", pipelineSecure)
+                .append("cursor", new BasicDBObject());
+        if (options.getAllowDiskUse() != null) {
+            aggregate.append("allowDiskUse", options.getAllowDiskUse());
+        }
+        final CommandResult explain = explain(aggregate, executionStats);
+
+        final int redactStage = indexOfRedactStage(pipelineSecure);
+        boolean matchBeforeRedact = false;
+        for (DBObject stage : pipelineSecure.subList(0, redactStage)) {
+            matchBeforeRedact |= stage.containsField("$match");
+        }
+        return new RedactedExplanation(pipelineSecure, explain, matchBeforeRedact);
+    }
+
+    private RedactedExplanation explainClientRedacted(DBCursor cursor, DBObject orderBy, boolean executionStats) {
+        final BasicDBObject find = new BasicDBObject("find", _wrapped.getName()).append("filter", cursor.getQuery());
+        if (dbObjectHasData(orderBy)) {
+            find.append("sort", orderBy);
+        }
+        return new RedactedExplanation(null, explain(find, executionStats), dbObjectHasData(cursor.getQuery()));
+    }
+
+    /**
+     * run the server's explain command; only the "executionStats" verbosity runs the command explained
+     */
+    private CommandResult explain(DBObject command, boolean executionStats) {
+        final CommandResult explain = _wrapped.getDB().command(new BasicDBObject("explain", command)
+                .append("verbosity", executionStats ? "executionStats" : "queryPlanner"), getReadPreference());
+        explain.throwOnError();
+        return explain;
+    }
+
+    /**
+     * Insert documents, after checking that the user satisfies every security marking in them, see
+     * {@link WriteValidator}.  None of the documents is inserted if one fails the check.
+     *
+     * @param documents the documents
+     * @return the result of the insert
+     * @throws IllegalArgumentException if a document holds a marking the user does not satisfy
+     * @throws MongoException
+     */
+    public WriteResult insert(DBObject... documents) {
+        return insert(Arrays.asList(documents), _wrapped.getWriteConcern());
+    }
+
+    /**
+     * Insert documents, after checking that the user satisfies every security marking in them, see
+     * {@link WriteValidator}.  None of the documents is inserted if one fails the check.  For large numbers of
+     * documents use a {@link #initializeBulkWriter() bulk writer}.
+     *
+     * @param documents    the documents
+     * @param writeConcern the write concern
+     * @return the result of the insert
+     * @throws IllegalArgumentException if a document holds a marking the user does not satisfy
+     * @throws IllegalStateException if writes through this collection are refused
+     * @throws MongoException
+     */
+    public WriteResult insert(List<DBObject> documents, WriteConcern writeConcern) {
+        if (willTrace()) {
+            trace("RedactedDBCollection insert: " + namespace + " " + documents.size() + " documents");
+        }
+        checkWritable();
+        final WriteValidator validator = getWriteValidator();
+        for (DBObject document : documents) {
+            validator.validateDocument(document);
+        }
+        if (labelSummaryAnnotator != null) {
+            for (DBObject document : documents) {
+                labelSummaryAnnotator.annotate(document);
+            }
+        }
+        return _wrapped.insert(documents, writeConcern);
+    }
+
+    /**
+     * @see #update(DBObject, DBObject, boolean, boolean, WriteConcern)
+     */
+    public WriteResult update(DBObject query, DBObject update) {
+        return update(query, update, false, false, _wrapped.getWriteConcern());
+    }
+
+    /**
+     * @see #update(DBObject, DBObject, boolean, boolean, WriteConcern)
+     */
+    public WriteResult update(DBObject query, DBObject update, boolean upsert, boolean multi) {
+        return update(query, update, upsert, multi, _wrapped.getWriteConcern());
+    }
+
+    /**
+     * Update documents, after checking that the user satisfies every security marking the update writes.  Only
+     * documents whose root, and whose sub-documents along the updated paths, the user can see are updated, see
+     * {@link WriteValidator#guardQuery(DBObject, DBObject)}.  A replacement document also overwrites any
+     * sub-documents of the target that the user can not see, prefer update operators.
+     *
+     * @param query        the documents to update; the query runs on the un-redacted documents
+     * @param update       the update operators, or a replacement document
+     * @param upsert       insert a document if none matches
+     * @param multi        update every matching document instead of the first
+     * @param writeConcern the write concern
+     * @return the result of the update
+     * @throws IllegalArgumentException if the update writes a marking the user does not satisfy
+     * @throws IllegalStateException if writes through this collection are refused
+     * @throws MongoException
+     */
+    public WriteResult update(DBObject query, DBObject update, boolean upsert, boolean multi, WriteConcern writeConcern) {
+        if (willTrace()) {
+            trace("RedactedDBCollection update: " + namespace + " " + JSON.serialize(query));
+        }
+        checkWritable();
+        final WriteValidator validator = getWriteValidator();
+        validator.validateUpdate(update);
+        final DBObject guardedQuery = validator.guardQuery(query, update);
+        return _wrapped.update(guardedQuery, (labelSummaryAnnotator != null) ? labelSummaryAnnotator.annotateUpdate(update) : update,
+                upsert, multi, writeConcern);
+    }
+
+    /**
+     * start bulk writes of the user, validated as {@link #insert(java.util.List, WriteConcern)} and
+     * {@link #update(DBObject, DBObject, boolean, boolean, WriteConcern)} are, and executed as unordered bulk
+     * operations of {@link #getWriteBatchSize()} writes
+     *
+     * @return a new bulk writer, checking against the current state of the user's SecurityAttributes
+     */
+    public RedactedBulkWriter initializeBulkWriter() {
+        checkWritable();
+        final RedactedBulkWriter writer = new RedactedBulkWriter(_wrapped, getWriteValidator(), writeBatchSize);
+        writer.setLabelSummaryAnnotator(labelSummaryAnnotator);
+        return writer;
+    }
+
+    /**
+     * refuse, or allow again, the writes through this collection, e.g. for a partition of a
+     * {@link PartitionedRedactedCollection} that is read without $redact and only written through it
+     *
+     * @param reason why writes are refused, or null to allow them
+     */
+    void setWritesRefused(String reason) {
+        this.writesRefused = reason;
+    }
+
+    private void checkWritable() {
+        final String reason = writesRefused;
+        if (reason != null) {
+            throw new IllegalStateException("writes to " + namespace + " are refused: " + reason);
+        }
+    }
+
+    /**
+     * get the validator of the user's writes
+     *
+     * @return the WriteValidator for the current state of the user's SecurityAttributes, reused while they grant
+     * the same labels
+     * @throws IllegalStateException if the RedactExpression has no in-JVM implementation
+     */
+    public WriteValidator getWriteValidator() {
+        return getClientSideRedaction().getWriteValidator();
+    }
+
+
+    /**
+     * build the secure pipeline that a find runs on the server.
+     *
+     * @param query     the query, or null
+     * @param fields    the projection, or null
+     * @param numToSkip number of documents to skip, 0 for none
+     * @param limit     maximum number of documents, 0 for no limit
+     * @param orderBy   the sort, or null
+     * @return new pipeline with the SecurityRedact phase on the front
+     */
+    protected SecureAggregationPipeline buildFindPipeline(DBObject query, DBObject fields, int numToSkip, int limit, DBObject orderBy) {
+        final SecureAggregationPipeline pipelineSecure = getSecureAggregationPipelineForUser();
+
+        appendQueryToSecureAggregationPipeline(pipelineSecure, query);
+        appendProjectToSecureAggregationPipeline(pipelineSecure, fields);
+        appendSkipToSecureAggregationPipeline(pipelineSecure, numToSkip);
+        appendLimitToSecureAggregationPipeline(pipelineSecure, limit);
+        appendSortToSecureAggregationPipeline(pipelineSecure, orderBy);
+        PipelineOptimizer.canonicalizeFind(pipelineSecure);
+        return pipelineSecure;
+    }
+
+    /**
+     * build the secure pipeline of one _id range of a partitioned scan, see {@link RedactedParallelScan}.  The range,
+     * and the _id order the scan resumes on, are applied in front of the $redact stage, since _id carries no
+     * security marking.
+     *
+     * @param idRange the condition on _id, e.g. <tt>{ $gte : lower, $lt : upper }</tt>, or null for all documents
+     * @param query   the query, or null
+     * @param fields  the projection, or null
+     * @return new pipeline with the SecurityRedact phase on the front
+     */
+    protected SecureAggregationPipeline buildIdRangePipeline(DBObject idRange, DBObject query, DBObject fields) {
+        final SecureAggregationPipeline pipelineSecure = buildFindPipeline(query, fields, 0, 0, null);
+        final int redactStage = indexOfRedactStage(pipelineSecure);
+        pipelineSecure.add(redactStage, new BasicDBObject("$sort", new BasicDBObject("_id", 1)));
+        if (idRange != null) {
+            pipelineSecure.add(redactStage, new BasicDBObject("$match", new BasicDBObject("_id", idRange)));
+        }
+        return pipelineSecure;
+    }
+
+    /**
+     * build the secure pipeline that samples the _id's of the documents the user can see, for the boundaries of a
+     * {@link RedactedParallelScan}.  The $sample runs in front of the $redact stage, so it reads no more documents
+     * than it samples, but only the _id's of those the user can see come back.
+     *
+     * @param size  the number of documents to sample
+     * @param query the query, or null
+     * @return new pipeline with the SecurityRedact phase on the front, returning <tt>{ _id : id }</tt> in _id order
+     */
+    protected SecureAggregationPipeline buildIdSamplePipeline(int size, DBObject query) {
+        final SecureAggregationPipeline pipelineSecure = buildFindPipeline(query, new BasicDBObject("_id", 1), 0, 0, null);
+        pipelineSecure.add(indexOfRedactStage(pipelineSecure), new BasicDBObject("$sample", new BasicDBObject("size", size)));
+        pipelineSecure.add(new BasicDBObject("$sort", new BasicDBObject("_id", 1)));
+        return pipelineSecure;
+    }
+
+    /**
+     * build the secure pipeline that a findOne runs on the server.
+     *
+     * @param query   the query, or null
+     * @param fields  the projection, or null
+     * @param orderBy the sort, or null
+     * @return new pipeline with the SecurityRedact phase on the front
+     */
+    protected SecureAggregationPipeline buildFindOnePipeline(DBObject query, DBObject fields, DBObject orderBy) {
+        final SecureAggregationPipeline pipelineSecure = getSecureAggregationPipelineForUser();
+
+        appendQueryToSecureAggregationPipeline(pipelineSecure, query);
+        appendProjectToSecureAggregationPipeline(pipelineSecure, fields);
+        appendLimitToSecureAggregationPipeline(pipelineSecure, 1);     // only the first document is read
+        appendSortToSecureAggregationPipeline(pipelineSecure, orderBy);
+        PipelineOptimizer.canonicalizeFind(pipelineSecure);
+        return pipelineSecure;
+    }
+
+    /**
+     * build the secure pipeline of one page of a {@link #findPage(DBObject, DBObject, DBObject, int, String)}.
+     * The projection comes last, so the sort keys are still there for the continuation token.
+     *
+     * @param query  the query, or null
+     * @param fields the projection, or null
+     * @param sort   the total sort
+     * @param seek   the range query after the previous page, or null for the first page
+     * @param limit  maximum number of documents
+     * @return new pipeline with the SecurityRedact phase on the front
+     */
+    protected SecureAggregationPipeline buildPagePipeline(DBObject query, DBObject fields, DBObject sort, DBObject seek, int limit) {
+        final SecureAggregationPipeline pipelineSecure = getSecureAggregationPipelineForUser();
+
+        final List<DBObject> conjuncts = new ArrayList<DBObject>(2);
+        if (dbObjectHasData(query)) conjuncts.add(query);
+        if (seek != null) conjuncts.add(seek);
+        appendQueryToSecureAggregationPipeline(pipelineSecure, PredicatePushdown.combine(conjuncts));
+        if (isPushableSort(sort) && predicatePushdown.isEnabled()) {
+            // $redact and $match keep the order, so the sort can run on the index in front of them
+            pipelineSecure.add(indexOfRedactStage(pipelineSecure), new BasicDBObject("$sort", sort));
+        } else {
+            appendSortToSecureAggregationPipeline(pipelineSecure, sort);
+        }
+        appendLimitToSecureAggregationPipeline(pipelineSecure, limit);
+        appendProjectToSecureAggregationPipeline(pipelineSecure, fields);
+        PipelineOptimizer.optimize(pipelineSecure);
+        return pipelineSecure;
+    }
+
+    /**
+     * build the secure pipeline that a count runs on the server, it returns one document <tt>{ count : n }</tt>,
+     * or none if no document matches.
+     *
+     * @param query     the query, or null
+     * @param numToSkip number of documents to skip, 0 for none
+     * @param limit     maximum number of documents, 0 for no limit
+     * @return new pipeline with the SecurityRedact phase on the front
+     */
+    protected SecureAggregationPipeline buildCountPipeline(DBObject query, int numToSkip, int limit) {
+        final SecureAggregationPipeline pipelineSecure = buildFindPipeline(query, null, numToSkip, limit, null);
+        pipelineSecure.add(new BasicDBObject("$group", new BasicDBObject("_id", null)
+                .append("count", new BasicDBObject("$sum", 1))));
+        return pipelineSecure;
+    }
+
+    /**
+     * build the secure pipeline that a distinct runs on the server, it returns one document <tt>{ _id : value }</tt>
+     * per distinct value.
+     *
+     * @param key   the field, in dot notation
+     * @param query the query, or null
+     * @return new pipeline with the SecurityRedact phase on the front
+     */
+    protected SecureAggregationPipeline buildDistinctPipeline(String key, DBObject query) {
+        final SecureAggregationPipeline pipelineSecure = buildFindPipeline(query, null, 0, 0, null);
+        pipelineSecure.add(new BasicDBObject("$unwind", "$" + key));    // documents without the key drop out
+        pipelineSecure.add(new BasicDBObject("$group", new BasicDBObject("_id", "$" + key)));
+        return pipelineSecure;
+    }
+
+    /**
+     * build the secure pipeline that an aggregate runs on the server.
+     *
+     * @param pipeline the user's aggregation pipeline
+     * @return new pipeline with the SecurityRedact phase on the front
+     */
+    protected SecureAggregationPipeline buildAggregatePipeline(List<DBObject> pipeline) {
+        final SecureAggregationPipeline pipelineSecure = getSecureAggregationPipelineForUser();
+        appendPipelineToSecureAggregationPipeline(pipelineSecure, pipeline);
+        PipelineOptimizer.optimize(pipelineSecure);
+        return pipelineSecure;
+    }
+
+    /**
+     * run a find as a plain find whose documents are redacted in the JVM, see {@link RedactionMode#CLIENT}
+     *
+     * @return the redacting cursor, or null if the collection is not in client mode or this find does not qualify
+     */
+    private Cursor findClientRedacted(DBObject query, DBObject fields, int numToSkip, int batchSize, int limit, int options,
+                                      ReadPreference readPref, DBObject orderBy, long maxTime, TimeUnit maxTimeUnit) {
+        final DBCursor cursor = findClientRedactedSource(query, fields, batchSize, options, readPref, orderBy, maxTime, maxTimeUnit);
+        if (cursor == null) {
+            return null;
+        }
+        return new ClientRedactedCursor(cursor, getDocumentRedactor(), fields, numToSkip, limit);
+    }
+
+    /**
+     * @return the plain find whose documents are redacted in the JVM, or null if the collection is not in client mode
+     * or this find does not qualify
+     */
+    private DBCursor findClientRedactedSource(DBObject query, DBObject fields, int batchSize, int options,
+                                              ReadPreference readPref, DBObject orderBy, long maxTime, TimeUnit maxTimeUnit) {
+        if (redactionMode != RedactionMode.CLIENT) {
+            return null;
+        }
+        final DBObject[] pushedAndResidual = predicatePushdown.split(query);
+        if (pushedAndResidual[1] != null || !isPushableSort(orderBy) || !ClientRedactedCursor.isClientSideProjection(fields)) {
+            if (willTrace()) {
+                trace("RedactedDBCollection find can't be redacted client side, running it server side: " + namespace);
+            }
+            return null;
+        }
+
+        final List<DBObject> conjuncts = new ArrayList<DBObject>(2);
+        final DBObject prefilter = (redactPrefilter != null) ? redactPrefilter.getPrefilter(userSecurityAttributes) : null;
+        if (prefilter != null) conjuncts.add(prefilter);
+        if (pushedAndResidual[0] != null) conjuncts.add(pushedAndResidual[0]);
+        final DBObject serverQuery = PredicatePushdown.combine(conjuncts);
+
+        final DBCursor cursor = _wrapped.find(serverQuery == null ? new BasicDBObject() : serverQuery);
+        if (dbObjectHasData(orderBy)) cursor.sort(orderBy);
+        if (batchSize != 0) cursor.batchSize(batchSize);
+        if (options != 0) cursor.setOptions(options);
+        if (maxTime > 0) cursor.maxTime(maxTime, maxTimeUnit);
+        cursor.setReadPreference(readPref == null ? getReadPreference() : readPref);
+        return cursor;
+    }
+
+    private boolean isPushableSort(DBObject orderBy) {
+        if (orderBy != null) {
+            for (String key : orderBy.keySet()) {
+                if (!predicatePushdown.isPushable(key)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * get an in-JVM redactor for the current user, e.g. to redact the documents of a plain find with a
+     * {@link ClientRedactedCursor}
+     *
+     * @return the DocumentRedactor for the current state of the user's SecurityAttributes, reused while they grant
+     * the same labels
+     * @throws IllegalStateException if the RedactExpression has no in-JVM implementation
+     */
+    public DocumentRedactor getDocumentRedactor() {
+        return getClientSideRedaction().redactor;
+    }
+
+    /**
+     * like the {@link RedactCommandCache}, keyed by the redact expression's version and the attributes' fingerprint,
+     * so the user's labels are only expanded again after they changed
+     */
+    private ClientSideRedaction getClientSideRedaction() {
+        if (!(redactExpression instanceof ClientSideRedactExpression)) {
+            throw new IllegalStateException("the RedactExpression can't be evaluated client side: " + redactExpression);
+        }
+        final long version = (redactExpression instanceof VersionedRedactExpression)
+                ? ((VersionedRedactExpression) redactExpression).getVersion() : 0;
+        final String fingerprint = userSecurityAttributes.getFingerprint();
+        ClientSideRedaction current = clientSideRedaction;
+        if (current == null || current.version != version || !current.fingerprint.equals(fingerprint)) {
+            // two threads racing here simply both build the same redactor
+            current = new ClientSideRedaction(version, fingerprint,
+                    ((ClientSideRedactExpression) redactExpression).getDocumentRedactor(userSecurityAttributes));
+            clientSideRedaction = current;
+        }
+        return current;
+    }
+
+    /**
+     * get the Secure Aggregation Pipeline for the user.
+     *
+     * @return new pipeline {@link java.util.ArrayList} with SecurityRedact phase on the front.
+     */
+    protected SecureAggregationPipeline getSecureAggregationPipelineForUser() {
+        return getSecureAggregationPipelineForUserWorker(userSecurityAttributes);
+    }
+
+    protected SecureAggregationPipeline getSecureAggregationPipelineForUserWorker(SecurityAttributes userSecurityAttributes) {
+        SecureAggregationPipeline redactPipeline = new SecureAggregationPipeline();
+        redactPipeline = prependSecurityRedactToPipelineWorker(redactPipeline, userSecurityAttributes);
+        return redactPipeline;
+    }
+
+    /**
+     * prepend the SecurityRedact Phrase To Pipeline and return a new redactPipeline and also
+     *
+     * @param redactPipeline              pipeline that we need to modify to prepend the $redact phase onto
+     * @param userSecurityAttributes      visibility Attributes For User suitable for FLAC $redact operation
+     * @return a new  List<DBObject> that has a $redact operation on the front
+     */
+    private SecureAggregationPipeline prependSecurityRedactToPipelineWorker(final ArrayList<DBObject> redactPipeline, final SecurityAttributes userSecurityAttributes) {
+        final SecureAggregationPipeline redactPipelineNew = new SecureAggregationPipeline();
+        final DBObject redactCommandForPipeline = (redactionMode == RedactionMode.DOCUMENT_LEVEL)
+                ? new DocumentLevelMatch(((DocumentLevelRedactExpression) redactExpression).getDocumentLevelQuery(userSecurityAttributes))
+                : getRedactCommand(userSecurityAttributes);
+
+        final DBObject prefilter = (redactPrefilter != null) ? redactPrefilter.getPrefilter(userSecurityAttributes) : null;
+        if (prefilter != null) {
+            redactPipelineNew.add(new BasicDBObject("$match", prefilter));   // conservative, so it may safely precede the $redact
+        }
+        redactPipelineNew.add(redactCommandForPipeline);       // make sure that the $redact is the first thing in the aggregate pipeline
+        redactPipelineNew.addAll(redactPipeline);
+        return redactPipelineNew;
+    }
+
+    /**
+     * record the time since started as the pipeline build time of the operation
+     *
+     * @return now, the time the read is sent to the server
+     */
+    private long recordPipelineBuild(RedactMetrics.Operation operation, long started) {
+        final long now = System.nanoTime();
+        metrics.recordPipelineBuild(namespace, operation, now - started);
+        return now;
+    }
+
+    /**
+     * @return the cursor, measured by a {@link MeteredCursor} unless metrics are disabled
+     */
+    private Cursor metered(RedactMetrics.Operation operation, long sent, Cursor cursor, int batchSize) {
+        if (metrics == RedactMetrics.NONE) {
+            return cursor;
+        }
+        return new MeteredCursor(cursor, metrics, namespace, operation, sent, batchSize);
+    }
+
+    /**
+     * run the secure pipeline on the wrapped collection, through the request coalescer if one is set, or without its
+     * $redact stage on the materialized view of the user's profile if there is one; a sort that is not bounded by a
+     * limit may use disk, unless the options say otherwise
+     */
+    Cursor aggregateSecure(SecureAggregationPipeline pipelineSecure, AggregationOptions options, ReadPreference readPref) {
+        options = PipelineOptimizer.withDiskUseIfUnbounded(pipelineSecure, options);
+        final DBCollection view = (materializedRedactionManager != null) ? materializedRedactionManager.route(userSecurityAttributes) : null;
+        if (view != null) {
+            // the view is redacted for exactly this user's labels already
+            final List<DBObject> pipelineView = new ArrayList<DBObject>(pipelineSecure);
+            pipelineView.remove(indexOfRedactStage(pipelineSecure));
+            if (willTrace()) {
+                trace("RedactedDBCollection routed to materialized view: " + view.getFullName());
+            }
+            return view.aggregate(pipelineView, options, readPref);
+        }
+        final DocumentLevelVerifier verifier = documentLevelVerifier;
+        if (verifier != null && redactionMode == RedactionMode.DOCUMENT_LEVEL && verifier.isSampled(pipelineSecure)) {
+            return verifyDocumentLevel(verifier, pipelineSecure, options, readPref);
+        }
+        if (requestCoalescer != null) {
+            return requestCoalescer.aggregate(_wrapped, pipelineSecure, options, readPref, userSecurityAttributes.getFingerprint());
+        }
+        return _wrapped.aggregate(pipelineSecure, options, readPref);
+    }
+
+    /**
+     * run a document-level pipeline, and the same pipeline with the $redact stage in place of its document-level
+     * $match, and return the documents of the latter
+     */
+    private Cursor verifyDocumentLevel(DocumentLevelVerifier verifier, SecureAggregationPipeline pipelineSecure,
+                                       AggregationOptions options, ReadPreference readPref) {
+        final SecureAggregationPipeline pipelineRedacted = new SecureAggregationPipeline();
+        pipelineRedacted.addAll(pipelineSecure);
+        pipelineRedacted.set(indexOfRedactStage(pipelineRedacted), getRedactCommand(userSecurityAttributes));
+
+        final List<DBObject> documentLevel = drain(_wrapped.aggregate(pipelineSecure, options, readPref));
+        final List<DBObject> redacted = drain(_wrapped.aggregate(pipelineRedacted, options, readPref));
+        return new BufferedCursor(verifier.verify(namespace, pipelineSecure, documentLevel, redacted), null);
+    }
+
+    private static List<DBObject> drain(Cursor cursor) {
+        final List<DBObject> documents = new ArrayList<DBObject>();
+        try {
+            while (cursor.hasNext()) {
+                documents.add(cursor.next());
+            }
+        } finally {
+            cursor.close();
+        }
+        return documents;
+    }
+
+    /**
+     * build the "$redact" mongodb command based on specified userSecurityAttributes
+     */
+    private DBObject getRedactCommand(SecurityAttributes userSecurityAttributes) {
+
+        // the parsed expression may come from the cache and be shared, only the outer $redact wrapper is per request
+        final DBObject redactCommand = (redactCommandCache != null)
+                ? redactCommandCache.get(redactExpression, userSecurityAttributes)
+                : RedactCommandCache.buildRedactExpression(redactExpression, userSecurityAttributes);
+        return new BasicDBObject("$redact", redactCommand);
+    }
+
+
+    /////
+    //  Following are all the operations that can be added to a MongoDB aggregation pipeline that are supported:
+    //  appendClauseToSecureAggregationPipeline() can add any clause, but we have named all the key clauses below,
+    //  like  Query = "$match", etc.
+    /////
+    private void appendLimitToSecureAggregationPipeline(SecureAggregationPipeline pipelineSecure, int limit) {
+        if (limit != 0) appendClauseToSecureAggregationPipeline(pipelineSecure, "$limit", limit);
+    }
+
+    private void appendSkipToSecureAggregationPipeline(SecureAggregationPipeline pipelineSecure, int numToSkip) {
+        if (numToSkip != 0) appendClauseToSecureAggregationPipeline(pipelineSecure, "$skip", numToSkip);
+    }
+
+    private void appendProjectToSecureAggregationPipeline(SecureAggregationPipeline pipelineSecure, DBObject fields) {
+        if (fields != null) if (dbObjectHasData(fields)) appendClauseToSecureAggregationPipeline(pipelineSecure, "$project", fields);
+    }
+
+    /**
+     * append the query as a $match, predicates that the {@link PredicatePushdown} policy allows are placed
+     * in front of the $redact stage instead, so that the server can use indexes for them.
+     */
+    private void appendQueryToSecureAggregationPipeline(SecureAggregationPipeline pipelineSecure, DBObject query) {
+        if (query != null) if (dbObjectHasData(query)) {
+            final DBObject[] pushedAndResidual = predicatePushdown.split(query);
+            if (pushedAndResidual[0] != null) {
+                pipelineSecure.add(indexOfRedactStage(pipelineSecure), new BasicDBObject("$match", pushedAndResidual[0]));
+            }
+            appendClauseToSecureAggregationPipeline(pipelineSecure, "$match", pushedAndResidual[1]);
+        }
+    }
+
+    /**
+     * append the user's aggregation pipeline, a leading $match is split with the {@link PredicatePushdown} policy
+     */
+    private void appendPipelineToSecureAggregationPipeline(SecureAggregationPipeline pipelineSecure, List<DBObject> pipeline) {
+        int first = 0;
+        if (!pipeline.isEmpty() && predicatePushdown.isEnabled()) {
+            final DBObject firstStage = pipeline.get(0);
+            if (firstStage != null && firstStage.keySet().size() == 1 && firstStage.get("$match") instanceof DBObject) {
+                appendQueryToSecureAggregationPipeline(pipelineSecure, (DBObject) firstStage.get("$match"));
+                first = 1;
+            }
+        }
+        pipelineSecure.addAll(pipeline.subList(first, pipeline.size()));
+    }
+
+    private int indexOfRedactStage(SecureAggregationPipeline pipelineSecure) {
+        final int redactStage = indexOfSecurityStage(pipelineSecure);
+        if (redactStage < 0) {
+            throw new IllegalStateException("secure aggregation pipeline has no $redact stage");
+        }
+        return redactStage;
+    }
+
+    /**
+     * @param pipeline a pipeline
+     * @return the index of its $redact stage, or of the {@link DocumentLevelMatch} in its place, -1 if it has none
+     */
+    static int indexOfSecurityStage(List<DBObject> pipeline) {
+        for (int i = 0; i < pipeline.size(); i++) {
+            if (pipeline.get(i) instanceof DocumentLevelMatch || pipeline.get(i).containsField("$redact")) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private void appendSortToSecureAggregationPipeline(SecureAggregationPipeline pipelineSecure, DBObject orderBy) {
+        if (orderBy != null) if (dbObjectHasData(orderBy)) appendClauseToSecureAggregationPipeline(pipelineSecure, "$sort", orderBy);
+    }
+
+    private void appendClauseToSecureAggregationPipeline(SecureAggregationPipeline pipelineSecure, final String clauseKey, Object criteria) {
+        if (criteria != null) {
+            DBObject match = new BasicDBObject(clauseKey, criteria);
+            pipelineSecure.add(match);
+        }
+    }
+
+    private boolean dbObjectHasData(DBObject dbObject) {
+        if (dbObject != null) {
+            if (dbObject instanceof BasicDBObject) {
+
+                if (((BasicDBObject) dbObject).size() > 0) {
+                    return true;
+                }
+
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+
+
+    /**
+     * get the provided or default ReadPreference (currently ReadPreference.primary() ).
+     *
+     * @return
+     */
+    public ReadPreference getReadPreference() {
+        return (readPreference == null) ? readPreferenceDefault : readPreference;
+    }
+
+    /**
+     * set the default ReadPreference
+     *
+     * @param readPreference the ReadPreference
+     */
+    public void setReadPreference(ReadPreference readPreference) {
+        this.readPreference = readPreference;
+    }
+
+
+    /**
+     * get the cache used for parsed $redact expressions, by default {@link RedactCommandCache#getSharedInstance()}
+     *
+     * @return the cache, or null if caching is disabled
+     */
+    public RedactCommandCache getRedactCommandCache() {
+        return redactCommandCache;
+    }
+
+    /**
+     * set the cache used for parsed $redact expressions
+     *
+     * @param redactCommandCache the cache to use, or null to build the $redact expression on every request
+     */
+    public void setRedactCommandCache(RedactCommandCache redactCommandCache) {
+        this.redactCommandCache = redactCommandCache;
+    }
+
+
+    /**
+     * get the policy that decides which query predicates run in front of the $redact stage
+     *
+     * @return the predicate pushdown policy, by default {@link PredicatePushdown#DISABLED}
+     */
+    public PredicatePushdown getPredicatePushdown() {
+        return predicatePushdown;
+    }
+
+    /**
+     * set the policy that decides which query predicates run in front of the $redact stage.  Only declare fields
+     * as unmarked that never carry security markings, otherwise users could query on values they can not see.
+     *
+     * @param predicatePushdown the predicate pushdown policy
+     */
+    public void setPredicatePushdown(PredicatePushdown predicatePushdown) {
+        this.predicatePushdown = checkNotNull(predicatePushdown, "predicatePushdown can't be null");
+    }
+
+
+    /**
+     * get the optional prefilter placed in front of the $redact stage
+     *
+     * @return the prefilter, or null if none is used (the default)
+     */
+    public RedactPrefilter getRedactPrefilter() {
+        return redactPrefilter;
+    }
+
+    /**
+     * set an optional prefilter, e.g. an {@link EntitlementPrefilter}, whose query is placed in front of the $redact
+     * stage so that $redact only traverses documents the user can at least partially see
+     *
+     * @param redactPrefilter the prefilter, or null for none
+     */
+    public void setRedactPrefilter(RedactPrefilter redactPrefilter) {
+        this.redactPrefilter = redactPrefilter;
+    }
+
+
+    /**
+     * @return where find and findOne results are redacted, by default {@link RedactionMode#SERVER}
+     */
+    public RedactionMode getRedactionMode() {
+        return redactionMode;
+    }
+
+    /**
+     * set where find and findOne results are redacted
+     *
+     * @param redactionMode the redaction mode; {@link RedactionMode#CLIENT} requires a {@link ClientSideRedactExpression},
+     *                      {@link RedactionMode#DOCUMENT_LEVEL} a {@link DocumentLevelRedactExpression}
+     */
+    public void setRedactionMode(RedactionMode redactionMode) {
+        checkNotNull(redactionMode, "redactionMode can't be null");
+        if (redactionMode == RedactionMode.CLIENT && !(redactExpression instanceof ClientSideRedactExpression)) {
+            throw new IllegalArgumentException("client side redaction requires a ClientSideRedactExpression");
+        }
+        if (redactionMode == RedactionMode.DOCUMENT_LEVEL && !(redactExpression instanceof DocumentLevelRedactExpression)) {
+            throw new IllegalArgumentException("document-level redaction requires a DocumentLevelRedactExpression");
+        }
+        this.redactionMode = redactionMode;
+    }
+
+    /**
+     * @return the check of {@link RedactionMode#DOCUMENT_LEVEL} reads, or null if they are not checked (the default)
+     */
+    public DocumentLevelVerifier getDocumentLevelVerifier() {
+        return documentLevelVerifier;
+    }
+
+    /**
+     * set a check of a sample of the reads in {@link RedactionMode#DOCUMENT_LEVEL} against the $redact stage
+     *
+     * @param documentLevelVerifier the verifier, or null for none
+     */
+    public void setDocumentLevelVerifier(DocumentLevelVerifier documentLevelVerifier) {
+        this.documentLevelVerifier = documentLevelVerifier;
+    }
+
+
+    /**
+     * @return the annotator of the documents written, or null if they are not annotated (the default)
+     */
+    public LabelSummaryAnnotator getLabelSummaryAnnotator() {
+        return labelSummaryAnnotator;
+    }
+
+    /**
+     * set an annotator that stores the summary of the labels of the documents inserted or replaced, and removes it
+     * when an update may change their markings, for a {@link LabelSummaryRedactExpression}
+     *
+     * @param labelSummaryAnnotator the annotator, or null for none
+     */
+    public void setLabelSummaryAnnotator(LabelSummaryAnnotator labelSummaryAnnotator) {
+        this.labelSummaryAnnotator = labelSummaryAnnotator;
+    }
+
+    /**
+     * @return the manager of the pre-redacted views the user's reads may be routed to, or null if none (the default)
+     */
+    public MaterializedRedactionManager getMaterializedRedactionManager() {
+        return materializedRedactionManager;
+    }
+
+    /**
+     * set the manager of pre-redacted views: the reads that run as aggregations, finds, aggregates, counts, etc.,
+     * of a user whose labels are those of a registered profile then run on its view, without a $redact stage
+     *
+     * @param materializedRedactionManager the manager, or null to always redact live
+     * @throws IllegalArgumentException if the manager's views are not of this collection, or not redacted with this
+     *                                  collection's redact expression
+     */
+    public void setMaterializedRedactionManager(MaterializedRedactionManager materializedRedactionManager) {
+        if (materializedRedactionManager != null && !materializedRedactionManager.getSource().getFullName().equals(namespace)) {
+            throw new IllegalArgumentException("the materialized views are of " + materializedRedactionManager.getSource().getFullName()
+                    + ", not " + namespace);
+        }
+        if (materializedRedactionManager != null && !materializedRedactionManager.getRedactExpression().equals(redactExpression)) {
+            throw new IllegalArgumentException("the materialized views are redacted with " + materializedRedactionManager.getRedactExpression()
+                    + ", not " + redactExpression);
+        }
+        this.materializedRedactionManager = materializedRedactionManager;
+    }
+
+    /**
+     * @return the wrapped, un-redacted, collection
+     */
+    DBCollection getWrappedDBCollection() {
+        return _wrapped;
+    }
+
+    /**
+     * @return the coalescer of concurrent identical requests, or null if requests are not coalesced (the default)
+     */
+    public RequestCoalescer getRequestCoalescer() {
+        return requestCoalescer;
+    }
+
+    /**
+     * set a coalescer, shared with the RedactedDBCollection's of other users, that collapses concurrent identical
+     * server side finds and aggregates of users with the same entitlements into one aggregate
+     *
+     * @param requestCoalescer the coalescer, or null to run every request on its own
+     */
+    public void setRequestCoalescer(RequestCoalescer requestCoalescer) {
+        this.requestCoalescer = requestCoalescer;
+    }
+
+    /**
+     * @return where the latencies and sizes of finds and aggregates are recorded, by default {@link RedactMetrics#NONE}
+     */
+    public RedactMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * set where the latencies and sizes of finds, findOnes and aggregates are recorded, e.g. an
+     * {@link InMemoryRedactMetrics} shared by all collections
+     *
+     * @param metrics the metrics, {@link RedactMetrics#NONE} to record nothing
+     */
+    public void setMetrics(RedactMetrics metrics) {
+        this.metrics = checkNotNull(metrics, "metrics can't be null");
+    }
+
+    /**
+     * @return the number of writes per bulk operation of a {@link #initializeBulkWriter() bulk writer}
+     */
+    public int getWriteBatchSize() {
+        return writeBatchSize;
+    }
+
+    /**
+     * @param writeBatchSize the number of writes per bulk operation of a {@link #initializeBulkWriter() bulk writer}
+     */
+    public void setWriteBatchSize(int writeBatchSize) {
+        if (writeBatchSize <= 0) {
+            throw new IllegalArgumentException("writeBatchSize must be greater than 0");
+        }
+        this.writeBatchSize = writeBatchSize;
+    }
+
+
+    /**
+     * the in-JVM redactor of a user's labels, and the write validator sharing its labels, built on first use
+     */
+    private static final class ClientSideRedaction {
+        private final long version;
+        private final String fingerprint;
+        private final DocumentRedactor redactor;
+        private volatile WriteValidator writeValidator;
+
+        ClientSideRedaction(long version, String fingerprint, DocumentRedactor redactor) {
+            this.version = version;
+            this.fingerprint = fingerprint;
+            this.redactor = redactor;
+        }
+
+        WriteValidator getWriteValidator() {
+            WriteValidator validator = writeValidator;
+            if (validator == null) {
+                validator = new WriteValidator(redactor.getSecurityFieldName(), redactor.getUserLabels());
+                writeValidator = validator;
+            }
+            return validator;
+        }
     }
 
 
@@ -0,0 +1,209 @@
+package com.mongodb.flac;
+
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The explanation of a redacted read, see {@link RedactedDBCollection#explainFind(DBObject, DBObject, int, int, DBObject, boolean)}:
+ * the exact secure pipeline that is sent to the server, the server's explain output, and a diagnosis of it.
+ *
+ * <p>The documents before and after the $redact stage are read from the "nReturned" of the server's execution
+ * stats, so they are only known, i.e. not -1, if the explain was asked for with execution stats.  A client redacted
+ * find is redacted in the JVM, so the server only knows the documents before redaction.  Like the server's explain,
+ * an explanation tells how many documents a query touches that the user can't see; it is meant for diagnostics, not
+ * for end users.</p>
+ */
+public class RedactedExplanation {
+
+    private static final Set<String> INDEX_STAGES = new HashSet<String>(Arrays.asList("IXSCAN", "IDHACK", "COUNT_SCAN", "DISTINCT_SCAN"));
+
+    private final RedactedDBCollection.SecureAggregationPipeline pipeline;
+    private final DBObject explain;
+    private final boolean matchBeforeRedact;
+    private final boolean indexUsed;
+    private final boolean collectionScan;
+    private final long documentsBeforeRedact;
+    private final long documentsAfterRedact;
+
+    RedactedExplanation(RedactedDBCollection.SecureAggregationPipeline pipeline, DBObject explain, boolean matchBeforeRedact) {
+        this.pipeline = pipeline;
+        this.explain = explain;
+        this.matchBeforeRedact = matchBeforeRedact;
+        final long[] counts = {-1, -1};
+        if (pipeline == null) {
+            final Object executionStats = explain.get("executionStats");
+            if (executionStats instanceof DBObject) {
+                counts[0] = nReturned((DBObject) executionStats);
+            }
+        } else {
+            collectRedactCounts(explain, counts);
+        }
+        this.documentsBeforeRedact = counts[0];
+        this.documentsAfterRedact = counts[1];
+        final Set<String> plans = new HashSet<String>();
+        collectPlans(explain, plans);
+        this.indexUsed = plans.contains("index");
+        this.collectionScan = plans.contains("collection");
+    }
+
+    /**
+     * find the access paths in explain output of any server version: the "stage" of query planner output (2.8+)
+     * and the "cursor" of the older explain output, e.g. BtreeCursor or BasicCursor
+     */
+    private static void collectPlans(Object value, Set<String> plans) {
+        if (value instanceof DBObject) {
+            final DBObject dbObject = (DBObject) value;
+            for (String key : dbObject.keySet()) {
+                final Object field = dbObject.get(key);
+                if ("stage".equals(key) && field instanceof String) {
+                    if (INDEX_STAGES.contains(field)) plans.add("index");
+                    if ("COLLSCAN".equals(field)) plans.add("collection");
+                } else if ("cursor".equals(key) && field instanceof String) {
+                    if (((String) field).startsWith("BtreeCursor")) plans.add("index");
+                    if (((String) field).startsWith("BasicCursor")) plans.add("collection");
+                } else {
+                    collectPlans(field, plans);
+                }
+            }
+        } else if (value instanceof Collection) {
+            for (Object element : (Collection<?>) value) {
+                collectPlans(element, plans);
+            }
+        }
+    }
+
+    /**
+     * add up the documents returned by the stage in front of $redact and by $redact in the "stages" of aggregate
+     * explain output, of each shard if the collection is sharded; for the leading $cursor stage, whose count servers
+     * before 4.4 only report in its own execution stats, look there too
+     */
+    private static void collectRedactCounts(Object value, long[] counts) {
+        if (value instanceof DBObject) {
+            final DBObject dbObject = (DBObject) value;
+            final Object stages = dbObject.get("stages");
+            if (stages instanceof List) {
+                final List<?> list = (List<?>) stages;
+                for (int i = 1; i < list.size(); i++) {
+                    if (list.get(i) instanceof DBObject && ((DBObject) list.get(i)).containsField("$redact")
+                            && list.get(i - 1) instanceof DBObject) {
+                        add(counts, 0, stageReturned((DBObject) list.get(i - 1)));
+                        add(counts, 1, nReturned((DBObject) list.get(i)));
+                        return;
+                    }
+                }
+            }
+            for (String key : dbObject.keySet()) {
+                collectRedactCounts(dbObject.get(key), counts);
+            }
+        } else if (value instanceof Collection) {
+            for (Object element : (Collection<?>) value) {
+                collectRedactCounts(element, counts);
+            }
+        }
+    }
+
+    private static long stageReturned(DBObject stage) {
+        final long nReturned = nReturned(stage);
+        if (nReturned < 0 && stage.get("$cursor") instanceof DBObject) {
+            final Object executionStats = ((DBObject) stage.get("$cursor")).get("executionStats");
+            if (executionStats instanceof DBObject) {
+                return nReturned((DBObject) executionStats);
+            }
+        }
+        return nReturned;
+    }
+
+    private static long nReturned(DBObject dbObject) {
+        final Object nReturned = dbObject.get("nReturned");
+        return nReturned instanceof Number ? ((Number) nReturned).longValue() : -1;
+    }
+
+    private static void add(long[] counts, int index, long count) {
+        if (count >= 0) {
+            counts[index] = Math.max(0, counts[index]) + count;
+        }
+    }
+
+    /**
+     * @return the pipeline that the read sends to the server, or null if it is a plain find that is redacted client
+     * side, see {@link RedactedDBCollection.RedactionMode#CLIENT}
+     */
+    public List<DBObject> getPipeline() {
+        return pipeline;
+    }
+
+    /**
+     * @return true if the read runs as a plain find, redacted in the JVM
+     */
+    public boolean isClientRedacted() {
+        return pipeline == null;
+    }
+
+    /**
+     * @return the server's explain output, of the aggregate or of the plain find
+     */
+    public DBObject getExplain() {
+        return explain;
+    }
+
+    /**
+     * @return true if a $match runs in front of the $redact stage, e.g. a prefilter or pushed down predicates, so the
+     * server can use an index; for a client redacted find, true if the plain find has a query
+     */
+    public boolean isMatchBeforeRedact() {
+        return matchBeforeRedact;
+    }
+
+    /**
+     * @return true if the server's plan scans an index
+     */
+    public boolean isIndexUsed() {
+        return indexUsed;
+    }
+
+    /**
+     * @return true if the server's plan scans the whole collection
+     */
+    public boolean isCollectionScan() {
+        return collectionScan;
+    }
+
+    /**
+     * @return the number of documents that reach the $redact stage, or the plain find returns, -1 if unknown
+     */
+    public long getDocumentsBeforeRedact() {
+        return documentsBeforeRedact;
+    }
+
+    /**
+     * @return the number of documents that the $redact stage lets through, -1 if unknown
+     */
+    public long getDocumentsAfterRedact() {
+        return documentsAfterRedact;
+    }
+
+    /**
+     * @return the number of documents that reach the $redact stage but are pruned by it entirely, -1 if unknown; an
+     * estimate as a stage in front of $redact may stop early, e.g. for a $limit
+     */
+    public long getEstimatedDocumentsRedacted() {
+        if (documentsBeforeRedact < 0 || documentsAfterRedact < 0) {
+            return -1;
+        }
+        return Math.max(0, documentsBeforeRedact - documentsAfterRedact);
+    }
+
+    @Override
+    public String toString() {
+        return "RedactedExplanation{" + (isClientRedacted() ? "clientRedacted" : "pipeline=" + JSON.serialize(pipeline))
+                + ", matchBeforeRedact=" + matchBeforeRedact + ", indexUsed=" + indexUsed
+                + ", collectionScan=" + collectionScan + ", documentsBeforeRedact=" + documentsBeforeRedact
+                + ", documentsAfterRedact=" + documentsAfterRedact + "}";
+    }
+}
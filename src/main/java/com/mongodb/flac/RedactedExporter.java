@@ -0,0 +1,460 @@
+package com.mongodb.flac;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+import com.mongodb.DefaultDBEncoder;
+import com.mongodb.util.JSON;
+import org.bson.io.BasicOutputBuffer;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes the documents a user can see, as returned by a secure aggregate, to a file, for per-clearance extracts
+ * of a collection.
+ *
+ * <p>Documents are written either as BSON, one document after the other as mongodump does (every BSON document
+ * starts with its length), or as newline delimited JSON.  They are encoded into a large direct buffer that is
+ * written to a <code>FileChannel</code> when full, optionally through gzip.</p>
+ *
+ * <p>The aggregate reads the documents in <code>_id</code> order, see
+ * {@link RedactedDBCollection#buildIdRangePipeline(DBObject, DBObject, DBObject)}, and every
+ * {@link #getCheckpointInterval()} documents the file is forced to disk and a checkpoint, holding the last
+ * <code>_id</code> and the file length, is written next to it, in <tt>&lt;file&gt;.checkpoint</tt>.  When an export
+ * fails, running it again with the same file resumes after the checkpoint: the file is truncated to the
+ * checkpointed length and the aggregate restarts after the checkpointed <code>_id</code>.  With gzip every
+ * checkpoint interval is a separate gzip member, which gunzip and <code>GZIPInputStream</code> read as one stream.
+ * The checkpoint is deleted once the export completed.</p>
+ * <pre>
+ *     RedactedExporter exporter = new RedactedExporter(redactedDBCollection, RedactedExporter.Format.BSON);
+ *     exporter.setCompression(RedactedExporter.Compression.GZIP);
+ *     RedactedExporter.ExportStats stats = exporter.export(new File("persons-S.bson.gz"));
+ * </pre>
+ */
+public class RedactedExporter {
+
+    protected static final org.slf4j.Logger logger = LoggerFactory.getLogger(RedactedExporter.class);
+
+    public static final int DEFAULT_BUFFER_SIZE = 4 * 1024 * 1024;
+    public static final int DEFAULT_CHECKPOINT_INTERVAL = 10000;
+    public static final String CHECKPOINT_SUFFIX = ".checkpoint";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public enum Format {
+        /** concatenated BSON documents, as written by mongodump */
+        BSON,
+        /** one JSON document per line */
+        NDJSON
+    }
+
+    public enum Compression {
+        NONE,
+        /** gzip, one gzip member per checkpoint interval */
+        GZIP
+    }
+
+    /**
+     * the progress and throughput of an export
+     */
+    public static class ExportStats {
+        private final long startNanos = System.nanoTime();
+        private long documents;
+        private long bytesEncoded;
+        private long fileLength;
+        private long endNanos;
+
+        /**
+         * @return the number of documents written, including those of an earlier run that was resumed
+         */
+        public long getDocuments() {
+            return documents;
+        }
+
+        /**
+         * @return the number of bytes encoded by this run, before compression
+         */
+        public long getBytesEncoded() {
+            return bytesEncoded;
+        }
+
+        /**
+         * @return the length of the file at the last checkpoint, or at the end of the export
+         */
+        public long getFileLength() {
+            return fileLength;
+        }
+
+        public long getElapsedNanos() {
+            return ((endNanos == 0) ? System.nanoTime() : endNanos) - startNanos;
+        }
+
+        /**
+         * @return the encoded megabytes per second of this run
+         */
+        public double getMegabytesPerSecond() {
+            final double seconds = getElapsedNanos() / 1e9;
+            return (seconds == 0) ? 0 : bytesEncoded / (1024.0 * 1024.0) / seconds;
+        }
+
+        @Override
+        public String toString() {
+            return "ExportStats{documents=" + documents + ", bytesEncoded=" + bytesEncoded + ", fileLength=" + fileLength
+                    + ", elapsedMillis=" + getElapsedNanos() / 1000000 + ", megabytesPerSecond="
+                    + String.format("%.1f", getMegabytesPerSecond()) + "}";
+        }
+    }
+
+    private final RedactedDBCollection redactedDBCollection;
+    private final Format format;
+    private Compression compression = Compression.NONE;
+    private DBObject query;
+    private DBObject fields;
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private int checkpointInterval = DEFAULT_CHECKPOINT_INTERVAL;
+    private int batchSize;
+
+    /**
+     * @param redactedDBCollection the collection to export, for its user
+     * @param format               the file format
+     */
+    public RedactedExporter(RedactedDBCollection redactedDBCollection, Format format) {
+        this.redactedDBCollection = RedactedDBCollection.checkNotNull(redactedDBCollection, "redactedDBCollection can't be null");
+        this.format = RedactedDBCollection.checkNotNull(format, "format can't be null");
+    }
+
+    public Format getFormat() {
+        return format;
+    }
+
+    public Compression getCompression() {
+        return compression;
+    }
+
+    public void setCompression(Compression compression) {
+        this.compression = RedactedDBCollection.checkNotNull(compression, "compression can't be null");
+    }
+
+    public DBObject getQuery() {
+        return query;
+    }
+
+    /**
+     * @param query the query, as for {@link RedactedDBCollection#find(DBObject)}, or null to export all documents
+     */
+    public void setQuery(DBObject query) {
+        this.query = query;
+    }
+
+    public DBObject getFields() {
+        return fields;
+    }
+
+    /**
+     * @param fields the projection, which must not exclude _id, or null
+     */
+    public void setFields(DBObject fields) {
+        if (fields != null && fields.containsField("_id")) {
+            final Object id = fields.get("_id");
+            if ((id instanceof Number && ((Number) id).doubleValue() == 0) || Boolean.FALSE.equals(id)) {
+                throw new IllegalArgumentException("an export checkpoints on _id, the projection can't exclude it");
+            }
+        }
+        this.fields = fields;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @param bufferSize the size of the direct buffer documents are encoded into before being written
+     */
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize < 1024) {
+            throw new IllegalArgumentException("bufferSize must be at least 1024");
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    public int getCheckpointInterval() {
+        return checkpointInterval;
+    }
+
+    /**
+     * @param checkpointInterval the number of documents between checkpoints
+     */
+    public void setCheckpointInterval(int checkpointInterval) {
+        if (checkpointInterval <= 0) {
+            throw new IllegalArgumentException("checkpointInterval must be greater than 0");
+        }
+        this.checkpointInterval = checkpointInterval;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @param batchSize the batch size of the aggregate's cursor, 0 for the server default
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    /**
+     * Export to the file, resuming an earlier, failed, export to the same file if it left a checkpoint.
+     *
+     * @param output the file to write
+     * @return the export statistics
+     * @throws IOException if writing fails; the export can then be resumed
+     */
+    public ExportStats export(File output) throws IOException {
+        final File checkpointFile = new File(output.getPath() + CHECKPOINT_SUFFIX);
+        final ExportStats stats = new ExportStats();
+        Object lastId = null;
+        long position = 0;
+        if (checkpointFile.exists()) {
+            final DBObject checkpoint = readCheckpoint(checkpointFile);
+            lastId = checkpoint.get("lastId");
+            position = ((Number) checkpoint.get("position")).longValue();
+            stats.documents = ((Number) checkpoint.get("documents")).longValue();
+            logger.info("resuming export to " + output + " after _id " + lastId + " at " + position + " bytes");
+        }
+
+        final RandomAccessFile file = new RandomAccessFile(output, "rw");
+        final FileChannel channel = file.getChannel();
+        Cursor cursor = null;
+        try {
+            channel.truncate(position);
+            channel.position(position);
+            final Sink sink = new Sink(channel);
+
+            final AggregationOptions.Builder options = AggregationOptions.builder().outputMode(AggregationOptions.OutputMode.CURSOR);
+            if (batchSize > 0) {
+                options.batchSize(batchSize);
+            }
+            cursor = redactedDBCollection.aggregateSecure(redactedDBCollection.buildIdRangePipeline(
+                    (lastId == null) ? null : new BasicDBObject("$gt", lastId), query, fields),
+                    options.build(), redactedDBCollection.getReadPreference());
+
+            final DocumentWriter writer = (format == Format.BSON) ? new BsonWriter() : new JsonWriter();
+            int sinceCheckpoint = 0;
+            try {
+                while (cursor.hasNext()) {
+                    final DBObject document = cursor.next();
+                    stats.bytesEncoded += writer.write(document, sink);
+                    stats.documents++;
+                    lastId = document.get("_id");
+                    if (++sinceCheckpoint == checkpointInterval) {
+                        checkpoint(sink, checkpointFile, lastId, stats);
+                        sinceCheckpoint = 0;
+                    }
+                }
+            } catch (RuntimeException e) {
+                // the buffer only holds whole documents, so what was read can still be checkpointed
+                if (lastId != null) {
+                    checkpoint(sink, checkpointFile, lastId, stats);
+                }
+                throw e;
+            }
+            sink.close();
+            stats.fileLength = channel.position();
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+            channel.close();
+            file.close();
+        }
+
+        if (checkpointFile.exists() && !checkpointFile.delete()) {
+            logger.warn("could not delete checkpoint " + checkpointFile);
+        }
+        stats.endNanos = System.nanoTime();
+        logger.info("export to " + output + " done: " + stats);
+        return stats;
+    }
+
+    private void checkpoint(Sink sink, File checkpointFile, Object lastId, ExportStats stats) throws IOException {
+        final long position = sink.sync();
+        stats.fileLength = position;
+        final DBObject checkpoint = new BasicDBObject("lastId", lastId)
+                .append("position", position)
+                .append("documents", stats.documents);
+
+        // write and rename, so a crash leaves either the old or the new checkpoint
+        final File temp = new File(checkpointFile.getPath() + ".tmp");
+        final RandomAccessFile file = new RandomAccessFile(temp, "rw");
+        try {
+            file.setLength(0);
+            file.write(JSON.serialize(checkpoint).getBytes(UTF8));
+            file.getFD().sync();
+        } finally {
+            file.close();
+        }
+        if (!temp.renameTo(checkpointFile)) {
+            if (!checkpointFile.delete() || !temp.renameTo(checkpointFile)) {
+                throw new IOException("could not write checkpoint " + checkpointFile);
+            }
+        }
+        if (logger.isInfoEnabled()) {
+            logger.info("export checkpoint at _id " + lastId + ": " + stats);
+        }
+    }
+
+    private static DBObject readCheckpoint(File checkpointFile) throws IOException {
+        final FileInputStream in = new FileInputStream(checkpointFile);
+        try {
+            final byte[] bytes = new byte[(int) checkpointFile.length()];
+            int read = 0;
+            while (read < bytes.length) {
+                final int n = in.read(bytes, read, bytes.length - read);
+                if (n < 0) {
+                    break;
+                }
+                read += n;
+            }
+            return (DBObject) JSON.parse(new String(bytes, 0, read, UTF8));
+        } finally {
+            in.close();
+        }
+    }
+
+
+    /**
+     * the direct buffer in front of the file, or of the gzip member being written; a gzip member is only started by
+     * the first write after a checkpoint, so a checkpointed file length never includes the header of an open member
+     */
+    private final class Sink extends OutputStream {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(bufferSize);
+        private GZIPOutputStream gzip;
+        private WritableByteChannel target;
+
+        Sink(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        private void startTarget() throws IOException {
+            if (compression == Compression.GZIP) {
+                gzip = new GZIPOutputStream(Channels.newOutputStream(channel), 64 * 1024);
+                target = Channels.newChannel(gzip);
+            } else {
+                target = channel;
+            }
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            if (!buffer.hasRemaining()) {
+                drain();
+            }
+            buffer.put((byte) b);
+        }
+
+        @Override
+        public void write(byte[] bytes, int offset, int length) throws IOException {
+            while (length > 0) {
+                if (!buffer.hasRemaining()) {
+                    drain();
+                }
+                final int n = Math.min(length, buffer.remaining());
+                buffer.put(bytes, offset, n);
+                offset += n;
+                length -= n;
+            }
+        }
+
+        private void drain() throws IOException {
+            if (buffer.position() == 0) {
+                return;
+            }
+            if (target == null) {
+                startTarget();
+            }
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                target.write(buffer);
+            }
+            buffer.clear();
+        }
+
+        /**
+         * write out everything buffered, end the gzip member, and force the file to disk
+         *
+         * @return the length of the file
+         */
+        long sync() throws IOException {
+            finish();
+            channel.force(false);
+            return channel.position();
+        }
+
+        /**
+         * write out everything buffered and end the gzip member; the next write starts a new one
+         */
+        void finish() throws IOException {
+            drain();
+            if (gzip != null) {
+                gzip.finish();
+            }
+            gzip = null;
+            target = null;
+        }
+
+        /**
+         * end the export; an empty gzip export still gets one, empty, member so it is a valid gzip file
+         */
+        @Override
+        public void close() throws IOException {
+            if (compression == Compression.GZIP && channel.position() == 0 && buffer.position() == 0) {
+                startTarget();
+            }
+            finish();
+        }
+    }
+
+    private interface DocumentWriter {
+        /**
+         * @return the number of bytes written
+         */
+        int write(DBObject document, OutputStream out) throws IOException;
+    }
+
+    private static final class BsonWriter implements DocumentWriter {
+        private final DefaultDBEncoder encoder = new DefaultDBEncoder();
+        private final BasicOutputBuffer bsonBuffer = new BasicOutputBuffer();
+
+        public int write(DBObject document, OutputStream out) throws IOException {
+            bsonBuffer.truncateToPosition(0);
+            encoder.writeObject(bsonBuffer, document);
+            return bsonBuffer.pipe(out);
+        }
+    }
+
+    private static final class JsonWriter implements DocumentWriter {
+        private final StringBuilder json = new StringBuilder(1024);
+
+        public int write(DBObject document, OutputStream out) throws IOException {
+            json.setLength(0);
+            JSON.serialize(document, json);
+            json.append('\n');
+            final byte[] bytes = json.toString().getBytes(UTF8);
+            out.write(bytes);
+            return bytes.length;
+        }
+    }
+}
@@ -0,0 +1,44 @@
+package com.mongodb.flac;
+
+import com.mongodb.DBObject;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * One page of a {@link RedactedDBCollection#findPage(DBObject, DBObject, DBObject, int, String)}: the documents,
+ * and the opaque token to pass to read the next page.
+ */
+public class RedactedPage {
+
+    private final List<DBObject> documents;
+    private final String continuationToken;
+
+    RedactedPage(List<DBObject> documents, String continuationToken) {
+        this.documents = Collections.unmodifiableList(documents);
+        this.continuationToken = continuationToken;
+    }
+
+    public List<DBObject> getDocuments() {
+        return documents;
+    }
+
+    /**
+     * @return the token of the next page, or null if this is the last page
+     */
+    public String getContinuationToken() {
+        return continuationToken;
+    }
+
+    /**
+     * @return true if there is a next page
+     */
+    public boolean hasNext() {
+        return continuationToken != null;
+    }
+
+    @Override
+    public String toString() {
+        return "RedactedPage{documents=" + documents.size() + ", continuationToken=" + continuationToken + "}";
+    }
+}
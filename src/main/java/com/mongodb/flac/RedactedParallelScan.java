@@ -0,0 +1,568 @@
+package com.mongodb.flac;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+import com.mongodb.MongoException;
+import com.mongodb.ServerAddress;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A full, redacted, scan of a collection that runs as several secure aggregates over disjoint <code>_id</code>
+ * ranges concurrently, instead of one aggregate on a single server thread.
+ *
+ * <p>The range boundaries are taken from a $sample, run through the secure pipeline, of the <code>_id</code>'s the
+ * user can see, or can be given with {@link #setBoundaries(java.util.List)}, e.g. from the chunk ranges of a
+ * sharded collection.  Each range runs as its own secure pipeline, with the range and an <code>_id</code> sort
+ * applied in front of the $redact stage, see
+ * {@link RedactedDBCollection#buildIdRangePipeline(DBObject, DBObject, DBObject)}, on at most
+ * {@link #getParallelism()} threads.  The documents are merged into one cursor, either in <code>_id</code> order,
+ * or in whatever order the ranges produce them, which keeps all threads busy.</p>
+ *
+ * <p>When the server cursor of a range is lost, e.g. on a network error or a cursor timeout, the range is
+ * resumed after the last <code>_id</code> it returned, up to {@link #getMaxRetries()} times.  For that reason the
+ * projection must keep the <code>_id</code>.  The progress of each range is available from
+ * {@link #getPartitionProgress()}.</p>
+ *
+ * <p>The _id's must all be of the same type, since range comparisons only match values of the type of the
+ * boundary; if the sample finds several types the scan runs as a single range.</p>
+ * <pre>
+ *     RedactedParallelScan scan = new RedactedParallelScan(redactedDBCollection);
+ *     scan.setPartitions(16);
+ *     scan.setParallelism(4);
+ *     Cursor cursor = scan.execute();
+ * </pre>
+ */
+public class RedactedParallelScan {
+
+    protected static final org.slf4j.Logger logger = LoggerFactory.getLogger(RedactedParallelScan.class);
+
+    public static final int DEFAULT_PARTITIONS = 8;
+    public static final int DEFAULT_PARALLELISM = 4;
+    public static final int DEFAULT_SAMPLES_PER_PARTITION = 16;
+    public static final int DEFAULT_MAX_RETRIES = 3;
+    public static final int DEFAULT_BUFFER_SIZE = 1000;
+
+    /**
+     * the lifecycle of one _id range
+     */
+    public enum State {
+        PENDING, RUNNING, DONE, FAILED, CANCELLED
+    }
+
+    /**
+     * one _id range of the scan, and its progress
+     */
+    public static class Partition {
+        private final int index;
+        private final Object lowerBound;
+        private final Object upperBound;
+        private final AtomicLong documentCount = new AtomicLong();
+        private volatile State state = State.PENDING;
+        private volatile int retryCount;
+        private volatile Object lastId;
+
+        Partition(int index, Object lowerBound, Object upperBound) {
+            this.index = index;
+            this.lowerBound = lowerBound;
+            this.upperBound = upperBound;
+        }
+
+        public int getIndex() {
+            return index;
+        }
+
+        /**
+         * @return the inclusive lower bound of the range, null if unbounded
+         */
+        public Object getLowerBound() {
+            return lowerBound;
+        }
+
+        /**
+         * @return the exclusive upper bound of the range, null if unbounded
+         */
+        public Object getUpperBound() {
+            return upperBound;
+        }
+
+        public State getState() {
+            return state;
+        }
+
+        /**
+         * @return the number of documents returned so far
+         */
+        public long getDocumentCount() {
+            return documentCount.get();
+        }
+
+        /**
+         * @return the number of times the range was resumed after losing its cursor
+         */
+        public int getRetryCount() {
+            return retryCount;
+        }
+
+        /**
+         * @return the _id of the last document returned, which the range resumes after
+         */
+        public Object getLastId() {
+            return lastId;
+        }
+
+        /**
+         * @return the condition on _id of what remains of the range, or null for all documents
+         */
+        DBObject getRemainingRange() {
+            final BasicDBObject range = new BasicDBObject();
+            if (lastId != null) {
+                range.put("$gt", lastId);
+            } else if (lowerBound != null) {
+                range.put("$gte", lowerBound);
+            }
+            if (upperBound != null) {
+                range.put("$lt", upperBound);
+            }
+            return range.isEmpty() ? null : range;
+        }
+
+        @Override
+        public String toString() {
+            return "Partition{index=" + index + ", lowerBound=" + lowerBound + ", upperBound=" + upperBound
+                    + ", state=" + state + ", documentCount=" + getDocumentCount() + ", retryCount=" + retryCount + "}";
+        }
+    }
+
+    private static final Object END = new Object();
+
+    private final RedactedDBCollection redactedDBCollection;
+    private DBObject query;
+    private DBObject fields;
+    private int partitions = DEFAULT_PARTITIONS;
+    private int parallelism = DEFAULT_PARALLELISM;
+    private int samplesPerPartition = DEFAULT_SAMPLES_PER_PARTITION;
+    private int maxRetries = DEFAULT_MAX_RETRIES;
+    private int bufferSize = DEFAULT_BUFFER_SIZE;
+    private int batchSize;
+    private boolean ordered = true;
+    private List<Object> boundaries;
+
+    private volatile List<Partition> lastPartitions = Collections.emptyList();
+
+    /**
+     * @param redactedDBCollection the collection to scan, for its user
+     */
+    public RedactedParallelScan(RedactedDBCollection redactedDBCollection) {
+        this.redactedDBCollection = RedactedDBCollection.checkNotNull(redactedDBCollection, "redactedDBCollection can't be null");
+    }
+
+    public DBObject getQuery() {
+        return query;
+    }
+
+    /**
+     * @param query the query each range applies, as for {@link RedactedDBCollection#find(DBObject)}, or null
+     */
+    public void setQuery(DBObject query) {
+        this.query = query;
+    }
+
+    public DBObject getFields() {
+        return fields;
+    }
+
+    /**
+     * @param fields the projection, which must not exclude _id, or null
+     */
+    public void setFields(DBObject fields) {
+        if (fields != null && fields.containsField("_id")) {
+            final Object id = fields.get("_id");
+            if ((id instanceof Number && ((Number) id).doubleValue() == 0) || Boolean.FALSE.equals(id)) {
+                throw new IllegalArgumentException("a parallel scan resumes on _id, the projection can't exclude it");
+            }
+        }
+        this.fields = fields;
+    }
+
+    public int getPartitions() {
+        return partitions;
+    }
+
+    /**
+     * @param partitions the number of _id ranges to split the collection into
+     */
+    public void setPartitions(int partitions) {
+        if (partitions <= 0) {
+            throw new IllegalArgumentException("partitions must be greater than 0");
+        }
+        this.partitions = partitions;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    /**
+     * @param parallelism the maximum number of ranges scanned at the same time
+     */
+    public void setParallelism(int parallelism) {
+        if (parallelism <= 0) {
+            throw new IllegalArgumentException("parallelism must be greater than 0");
+        }
+        this.parallelism = parallelism;
+    }
+
+    public int getSamplesPerPartition() {
+        return samplesPerPartition;
+    }
+
+    /**
+     * @param samplesPerPartition the number of _id's sampled per partition to choose the boundaries, more gives
+     *                            more even ranges
+     */
+    public void setSamplesPerPartition(int samplesPerPartition) {
+        if (samplesPerPartition <= 0) {
+            throw new IllegalArgumentException("samplesPerPartition must be greater than 0");
+        }
+        this.samplesPerPartition = samplesPerPartition;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    /**
+     * @param maxRetries the number of times a range is resumed after losing its cursor before the scan fails
+     */
+    public void setMaxRetries(int maxRetries) {
+        if (maxRetries < 0) {
+            throw new IllegalArgumentException("maxRetries can't be negative");
+        }
+        this.maxRetries = maxRetries;
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    /**
+     * @param bufferSize the maximum number of documents buffered per range, when ordered, or in total otherwise
+     */
+    public void setBufferSize(int bufferSize) {
+        if (bufferSize <= 0) {
+            throw new IllegalArgumentException("bufferSize must be greater than 0");
+        }
+        this.bufferSize = bufferSize;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @param batchSize the batch size of each range's cursor, 0 for the server default
+     */
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public boolean isOrdered() {
+        return ordered;
+    }
+
+    /**
+     * @param ordered true (the default) to return the documents in _id order, false to return them as they arrive
+     */
+    public void setOrdered(boolean ordered) {
+        this.ordered = ordered;
+    }
+
+    public List<Object> getBoundaries() {
+        return boundaries;
+    }
+
+    /**
+     * @param boundaries ascending _id's to split the collection at, instead of sampling, or null to sample
+     */
+    public void setBoundaries(List<Object> boundaries) {
+        this.boundaries = (boundaries == null) ? null : Collections.unmodifiableList(new ArrayList<Object>(boundaries));
+    }
+
+    /**
+     * @return the ranges of the last {@link #execute()}, with their progress
+     */
+    public List<Partition> getPartitionProgress() {
+        return lastPartitions;
+    }
+
+    /**
+     * Start scanning.
+     *
+     * @return the merged cursor; close it to stop the scan early
+     */
+    public Cursor execute() {
+        final List<Object> splitPoints = (boundaries != null) ? boundaries : sampleBoundaries();
+        final List<Partition> scanPartitions = new ArrayList<Partition>();
+        for (int i = 0; i <= splitPoints.size(); i++) {
+            scanPartitions.add(new Partition(i, (i == 0) ? null : splitPoints.get(i - 1),
+                    (i == splitPoints.size()) ? null : splitPoints.get(i)));
+        }
+        lastPartitions = Collections.unmodifiableList(scanPartitions);
+        if (logger.isDebugEnabled()) {
+            logger.debug("parallel scan of " + redactedDBCollection.getWrappedDBCollection().getFullName() + " in "
+                    + scanPartitions.size() + " ranges split at " + splitPoints);
+        }
+        return new ScanCursor(scanPartitions);
+    }
+
+    /**
+     * sample the _id's of the documents the user can see, through the secure pipeline, and pick evenly spaced ones
+     * as boundaries; the _id's of documents the user can't see never leave the server
+     */
+    List<Object> sampleBoundaries() {
+        if (partitions == 1) {
+            return Collections.emptyList();
+        }
+        final List<Object> ids = new ArrayList<Object>();
+        final Cursor cursor = redactedDBCollection.aggregateSecure(
+                redactedDBCollection.buildIdSamplePipeline(partitions * samplesPerPartition, query),
+                AggregationOptions.builder().outputMode(AggregationOptions.OutputMode.CURSOR).build(),
+                redactedDBCollection.getReadPreference());
+        try {
+            while (cursor.hasNext()) {
+                ids.add(cursor.next().get("_id"));
+            }
+        } finally {
+            cursor.close();
+        }
+        return pickBoundaries(ids, partitions);
+    }
+
+    /**
+     * @param sortedIds  sampled _id's in ascending order
+     * @param partitions the number of ranges wanted
+     * @return at most partitions - 1 distinct, ascending, boundaries; none if the _id's are not all of one type
+     */
+    static List<Object> pickBoundaries(List<Object> sortedIds, int partitions) {
+        final List<Object> result = new ArrayList<Object>();
+        if (sortedIds.isEmpty()) {
+            return result;
+        }
+        final Class<?> idType = (sortedIds.get(0) == null) ? null : sortedIds.get(0).getClass();
+        for (Object id : sortedIds) {
+            if (id == null || id.getClass() != idType) {
+                logger.warn("_id's of different types, a parallel scan runs as a single range");
+                return result;
+            }
+        }
+        for (int i = 1; i < partitions; i++) {
+            final Object boundary = sortedIds.get(i * sortedIds.size() / partitions);
+            if (!result.isEmpty() && result.get(result.size() - 1).equals(boundary)) {
+                continue;
+            }
+            if (!sortedIds.get(0).equals(boundary)) {          // an empty first range is pointless
+                result.add(boundary);
+            }
+        }
+        return result;
+    }
+
+    private AggregationOptions getAggregationOptions() {
+        final AggregationOptions.Builder builder = AggregationOptions.builder().outputMode(AggregationOptions.OutputMode.CURSOR);
+        if (batchSize > 0) {
+            builder.batchSize(batchSize);
+        }
+        return builder.build();
+    }
+
+
+    /**
+     * the merged cursor; each range runs as a task that feeds a queue, the ordered cursor reads the queues one
+     * range after the other, the unordered one shares a single queue between all ranges
+     */
+    private final class ScanCursor implements Cursor {
+        private final List<Partition> scanPartitions;
+        private final List<BlockingQueue<Object>> queues = new ArrayList<BlockingQueue<Object>>();
+        private final ExecutorService executor;
+        private volatile boolean closed;
+
+        private int current;           // the range read, when ordered
+        private int ended;             // the number of ranges done, when unordered
+        private DBObject nextDocument;
+
+        ScanCursor(List<Partition> scanPartitions) {
+            this.scanPartitions = scanPartitions;
+            final BlockingQueue<Object> shared = ordered ? null : new ArrayBlockingQueue<Object>(bufferSize);
+            for (int i = 0; i < scanPartitions.size(); i++) {
+                queues.add(ordered ? new ArrayBlockingQueue<Object>(bufferSize) : shared);
+            }
+            this.executor = Executors.newFixedThreadPool(Math.min(parallelism, scanPartitions.size()), new ScanThreadFactory());
+            // ranges start in order, so when ordered the range being read is always running or done
+            for (final Partition partition : scanPartitions) {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        scan(partition, queues.get(partition.getIndex()));
+                    }
+                });
+            }
+            executor.shutdown();
+        }
+
+        private void scan(Partition partition, BlockingQueue<Object> queue) {
+            partition.state = State.RUNNING;
+            final AggregationOptions options = getAggregationOptions();
+            while (true) {
+                Cursor cursor = null;
+                try {
+                    cursor = redactedDBCollection.aggregateSecure(
+                            redactedDBCollection.buildIdRangePipeline(partition.getRemainingRange(), query, fields),
+                            options, redactedDBCollection.getReadPreference());
+                    while (!closed && cursor.hasNext()) {
+                        final DBObject document = cursor.next();
+                        partition.lastId = document.get("_id");
+                        partition.documentCount.incrementAndGet();
+                        if (!put(queue, document)) {
+                            break;
+                        }
+                    }
+                    partition.state = closed ? State.CANCELLED : State.DONE;
+                    put(queue, END);
+                    return;
+                } catch (MongoException e) {
+                    if (closed) {
+                        partition.state = State.CANCELLED;
+                        return;
+                    }
+                    if (partition.retryCount >= maxRetries) {
+                        fail(partition, queue, e);
+                        return;
+                    }
+                    partition.retryCount++;
+                    logger.warn("parallel scan range " + partition.getIndex() + " lost its cursor, resuming after _id "
+                            + partition.getLastId() + ": " + e);
+                } catch (RuntimeException e) {
+                    fail(partition, queue, e);
+                    return;
+                } finally {
+                    if (cursor != null) {
+                        cursor.close();
+                    }
+                }
+            }
+        }
+
+        private void fail(Partition partition, BlockingQueue<Object> queue, RuntimeException e) {
+            partition.state = State.FAILED;
+            logger.error("parallel scan range " + partition.getIndex() + " failed", e);
+            put(queue, e);
+        }
+
+        /**
+         * @return false if the cursor was closed while waiting for room
+         */
+        private boolean put(BlockingQueue<Object> queue, Object item) {
+            try {
+                while (!closed) {
+                    if (queue.offer(item, 100, TimeUnit.MILLISECONDS)) {
+                        return true;
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return false;
+        }
+
+        public boolean hasNext() {
+            while (nextDocument == null) {
+                if (closed || (ordered ? current == scanPartitions.size() : ended == scanPartitions.size())) {
+                    return false;
+                }
+                final Object item;
+                try {
+                    item = queues.get(ordered ? current : 0).take();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IllegalStateException("interrupted while waiting for the next document", e);
+                }
+                if (item == END) {
+                    if (ordered) {
+                        current++;
+                    } else {
+                        ended++;
+                    }
+                } else if (item instanceof RuntimeException) {
+                    close();
+                    throw (RuntimeException) item;
+                } else {
+                    nextDocument = (DBObject) item;
+                }
+            }
+            return true;
+        }
+
+        public DBObject next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final DBObject result = nextDocument;
+            nextDocument = null;
+            return result;
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException("can't remove a document from a parallel scan");
+        }
+
+        public long getCursorId() {
+            return 0;
+        }
+
+        public ServerAddress getServerAddress() {
+            return null;
+        }
+
+        public void close() {
+            if (!closed) {
+                closed = true;
+                nextDocument = null;
+                executor.shutdownNow();
+                for (BlockingQueue<Object> queue : queues) {
+                    queue.clear();
+                }
+                for (Partition partition : scanPartitions) {
+                    if (partition.state == State.PENDING) {
+                        partition.state = State.CANCELLED;
+                    }
+                }
+            }
+        }
+    }
+
+    private static final class ScanThreadFactory implements ThreadFactory {
+        private static final AtomicInteger SCANS = new AtomicInteger();
+        private final int scan = SCANS.incrementAndGet();
+        private final AtomicInteger threads = new AtomicInteger();
+
+        public Thread newThread(Runnable r) {
+            final Thread thread = new Thread(r, "redacted-parallel-scan-" + scan + "-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+}
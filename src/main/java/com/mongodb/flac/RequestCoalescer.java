@@ -0,0 +1,294 @@
+package com.mongodb.flac;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.ReadPreference;
+import com.mongodb.util.JSON;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collapses concurrent, identical, secure aggregations into a single server aggregate whose results are handed to
+ * every caller.
+ *
+ * <p>Two requests are identical when they run the same secure pipeline, with the same options and read
+ * preference, on the same namespace, for users with the same {@link SecurityAttributes#getFingerprint()}.  The
+ * first request runs the aggregate and buffers its results; requests arriving while it runs wait for it and then
+ * receive their own copy of the buffered documents.  Nothing is kept once the results are handed out, so only
+ * requests that overlap in time are collapsed, and no result is ever served stale.</p>
+ *
+ * <p>Buffering is bounded by a maximum number of documents.  When a result is larger, the first request
+ * streams on from its server cursor and the waiting requests each run their own aggregate, as they would
+ * without this coalescer.  Pipelines that write, with $out or $merge, are never collapsed.</p>
+ *
+ * <p>Since every {@link RedactedDBCollection} is tied to one user, a coalescer is only useful when it is shared;
+ * create one per application and set it on each collection with
+ * {@link RedactedDBCollection#setRequestCoalescer(RequestCoalescer)}.  Instances are thread safe.</p>
+ */
+public class RequestCoalescer {
+
+    protected static final org.slf4j.Logger logger = LoggerFactory.getLogger(RequestCoalescer.class);
+
+    public static final int DEFAULT_MAX_BUFFERED_DOCUMENTS = 1000;
+
+    private final int maxBufferedDocuments;
+    private final ConcurrentMap<String, Flight> inFlight = new ConcurrentHashMap<String, Flight>();
+
+    private final AtomicLong requestCount = new AtomicLong();
+    private final AtomicLong executedCount = new AtomicLong();
+    private final AtomicLong collapsedCount = new AtomicLong();
+    private final AtomicLong overflowCount = new AtomicLong();
+
+    public RequestCoalescer() {
+        this(DEFAULT_MAX_BUFFERED_DOCUMENTS);
+    }
+
+    /**
+     * @param maxBufferedDocuments the largest result, in documents, that is buffered and shared
+     */
+    public RequestCoalescer(int maxBufferedDocuments) {
+        if (maxBufferedDocuments <= 0) {
+            throw new IllegalArgumentException("maxBufferedDocuments must be greater than 0");
+        }
+        this.maxBufferedDocuments = maxBufferedDocuments;
+    }
+
+    /**
+     * Run the aggregate, or wait for an identical one already running.
+     *
+     * @param collection  the raw collection
+     * @param pipeline    the secure pipeline
+     * @param options     the aggregation options
+     * @param readPref    the read preference
+     * @param fingerprint the fingerprint of the user's security attributes
+     * @return the results, the caller's own copy
+     */
+    public Cursor aggregate(DBCollection collection, List<DBObject> pipeline, AggregationOptions options,
+                            ReadPreference readPref, String fingerprint) {
+        requestCount.incrementAndGet();
+        if (!isCoalescable(pipeline)) {
+            executedCount.incrementAndGet();
+            return collection.aggregate(pipeline, options, readPref);
+        }
+
+        final String key = key(collection, pipeline, options, readPref, fingerprint);
+        while (true) {
+            final Flight flight = inFlight.get(key);
+            if (flight != null) {
+                if (flight.join()) {
+                    return awaitFollower(flight, collection, pipeline, options, readPref);
+                }
+                continue;                 // completed meanwhile, and about to be removed
+            }
+            final Flight leader = new Flight();
+            if (inFlight.putIfAbsent(key, leader) == null) {
+                return lead(key, leader, collection, pipeline, options, readPref);
+            }
+        }
+    }
+
+    private Cursor lead(String key, Flight flight, DBCollection collection, List<DBObject> pipeline,
+                        AggregationOptions options, ReadPreference readPref) {
+        executedCount.incrementAndGet();
+        final List<DBObject> buffered = new ArrayList<DBObject>();
+        Cursor cursor = null;
+        boolean overflow = false;
+        boolean buffering = true;
+        try {
+            cursor = collection.aggregate(pipeline, options, readPref);
+            while (cursor.hasNext()) {
+                if (buffered.size() == maxBufferedDocuments) {
+                    overflow = true;
+                    break;
+                }
+                buffered.add(cursor.next());
+            }
+            buffering = false;
+        } finally {
+            // whatever was thrown, Errors included, the followers must not wait for a flight that never completes
+            if (buffering) {
+                inFlight.remove(key, flight);
+                flight.complete(null);
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+
+        inFlight.remove(key, flight);
+        if (overflow) {
+            overflowCount.incrementAndGet();
+            flight.complete(null);
+            return new BufferedCursor(buffered, cursor);
+        }
+        cursor.close();
+
+        final int followers = flight.complete(buffered);
+        if (followers > 0 && logger.isDebugEnabled()) {
+            logger.debug("collapsed " + followers + " identical aggregate(s) on " + collection.getFullName());
+        }
+        // the buffered documents are the followers' master copy, the leader gets a copy as well if there are any
+        return new BufferedCursor(followers == 0 ? buffered : copy(buffered), null);
+    }
+
+    private Cursor awaitFollower(Flight flight, DBCollection collection, List<DBObject> pipeline,
+                                 AggregationOptions options, ReadPreference readPref) {
+        final List<DBObject> results = flight.await();
+        if (results == null) {
+            // the leader's result was too large to buffer, failed, or we were interrupted: run our own
+            executedCount.incrementAndGet();
+            return collection.aggregate(pipeline, options, readPref);
+        }
+        collapsedCount.incrementAndGet();
+        return new BufferedCursor(copy(results), null);
+    }
+
+    /**
+     * @return true unless the pipeline writes its results, with $out or $merge
+     */
+    static boolean isCoalescable(List<DBObject> pipeline) {
+        for (DBObject stage : pipeline) {
+            if (stage.containsField("$out") || stage.containsField("$merge")) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static String key(DBCollection collection, List<DBObject> pipeline, AggregationOptions options,
+                              ReadPreference readPref, String fingerprint) {
+        // the batch size does not change the results and is left out
+        final DBObject key = new BasicDBObject("ns", collection.getFullName())
+                .append("fingerprint", fingerprint)
+                .append("readPreference", (readPref == null) ? null : readPref.toDBObject())
+                .append("allowDiskUse", options.getAllowDiskUse())
+                .append("outputMode", String.valueOf(options.getOutputMode()))
+                .append("maxTimeMS", options.getMaxTime(TimeUnit.MILLISECONDS))
+                .append("pipeline", pipeline);
+        return JSON.serialize(key);
+    }
+
+    private static List<DBObject> copy(List<DBObject> documents) {
+        final List<DBObject> copies = new ArrayList<DBObject>(documents.size());
+        for (DBObject document : documents) {
+            copies.add((document instanceof BasicDBObject) ? (DBObject) ((BasicDBObject) document).copy()
+                    : (DBObject) JSON.parse(JSON.serialize(document)));
+        }
+        return copies;
+    }
+
+    public int getMaxBufferedDocuments() {
+        return maxBufferedDocuments;
+    }
+
+    /**
+     * @return the number of aggregates requested
+     */
+    public long getRequestCount() {
+        return requestCount.get();
+    }
+
+    /**
+     * @return the number of aggregates actually run on the server
+     */
+    public long getExecutedCount() {
+        return executedCount.get();
+    }
+
+    /**
+     * @return the number of requests served from another request's results
+     */
+    public long getCollapsedCount() {
+        return collapsedCount.get();
+    }
+
+    /**
+     * @return the number of results too large to be shared
+     */
+    public long getOverflowCount() {
+        return overflowCount.get();
+    }
+
+    /**
+     * @return the number of aggregates currently running that can be joined
+     */
+    public int getInFlightCount() {
+        return inFlight.size();
+    }
+
+    /**
+     * reset the request, executed, collapsed and overflow counts
+     */
+    public void resetStats() {
+        requestCount.set(0);
+        executedCount.set(0);
+        collapsedCount.set(0);
+        overflowCount.set(0);
+    }
+
+    @Override
+    public String toString() {
+        return "RequestCoalescer{maxBufferedDocuments=" + maxBufferedDocuments + ", requestCount=" + getRequestCount()
+                + ", executedCount=" + getExecutedCount() + ", collapsedCount=" + getCollapsedCount()
+                + ", overflowCount=" + getOverflowCount() + "}";
+    }
+
+
+    /**
+     * one running aggregate and the requests waiting for it
+     */
+    private static final class Flight {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private int followers;
+        private boolean completed;
+        private List<DBObject> results;
+
+        /**
+         * @return false if the flight already completed and can't be joined
+         */
+        synchronized boolean join() {
+            if (completed) {
+                return false;
+            }
+            followers++;
+            return true;
+        }
+
+        /**
+         * @param results the buffered results, or null if the followers must run their own aggregate
+         * @return the number of followers that joined
+         */
+        int complete(List<DBObject> results) {
+            final int joined;
+            synchronized (this) {
+                this.results = results;
+                this.completed = true;
+                joined = followers;
+            }
+            done.countDown();
+            return joined;
+        }
+
+        List<DBObject> await() {
+            try {
+                done.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            }
+            synchronized (this) {
+                return results;
+            }
+        }
+    }
+}
@@ -1,6 +1,8 @@
 package com.mongodb.flac;
 
 
+import com.mongodb.util.JSON;
+
 import java.util.*;
 
 /**
@@ -79,5 +81,69 @@ public class SecurityAttributes extends HashMap<String, Object> {
         return stringBuilder.toString();
     }
 
+    /**
+     * Return a stable fingerprint of the security attributes stored in this map.  Two instances that grant the same
+     * set of key/value labels produce the same fingerprint, regardless of the order in which the keys were put into
+     * the map or the order of the values in each list.  Values are trimmed, de-duplicated and sorted, and keys
+     * without any value are ignored, mirroring what {@link #encodeAttributes()} emits.
+     *
+     * <p>The fingerprint is used as a cache key for the $redact stage built for this user, see
+     * {@link RedactCommandCache}.  A subclass that overrides {@link #encodeAttributes()} with output that is not
+     * determined by the map entries alone must also override this method.</p>
+     *
+     * @return canonical fingerprint, e.g. <tt>{ "c" : [ "C" , "S" , "TS" , "U"] , "sci" : [ "TK"]}</tt>
+     */
+    public String getFingerprint() {
+
+        final TreeMap<String, List<String>> canonical = new TreeMap<String, List<String>>();
+
+        for (String key : this.keySet()) {
+            final Set<String> values = new TreeSet<String>(getLabelValues(key));
+            if (!values.isEmpty()) {
+                canonical.put(key, new ArrayList<String>(values));
+            }
+        }
+
+        // JSON escapes the keys and values, so distinct label sets can never collide on the same fingerprint
+        return JSON.serialize(canonical);
+    }
+
+    /**
+     * Return an immutable copy of these security attributes with precomputed encodings, to share between threads.
+     *
+     * @return a new snapshot; later changes to this map are not reflected in it
+     * @see SecurityAttributesSnapshot
+     */
+    public SecurityAttributesSnapshot snapshot() {
+        return new SecurityAttributesSnapshot(this);
+    }
+
+    /**
+     * Return the trimmed, non null values granted for one key, e.g. <tt>[ "TS", "S", "C", "U" ]</tt> for key "c".
+     *
+     * @param key a security attribute key like "c" or "sci"
+     * @return the values in insertion order, empty if the key is not present
+     */
+    @SuppressWarnings("unchecked")
+    public Set<String> getLabelValues(String key) {
+        final Object obj = this.get(key);
+        if (obj == null) {
+            return Collections.emptySet();
+        }
+        List<String> valList = null;
+        if (obj instanceof List) {        // we allow items to be either a String or List<String>
+            valList = (List<String>) obj;
+        } else {
+            valList = Arrays.asList( (String) obj );
+        }
+        final Set<String> values = new LinkedHashSet<String>();
+        for (String val : valList) {
+            if (val != null) {
+                values.add(val.trim());
+            }
+        }
+        return values;
+    }
+
 }
 
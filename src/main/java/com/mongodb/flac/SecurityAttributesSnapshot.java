@@ -0,0 +1,255 @@
+package com.mongodb.flac;
+
+import com.mongodb.util.JSON;
+
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+
+/**
+ * An immutable copy of a user's {@link SecurityAttributes}, with its encodings computed once, so it can be shared
+ * by all the request threads of a user session without locking, e.g. by the {@link RedactedDBCollection}'s of a
+ * session.
+ *
+ * <p>The labels are copied from {@link SecurityAttributes#getLabelValues(String)}: values are trimmed, de-duplicated
+ * and sorted, and keys without any value are dropped.  {@link #encodeAttributes()} is canonical, in key then value
+ * order, so equal snapshots always encode the same, and it, {@link #getFingerprint()}, {@link #getFingerprintHash()}
+ * and {@link #hashCode()} are computed in the constructor.  Comparing two snapshots compares their hashes before
+ * their fingerprints.</p>
+ *
+ * <p>A snapshot is not a map: {@link #asMap()} is a read only view of each key's sorted values.  The
+ * {@link RedactExpression}'s of a collection built with a snapshot are given an equivalent, read only,
+ * SecurityAttributes, which answers the encodings of the snapshot.  A subclass of SecurityAttributes whose
+ * {@link SecurityAttributes#encodeAttributes()} is not determined by its label values can't be snapshot.</p>
+ * <pre>
+ *     SecurityAttributesSnapshot snapshot = userSecurityAttributes.snapshot();   // once per session
+ *     RedactedDBCollection redactedDBCollection = new RedactedDBCollection(dbCollection, snapshot, redactExpression);
+ * </pre>
+ */
+public final class SecurityAttributesSnapshot {
+
+    private final SortedMap<String, SortedSet<String>> labels;
+    private final Map<String, List<String>> readOnlyView;
+    private final String encoded;
+    private final String fingerprint;
+    private final long fingerprintHigh;
+    private final long fingerprintLow;
+    private final int hash;
+    private final SecurityAttributes securityAttributes;
+
+    /**
+     * @param securityAttributes the user's security attributes; later changes to them are not reflected
+     */
+    public SecurityAttributesSnapshot(SecurityAttributes securityAttributes) {
+        RedactedDBCollection.checkNotNull(securityAttributes, "securityAttributes can't be null");
+
+        final SortedMap<String, SortedSet<String>> sorted = new TreeMap<String, SortedSet<String>>();
+        final SortedMap<String, List<String>> canonical = new TreeMap<String, List<String>>();
+        for (String key : securityAttributes.keySet()) {
+            final SortedSet<String> values = new TreeSet<String>(securityAttributes.getLabelValues(key));
+            if (!values.isEmpty()) {
+                sorted.put(key, Collections.unmodifiableSortedSet(values));
+                canonical.put(key, Collections.unmodifiableList(new ArrayList<String>(values)));
+            }
+        }
+        this.readOnlyView = Collections.unmodifiableMap(canonical);
+        this.labels = Collections.unmodifiableSortedMap(sorted);
+
+        final StringBuilder stringBuilder = new StringBuilder("[ ");
+        boolean first = true;
+        for (Map.Entry<String, SortedSet<String>> entry : sorted.entrySet()) {
+            for (String value : entry.getValue()) {
+                if (!first) {
+                    stringBuilder.append(", ");
+                }
+                first = false;
+                stringBuilder.append("{ ").append(entry.getKey()).append(":\"").append(value).append("\" }");
+            }
+        }
+        this.encoded = stringBuilder.append(" ]").toString();
+
+        // the same canonical form as SecurityAttributes#getFingerprint(), so snapshots share cache entries with maps
+        this.fingerprint = JSON.serialize(canonical);
+        final byte[] digest = md5(fingerprint);
+        this.fingerprintHigh = toLong(digest, 0);
+        this.fingerprintLow = toLong(digest, 8);
+        this.hash = canonical.hashCode();
+        this.securityAttributes = new SnapshotAttributes(this);
+    }
+
+    private static byte[] md5(String s) {
+        try {
+            return MessageDigest.getInstance("MD5").digest(s.getBytes("UTF-8"));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("MD5 is not available", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException("UTF-8 is not available", e);
+        }
+    }
+
+    private static long toLong(byte[] bytes, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (bytes[i] & 0xff);
+        }
+        return value;
+    }
+
+    /**
+     * @return the labels, key to sorted values
+     */
+    public SortedMap<String, SortedSet<String>> getLabels() {
+        return labels;
+    }
+
+    /**
+     * @return a read only view of the labels, key to the list of its sorted values
+     */
+    public Map<String, List<String>> asMap() {
+        return readOnlyView;
+    }
+
+    /**
+     * @param key a security attribute key like "c" or "sci"
+     * @return the sorted values granted for the key, empty if the key is not present
+     */
+    public Set<String> getLabelValues(String key) {
+        final Set<String> values = labels.get(key);
+        return (values == null) ? Collections.<String>emptySet() : values;
+    }
+
+    /**
+     * @return the canonical encoding, see {@link SecurityAttributes#encodeAttributes()}
+     */
+    public String encodeAttributes() {
+        return encoded;
+    }
+
+    /**
+     * @return the canonical fingerprint, the same as {@link SecurityAttributes#getFingerprint()} of the attributes
+     */
+    public String getFingerprint() {
+        return fingerprint;
+    }
+
+    /**
+     * @return a 128 bit hash of the fingerprint, as 32 hex digits; compact, e.g. for logs and metrics, but unlike
+     * {@link #getFingerprint()} not collision free
+     */
+    public String getFingerprintHash() {
+        return String.format("%016x%016x", fingerprintHigh, fingerprintLow);
+    }
+
+    /**
+     * @return the first 64 bits of {@link #getFingerprintHash()}
+     */
+    public long getFingerprint64() {
+        return fingerprintHigh;
+    }
+
+    /**
+     * @return the snapshot as read only SecurityAttributes, shared by every collection built with the snapshot and
+     * only handed to their redact expressions and prefilters
+     */
+    SecurityAttributes getSecurityAttributes() {
+        return securityAttributes;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof SecurityAttributesSnapshot)) {
+            return false;
+        }
+        final SecurityAttributesSnapshot other = (SecurityAttributesSnapshot) o;
+        return fingerprintHigh == other.fingerprintHigh && fingerprintLow == other.fingerprintLow
+                && fingerprint.equals(other.fingerprint);
+    }
+
+    @Override
+    public int hashCode() {
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return "SecurityAttributesSnapshot" + readOnlyView;
+    }
+
+
+    /**
+     * the SecurityAttributes of a snapshot: holds the same entries, answers the snapshot's precomputed encodings,
+     * and refuses the mutators SecurityAttributes has always had
+     */
+    private static final class SnapshotAttributes extends SecurityAttributes {
+
+        private static final long serialVersionUID = 1L;
+
+        private final SecurityAttributesSnapshot snapshot;
+        private final Map<String, Object> readOnlyView;
+
+        SnapshotAttributes(SecurityAttributesSnapshot snapshot) {
+            super(snapshot.readOnlyView);
+            this.snapshot = snapshot;
+            this.readOnlyView = Collections.unmodifiableMap(new HashMap<String, Object>(snapshot.readOnlyView));
+        }
+
+        @Override
+        public String encodeAttributes() {
+            return snapshot.encoded;
+        }
+
+        @Override
+        public String getFingerprint() {
+            return snapshot.fingerprint;
+        }
+
+        @Override
+        public Set<String> getLabelValues(String key) {
+            return snapshot.getLabelValues(key);
+        }
+
+        @Override
+        public SecurityAttributesSnapshot snapshot() {
+            return snapshot;
+        }
+
+        @Override
+        public Object put(String key, Object value) {
+            throw new UnsupportedOperationException("a SecurityAttributesSnapshot is immutable");
+        }
+
+        @Override
+        public void putAll(Map<? extends String, ?> m) {
+            throw new UnsupportedOperationException("a SecurityAttributesSnapshot is immutable");
+        }
+
+        @Override
+        public Object remove(Object key) {
+            throw new UnsupportedOperationException("a SecurityAttributesSnapshot is immutable");
+        }
+
+        @Override
+        public void clear() {
+            throw new UnsupportedOperationException("a SecurityAttributesSnapshot is immutable");
+        }
+
+        @Override
+        public Set<String> keySet() {
+            return readOnlyView.keySet();
+        }
+
+        @Override
+        public Collection<Object> values() {
+            return readOnlyView.values();
+        }
+
+        @Override
+        public Set<Map.Entry<String, Object>> entrySet() {
+            return readOnlyView.entrySet();
+        }
+    }
+}
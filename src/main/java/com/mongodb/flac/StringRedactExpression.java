@@ -39,6 +39,13 @@ public class StringRedactExpression implements RedactExpression {
         }
     }
 
+    /**
+     * @return the document field name used for the security attributes/markings, e.g. sl
+     */
+    public String getSecurityFieldName() {
+        return securityFieldName;
+    }
+
     /**
      * Return the redaction expression <code>String</code> based on the
      * specified {@link com.mongodb.flac.SecurityAttributes}</code>.
@@ -55,4 +62,27 @@ public class StringRedactExpression implements RedactExpression {
         return String.format(redactExpression, securityFieldName, visibilityAttributesForUser);
     }
 
+    /**
+     * @return true for an expression of the same class, security field and template, e.g. to share the entries of
+     * a {@link RedactCommandCache}
+     */
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || o.getClass() != getClass()) {
+            return false;
+        }
+        final StringRedactExpression other = (StringRedactExpression) o;
+        return redactExpression.equals(other.redactExpression)
+                && (securityFieldName == null ? other.securityFieldName == null : securityFieldName.equals(other.securityFieldName));
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * (31 * getClass().hashCode() + redactExpression.hashCode())
+                + (securityFieldName == null ? 0 : securityFieldName.hashCode());
+    }
+
 }
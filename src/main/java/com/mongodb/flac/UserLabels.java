@@ -0,0 +1,125 @@
+package com.mongodb.flac;
+
+import com.mongodb.DBObject;
+
+import java.util.*;
+
+/**
+ * The labels granted to a user, precomputed into hash sets for fast in-JVM evaluation of security markings.
+ *
+ * <p>A security marking is a CNF: a list of clauses, each clause a list of labels like <tt>{ c:"TS" }</tt>.
+ * The marking is satisfied when every clause is empty or holds at least one label granted to the user.
+ * These are the semantics of the $redact expression in {@link com.mongodb.flac.capco.CapcoRedactExpression},
+ * including its treatment of a missing or null marking as satisfied.  A marking that is not a list of lists can
+ * not be evaluated by the server either, it is never satisfied here.</p>
+ *
+ * <p>Instances are immutable and can be shared between threads.  Evaluating a marking does not allocate.</p>
+ */
+public final class UserLabels {
+
+    private final Map<String, Set<String>> labels;
+
+    /**
+     * @param securityAttributes the user's security attributes; later changes to them are not reflected
+     */
+    public UserLabels(SecurityAttributes securityAttributes) {
+        RedactedDBCollection.checkNotNull(securityAttributes, "securityAttributes can't be null");
+        final Map<String, Set<String>> map = new HashMap<String, Set<String>>();
+        for (String key : securityAttributes.keySet()) {
+            final Set<String> values = securityAttributes.getLabelValues(key);
+            if (!values.isEmpty()) {
+                map.put(key, Collections.unmodifiableSet(new HashSet<String>(values)));
+            }
+        }
+        this.labels = Collections.unmodifiableMap(map);
+    }
+
+    /**
+     * @param key   a label key like "c"
+     * @param value a label value like "TS"
+     * @return true if the user was granted the label
+     */
+    public boolean contains(String key, String value) {
+        final Set<String> values = labels.get(key);
+        return values != null && values.contains(value);
+    }
+
+    /**
+     * @param label a label document like <tt>{ c:"TS" }</tt>
+     * @return true if the label is a single key/value document granted to the user
+     */
+    public boolean contains(Object label) {
+        if (!(label instanceof DBObject)) {
+            return false;
+        }
+        final DBObject labelDocument = (DBObject) label;
+        if (labelDocument instanceof List || labelDocument.keySet().size() != 1) {
+            return false;
+        }
+        final String key = labelDocument.keySet().iterator().next();
+        final Object value = labelDocument.get(key);
+        return value instanceof String && contains(key, (String) value);
+    }
+
+    /**
+     * @param marking the value of a security field, e.g. <tt>[ [ { c:"TS" } ], [ { sci:"SI" }, { sci:"TK" } ] ]</tt>
+     * @return true if the user satisfies the marking
+     */
+    public boolean satisfies(Object marking) {
+        if (marking == null) {
+            return true;                  // $ifNull: [ "$sl", [[]] ]
+        }
+        if (!(marking instanceof List)) {
+            return false;
+        }
+        final List<?> clauses = (List<?>) marking;
+        for (int i = 0, n = clauses.size(); i < n; i++) {
+            if (!satisfiesClause(clauses.get(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @param clause one clause of a marking, a list of alternative labels
+     * @return true if the clause is empty or holds a label granted to the user
+     */
+    public boolean satisfiesClause(Object clause) {
+        if (!(clause instanceof List)) {
+            return false;
+        }
+        final List<?> alternatives = (List<?>) clause;
+        if (alternatives.isEmpty()) {
+            return true;
+        }
+        for (int i = 0, n = alternatives.size(); i < n; i++) {
+            if (contains(alternatives.get(i))) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return the granted labels, label key to values
+     */
+    public Map<String, Set<String>> asMap() {
+        return labels;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return this == o || (o instanceof UserLabels && labels.equals(((UserLabels) o).labels));
+    }
+
+    @Override
+    public int hashCode() {
+        return labels.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "UserLabels" + labels;
+    }
+}
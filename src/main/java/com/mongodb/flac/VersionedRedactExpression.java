@@ -0,0 +1,16 @@
+package com.mongodb.flac;
+
+/**
+ * A <code>RedactExpression</code> whose expressions change over time, e.g. when the {@link MarkingSchema} they are
+ * built from is refreshed.  {@link RedactCommandCache} keys its entries by the version too, so expressions of an
+ * older version are not returned once the version changed.
+ *
+ */
+public interface VersionedRedactExpression extends RedactExpression {
+
+    /**
+     * @return the version of the expressions built now; it only changes when they change
+     */
+    public long getVersion();
+
+}
@@ -0,0 +1,189 @@
+package com.mongodb.flac;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+
+import java.util.*;
+
+/**
+ * Checks the security markings of the documents and updates a user writes, so that a user can not write data
+ * above their own entitlements: every marked sub-document written, including the document root and documents
+ * embedded in arrays, must carry a marking that the writer satisfies.  A marking the writer satisfies is one they
+ * could read back, see {@link UserLabels#satisfies(Object)}.
+ *
+ * <p>The checks run in the JVM against the writer's precomputed {@link UserLabels}, so validating a document costs
+ * one walk over it with a few hash lookups per marking.</p>
+ *
+ * <p>For updates, the marking of an updated path can only be set with $set or $setOnInsert, any other operator on
+ * a marking, e.g. $unset or $rename, is rejected since it could declassify the sub-document.  The documents an
+ * update or replacement may target are restricted with {@link #guardQuery(DBObject, DBObject)} to those whose root,
+ * and whose sub-documents along the updated paths, the writer can see.  Note that the query itself runs on the
+ * un-redacted documents, so it should only reference fields that carry no security markings.</p>
+ *
+ * <p>Instances are immutable and can be shared between threads.</p>
+ */
+public class WriteValidator {
+
+    private final String securityFieldName;
+    private final UserLabels userLabels;
+    private final DBObject satisfiedCondition;
+
+    /**
+     * @param securityFieldName a field name, like sl , that we use in our documentation describing FLAC
+     * @param userLabels        the writer's precomputed labels
+     */
+    public WriteValidator(String securityFieldName, UserLabels userLabels) {
+        this.securityFieldName = RedactedDBCollection.checkNotNull(securityFieldName, "securityFieldName can't be null");
+        this.userLabels = RedactedDBCollection.checkNotNull(userLabels, "userLabels can't be null");
+
+        // no clause is both non-empty and without any of the writer's labels; a missing marking also matches
+        final BasicDBList labels = new BasicDBList();
+        for (Map.Entry<String, Set<String>> entry : userLabels.asMap().entrySet()) {
+            for (String value : entry.getValue()) {
+                labels.add(new BasicDBObject(entry.getKey(), value));
+            }
+        }
+        this.satisfiedCondition = new BasicDBObject("$not", new BasicDBObject("$elemMatch",
+                new BasicDBObject("$ne", new BasicDBList())
+                        .append("$not", new BasicDBObject("$elemMatch", new BasicDBObject("$in", labels)))));
+    }
+
+    public String getSecurityFieldName() {
+        return securityFieldName;
+    }
+
+    public UserLabels getUserLabels() {
+        return userLabels;
+    }
+
+    /**
+     * check a document to insert, or a replacement document
+     *
+     * @param document the document
+     * @throws IllegalArgumentException naming the path of the first sub-document whose marking the writer does not satisfy
+     */
+    public void validateDocument(DBObject document) {
+        RedactedDBCollection.checkNotNull(document, "document can't be null");
+        validateValue("", document);
+    }
+
+    /**
+     * check an update, either a replacement document or a document of update operators
+     *
+     * @param update the update
+     * @throws IllegalArgumentException naming the path of the first violation
+     */
+    public void validateUpdate(DBObject update) {
+        RedactedDBCollection.checkNotNull(update, "update can't be null");
+        if (!isOperatorUpdate(update)) {
+            validateDocument(update);
+            return;
+        }
+        for (String operator : update.keySet()) {
+            final Object spec = update.get(operator);
+            if (!(spec instanceof DBObject)) {
+                throw new IllegalArgumentException("malformed update, " + operator + " must be a document");
+            }
+            for (String path : ((DBObject) spec).keySet()) {
+                final Object value = ((DBObject) spec).get(path);
+                if (isSecurityPath(path)) {
+                    if (!"$set".equals(operator) && !"$setOnInsert".equals(operator)) {
+                        throw new IllegalArgumentException(operator + " can't be applied to the security marking " + path);
+                    }
+                    if (!userLabels.satisfies(value)) {
+                        throw new IllegalArgumentException("writing above the writer's entitlements at " + path + ": " + value);
+                    }
+                } else if ("$rename".equals(operator) && value instanceof String && isSecurityPath((String) value)) {
+                    throw new IllegalArgumentException("$rename can't overwrite the security marking " + value);
+                } else {
+                    validateValue(path, value);
+                }
+            }
+        }
+    }
+
+    /**
+     * restrict the query of an update or replacement to the documents the writer may write to: those whose root
+     * marking, and the markings of the sub-documents along the updated paths, the writer satisfies
+     *
+     * @param query  the query, or null
+     * @param update the update
+     * @return the guarded query
+     */
+    public DBObject guardQuery(DBObject query, DBObject update) {
+        final Set<String> prefixes = new LinkedHashSet<String>();
+        if (update != null && isOperatorUpdate(update)) {
+            for (String operator : update.keySet()) {
+                final Object spec = update.get(operator);
+                if (spec instanceof DBObject) {
+                    for (String path : ((DBObject) spec).keySet()) {
+                        addPrefixes(path, prefixes);
+                    }
+                }
+            }
+        }
+
+        final List<DBObject> conjuncts = new ArrayList<DBObject>();
+        if (query != null && !query.keySet().isEmpty()) {
+            conjuncts.add(query);
+        }
+        conjuncts.add(new BasicDBObject(securityFieldName, satisfiedCondition));
+        for (String prefix : prefixes) {
+            conjuncts.add(new BasicDBObject(prefix + "." + securityFieldName, satisfiedCondition));
+        }
+        return PredicatePushdown.combine(conjuncts);
+    }
+
+    /**
+     * add the paths of the sub-documents an updated path goes through, up to a positional segment
+     */
+    private void addPrefixes(String path, Set<String> prefixes) {
+        final StringBuilder prefix = new StringBuilder();
+        for (String segment : path.split("\\.")) {
+            if (segment.startsWith("$") || segment.equals(securityFieldName)) {
+                return;
+            }
+            if (prefix.length() > 0) {
+                prefix.append('.');
+            }
+            prefix.append(segment);
+            prefixes.add(prefix.toString());
+        }
+    }
+
+    private void validateValue(String path, Object value) {
+        if (value instanceof List) {
+            final List<?> list = (List<?>) value;
+            for (int i = 0, n = list.size(); i < n; i++) {
+                validateValue(path + "." + i, list.get(i));
+            }
+        } else if (value instanceof DBObject) {
+            final DBObject document = (DBObject) value;
+            final Object marking = document.get(securityFieldName);
+            if (!userLabels.satisfies(marking)) {
+                throw new IllegalArgumentException("writing above the writer's entitlements at "
+                        + ((path.length() == 0) ? "the document root" : path) + ": " + marking);
+            }
+            for (String key : document.keySet()) {
+                if (!key.equals(securityFieldName)) {
+                    validateValue((path.length() == 0) ? key : path + "." + key, document.get(key));
+                }
+            }
+        }
+    }
+
+    private boolean isSecurityPath(String path) {
+        return path.equals(securityFieldName) || path.endsWith("." + securityFieldName);
+    }
+
+    static boolean isOperatorUpdate(DBObject update) {
+        final Iterator<String> keys = update.keySet().iterator();
+        return keys.hasNext() && keys.next().startsWith("$");
+    }
+
+    @Override
+    public String toString() {
+        return "WriteValidator{securityFieldName=" + securityFieldName + ", userLabels=" + userLabels + "}";
+    }
+}
@@ -0,0 +1,27 @@
+package com.mongodb.flac.capco;
+
+import com.mongodb.flac.EntitlementPrefilter;
+import com.mongodb.flac.RedactPrefilter;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * An <code>EntitlementPrefilter</code> for CAPCO markings, with the classification levels TS, S, C and U as the
+ * label universe of the clearance key "c".
+ *
+ * <p>E.g. for a user with clearance C the leading $match excludes every document whose root marking has a
+ * <tt>[ { c:"TS" } ]</tt> or <tt>[ { c:"S" } ]</tt> clause, before $redact has to look at it.</p>
+ *
+ * @see com.mongodb.flac.EntitlementPrefilter
+ */
+public class CapcoEntitlementPrefilter extends EntitlementPrefilter implements RedactPrefilter {
+
+    public static final List<String> CAPCO_CLASSIFICATIONS = Collections.unmodifiableList(Arrays.asList("TS", "S", "C", "U"));
+
+    public CapcoEntitlementPrefilter(String securityFieldName) {
+        super(securityFieldName, Collections.singletonMap("c", CAPCO_CLASSIFICATIONS));
+    }
+
+}
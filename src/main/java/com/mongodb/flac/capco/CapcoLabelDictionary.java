@@ -0,0 +1,43 @@
+package com.mongodb.flac.capco;
+
+import com.mongodb.flac.LabelDictionary;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A <code>LabelDictionary</code> for CAPCO markings, with the classification levels TS, S, C and U of the clearance
+ * key "c" at bits 0 to 3, followed by the labels of any other keys, e.g. sci.
+ *
+ * <p>{@link #getUserMask(com.mongodb.flac.SecurityAttributes)} encodes a <code>CapcoSecurityAttributes</code> after its
+ * clearance expansion, e.g. clearance S sets the bits of S, C and U.</p>
+ *
+ * @see com.mongodb.flac.LabelDictionary
+ */
+public class CapcoLabelDictionary extends LabelDictionary {
+
+    public CapcoLabelDictionary() {
+        this(Collections.<String, Collection<String>>emptyMap());
+    }
+
+    /**
+     * @param otherLabels for each label key other than "c", every value that may appear in documents,
+     *                    e.g. sci=[SI, TK, G, HCS]
+     */
+    public CapcoLabelDictionary(Map<String, ? extends Collection<String>> otherLabels) {
+        super(withClassifications(otherLabels));
+    }
+
+    private static Map<String, Collection<String>> withClassifications(Map<String, ? extends Collection<String>> otherLabels) {
+        if (otherLabels.containsKey("c")) {
+            throw new IllegalArgumentException("the classification levels of key c are predefined");
+        }
+        final Map<String, Collection<String>> universe = new LinkedHashMap<String, Collection<String>>();
+        universe.put("c", CapcoEntitlementPrefilter.CAPCO_CLASSIFICATIONS);
+        universe.putAll(otherLabels);
+        return universe;
+    }
+
+}
@@ -1,7 +1,24 @@
 package com.mongodb.flac.capco;
 
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.flac.ClientSideRedactExpression;
+import com.mongodb.flac.DBObjectRedactExpression;
+import com.mongodb.flac.DocumentLevelRedactExpression;
+import com.mongodb.flac.DocumentRedactor;
 import com.mongodb.flac.RedactExpression;
+import com.mongodb.flac.SecurityAttributes;
 import com.mongodb.flac.StringRedactExpression;
+import com.mongodb.util.JSON;
+import org.bson.BSONObject;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * A <code>RedactExpression</code> implementation specific to CAPCO.
@@ -22,9 +39,23 @@ import com.mongodb.flac.StringRedactExpression;
  *      <pre><tt>a sl b [ { c:"TS" }, { c:"S" }, { c:"C" }, { c:"U" } ] </tt></pre>
  * </p>
  *
+ * <p>The same expression is also built directly as a <code>DBObject</code>, see
+ *    {@link #getRedactExpressionObject(com.mongodb.flac.SecurityAttributes)}, which is what
+ *    {@link com.mongodb.flac.RedactedDBCollection} uses.  There the user's labels are bound with a $let, so the
+ *    test of the markings is built once per instance, read only, and shared by all the expressions it returns:
+ *    <pre><tt>{ $cond: { if: { $let: { vars: { userLabels: [ ... ] }, in: { $allElementsTrue: ... } } },
+ *    then: "$$DESCEND", else: "$$PRUNE" } }</tt></pre></p>
+ *
+ * <p>The same semantics are implemented in the JVM by {@link com.mongodb.flac.DocumentRedactor}, for client side
+ *    redaction.</p>
+ *
+ * <p>For collections marked at the root only, the test of the root is also available as a query, see
+ *    {@link #getDocumentLevelQuery(com.mongodb.flac.SecurityAttributes)}.</p>
+ *
  *
  */
-public class CapcoRedactExpression extends StringRedactExpression implements RedactExpression {
+public class CapcoRedactExpression extends StringRedactExpression implements RedactExpression,
+        ClientSideRedactExpression, DBObjectRedactExpression, DocumentLevelRedactExpression {
     
     public final static String CAPCO_REDACT_EXPRESSION = "{"
             + "  $cond: {"
@@ -53,8 +84,189 @@ public class CapcoRedactExpression extends StringRedactExpression implements Red
             + "  }"
             + "}";
 
+    /** the $let variable holding the user's labels in {@link #getRedactExpressionObject(SecurityAttributes)} */
+    static final String USER_LABELS = "userLabels";
+
+    // the test of the markings against $$userLabels, shared by every expression built, read only
+    private final DBObject markingsSatisfied;
+
     public CapcoRedactExpression(String securityFieldName) {
         super(securityFieldName, CAPCO_REDACT_EXPRESSION);
+
+        final BasicDBList ifNull = new BasicDBList();
+        ifNull.add("$" + securityFieldName);
+        final BasicDBList emptyMarking = new BasicDBList();
+        emptyMarking.add(new BasicDBList());
+        ifNull.add(emptyMarking);
+
+        final DBObject emptyClauseTest = new BasicDBObject("$eq", pair(new BasicDBObject("$size", "$$setNeeded"), 0));
+        final DBObject intersection = new BasicDBObject("$setIntersection", pair("$$setNeeded", "$$" + USER_LABELS));
+        final DBObject holdsUserLabel = new BasicDBObject("$gt", pair(new BasicDBObject("$size", intersection), 0));
+        final DBObject clauseSatisfied = new BasicDBObject("$cond",
+                new BasicDBObject("if", new BasicDBObject("$or", pair(emptyClauseTest, holdsUserLabel)))
+                        .append("then", true)
+                        .append("else", false));
+        final DBObject map = new BasicDBObject("input", new BasicDBObject("$ifNull", ifNull))
+                .append("as", "setNeeded")
+                .append("in", clauseSatisfied);
+        this.markingsSatisfied = (DBObject) readOnly(new BasicDBObject("$allElementsTrue", new BasicDBObject("$map", map)));
+    }
+
+    /**
+     * Build the equivalent of {@link #getRedactExpression(com.mongodb.flac.SecurityAttributes)}, without
+     * formatting and parsing JSON.  The user's labels are bound to <tt>$$userLabels</tt> by a $let around the
+     * test of the markings, which is built once; only the root $cond, the $let and the label array are allocated
+     * per call.
+     *
+     * @param securityAttributes the user's security attributes
+     * @return the redaction expression, sharing its read only test of the markings with other expressions of
+     * this instance
+     */
+    public DBObject getRedactExpressionObject(SecurityAttributes securityAttributes) {
+        final DBObject let = new BasicDBObject("vars", new BasicDBObject(USER_LABELS, getUserLabels(securityAttributes)))
+                .append("in", markingsSatisfied);
+        return new BasicDBObject("$cond",
+                new BasicDBObject("if", new BasicDBObject("$let", let))
+                        .append("then", "$$DESCEND")
+                        .append("else", "$$PRUNE"));
+    }
+
+    /**
+     * Build the query matching the documents whose root marking the user satisfies, i.e. that have no clause which
+     * is not empty and holds none of the user's labels:
+     * <pre><tt>
+     *     { sl : { $not : { $elemMatch : { $ne : [ ], $not : { $elemMatch : { $in : [ { c:"S" }, { c:"C" }, ... ] } } } } } }
+     * </tt></pre>
+     * <p>Like the $redact expression it treats a missing marking as visible.</p>
+     *
+     * @param securityAttributes the user's security attributes
+     * @return the query
+     */
+    public DBObject getDocumentLevelQuery(SecurityAttributes securityAttributes) {
+        final DBObject unsatisfiedClause = new BasicDBObject("$ne", new BasicDBList())
+                .append("$not", new BasicDBObject("$elemMatch", new BasicDBObject("$in", getUserLabels(securityAttributes))));
+        return new BasicDBObject(getSecurityFieldName(),
+                new BasicDBObject("$not", new BasicDBObject("$elemMatch", unsatisfiedClause)));
+    }
+
+    public DocumentRedactor getDocumentRedactor(SecurityAttributes securityAttributes) {
+        return new DocumentRedactor(getSecurityFieldName(), securityAttributes);
+    }
+
+    /**
+     * @param securityAttributes the user's security attributes
+     * @return a new list of the user's labels as terms, e.g. <tt>[ { c:"TS" }, { c:"S" }, { sci:"TK" } ]</tt>
+     */
+    public static BasicDBList getUserLabels(SecurityAttributes securityAttributes) {
+        final BasicDBList userLabels = new BasicDBList();
+        for (String key : securityAttributes.keySet()) {
+            for (String value : securityAttributes.getLabelValues(key)) {
+                userLabels.add(new BasicDBObject(key, value));         // a term like { c:"TS" }
+            }
+        }
+        return userLabels;
+    }
+
+    private static BasicDBList pair(Object first, Object second) {
+        final BasicDBList list = new BasicDBList();
+        list.add(first);
+        list.add(second);
+        return list;
+    }
+
+    /**
+     * @return a read only deep copy of a value of an expression
+     */
+    private static Object readOnly(Object value) {
+        if (value instanceof List) {
+            final List<Object> list = new ArrayList<Object>();
+            for (Object element : (List<?>) value) {
+                list.add(readOnly(element));
+            }
+            return Collections.unmodifiableList(list);
+        }
+        if (value instanceof DBObject) {
+            final Map<String, Object> map = new LinkedHashMap<String, Object>();
+            for (String key : ((DBObject) value).keySet()) {
+                map.put(key, readOnly(((DBObject) value).get(key)));
+            }
+            return new ReadOnlyDBObject(map);
+        }
+        return value;
+    }
+
+    /**
+     * A document of an expression that can't be changed, encoded and compared like a <code>BasicDBObject</code>.
+     */
+    private static final class ReadOnlyDBObject implements DBObject {
+
+        private final Map<String, Object> map;
+
+        ReadOnlyDBObject(Map<String, Object> map) {
+            this.map = Collections.unmodifiableMap(map);
+        }
+
+        public Object get(String key) {
+            return map.get(key);
+        }
+
+        public boolean containsField(String s) {
+            return map.containsKey(s);
+        }
+
+        @Deprecated
+        public boolean containsKey(String s) {
+            return containsField(s);
+        }
+
+        public Set<String> keySet() {
+            return map.keySet();
+        }
+
+        @SuppressWarnings("rawtypes")
+        public Map toMap() {
+            return map;
+        }
+
+        public boolean isPartialObject() {
+            return false;
+        }
+
+        public void markAsPartialObject() {
+            throw new UnsupportedOperationException("the expression is read only");
+        }
+
+        public Object put(String key, Object v) {
+            throw new UnsupportedOperationException("the expression is read only");
+        }
+
+        public void putAll(BSONObject o) {
+            throw new UnsupportedOperationException("the expression is read only");
+        }
+
+        @SuppressWarnings("rawtypes")
+        public void putAll(Map m) {
+            throw new UnsupportedOperationException("the expression is read only");
+        }
+
+        public Object removeField(String key) {
+            throw new UnsupportedOperationException("the expression is read only");
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof BSONObject && new BasicDBObject(map).equals(o);
+        }
+
+        @Override
+        public int hashCode() {
+            return new BasicDBObject(map).hashCode();
+        }
+
+        @Override
+        public String toString() {
+            return JSON.serialize(this);
+        }
     }
 
 }
@@ -1,6 +1,7 @@
 package com.mongodb.flac.capco;
 
 
+import com.mongodb.flac.LabelLattice;
 import com.mongodb.flac.SecurityAttributes;
 
 import java.util.*;
@@ -19,20 +20,50 @@ import java.util.*;
  * The setter <b>.setClearance(String)</b> knows how to translate clearance:TS into
  * other lower levels i.e. clearances (S, C, and U).
  * <br/>
- * The setter <b>.setCitizenship(List<String>)</b>  also needs fully expanding, so the implementation below it is not a complete
- * implementation.
+ * The setters <b>.setSci(List<String>)</b> and <b>.setCitizenship(List<String>)</b> expand compartments and relto
+ * values the same way.  The expansions come from a {@link LabelLattice}, by default {@link #DEFAULT_LATTICE}; give
+ * the constructor a lattice loaded from configuration to model the full CAPCO rules of your system.  The setters
+ * store the lattice's read only expansion; the getters replace it by a copy the first time they are called, so the
+ * list they return may be changed, and setting and encoding attributes copies nothing.
  * </p>
  *
  * @see com.mongodb.flac.SecurityAttributes
  */
 public class CapcoSecurityAttributes extends SecurityAttributes {
 
+    private static final long serialVersionUID = 1L;
+
+    /**
+     * the clearance hierarchy TS =&gt; S =&gt; C =&gt; U, and no sci or relto implications
+     */
+    public static final LabelLattice DEFAULT_LATTICE = new LabelLattice.Builder().hierarchy("c", "TS", "S", "C", "U").build();
+
+    private final LabelLattice lattice;
+
+    /** the keys whose value is still a read only list of the lattice */
+    private final Set<String> latticeValues = new HashSet<String>();
 
     public CapcoSecurityAttributes() {
+        this(DEFAULT_LATTICE);
     }
 
     public CapcoSecurityAttributes(Map<? extends String, ?> map) {
         super(map);
+        this.lattice = DEFAULT_LATTICE;
+    }
+
+    /**
+     * @param lattice the implications of clearance ("c"), sci and relto values
+     */
+    public CapcoSecurityAttributes(LabelLattice lattice) {
+        if (lattice == null) {
+            throw new IllegalArgumentException("lattice can't be null");
+        }
+        this.lattice = lattice;
+    }
+
+    public LabelLattice getLattice() {
+        return lattice;
     }
 
 
@@ -41,92 +72,92 @@ public class CapcoSecurityAttributes extends SecurityAttributes {
     ///  as needed.
     ///////////////////////////////
 
-    @SuppressWarnings("unchecked")
     public List<String> getClearance() {
-        return (List<String>) this.get("c");
+        return getLatticeValues("c");
     }
 
     /**
-     * CAPCO specific Clearance levels have a nesting. THIS NEEDS TO FULLY EXPAND ANY IMPLIED ATTRIBUTES,
-     * as by default, we simply use the attribute as is, if you need to  EXPAND you need to override this method
-     * and use your tuned CapcoSecurityAttributes class in your application.
+     * CAPCO specific Clearance levels have a nesting. The clearance is expanded with the lattice into every
+     * clearance it implies.
      * <p/>
-     * <p> IMPLIED TS => S => C => U  is supported by this method, so if you provide a Clearance of TS we
-     * will generate <tt>TS , S , C , U </tt>  for you similarly
-     * if you specify S we generate <tt> S , C , U </tt>  etc
+     * <p> With the {@link #DEFAULT_LATTICE} IMPLIED TS => S => C => U  is supported by this method, so if you provide
+     * a Clearance of TS we will generate <tt>TS , S , C , U </tt>  for you similarly
+     * if you specify S we generate <tt> S , C , U </tt>  etc.  A clearance the lattice does not know, in any
+     * case, is used as is.
      * </p>
      *
      * @param clearance a clearance value like "TS"     (for top secret)
      */
     public void setClearance(String clearance) {
-        this.put("c", expandClearance(clearance));
+        putLatticeValues("c", expandClearance(clearance));
     }
 
 
-    @SuppressWarnings("unchecked")
     public List<String> getSci() {
-        return (List<String>) this.get("sci");
+        return getLatticeValues("sci");
     }
 
+    /**
+     * set the sci compartments of the user, expanded with the lattice into every compartment they imply
+     *
+     * @param sci compartments like "TK"
+     */
     public void setSci(List<String> sci) {
-        this.put("sci", sci);
+        putLatticeValues("sci", (sci == null) ? null : lattice.expand("sci", sci));
     }
 
-    @SuppressWarnings("unchecked")
     public List<String> getCitizenship() {
-        return (List<String>) this.get("relto");
+        return getLatticeValues("relto");
     }
 
     /**
      * set the citizenship of the user, for their relto capabilities.
      * <p/>
      * <p>Note in CAPCO, e.g. US citizenship
-     * maps to a bunch of different relto values including USA and NOFORN.  This method should
-     * expand to appropriate values, similar to the setClearance above, as needed in your system. </p>
-     * <p/>
-     * <p/>
-     * <b>NOTE: this is not a complete implementation and does not expand citizenship values. </b>
+     * maps to a bunch of different relto values including USA and NOFORN.  The citizenship values are used as relto
+     * values and expanded with the lattice's relto implications, e.g. <tt>relto : { implies : { USA : [ "FVEY",
+     * "NOFORN" ] } }</tt>; the {@link #DEFAULT_LATTICE} has none.</p>
      *
      * @param citizenship
      */
     public void setCitizenship(List<String> citizenship) {
-        this.put("relto", citizenship);     // TODO:  this is not a complete implementation ; the full expansion is not done, e.g. a US citizenship
-        //        should map to a number of different relto values including USA and NOFORN.
+        putLatticeValues("relto", (citizenship == null) ? null : lattice.expand("relto", citizenship));
     }
 
 
+    private void putLatticeValues(String key, List<String> values) {
+        this.put(key, values);
+        latticeValues.add(key);
+    }
+
     /**
-     * expand Clearances - implement any hierarchy of permissions here for clearance by returning the entire set that that
-     * specific clearance represents.  E.g. clearance=TS (top secret) implies also S C and U  so that
-     * here we need to deal with that expansion to list all permissions that TS implies.
+     * @return the values of the key, copied from the lattice's read only list the first time, so they may be changed
+     */
+    @SuppressWarnings("unchecked")
+    private List<String> getLatticeValues(String key) {
+        List<String> values = (List<String>) this.get(key);
+        if (latticeValues.remove(key) && values != null) {
+            values = new ArrayList<String>(values);
+            this.put(key, values);
+        }
+        return values;
+    }
+
+    /**
+     * expand Clearances - the lattice holds the hierarchy of permissions for clearance, and returns the entire,
+     * precomputed, set that that specific clearance represents.  E.g. clearance=TS (top secret) implies also S C and U.
      *
      * @param clearance
      * @return    list of Clearances that are implied by the clearance specified
      */
     private List<String> expandClearance(String clearance) {
-
-        final HashSet<String> capco = new LinkedHashSet<String>();
-
-        if ("TS".equalsIgnoreCase(clearance)) {
-            capco.add("TS");
-            capco.add("S");
-            capco.add("C");
-            capco.add("U");
-        } else if ("S".equalsIgnoreCase(clearance)) {
-            capco.add("S");
-            capco.add("C");
-            capco.add("U");
-        } else if ("C".equalsIgnoreCase(clearance)) {
-            capco.add("C");
-            capco.add("U");
-        } else if ("U".equalsIgnoreCase(clearance)) {
-            capco.add("U");
-        } else {
-            capco.add(clearance);   // if unknown, just pass it "as is"
+        if (clearance != null && !lattice.contains("c", clearance)) {
+            final String upperCase = clearance.toUpperCase(Locale.ENGLISH);
+            if (lattice.contains("c", upperCase)) {
+                return lattice.getClosure("c", upperCase);
+            }
         }
-
-
-        return new ArrayList<String>(capco);
+        return lattice.getClosure("c", clearance);   // if unknown, just pass it "as is"
     }
 
 
@@ -0,0 +1,54 @@
+package com.mongodb.flac;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+public class DocumentLevelVerifierTest {
+
+    @Test
+    public void testOnlyOrderIndependentPipelinesAreSampled() throws Exception {
+        DocumentLevelVerifier verifier = new DocumentLevelVerifier(2);
+        List<DBObject> find = Arrays.asList((DBObject) JSON.parse("{ $match : { a : 1 } }"),
+                (DBObject) JSON.parse("{ $sort : { b : 1 } }"));
+        List<DBObject> limited = Arrays.asList((DBObject) JSON.parse("{ $match : { a : 1 } }"),
+                (DBObject) JSON.parse("{ $limit : 10 }"));
+
+        Assert.assertTrue(verifier.isSampled(find));
+        Assert.assertFalse(verifier.isSampled(limited));
+        Assert.assertFalse(verifier.isSampled(find));
+        Assert.assertTrue(verifier.isSampled(find));
+    }
+
+    @Test
+    public void testDivergenceReturnsTheRedactedDocuments() throws Exception {
+        final List<DBObject> divergent = new ArrayList<DBObject>();
+        DocumentLevelVerifier verifier = new DocumentLevelVerifier(1) {
+            @Override
+            protected void onDivergence(String namespace, List<DBObject> pipeline, List<DBObject> onlyDocumentLevel,
+                                        List<DBObject> onlyRedacted) {
+                divergent.addAll(onlyDocumentLevel);
+                divergent.addAll(onlyRedacted);
+            }
+        };
+        DBObject plain = (DBObject) JSON.parse("{ _id : 1, a : 1 }");
+        DBObject marked = (DBObject) JSON.parse("{ _id : 2, ssn : { sl : [ [ { c : \"TS\" } ] ], value : \"1\" } }");
+        DBObject redacted = (DBObject) JSON.parse("{ _id : 2 }");
+
+        List<DBObject> same = Arrays.asList(plain, redacted);
+        Assert.assertSame(same, verifier.verify("flac.persons", Arrays.<DBObject>asList(), Arrays.asList(redacted, plain), same));
+        Assert.assertEquals(0, verifier.getDivergenceCount());
+
+        List<DBObject> expected = Arrays.asList(plain, redacted);
+        Assert.assertSame(expected, verifier.verify("flac.persons", Arrays.<DBObject>asList(), Arrays.asList(plain, marked), expected));
+        Assert.assertEquals(1, verifier.getDivergenceCount());
+        Assert.assertEquals(2, verifier.getVerifiedCount());
+        Assert.assertEquals(Arrays.asList(marked, redacted), divergent);
+    }
+}
@@ -0,0 +1,152 @@
+package com.mongodb.flac;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.springframework.core.io.ClassPathResource;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+import com.mongodb.ServerAddress;
+import com.mongodb.flac.capco.CapcoRedactExpression;
+import com.mongodb.flac.capco.CapcoSecurityAttributes;
+import com.mongodb.util.JSON;
+
+public class DocumentRedactorTest {
+
+    private CapcoRedactExpression capcoRedactExpression = new CapcoRedactExpression("security");
+
+    private DBObject loadDocument() throws IOException {
+        File file = new ClassPathResource("capcoDocumentMarkingsExample.json").getFile();
+        return (DBObject) JSON.parse(FileUtils.readFileToString(file));
+    }
+
+    private List<String> subtitles(DBObject document) {
+        List<String> subtitles = new ArrayList<String>();
+        for (Object subsection : (BasicDBList) document.get("subsections")) {
+            subtitles.add((String) ((DBObject) subsection).get("subtitle"));
+        }
+        return subtitles;
+    }
+
+    // same expectations as the server side CapcoRedactTest
+    @Test
+    public void testSameResultsAsServerRedact() throws Exception {
+        CapcoSecurityAttributes userTS_SI = new CapcoSecurityAttributes();
+        userTS_SI.setClearance("TS");
+        userTS_SI.setSci(Arrays.asList("SI"));
+        assertEquals(Arrays.asList("Section 1: Overview", "Section 2: Analysis"),
+                subtitles(capcoRedactExpression.getDocumentRedactor(userTS_SI).redact(loadDocument())));
+
+        CapcoSecurityAttributes userTS_SI_TK = new CapcoSecurityAttributes();
+        userTS_SI_TK.setClearance("TS");
+        userTS_SI_TK.setSci(Arrays.asList("SI", "TK"));
+        assertEquals(3, subtitles(capcoRedactExpression.getDocumentRedactor(userTS_SI_TK).redact(loadDocument())).size());
+
+        CapcoSecurityAttributes userU = new CapcoSecurityAttributes();
+        userU.setClearance("U");
+        assertEquals(Arrays.asList("Section 1: Overview"),
+                subtitles(capcoRedactExpression.getDocumentRedactor(userU).redact(loadDocument())));
+
+        CapcoSecurityAttributes nobody = new CapcoSecurityAttributes();
+        assertEquals(0, subtitles(capcoRedactExpression.getDocumentRedactor(nobody).redact(loadDocument())).size());
+    }
+
+    @Test
+    public void testPrunesRootAndNestedDocuments() throws Exception {
+        CapcoSecurityAttributes userS = new CapcoSecurityAttributes();
+        userS.setClearance("S");
+        DocumentRedactor redactor = new DocumentRedactor("sl", userS);
+
+        assertNull(redactor.redact((DBObject) JSON.parse("{ sl : [ [ { c : \"TS\" } ], [ ] ], a : 1 }")));
+
+        DBObject document = (DBObject) JSON.parse("{ sl : [ [ ], [ { c : \"S\" }, { c : \"TS\" } ] ], a : 1, "
+                + "b : { sl : [ [ { c : \"TS\" } ] ], x : 1 }, "
+                + "c : { d : { sl : [ [ { c : \"C\" } ] ], e : { sl : [ [ { sci : \"SI\" } ] ] } } }, "
+                + "f : [ 1, { sl : [ [ { c : \"TS\" } ] ] }, [ { sl : null, g : 2 }, { sl : \"bad\" } ] ] }");
+        assertSame(document, redactor.redact(document));
+        assertEquals(JSON.parse("{ sl : [ [ ], [ { c : \"S\" }, { c : \"TS\" } ] ], a : 1, "
+                + "c : { d : { sl : [ [ { c : \"C\" } ] ] } }, "
+                + "f : [ 1, [ { sl : null, g : 2 } ] ] }"), document);
+    }
+
+    @Test
+    public void testLabelMustMatchExactly() throws Exception {
+        CapcoSecurityAttributes userTS = new CapcoSecurityAttributes();
+        userTS.setClearance("TS");
+        UserLabels labels = new UserLabels(userTS);
+
+        assertEquals(true, labels.satisfies(JSON.parse("[ [ { c : \"TS\" } ] ]")));
+        assertEquals(false, labels.satisfies(JSON.parse("[ [ { c : \"TS\", x : 1 } ] ]")));
+        assertEquals(false, labels.satisfies(JSON.parse("[ [ \"TS\" ] ]")));
+        assertEquals(false, labels.satisfies(JSON.parse("[ { c : \"TS\" } ]")));
+        assertEquals(true, labels.satisfies(null));
+    }
+
+    @Test
+    public void testClientRedactedCursorSkipLimitAndProject() throws Exception {
+        CapcoSecurityAttributes userS = new CapcoSecurityAttributes();
+        userS.setClearance("S");
+        List<DBObject> documents = new ArrayList<DBObject>();
+        for (int i = 0; i < 6; i++) {
+            String marking = (i % 2 == 0) ? "S" : "TS";
+            documents.add((DBObject) JSON.parse("{ _id : " + i + ", sl : [ [ { c : \"" + marking + "\" } ] ], n : " + i + ", x : 1 }"));
+        }
+
+        Cursor cursor = new ClientRedactedCursor(listCursor(documents), new DocumentRedactor("sl", userS),
+                (DBObject) JSON.parse("{ n : 1 }"), 1, 1);
+        assertEquals(true, cursor.hasNext());
+        assertEquals(JSON.parse("{ _id : 2, n : 2 }"), cursor.next());
+        assertEquals(false, cursor.hasNext());
+
+        assertEquals(JSON.parse("{ _id : 1 }"),
+                ClientRedactedCursor.project((DBObject) JSON.parse("{ _id : 1, n : 1 }"), (DBObject) JSON.parse("{ _id : 1 }")));
+        assertEquals(JSON.parse("{ n : 1 }"),
+                ClientRedactedCursor.project((DBObject) JSON.parse("{ _id : 1, n : 1 }"), (DBObject) JSON.parse("{ _id : 0 }")));
+        assertEquals(JSON.parse("{ _id : 1, n : 1 }"),
+                ClientRedactedCursor.project((DBObject) JSON.parse("{ _id : 1, n : 1 }"), (DBObject) JSON.parse("{ }")));
+
+        assertEquals(false, ClientRedactedCursor.isClientSideProjection((DBObject) JSON.parse("{ \"a.b\" : 1 }")));
+        assertEquals(false, ClientRedactedCursor.isClientSideProjection((DBObject) JSON.parse("{ a : 1, b : 0 }")));
+        assertEquals(true, ClientRedactedCursor.isClientSideProjection((DBObject) JSON.parse("{ _id : 0, b : 0 }")));
+    }
+
+    private static Cursor listCursor(final List<DBObject> documents) {
+        final Iterator<DBObject> it = documents.iterator();
+        return new Cursor() {
+            public long getCursorId() {
+                return 0;
+            }
+
+            public ServerAddress getServerAddress() {
+                return null;
+            }
+
+            public void close() {
+            }
+
+            public boolean hasNext() {
+                return it.hasNext();
+            }
+
+            public DBObject next() {
+                return it.next();
+            }
+
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+}
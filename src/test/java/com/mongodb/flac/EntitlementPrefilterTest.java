@@ -0,0 +1,58 @@
+package com.mongodb.flac;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mongodb.flac.capco.CapcoEntitlementPrefilter;
+import com.mongodb.flac.capco.CapcoSecurityAttributes;
+import com.mongodb.util.JSON;
+
+public class EntitlementPrefilterTest {
+
+    @Test
+    public void testExcludesUnheldClassifications() throws Exception {
+        CapcoSecurityAttributes userSecurityAttributes = new CapcoSecurityAttributes();
+        userSecurityAttributes.setClearance("C");
+
+        EntitlementPrefilter prefilter = new CapcoEntitlementPrefilter("sl");
+        Assert.assertEquals(JSON.parse("{ sl : { $nin : [ [ { c : \"TS\" } ], [ { c : \"S\" } ] ] } }"),
+                prefilter.getPrefilter(userSecurityAttributes));
+    }
+
+    @Test
+    public void testNothingToExcludeForFullClearance() throws Exception {
+        CapcoSecurityAttributes userSecurityAttributes = new CapcoSecurityAttributes();
+        userSecurityAttributes.setClearance("TS");
+
+        Assert.assertNull(new CapcoEntitlementPrefilter("sl").getPrefilter(userSecurityAttributes));
+    }
+
+    @Test
+    public void testMandatoryKeyGeneratesPositiveMatch() throws Exception {
+        Map<String, List<String>> universe = new LinkedHashMap<String, List<String>>();
+        universe.put("c", Arrays.asList("TS", "S", "C", "U"));
+        universe.put("sci", Arrays.asList("SI", "TK", "G", "HCS"));
+        EntitlementPrefilter prefilter = new EntitlementPrefilter("security", universe);
+        prefilter.setMandatoryKeys(Collections.singleton("c"));
+
+        CapcoSecurityAttributes userSecurityAttributes = new CapcoSecurityAttributes();
+        userSecurityAttributes.setClearance("S");
+        userSecurityAttributes.setSci(Arrays.asList("TK", "SI"));
+
+        Assert.assertEquals(JSON.parse("{ $and : [ "
+                        + "{ security : { $in : [ [ { c : \"S\" } ], [ { c : \"C\" } ], [ { c : \"U\" } ] ] } }, "
+                        + "{ security : { $nin : [ [ { sci : \"G\" } ], [ { sci : \"HCS\" } ] ] } } ] }"),
+                prefilter.getPrefilter(userSecurityAttributes));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMandatoryKeyMustBeInUniverse() throws Exception {
+        new CapcoEntitlementPrefilter("sl").setMandatoryKeys(Collections.singleton("sci"));
+    }
+}
@@ -0,0 +1,98 @@
+package com.mongodb.flac;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+
+public class InMemoryRedactMetricsTest {
+
+    @Test
+    public void testHistogramPercentilesAreWithinResolution() throws Exception {
+        LatencyHistogram histogram = new LatencyHistogram();
+        for (long i = 1; i <= 10000; i++) {
+            histogram.record(i * 1000);
+        }
+        LatencyHistogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(10000, snapshot.getCount());
+        assertEquals(10000000, snapshot.getMax());
+        assertEquals(5000500.0, snapshot.getMean(), 0.001);
+        assertWithinResolution(5000000, snapshot.getValueAtPercentile(50));
+        assertWithinResolution(9900000, snapshot.getValueAtPercentile(99));
+        assertEquals(10000000, snapshot.getValueAtPercentile(100));
+
+        assertEquals(10000, histogram.snapshotAndReset().getCount());
+        assertEquals(0, histogram.snapshot().getCount());
+        assertEquals(0, histogram.snapshot().getValueAtPercentile(99));
+    }
+
+    @Test
+    public void testEveryValueHasABucket() throws Exception {
+        for (long value : new long[]{0, 1, 31, 63, 64, 65, 1000, 123456789, Long.MAX_VALUE}) {
+            int index = LatencyHistogram.indexOf(value);
+            assertTrue(value <= LatencyHistogram.highestValueAt(index));
+            assertTrue(index == 0 || value > LatencyHistogram.highestValueAt(index - 1));
+        }
+    }
+
+    @Test
+    public void testMeteredCursorRecordsOnce() throws Exception {
+        InMemoryRedactMetrics metrics = new InMemoryRedactMetrics(true);
+        List<DBObject> documents = new ArrayList<DBObject>();
+        for (int i = 0; i < 25; i++) {
+            documents.add(new BasicDBObject("_id", i));
+        }
+
+        Cursor cursor = new MeteredCursor(new BufferedCursor(documents, null), metrics, "db.c",
+                RedactMetrics.Operation.AGGREGATE, System.nanoTime(), 10);
+        while (cursor.hasNext()) {
+            cursor.next();
+        }
+        cursor.close();
+
+        InMemoryRedactMetrics.Stats stats = metrics.getStats("db.c", RedactMetrics.Operation.AGGREGATE);
+        assertEquals(1, stats.getFirstDocument().getCount());
+        assertEquals(1, stats.getDrain().getCount());
+        assertEquals(25, stats.getDocuments());
+        assertEquals(25 * 14, stats.getBytes());    // { _id : int32 } is 14 bytes of BSON
+        assertEquals(3, stats.getBatches());
+        assertEquals(0, stats.getPipelineBuild().getCount());
+        assertEquals(0, metrics.getStats("db.c", RedactMetrics.Operation.FIND).getDrain().getCount());
+    }
+
+    @Test
+    public void testMeteredCursorEstimatesDefaultBatches() throws Exception {
+        InMemoryRedactMetrics metrics = new InMemoryRedactMetrics(false);
+        List<DBObject> documents = new ArrayList<DBObject>();
+        for (int i = 0; i < MeteredCursor.DEFAULT_FIRST_BATCH_SIZE; i++) {
+            documents.add(new BasicDBObject("_id", i));
+        }
+
+        MeteredCursor cursor = new MeteredCursor(new BufferedCursor(documents, null), metrics, "db.c",
+                RedactMetrics.Operation.FIND, System.nanoTime(), 0);
+        while (cursor.hasNext()) {
+            cursor.next();
+        }
+        assertEquals(1, cursor.getBatches());
+
+        documents.add(new BasicDBObject("_id", -1));
+        cursor = new MeteredCursor(new BufferedCursor(documents, null), metrics, "db.c",
+                RedactMetrics.Operation.FIND, System.nanoTime(), 0);
+        while (cursor.hasNext()) {
+            cursor.next();
+        }
+        assertEquals(2, cursor.getBatches());
+        assertEquals(0, cursor.getBytes());
+    }
+
+    private static void assertWithinResolution(long expected, long actual) {
+        assertTrue(actual + " is not within 1/32 of " + expected, Math.abs(actual - expected) <= expected / 32);
+    }
+}
@@ -0,0 +1,193 @@
+package com.mongodb.flac;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+public class KeysetPaginationTest {
+
+    @Test
+    public void testTotalSortAddsIdTieBreaker() throws Exception {
+        Assert.assertEquals(JSON.parse("{ lastName : -1, _id : 1 }"), KeysetPagination.totalSort(new BasicDBObject("lastName", -1)));
+        Assert.assertEquals(JSON.parse("{ _id : 1 }"), KeysetPagination.totalSort(null));
+        Assert.assertEquals(JSON.parse("{ _id : -1 }"), KeysetPagination.totalSort(new BasicDBObject("_id", -1)));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTotalSortRejectsTextScoreSort() throws Exception {
+        KeysetPagination.totalSort((DBObject) JSON.parse("{ score : { $meta : \"textScore\" } }"));
+    }
+
+    @Test
+    public void testSeekQueryIsLexicographic() throws Exception {
+        DBObject sort = KeysetPagination.totalSort(new BasicDBObject("lastName", -1));
+        Assert.assertEquals(JSON.parse("{ $or : [ { lastName : { $lt : \"Humphrey\" } }, { lastName : null },"
+                        + " { lastName : \"Humphrey\", _id : { $gt : 7 } } ] }"),
+                KeysetPagination.seekQuery(sort, Arrays.asList("Humphrey", 7)));
+    }
+
+    @Test
+    public void testSeekQueryAfterNull() throws Exception {
+        DBObject ascending = KeysetPagination.totalSort(new BasicDBObject("lastName", 1));
+        Assert.assertEquals(JSON.parse("{ $or : [ { lastName : { $ne : null } }, { lastName : null, _id : { $gt : 7 } } ] }"),
+                KeysetPagination.seekQuery(ascending, Arrays.asList(null, 7)));
+
+        DBObject descending = KeysetPagination.totalSort(new BasicDBObject("lastName", -1));
+        Assert.assertEquals(JSON.parse("{ lastName : null, _id : { $gt : 7 } }"),
+                KeysetPagination.seekQuery(descending, Arrays.asList(null, 7)));
+    }
+
+    @Test
+    public void testPagesThroughMissingKeys() throws Exception {
+        List<DBObject> documents = new ArrayList<DBObject>();
+        for (int i = 0; i < 9; i++) {
+            DBObject document = new BasicDBObject("_id", i);
+            if (i % 3 == 1) {
+                document.put("rank", null);
+            } else if (i % 3 == 2) {
+                document.put("rank", i / 2);
+            }
+            documents.add(document);
+        }
+        for (int direction : new int[]{-1, 1}) {
+            DBObject sort = KeysetPagination.totalSort(new BasicDBObject("rank", direction));
+            List<DBObject> expected = new ArrayList<DBObject>(documents);
+            Collections.sort(expected, sortOrder(sort));
+
+            List<DBObject> paged = new ArrayList<DBObject>();
+            DBObject seek = null;
+            while (true) {
+                List<DBObject> page = new ArrayList<DBObject>();
+                for (DBObject document : expected) {
+                    if (page.size() < 2 && (seek == null || matches(document, seek))) {
+                        page.add(document);
+                    }
+                }
+                if (page.isEmpty()) {
+                    break;
+                }
+                paged.addAll(page);
+                seek = KeysetPagination.seekQuery(sort, KeysetPagination.decodeToken(sort,
+                        KeysetPagination.encodeToken(sort, page.get(page.size() - 1))));
+            }
+            Assert.assertEquals(expected, paged);
+        }
+    }
+
+    /**
+     * orders documents as the server sorts values of one BSON type, with missing and null values first
+     */
+    private static Comparator<DBObject> sortOrder(final DBObject sort) {
+        return new Comparator<DBObject>() {
+            public int compare(DBObject first, DBObject second) {
+                for (String key : sort.keySet()) {
+                    final int compared = compareValues(KeysetPagination.getPath(first, key), KeysetPagination.getPath(second, key));
+                    if (compared != 0) {
+                        return ((Number) sort.get(key)).intValue() * compared;
+                    }
+                }
+                return 0;
+            }
+        };
+    }
+
+    @SuppressWarnings("unchecked")
+    private static int compareValues(Object first, Object second) {
+        if (first == null || second == null) {
+            return (first == null) ? (second == null ? 0 : -1) : 1;
+        }
+        return ((Comparable<Object>) first).compareTo(second);
+    }
+
+    /**
+     * evaluates the operators of a seek query on one BSON type, as the server does
+     */
+    private static boolean matches(DBObject document, DBObject query) {
+        for (String key : query.keySet()) {
+            final Object condition = query.get(key);
+            if (key.equals("$or")) {
+                boolean any = false;
+                for (Object clause : (List<?>) condition) {
+                    any |= matches(document, (DBObject) clause);
+                }
+                if (!any) {
+                    return false;
+                }
+                continue;
+            }
+            final Object value = KeysetPagination.getPath(document, key);
+            if (condition instanceof DBObject) {
+                for (String operator : ((DBObject) condition).keySet()) {
+                    final Object operand = ((DBObject) condition).get(operator);
+                    final int compared = compareValues(value, operand);
+                    if ((operator.equals("$lt") && (value == null || compared >= 0))
+                            || (operator.equals("$gt") && (value == null || compared <= 0))
+                            || (operator.equals("$ne") && compared == 0)
+                            || (operator.equals("$exists") && Boolean.FALSE.equals(operand) && document.containsField(key))) {
+                        return false;
+                    }
+                }
+            } else if (compareValues(value, condition) != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Test
+    public void testTokenRoundTrip() throws Exception {
+        DBObject sort = KeysetPagination.totalSort(new BasicDBObject("name.last", 1));
+        DBObject document = (DBObject) JSON.parse("{ _id : \"5375052930040f83a06f115a\", name : { last : \"Humphrey\" } }");
+        String token = KeysetPagination.encodeToken(sort, document);
+        Assert.assertFalse(token.contains("+") || token.contains("/"));
+        List<?> values = KeysetPagination.decodeToken(sort, token);
+        Assert.assertEquals(Arrays.asList("Humphrey", "5375052930040f83a06f115a"), values);
+    }
+
+    @Test
+    public void testBase64Url() throws Exception {
+        Assert.assertEquals("", KeysetPagination.encodeBase64Url(new byte[0]));
+        Assert.assertEquals("Zm8", KeysetPagination.encodeBase64Url("fo".getBytes("UTF-8")));
+        Assert.assertEquals("Zm9vYg", KeysetPagination.encodeBase64Url("foob".getBytes("UTF-8")));
+        Assert.assertEquals("-_8", KeysetPagination.encodeBase64Url(new byte[]{(byte) 0xfb, (byte) 0xff}));
+        Assert.assertEquals("foobar", new String(KeysetPagination.decodeBase64Url("Zm9vYmFy"), "UTF-8"));
+        Assert.assertEquals("fooba", new String(KeysetPagination.decodeBase64Url("Zm9vYmE="), "UTF-8"));
+        Assert.assertArrayEquals(new byte[]{(byte) 0xfb, (byte) 0xff}, KeysetPagination.decodeBase64Url("-_8"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testTokenOfAnotherSortIsRejected() throws Exception {
+        DBObject document = (DBObject) JSON.parse("{ _id : 1, a : 2, b : 3 }");
+        String token = KeysetPagination.encodeToken(KeysetPagination.totalSort((DBObject) JSON.parse("{ a : 1, b : 1 }")), document);
+        KeysetPagination.decodeToken(KeysetPagination.totalSort((DBObject) JSON.parse("{ b : 1, a : 1 }")), token);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testMalformedTokenIsRejected() throws Exception {
+        KeysetPagination.decodeToken(KeysetPagination.totalSort(null), "not a token");
+    }
+
+    @Test
+    public void testProjectionKeepsSortKeys() throws Exception {
+        DBObject sort = KeysetPagination.totalSort(new BasicDBObject("lastName", 1));
+        Assert.assertEquals(JSON.parse("{ firstName : 1, lastName : 1 }"),
+                KeysetPagination.projectionWithSortKeys(new BasicDBObject("firstName", 1), sort));
+        Assert.assertEquals(JSON.parse("{ ssn : 0 }"),
+                KeysetPagination.projectionWithSortKeys(new BasicDBObject("ssn", 0), sort));
+        Assert.assertNull(KeysetPagination.projectionWithSortKeys(null, sort));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testProjectionExcludingASortKeyIsRejected() throws Exception {
+        KeysetPagination.projectionWithSortKeys(new BasicDBObject("_id", 0), KeysetPagination.totalSort(null));
+    }
+}
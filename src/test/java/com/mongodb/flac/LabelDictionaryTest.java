@@ -0,0 +1,108 @@
+package com.mongodb.flac;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mongodb.DBObject;
+import com.mongodb.flac.capco.CapcoLabelDictionary;
+import com.mongodb.flac.capco.CapcoRedactExpression;
+import com.mongodb.flac.capco.CapcoSecurityAttributes;
+import com.mongodb.util.JSON;
+
+public class LabelDictionaryTest {
+
+    // c:TS=0 S=1 C=2 U=3, sci:SI=4 TK=5 G=6 HCS=7
+    private LabelDictionary dictionary = new CapcoLabelDictionary(
+            Collections.singletonMap("sci", Arrays.asList("SI", "TK", "G", "HCS")));
+
+    @Test
+    public void testUserMaskOfExpandedClearance() throws Exception {
+        CapcoSecurityAttributes userSecurityAttributes = new CapcoSecurityAttributes();
+        userSecurityAttributes.setClearance("S");
+        userSecurityAttributes.setSci(Arrays.asList("TK", "XX"));
+
+        Assert.assertEquals(2 + 4 + 8 + 32, dictionary.getUserMask(userSecurityAttributes));
+        Assert.assertEquals(Arrays.asList(1, 2, 3, 5), dictionary.getUserBitPositions(userSecurityAttributes));
+    }
+
+    @Test
+    public void testEncodeMarking() throws Exception {
+        Assert.assertEquals(JSON.parse("[ 1, 48, 0 ]"),
+                toInts(dictionary.encodeMarking(JSON.parse("[ [ { c : \"TS\" } ], [ { sci : \"SI\" }, { sci : \"TK\" } ], [ ] ]"))));
+        Assert.assertNull(dictionary.encodeMarking(JSON.parse("[ [ { c : \"TS\" } ], [ { sci : \"XX\" } ] ]")));
+        Assert.assertNull(dictionary.encodeMarking(JSON.parse("[ [ { c : \"TS\", sci : \"SI\" } ] ]")));
+        Assert.assertNull(dictionary.encodeMarking(null));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAtMost64Labels() throws Exception {
+        Map<String, List<String>> universe = new HashMap<String, List<String>>();
+        String[] values = new String[LabelDictionary.MAX_LABELS + 1];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = "L" + i;
+        }
+        universe.put("x", Arrays.asList(values));
+        new LabelDictionary(universe);
+    }
+
+    @Test
+    public void testAnnotateNestedDocuments() throws Exception {
+        LabelMaskAnnotator annotator = new LabelMaskAnnotator("sl", "slm", dictionary);
+        DBObject document = (DBObject) JSON.parse("{ sl : [ [ { c : \"U\" } ] ], slm : [ 99 ], "
+                + "a : { sl : [ [ { sci : \"G\" }, { sci : \"HCS\" } ] ] }, "
+                + "b : [ { sl : [ [ { sci : \"XX\" } ] ], slm : [ 1 ] }, { x : 1 } ] }");
+
+        Assert.assertTrue(annotator.annotate(document));
+        Assert.assertEquals(JSON.parse("{ sl : [ [ { c : \"U\" } ] ], slm : [ 8 ], "
+                + "a : { sl : [ [ { sci : \"G\" }, { sci : \"HCS\" } ] ], slm : [ 192 ] }, "
+                + "b : [ { sl : [ [ { sci : \"XX\" } ] ] }, { x : 1 } ] }"), toInts(document));
+        Assert.assertFalse(annotator.annotate(document));
+    }
+
+    @Test
+    public void testPrefilterOnUserBitPositions() throws Exception {
+        CapcoSecurityAttributes userSecurityAttributes = new CapcoSecurityAttributes();
+        userSecurityAttributes.setClearance("C");
+
+        Assert.assertEquals(JSON.parse("{ slm : { $not : { $elemMatch : { $ne : 0, $bitsAllClear : [ 2, 3 ] } } } }"),
+                toInts(new BitmaskPrefilter("slm", dictionary).getPrefilter(userSecurityAttributes)));
+    }
+
+    @Test
+    public void testRedactExpressionFallsBackWithoutMasks() throws Exception {
+        CapcoRedactExpression capcoRedactExpression = new CapcoRedactExpression("sl");
+        CapcoSecurityAttributes userSecurityAttributes = new CapcoSecurityAttributes();
+        userSecurityAttributes.setClearance("U");
+
+        DBObject expression = new BitmaskRedactExpression("slm", dictionary, capcoRedactExpression)
+                .getRedactExpressionObject(userSecurityAttributes);
+        DBObject cond = (DBObject) expression.get("$cond");
+        Assert.assertEquals(JSON.parse("{ $isArray : \"$slm\" }"), cond.get("if"));
+        Assert.assertEquals(JSON.parse("{ $cond : { if : { $allElementsTrue : { $map : { input : \"$slm\", as : \"m\", "
+                + "in : { $or : [ { $eq : [ \"$$m\", 0 ] }, { $ne : [ { $bitAnd : [ \"$$m\", 8 ] }, 0 ] } ] } } } }, "
+                + "then : \"$$DESCEND\", else : \"$$PRUNE\" } }"), toInts((DBObject) cond.get("then")));
+        Assert.assertEquals(capcoRedactExpression.getRedactExpressionObject(userSecurityAttributes), cond.get("else"));
+
+        // equal settings make equal expressions, which share redact cache entries
+        Assert.assertEquals(new BitmaskRedactExpression("slm", dictionary, capcoRedactExpression),
+                new BitmaskRedactExpression("slm", new CapcoLabelDictionary(Collections.singletonMap("sci",
+                        Arrays.asList("SI", "TK", "G", "HCS"))), new CapcoRedactExpression("sl")));
+        Assert.assertFalse(new BitmaskRedactExpression("slm", dictionary, capcoRedactExpression)
+                .equals(new BitmaskRedactExpression("slm2", dictionary, capcoRedactExpression)));
+    }
+
+    // JSON.parse gives Integers, the masks are Longs
+    private static Object toInts(Object value) {
+        return JSON.parse(JSON.serialize(value));
+    }
+
+    private static DBObject toInts(DBObject value) {
+        return (DBObject) toInts((Object) value);
+    }
+}
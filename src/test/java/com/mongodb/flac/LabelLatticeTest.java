@@ -0,0 +1,50 @@
+package com.mongodb.flac;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class LabelLatticeTest {
+
+    private static final String CONFIG = "{ c : { hierarchy : [ \"TS\", \"S\", \"C\", \"U\" ] },"
+            + " relto : { implies : { USA : [ \"FVEY\", \"NOFORN\" ], GBR : [ \"FVEY\" ], FVEY : [ \"NATO\" ] } } }";
+
+    @Test
+    public void testHierarchyClosure() throws Exception {
+        LabelLattice lattice = LabelLattice.fromJSON(CONFIG);
+        Assert.assertEquals(Arrays.asList("TS", "S", "C", "U"), lattice.getClosure("c", "TS"));
+        Assert.assertEquals(Arrays.asList("C", "U"), lattice.getClosure("c", "C"));
+        Assert.assertSame(lattice.getClosure("c", "S"), lattice.getClosure("c", "S"));
+        Assert.assertTrue(lattice.dominates("c", "TS", "C"));
+        Assert.assertFalse(lattice.dominates("c", "C", "S"));
+    }
+
+    @Test
+    public void testImplicationsAreTransitiveAndMerged() throws Exception {
+        LabelLattice lattice = LabelLattice.fromJSON(CONFIG);
+        Assert.assertEquals(Arrays.asList("USA", "FVEY", "NOFORN", "NATO"), lattice.getClosure("relto", "USA"));
+        Assert.assertEquals(Arrays.asList("GBR", "FVEY", "NATO", "USA", "NOFORN"),
+                lattice.expand("relto", Arrays.asList("GBR", "USA")));
+    }
+
+    @Test
+    public void testUnknownValuesExpandToThemselves() throws Exception {
+        LabelLattice lattice = LabelLattice.fromJSON(CONFIG);
+        Assert.assertEquals(Arrays.asList("X"), lattice.getClosure("c", "X"));
+        Assert.assertEquals(Arrays.asList("TK"), lattice.getClosure("sci", "TK"));
+        Assert.assertFalse(lattice.contains("c", "X"));
+    }
+
+    @Test
+    public void testCyclesAreHarmless() throws Exception {
+        LabelLattice lattice = new LabelLattice.Builder().implies("sci", "A", "B").implies("sci", "B", "A").build();
+        Assert.assertEquals(Arrays.asList("A", "B"), lattice.getClosure("sci", "A"));
+        Assert.assertEquals(Arrays.asList("B", "A"), lattice.getClosure("sci", "B"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnknownRuleIsRejected() throws Exception {
+        LabelLattice.fromJSON("{ c : { order : [ \"TS\", \"S\" ] } }");
+    }
+}
@@ -0,0 +1,110 @@
+package com.mongodb.flac;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mongodb.DBObject;
+import com.mongodb.flac.capco.CapcoRedactExpression;
+import com.mongodb.flac.capco.CapcoSecurityAttributes;
+import com.mongodb.util.JSON;
+
+public class LabelSummaryAnnotatorTest {
+
+    private LabelSummaryAnnotator annotator = new LabelSummaryAnnotator("sl", "sls");
+
+    @Test
+    public void testSummaryHoldsTheLabelsOfEveryMarking() throws Exception {
+        DBObject document = (DBObject) JSON.parse("{ _id : 1, sl : [ [ { c : \"U\" } ] ],"
+                + " ssn : { sl : [ [ { c : \"TS\" } ], [ ] ], value : \"354-61-8555\" },"
+                + " phones : [ { sl : [ [ { sci : \"SI\" }, { c : \"U\" } ] ], value : \"555\" } ], sls : [ ] }");
+        Assert.assertTrue(annotator.annotate(document));
+        Assert.assertEquals(JSON.parse("[ { c : \"TS\" }, { c : \"U\" }, { sci : \"SI\" } ]"), document.get("sls"));
+        Assert.assertFalse(annotator.annotate(document));
+
+        DBObject unmarked = (DBObject) JSON.parse("{ _id : 2, value : 1 }");
+        Assert.assertTrue(annotator.annotate(unmarked));
+        Assert.assertEquals(JSON.parse("[ ]"), unmarked.get("sls"));
+
+        DBObject malformed = (DBObject) JSON.parse("{ _id : 3, sl : \"TS\", sls : [ ] }");
+        Assert.assertTrue(annotator.annotate(malformed));
+        Assert.assertFalse(malformed.containsField("sls"));
+    }
+
+    @Test
+    public void testUpdatesOfMarkingsRemoveTheSummary() throws Exception {
+        DBObject plain = (DBObject) JSON.parse("{ $set : { \"ssn.value\" : \"1\" } }");
+        Assert.assertSame(plain, annotator.annotateUpdate(plain));
+
+        Assert.assertEquals(JSON.parse("{ $push : { phones : { sl : [ [ { c : \"S\" } ] ] } }, $unset : { a : \"\", sls : \"\" } }"),
+                annotator.annotateUpdate((DBObject) JSON.parse("{ $push : { phones : { sl : [ [ { c : \"S\" } ] ] } }, $unset : { a : \"\" } }")));
+        Assert.assertEquals(JSON.parse("{ $set : { \"ssn.sl\" : [ ] }, $unset : { sls : \"\" } }"),
+                annotator.annotateUpdate((DBObject) JSON.parse("{ $set : { \"ssn.sl\" : [ ] } }")));
+
+        DBObject replacement = (DBObject) JSON.parse("{ sl : [ [ { c : \"C\" } ] ] }");
+        Assert.assertSame(replacement, annotator.annotateUpdate(replacement));
+        Assert.assertEquals(JSON.parse("[ { c : \"C\" } ]"), replacement.get("sls"));
+
+        try {
+            annotator.annotateUpdate((DBObject) JSON.parse("{ $set : { sls : [ ] } }"));
+            Assert.fail("the summary can't be written");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    @Test
+    public void testExpressionKeepsWhenTheSummaryIsSatisfied() throws Exception {
+        CapcoRedactExpression capcoRedactExpression = new CapcoRedactExpression("sl");
+        CapcoSecurityAttributes userSecurityAttributes = new CapcoSecurityAttributes();
+        userSecurityAttributes.setClearance("S");
+
+        DBObject expression = new LabelSummaryRedactExpression(capcoRedactExpression, "sls").getRedactExpressionObject(userSecurityAttributes);
+        DBObject cond = (DBObject) expression.get("$cond");
+        Assert.assertEquals(JSON.parse("{ $setIsSubset : [ { $ifNull : [ \"$$ROOT.sls\", [ false ] ] },"
+                + " [ { c : \"S\" }, { c : \"C\" }, { c : \"U\" } ] ] }"), cond.get("if"));
+        Assert.assertEquals("$$KEEP", cond.get("then"));
+        Assert.assertEquals(capcoRedactExpression.getRedactExpressionObject(userSecurityAttributes), cond.get("else"));
+    }
+
+    @Test
+    public void testVersionIsTheBaseExpressions() throws Exception {
+        CapcoSecurityAttributes userSecurityAttributes = new CapcoSecurityAttributes();
+        userSecurityAttributes.setClearance("S");
+        VersionedCapcoRedactExpression base = new VersionedCapcoRedactExpression();
+        LabelSummaryRedactExpression redactExpression = new LabelSummaryRedactExpression(base, "sls");
+        RedactCommandCache cache = new RedactCommandCache(10, 10, TimeUnit.MINUTES);
+
+        DBObject first = cache.get(redactExpression, userSecurityAttributes);
+        Assert.assertSame(first, cache.get(redactExpression, userSecurityAttributes));
+        base.version = 2;
+        Assert.assertEquals(2, redactExpression.getVersion());
+        Assert.assertNotSame(first, cache.get(redactExpression, userSecurityAttributes));
+
+        Assert.assertEquals(0, new LabelSummaryRedactExpression(new CapcoRedactExpression("sl"), "sls").getVersion());
+    }
+
+    @Test
+    public void testEqualExpressionsShareCacheEntries() throws Exception {
+        CapcoSecurityAttributes userSecurityAttributes = new CapcoSecurityAttributes();
+        userSecurityAttributes.setClearance("S");
+        RedactCommandCache cache = new RedactCommandCache(10, 10, TimeUnit.MINUTES);
+
+        Assert.assertSame(cache.get(new LabelSummaryRedactExpression(new CapcoRedactExpression("sl"), "sls"), userSecurityAttributes),
+                cache.get(new LabelSummaryRedactExpression(new CapcoRedactExpression("sl"), "sls"), userSecurityAttributes));
+        Assert.assertFalse(new LabelSummaryRedactExpression(new CapcoRedactExpression("sl"), "sls")
+                .equals(new LabelSummaryRedactExpression(new CapcoRedactExpression("sl"), "summary")));
+    }
+
+    private static class VersionedCapcoRedactExpression extends CapcoRedactExpression implements VersionedRedactExpression {
+        private volatile long version = 1;
+
+        VersionedCapcoRedactExpression() {
+            super("sl");
+        }
+
+        public long getVersion() {
+            return version;
+        }
+    }
+}
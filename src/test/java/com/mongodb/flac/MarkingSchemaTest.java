@@ -0,0 +1,88 @@
+package com.mongodb.flac;
+
+import java.util.Arrays;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mongodb.DBObject;
+import com.mongodb.flac.capco.CapcoRedactExpression;
+import com.mongodb.flac.capco.CapcoSecurityAttributes;
+import com.mongodb.util.JSON;
+
+public class MarkingSchemaTest {
+
+    private CapcoRedactExpression capcoRedactExpression = new CapcoRedactExpression("sl");
+
+    @Test
+    public void testMarkedPathsAreCollected() throws Exception {
+        DBObject document = (DBObject) JSON.parse("{ _id : 1, sl : [ [ { c : \"U\" } ] ],"
+                + " ssn : { sl : [ [ { c : \"TS\" } ] ], value : \"354-61-8555\" },"
+                + " phones : [ { sl : [ [ { c : \"S\" } ] ], value : \"555\" }, { value : \"556\" } ],"
+                + " address : { city : { sl : [ [ { c : \"C\" } ] ], value : \"Seattle\" } },"
+                + " attachment : { pages : [ { text : \"...\" } ] } }");
+        Set<String> paths = new TreeSet<String>();
+        MarkingSchemaSampler.collectMarkedPaths(document, "", "sl", paths);
+        Assert.assertEquals(new TreeSet<String>(Arrays.asList("", "ssn", "phones", "address.city")), paths);
+
+        MarkingSchema schema = new MarkingSchema(paths, 1, 1, 0);
+        Assert.assertEquals(new TreeSet<String>(Arrays.asList("address", "city", "phones", "ssn")), schema.getDescendFields());
+    }
+
+    @Test
+    public void testDescendIsReplacedByKeepOrDescend() throws Exception {
+        CapcoSecurityAttributes userSecurityAttributes = new CapcoSecurityAttributes();
+        userSecurityAttributes.setClearance("S");
+
+        MarkingSchemaRedactExpression redactExpression = new MarkingSchemaRedactExpression(capcoRedactExpression,
+                MarkingSchema.of("", "ssn"));
+        DBObject base = capcoRedactExpression.getRedactExpressionObject(userSecurityAttributes);
+        DBObject expression = redactExpression.getRedactExpressionObject(userSecurityAttributes);
+
+        DBObject cond = (DBObject) expression.get("$cond");
+        DBObject baseCond = (DBObject) base.get("$cond");
+        Assert.assertEquals(baseCond.get("if"), cond.get("if"));
+        Assert.assertEquals("$$PRUNE", cond.get("else"));
+        Assert.assertEquals(JSON.parse("{ $cond : { if : { $or : [ \"$ssn\" ] }, then : \"$$DESCEND\", else : \"$$KEEP\" } }"),
+                cond.get("then"));
+        Assert.assertEquals("$$DESCEND", baseCond.get("then"));
+
+        MarkingSchemaRedactExpression rootOnly = new MarkingSchemaRedactExpression(capcoRedactExpression, MarkingSchema.of(""));
+        Assert.assertEquals("$$KEEP", ((DBObject) rootOnly.getRedactExpressionObject(userSecurityAttributes).get("$cond")).get("then"));
+    }
+
+    @Test
+    public void testCacheIsKeyedByVersion() throws Exception {
+        CapcoSecurityAttributes userSecurityAttributes = new CapcoSecurityAttributes();
+        userSecurityAttributes.setClearance("S");
+        final long[] version = {1};
+        VersionedRedactExpression versioned = new VersionedRedactExpression() {
+            public long getVersion() {
+                return version[0];
+            }
+
+            public String getRedactExpression(SecurityAttributes securityAttributes) {
+                return "{ $cond : { if : true, then : \"$$DESCEND\", else : \"$$PRUNE\" }, v : " + version[0] + " }";
+            }
+        };
+        RedactCommandCache cache = new RedactCommandCache(10, 10, TimeUnit.MINUTES);
+
+        DBObject first = cache.get(versioned, userSecurityAttributes);
+        Assert.assertSame(first, cache.get(versioned, userSecurityAttributes));
+        version[0] = 2;
+        DBObject second = cache.get(versioned, userSecurityAttributes);
+        Assert.assertNotSame(first, second);
+        Assert.assertEquals(2, second.get("v"));
+    }
+
+    @Test
+    public void testDeclaredSchemasWithSamePathsAreEqual() throws Exception {
+        Assert.assertEquals(new MarkingSchemaRedactExpression(capcoRedactExpression, MarkingSchema.of("phones")),
+                new MarkingSchemaRedactExpression(new CapcoRedactExpression("sl"), MarkingSchema.of("phones")));
+        Assert.assertFalse(new MarkingSchemaRedactExpression(capcoRedactExpression, MarkingSchema.of("phones"))
+                .equals(new MarkingSchemaRedactExpression(capcoRedactExpression, MarkingSchema.of("emails"))));
+    }
+}
@@ -0,0 +1,94 @@
+package com.mongodb.flac;
+
+import java.util.Arrays;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.mongodb.DBCollection;
+import com.mongodb.MongoClient;
+import com.mongodb.flac.capco.CapcoRedactExpression;
+import com.mongodb.flac.capco.CapcoSecurityAttributes;
+
+/**
+ * registers profiles, no server is needed as no view is built
+ */
+public class MaterializedRedactionManagerTest {
+
+    private static MongoClient mongoClient;
+    private static DBCollection collection;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        mongoClient = new MongoClient();
+        collection = mongoClient.getDB("flac").getCollection("persons");
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        mongoClient.close();
+    }
+
+    @Test
+    public void testProfilesAreRegisteredByFingerprint() throws Exception {
+        MaterializedRedactionManager manager = new MaterializedRedactionManager(collection, new CapcoRedactExpression("sl"), "modified");
+        CapcoSecurityAttributes profile = new CapcoSecurityAttributes();
+        profile.setClearance("S");
+        profile.setSci(Arrays.asList("TK", "SI"));
+        MaterializedRedactionManager.View view = manager.register(profile);
+        Assert.assertTrue(view.getCollection().getName().startsWith("persons.redacted."));
+
+        CapcoSecurityAttributes sameLabels = new CapcoSecurityAttributes();
+        sameLabels.setSci(Arrays.asList("SI", "TK"));
+        sameLabels.setClearance("S");
+        Assert.assertSame(view, manager.register(sameLabels));
+        Assert.assertEquals(1, manager.getViews().size());
+
+        // not built yet
+        Assert.assertNull(manager.route(sameLabels));
+
+        CapcoSecurityAttributes other = new CapcoSecurityAttributes();
+        other.setClearance("TS");
+        Assert.assertFalse(view.getCollection().getName().equals(manager.register(other).getCollection().getName()));
+        Assert.assertSame(view, manager.unregister(sameLabels));
+        Assert.assertEquals(1, manager.getViews().size());
+    }
+
+    @Test
+    public void testRoutingFailsClosed() throws Exception {
+        try {
+            new MaterializedRedactionManager(collection, new CapcoRedactExpression("sl"), "_id");
+            Assert.fail("routed on the _id watermark");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+
+        MaterializedRedactionManager manager = new MaterializedRedactionManager(collection, new CapcoRedactExpression("sl"), "modified");
+        Assert.assertEquals(MaterializedRedactionManager.DEFAULT_MAX_STALENESS_MILLIS, manager.getMaxStalenessMillis());
+        try {
+            manager.setMaxStalenessMillis(0);
+            Assert.fail("unbounded staleness");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testManagerMustRedactLikeTheCollection() throws Exception {
+        CapcoRedactExpression redactExpression = new CapcoRedactExpression("sl");
+        CapcoSecurityAttributes userSecurityAttributes = new CapcoSecurityAttributes();
+        userSecurityAttributes.setClearance("S");
+        RedactedDBCollection redactedDBCollection = new RedactedDBCollection(collection, userSecurityAttributes, redactExpression);
+
+        redactedDBCollection.setMaterializedRedactionManager(new MaterializedRedactionManager(collection, redactExpression, "modified"));
+        try {
+            redactedDBCollection.setMaterializedRedactionManager(
+                    new MaterializedRedactionManager(collection, new CapcoRedactExpression("marking"), "modified"));
+            Assert.fail("set a manager of another redact expression");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,226 @@
+package com.mongodb.flac;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.bson.types.ObjectId;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBCollection;
+import com.mongodb.DBObject;
+import com.mongodb.WriteConcern;
+import com.mongodb.flac.capco.CapcoEntitlementPrefilter;
+import com.mongodb.flac.capco.CapcoRedactExpression;
+import com.mongodb.flac.capco.CapcoSecurityAttributes;
+import com.mongodb.util.JSON;
+
+/**
+ * selects and routes to partitions, checks writes and orders merged documents; no server is needed, the partitions
+ * are collections of a closed client and every check runs before anything is read or written
+ */
+public class PartitionedRedactedCollectionTest {
+
+    private static PartitionedRedactedCollection partitioned;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        CapcoSecurityAttributes userSecurityAttributes = new CapcoSecurityAttributes();
+        userSecurityAttributes.setClearance("S");
+        partitioned = new PartitionedRedactedCollection(partitions(), "sl", "c", userSecurityAttributes, new CapcoRedactExpression("sl"));
+        partitioned.setUnredacted("U");
+    }
+
+    private static Map<String, DBCollection> partitions() {
+        Map<String, DBCollection> partitions = new LinkedHashMap<String, DBCollection>();
+        for (String classification : CapcoEntitlementPrefilter.CAPCO_CLASSIFICATIONS) {
+            partitions.put(classification, UnconnectedCollections.get("persons." + classification));
+        }
+        return partitions;
+    }
+
+    @Test
+    public void testReadablePartitions() throws Exception {
+        Assert.assertEquals(Arrays.asList("S", "C", "U"), partitioned.getReadablePartitionValues());
+    }
+
+    @Test
+    public void testDocumentsAreRoutedByClassification() throws Exception {
+        Assert.assertEquals("S", partitioned.getPartitionValue(parse("{ sl : [ [ { c : 'S' } ], [ { sci : 'TK' }, { sci : 'SI' } ] ] }")));
+        Assert.assertEquals("U", partitioned.getPartitionValue(parse("{ sl : [ [ { c : 'U' } ] ], name : 'x' }")));
+
+        for (String document : Arrays.asList(
+                "{ name : 'unmarked' }",
+                "{ sl : [ [ { c : 'S' }, { c : 'C' } ] ] }",
+                "{ sl : [ [ { c : 'S' } ], [ { c : 'C' } ] ] }",
+                "{ sl : [ [ { c : 'R' } ] ] }",
+                // an unredacted partition holds no other marking
+                "{ sl : [ [ { c : 'U' } ], [ { sci : 'TK' } ] ] }",
+                "{ sl : [ [ { c : 'U' } ] ], ssn : { sl : [ [ { c : 'S' } ] ], value : 'x' } }")) {
+            try {
+                partitioned.getPartitionValue(parse(document));
+                Assert.fail("routed " + document);
+            } catch (IllegalArgumentException expected) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void testLatticeDominance() throws Exception {
+        // plain attributes hold only the labels granted, the lattice supplies the dominated ones
+        SecurityAttributes userSecurityAttributes = new SecurityAttributes();
+        userSecurityAttributes.put("c", "S");
+        PartitionedRedactedCollection withoutLattice = new PartitionedRedactedCollection(partitions(), "sl", "c",
+                userSecurityAttributes, new CapcoRedactExpression("sl"));
+        Assert.assertEquals(Arrays.asList("S"), withoutLattice.getReadablePartitionValues());
+
+        withoutLattice.setLabelLattice(new LabelLattice.Builder().hierarchy("c", "TS", "S", "C", "U").build());
+        Assert.assertEquals(Arrays.asList("S", "C", "U"), withoutLattice.getReadablePartitionValues());
+    }
+
+    @Test
+    public void testUnredactedPartitionRefusesOtherWrites() throws Exception {
+        try {
+            partitioned.getPartition("U").insert(parse("{ sl : [ [ { c : 'U' } ] ], ssn : { sl : [ [ { c : 'S' } ] ], value : 'x' } }"));
+            Assert.fail("inserted into an unredacted partition");
+        } catch (IllegalStateException expected) {
+            Assert.assertTrue(expected.getMessage(), expected.getMessage().contains("refused"));
+        }
+        try {
+            partitioned.getPartition("U").update(parse("{ name : 'x' }"), parse("{ $set : { ssn : { sl : [ [ { c : 'S' } ] ], value : 'x' } } }"));
+            Assert.fail("updated an unredacted partition");
+        } catch (IllegalStateException expected) {
+            Assert.assertTrue(expected.getMessage(), expected.getMessage().contains("refused"));
+        }
+        try {
+            partitioned.getPartition("U").initializeBulkWriter();
+            Assert.fail("bulk wrote an unredacted partition");
+        } catch (IllegalStateException expected) {
+            Assert.assertTrue(expected.getMessage(), expected.getMessage().contains("refused"));
+        }
+    }
+
+    @Test
+    public void testUpdatesCantWriteMarkingsIntoUnredactedPartitions() throws Exception {
+        for (String update : Arrays.asList(
+                "{ $set : { ssn : { sl : [ [ { c : 'S' } ] ], value : 'x' } } }",
+                "{ $set : { 'ssn.sl' : [ [ { c : 'C' } ] ] } }",
+                "{ $push : { aliases : { $each : [ { sl : [ [ { c : 'C' } ] ], name : 'y' } ] } } }",
+                "{ sl : [ [ { c : 'U' } ] ], ssn : { sl : [ [ { c : 'C' } ] ], value : 'x' } }")) {
+            try {
+                partitioned.checkUpdate("U", parse(update));
+                Assert.fail("checked " + update);
+            } catch (IllegalArgumentException expected) {
+                // expected
+            }
+            // the redacted partitions keep the markings
+            if (update.startsWith("{ $")) {
+                partitioned.checkUpdate("S", parse(update));
+            }
+        }
+        partitioned.checkUpdate("U", parse("{ $set : { name : 'y' } }"));
+    }
+
+    @Test
+    public void testUpdatesCantMoveDocumentsBetweenPartitions() throws Exception {
+        for (String update : Arrays.asList(
+                "{ $set : { sl : [ [ { c : 'U' } ] ] } }",
+                "{ sl : [ [ { c : 'C' } ] ], name : 'x' }")) {
+            try {
+                partitioned.checkUpdate("S", parse(update));
+                Assert.fail("checked " + update);
+            } catch (IllegalArgumentException expected) {
+                // expected
+            }
+        }
+        partitioned.checkUpdate("S", parse("{ sl : [ [ { c : 'S' } ] ], name : 'x' }"));
+
+        // rejected before any partition is written
+        try {
+            partitioned.update(parse("{ name : 'x' }"), parse("{ $set : { 'ssn.sl' : [ [ { c : 'C' } ] ] } }"), true, WriteConcern.ACKNOWLEDGED);
+            Assert.fail("updated the unredacted partition");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testProjectionMustKeepSortKeys() throws Exception {
+        PartitionedRedactedCollection.checkKeepsSortKeys(parse("{ name : 1 }"), parse("{ name : 1, _id : -1 }"));
+        PartitionedRedactedCollection.checkKeepsSortKeys(parse("{ a : 1 }"), parse("{ 'a.b' : 1 }"));
+        PartitionedRedactedCollection.checkKeepsSortKeys(parse("{ ssn : 0 }"), parse("{ name : 1 }"));
+        PartitionedRedactedCollection.checkKeepsSortKeys(null, parse("{ name : 1 }"));
+
+        for (String[] projectionAndSort : new String[][]{
+                {"{ name : 1 }", "{ age : 1 }"},
+                {"{ name : 0 }", "{ name : 1 }"},
+                {"{ 'a.b' : 1 }", "{ a : 1 }"},
+                {"{ name : 1, _id : 0 }", "{ _id : 1 }"}}) {
+            try {
+                PartitionedRedactedCollection.checkKeepsSortKeys(parse(projectionAndSort[0]), parse(projectionAndSort[1]));
+                Assert.fail("kept " + Arrays.asList(projectionAndSort));
+            } catch (IllegalArgumentException expected) {
+                // expected
+            }
+        }
+
+        try {
+            partitioned.find(null, parse("{ name : 1 }"), 0, 10, parse("{ age : -1 }"));
+            Assert.fail("merged without the sort key");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testAggregateStagesMustBeMergeable() throws Exception {
+        for (String stage : Arrays.asList("{ $group : { _id : '$name' } }", "{ $skip : 1 }")) {
+            try {
+                partitioned.aggregate(Collections.singletonList(parse(stage)), AggregationOptions.builder().build());
+                Assert.fail("merged " + stage);
+            } catch (IllegalArgumentException expected) {
+                // expected
+            }
+        }
+        try {
+            partitioned.aggregate(Arrays.asList(parse("{ $sort : { name : 1 } }"), parse("{ $match : { name : 'x' } }")),
+                    AggregationOptions.builder().build());
+            Assert.fail("merged a stage after $sort");
+        } catch (IllegalArgumentException expected) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testSortOrder() throws Exception {
+        ObjectId id = new ObjectId();
+        List<DBObject> documents = new ArrayList<DBObject>(Arrays.asList(
+                new BasicDBObject("a", new BasicDBObject("b", "x")),
+                new BasicDBObject("a", new BasicDBObject("b", 2.5)),
+                new BasicDBObject("a", new BasicDBObject("b", id)),
+                new BasicDBObject("a", new BasicDBObject("b", 2)),
+                new BasicDBObject("a", new BasicDBObject()),
+                new BasicDBObject("a", new BasicDBObject("b", 10L))));
+        Collections.sort(documents, new PartitionedRedactedCollection.SortOrder(new BasicDBObject("a.b", 1)));
+        List<Object> values = new ArrayList<Object>();
+        for (DBObject document : documents) {
+            values.add(((DBObject) document.get("a")).get("b"));
+        }
+        Assert.assertEquals(Arrays.<Object>asList(null, 2, 2.5, 10L, "x", id), values);
+
+        Collections.sort(documents, new PartitionedRedactedCollection.SortOrder(new BasicDBObject("a.b", -1)));
+        Assert.assertEquals(id, ((DBObject) documents.get(0).get("a")).get("b"));
+    }
+
+    private static DBObject parse(String json) {
+        return (DBObject) JSON.parse(json);
+    }
+}
@@ -0,0 +1,150 @@
+package com.mongodb.flac;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.AfterClass;
+import org.junit.Assert;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.MongoClient;
+import com.mongodb.flac.capco.CapcoRedactExpression;
+import com.mongodb.flac.capco.CapcoSecurityAttributes;
+import com.mongodb.util.JSON;
+
+/**
+ * builds the pipelines of each find overload, no server is needed as nothing is sent
+ */
+public class PipelineOptimizerTest {
+
+    private static MongoClient mongoClient;
+    private static RedactedDBCollection redactedDBCollection;
+
+    @BeforeClass
+    public static void setUp() throws Exception {
+        mongoClient = new MongoClient();
+        final CapcoSecurityAttributes userSecurityAttributes = new CapcoSecurityAttributes();
+        userSecurityAttributes.setClearance("S");
+        redactedDBCollection = new RedactedDBCollection(mongoClient.getDB("flac").getCollection("pipelines"),
+                userSecurityAttributes, new CapcoRedactExpression("sl"));
+    }
+
+    @AfterClass
+    public static void tearDown() {
+        mongoClient.close();
+    }
+
+    @Test
+    public void testFindSortsBeforeSkipLimitAndProject() throws Exception {
+        // find(query, fields, numToSkip, batchSize, limit, options, readPref, orderBy)
+        List<DBObject> pipeline = redactedDBCollection.buildFindPipeline(new BasicDBObject("a", 1), new BasicDBObject("a", 1),
+                20, 10, new BasicDBObject("b", -1));
+        Assert.assertEquals(Arrays.asList("$redact", "$match", "$sort", "$limit", "$skip", "$project"), stageNames(pipeline));
+        Assert.assertEquals(30, pipeline.get(3).get("$limit"));
+        Assert.assertEquals(20, pipeline.get(4).get("$skip"));
+        Assert.assertTrue(PipelineOptimizer.isSortBounded(pipeline));
+
+        // find(query, fields, limit, readPref, orderBy)
+        pipeline = redactedDBCollection.buildFindPipeline(null, new BasicDBObject("a", 1), 10, 0, new BasicDBObject("b", -1));
+        Assert.assertEquals(Arrays.asList("$redact", "$sort", "$skip", "$project"), stageNames(pipeline));
+
+        pipeline = redactedDBCollection.buildFindPipeline(null, null, 0, 10, new BasicDBObject("b", -1));
+        Assert.assertEquals(Arrays.asList("$redact", "$sort", "$limit"), stageNames(pipeline));
+        Assert.assertTrue(PipelineOptimizer.isSortBounded(pipeline));
+
+        // find(query, fields), find(query, fields, numToSkip, batchSize, limit, options, readPref, decoder)
+        pipeline = redactedDBCollection.buildFindPipeline(new BasicDBObject("a", 1), null, 5, 10, null);
+        Assert.assertEquals(Arrays.asList("$redact", "$match", "$skip", "$limit"), stageNames(pipeline));
+    }
+
+    @Test
+    public void testFindOneIsATopOneSort() throws Exception {
+        List<DBObject> pipeline = redactedDBCollection.buildFindOnePipeline(new BasicDBObject("a", 1), new BasicDBObject("a", 1),
+                new BasicDBObject("b", 1));
+        Assert.assertEquals(Arrays.asList("$redact", "$match", "$sort", "$limit", "$project"), stageNames(pipeline));
+        Assert.assertEquals(1, pipeline.get(3).get("$limit"));
+    }
+
+    @Test
+    public void testAdjacentMatchesAreMerged() throws Exception {
+        redactedDBCollection.setPredicatePushdown(PredicatePushdown.allowlist("_id"));
+        try {
+            List<DBObject> pipeline = redactedDBCollection.buildAggregatePipeline(Arrays.<DBObject>asList(
+                    (DBObject) JSON.parse("{ $match : { _id : { $gt : 1 } } }"),
+                    (DBObject) JSON.parse("{ $match : { _id : { $lt : 9 } } }"),
+                    (DBObject) JSON.parse("{ $match : { a : 1 } }")));
+            Assert.assertEquals(Arrays.asList("$match", "$redact", "$match"), stageNames(pipeline));
+            Assert.assertEquals(JSON.parse("{ _id : { $gt : 1 } }"), pipeline.get(0).get("$match"));
+            Assert.assertEquals(JSON.parse("{ _id : { $lt : 9 }, a : 1 }"), pipeline.get(2).get("$match"));
+        } finally {
+            redactedDBCollection.setPredicatePushdown(PredicatePushdown.DISABLED);
+        }
+    }
+
+    @Test
+    public void testOtherStagesAreNotReordered() throws Exception {
+        List<DBObject> pipeline = redactedDBCollection.buildAggregatePipeline(Arrays.<DBObject>asList(
+                (DBObject) JSON.parse("{ $project : { a : 1 } }"),
+                (DBObject) JSON.parse("{ $sort : { a : 1 } }"),
+                (DBObject) JSON.parse("{ $group : { _id : \"$a\" } }"),
+                (DBObject) JSON.parse("{ $match : { _id : 1 } }")));
+        PipelineOptimizer.canonicalizeFind(pipeline);
+        Assert.assertEquals(Arrays.asList("$redact", "$project", "$sort", "$group", "$match"), stageNames(pipeline));
+        Assert.assertFalse(PipelineOptimizer.isSortBounded(pipeline));
+    }
+
+    @Test
+    public void testDiskUseOnlyForUnboundedSorts() throws Exception {
+        AggregationOptions options = AggregationOptions.builder().batchSize(7).outputMode(AggregationOptions.OutputMode.CURSOR).build();
+
+        List<DBObject> bounded = redactedDBCollection.buildFindPipeline(null, null, 0, 10, new BasicDBObject("b", 1));
+        Assert.assertSame(options, PipelineOptimizer.withDiskUseIfUnbounded(bounded, options));
+
+        List<DBObject> unbounded = redactedDBCollection.buildFindPipeline(null, null, 0, 0, new BasicDBObject("b", 1));
+        AggregationOptions diskUse = PipelineOptimizer.withDiskUseIfUnbounded(unbounded, options);
+        Assert.assertEquals(Boolean.TRUE, diskUse.getAllowDiskUse());
+        Assert.assertEquals(Integer.valueOf(7), diskUse.getBatchSize());
+
+        AggregationOptions noDiskUse = AggregationOptions.builder().allowDiskUse(false).outputMode(AggregationOptions.OutputMode.CURSOR).build();
+        Assert.assertSame(noDiskUse, PipelineOptimizer.withDiskUseIfUnbounded(unbounded, noDiskUse));
+    }
+
+    @Test
+    public void testDocumentLevelMatchTakesThePlaceOfRedact() throws Exception {
+        redactedDBCollection.setRedactionMode(RedactedDBCollection.RedactionMode.DOCUMENT_LEVEL);
+        redactedDBCollection.setPredicatePushdown(PredicatePushdown.allowlist("_id"));
+        try {
+            List<DBObject> pipeline = redactedDBCollection.buildFindPipeline(
+                    (DBObject) JSON.parse("{ _id : { $gt : 1 }, a : 1 }"), null, 0, 10, new BasicDBObject("b", 1));
+            Assert.assertEquals(Arrays.asList("$match", "$match", "$match", "$sort", "$limit"), stageNames(pipeline));
+            Assert.assertEquals(1, RedactedDBCollection.indexOfSecurityStage(pipeline));
+            Assert.assertTrue(pipeline.get(1) instanceof RedactedDBCollection.DocumentLevelMatch);
+            Assert.assertEquals(JSON.parse("{ a : 1 }"), pipeline.get(2).get("$match"));
+        } finally {
+            redactedDBCollection.setPredicatePushdown(PredicatePushdown.DISABLED);
+            redactedDBCollection.setRedactionMode(RedactedDBCollection.RedactionMode.SERVER);
+        }
+    }
+
+    @Test
+    public void testDocumentLevelModeIsChosenFromTheSchema() throws Exception {
+        Assert.assertEquals(RedactedDBCollection.RedactionMode.DOCUMENT_LEVEL,
+                RedactedDBCollection.RedactionMode.forSchema(MarkingSchema.of("")));
+        Assert.assertEquals(RedactedDBCollection.RedactionMode.DOCUMENT_LEVEL,
+                RedactedDBCollection.RedactionMode.forSchema(MarkingSchema.of()));
+        Assert.assertEquals(RedactedDBCollection.RedactionMode.SERVER,
+                RedactedDBCollection.RedactionMode.forSchema(MarkingSchema.of("", "ssn")));
+    }
+
+    private static List<String> stageNames(List<DBObject> pipeline) {
+        final String[] names = new String[pipeline.size()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = pipeline.get(i).keySet().iterator().next();
+        }
+        return Arrays.asList(names);
+    }
+}
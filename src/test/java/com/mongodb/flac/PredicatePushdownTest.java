@@ -0,0 +1,73 @@
+package com.mongodb.flac;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+public class PredicatePushdownTest {
+
+    @Test
+    public void testDisabledKeepsWholeQueryAfterRedact() throws Exception {
+        DBObject query = (DBObject) JSON.parse("{ _id : 1, firstName : \"Sheldon\" }");
+        DBObject[] split = PredicatePushdown.DISABLED.split(query);
+        Assert.assertNull(split[0]);
+        Assert.assertSame(query, split[1]);
+    }
+
+    @Test
+    public void testStrictPushesIdOnly() throws Exception {
+        DBObject query = (DBObject) JSON.parse("{ _id : 1, firstName : \"Sheldon\", \"ssn.value\" : \"354-61-8555\" }");
+        DBObject[] split = PredicatePushdown.strict().split(query);
+        Assert.assertEquals(JSON.parse("{ _id : 1 }"), split[0]);
+        Assert.assertEquals(JSON.parse("{ firstName : \"Sheldon\", \"ssn.value\" : \"354-61-8555\" }"), split[1]);
+    }
+
+    @Test
+    public void testAllowlistPushesDeclaredFieldsAndPathsBelowThem() throws Exception {
+        PredicatePushdown pushdown = PredicatePushdown.allowlist("firstName", "year");
+        DBObject query = (DBObject) JSON.parse("{ firstName : \"Sheldon\", \"year.month\" : 5, \"ssn.value\" : \"354-61-8555\" }");
+        DBObject[] split = pushdown.split(query);
+        Assert.assertEquals(JSON.parse("{ firstName : \"Sheldon\", \"year.month\" : 5 }"), split[0]);
+        Assert.assertEquals(JSON.parse("{ \"ssn.value\" : \"354-61-8555\" }"), split[1]);
+    }
+
+    @Test
+    public void testAndIsSplitButOrOnlyPushedWhenFullyUnmarked() throws Exception {
+        PredicatePushdown pushdown = PredicatePushdown.allowlist("firstName", "lastName");
+        DBObject query = (DBObject) JSON.parse("{ $and : [ { firstName : \"Sheldon\" }, { \"country.value\" : \"IRAQ\" } ], "
+                + "$or : [ { firstName : \"Alice\" }, { lastName : \"Humphrey\" } ], "
+                + "$nor : [ { firstName : \"Bob\" }, { \"ssn.value\" : \"1\" } ] }");
+        DBObject[] split = pushdown.split(query);
+        Assert.assertEquals(JSON.parse("{ firstName : \"Sheldon\", $or : [ { firstName : \"Alice\" }, { lastName : \"Humphrey\" } ] }"), split[0]);
+        Assert.assertEquals(JSON.parse("{ \"country.value\" : \"IRAQ\", $nor : [ { firstName : \"Bob\" }, { \"ssn.value\" : \"1\" } ] }"), split[1]);
+    }
+
+    @Test
+    public void testClashingKeysAreCombinedWithAnd() throws Exception {
+        PredicatePushdown pushdown = PredicatePushdown.strict();
+        DBObject query = (DBObject) JSON.parse("{ $and : [ { _id : { $gt : 1 } }, { _id : { $lt : 9 } } ] }");
+        DBObject[] split = pushdown.split(query);
+        Assert.assertEquals(JSON.parse("{ $and : [ { _id : { $gt : 1 } }, { _id : { $lt : 9 } } ] }"), split[0]);
+        Assert.assertNull(split[1]);
+    }
+
+    @Test
+    public void testOperatorsStayAfterRedact() throws Exception {
+        PredicatePushdown pushdown = PredicatePushdown.allowlist("firstName");
+        DBObject query = new BasicDBObject("$text", new BasicDBObject("$search", "Sheldon"));
+        DBObject[] split = pushdown.split(query);
+        Assert.assertNull(split[0]);
+        Assert.assertEquals(query, split[1]);
+        Assert.assertEquals(false, pushdown.isPushable("$where"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testAllowlistRejectsDottedFields() throws Exception {
+        new PredicatePushdown(PredicatePushdown.Mode.ALLOWLIST, Arrays.asList("ssn.value"));
+    }
+}
@@ -0,0 +1,234 @@
+package com.mongodb.flac;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+import com.mongodb.ServerAddress;
+
+public class PrefetchingCursorTest {
+
+    private ExecutorService executor = Executors.newCachedThreadPool();
+
+    @After
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    public void testReturnsAllDocumentsInOrder() throws Exception {
+        Cursor cursor = new PrefetchingCursor(new CountingCursor(250, -1), executor, 7);
+        for (int i = 0; i < 250; i++) {
+            assertTrue(cursor.hasNext());
+            assertEquals(i, cursor.next().get("n"));
+        }
+        assertFalse(cursor.hasNext());
+    }
+
+    @Test
+    public void testReadsAheadAtMostPrefetch() throws Exception {
+        CountingCursor source = new CountingCursor(1000, -1);
+        Cursor cursor = new PrefetchingCursor(source, executor, 10);
+        Thread.sleep(300);
+        assertTrue(source.read.get() <= 11);    // 10 queued, one waiting for room
+        cursor.close();
+        Thread.sleep(300);
+        assertTrue(source.closed);
+    }
+
+    @Test
+    public void testRethrowsErrorAfterPrecedingDocuments() throws Exception {
+        Cursor cursor = new PrefetchingCursor(new CountingCursor(10, 3), executor, 5);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, cursor.next().get("n"));
+        }
+        try {
+            cursor.hasNext();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("failed at 3", e.getMessage());
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testRethrowsErrorOfTheReadingThread() throws Exception {
+        CountingCursor source = new CountingCursor(10, -1) {
+            private int calls;
+
+            @Override
+            public boolean hasNext() {
+                if (calls++ == 3) {
+                    throw new AssertionError("failed at 3");
+                }
+                return super.hasNext();
+            }
+        };
+        Cursor cursor = new PrefetchingCursor(source, executor, 5);
+        for (int i = 0; i < 3; i++) {
+            assertEquals(i, cursor.next().get("n"));
+        }
+        try {
+            cursor.hasNext();
+            fail();
+        } catch (AssertionError e) {
+            assertEquals("failed at 3", e.getMessage());
+        }
+        assertTrue(source.closed);
+    }
+
+    @Test
+    public void testClosesSourceWhenTheExecutorRejects() throws Exception {
+        CountingCursor source = new CountingCursor(10, -1);
+        executor.shutdown();
+        try {
+            new PrefetchingCursor(source, executor, 5);
+            fail();
+        } catch (RejectedExecutionException e) {
+            assertTrue(source.closed);
+        }
+    }
+
+    @Test
+    public void testPublisherHonorsDemand() throws Exception {
+        final List<Object> received = new ArrayList<Object>();
+        final CountDownLatch firstTwo = new CountDownLatch(2);
+        final CountDownLatch completed = new CountDownLatch(1);
+        final CursorPublisher.Subscription[] subscription = new CursorPublisher.Subscription[1];
+
+        new CursorPublisher(new Callable<Cursor>() {
+            public Cursor call() throws Exception {
+                return new CountingCursor(5, -1);
+            }
+        }, executor, 2).subscribe(new CursorPublisher.Subscriber() {
+            public void onSubscribe(CursorPublisher.Subscription s) {
+                subscription[0] = s;
+                s.request(2);
+            }
+
+            public void onNext(DBObject document) {
+                synchronized (received) {
+                    received.add(document.get("n"));
+                }
+                firstTwo.countDown();
+            }
+
+            public void onError(Throwable t) {
+                synchronized (received) {
+                    received.add(t);
+                }
+            }
+
+            public void onComplete() {
+                completed.countDown();
+            }
+        });
+
+        assertTrue(firstTwo.await(5, TimeUnit.SECONDS));
+        Thread.sleep(200);
+        synchronized (received) {
+            assertEquals(2, received.size());
+        }
+        subscription[0].request(Long.MAX_VALUE);
+        assertTrue(completed.await(5, TimeUnit.SECONDS));
+        synchronized (received) {
+            assertEquals(5, received.size());
+            assertEquals(4, received.get(4));
+        }
+    }
+
+    @Test
+    public void testPublisherCancelClosesCursor() throws Exception {
+        final CountingCursor source = new CountingCursor(1000, -1);
+        final CountDownLatch one = new CountDownLatch(1);
+        final AtomicInteger received = new AtomicInteger();
+
+        new CursorPublisher(new Callable<Cursor>() {
+            public Cursor call() throws Exception {
+                return source;
+            }
+        }, executor, 5).subscribe(new CursorPublisher.Subscriber() {
+            private CursorPublisher.Subscription subscription;
+
+            public void onSubscribe(CursorPublisher.Subscription s) {
+                subscription = s;
+                s.request(10);
+            }
+
+            public void onNext(DBObject document) {
+                received.incrementAndGet();
+                subscription.cancel();
+                one.countDown();
+            }
+
+            public void onError(Throwable t) {
+            }
+
+            public void onComplete() {
+            }
+        });
+
+        assertTrue(one.await(5, TimeUnit.SECONDS));
+        Thread.sleep(300);
+        assertEquals(1, received.get());
+        assertTrue(source.closed);
+    }
+
+    /**
+     * returns { n : 0 }, { n : 1 }, ... and optionally fails at a given position
+     */
+    private static class CountingCursor implements Cursor {
+        private final int size;
+        private final int failAt;
+        private final AtomicInteger read = new AtomicInteger();
+        private volatile boolean closed;
+
+        CountingCursor(int size, int failAt) {
+            this.size = size;
+            this.failAt = failAt;
+        }
+
+        public boolean hasNext() {
+            if (read.get() == failAt) {
+                throw new IllegalStateException("failed at " + failAt);
+            }
+            return read.get() < size;
+        }
+
+        public DBObject next() {
+            return new BasicDBObject("n", read.getAndIncrement());
+        }
+
+        public void remove() {
+            throw new UnsupportedOperationException();
+        }
+
+        public long getCursorId() {
+            return 0;
+        }
+
+        public ServerAddress getServerAddress() {
+            return null;
+        }
+
+        public void close() {
+            closed = true;
+        }
+    }
+}
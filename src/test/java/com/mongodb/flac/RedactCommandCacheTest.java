@@ -0,0 +1,118 @@
+package com.mongodb.flac;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mongodb.DBObject;
+import com.mongodb.flac.capco.CapcoRedactExpression;
+import com.mongodb.flac.capco.CapcoSecurityAttributes;
+
+public class RedactCommandCacheTest {
+
+    private CapcoRedactExpression capcoRedactExpression = new CapcoRedactExpression("sl");
+
+    @Test
+    public void testSameUserHitsCache() throws Exception {
+        RedactCommandCache cache = new RedactCommandCache(10, 10, TimeUnit.MINUTES);
+        CapcoSecurityAttributes userSecurityAttributes = new CapcoSecurityAttributes();
+        userSecurityAttributes.setClearance("TS");
+
+        DBObject first = cache.get(capcoRedactExpression, userSecurityAttributes);
+        DBObject second = cache.get(capcoRedactExpression, userSecurityAttributes);
+
+        Assert.assertSame(first, second);
+        Assert.assertEquals(1, cache.getMissCount());
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.size());
+    }
+
+    @Test
+    public void testIdenticalEntitlementsShareEntry() throws Exception {
+        RedactCommandCache cache = new RedactCommandCache(10, 10, TimeUnit.MINUTES);
+
+        CapcoSecurityAttributes user1 = new CapcoSecurityAttributes();
+        user1.setClearance("TS");
+        user1.setSci(Arrays.asList("TK", "SI"));
+
+        SecurityAttributes user2 = new SecurityAttributes();
+        user2.put("sci", Arrays.asList("SI", " TK", "SI"));
+        user2.put("c", Arrays.asList("U", "C", "S", "TS"));
+
+        Assert.assertEquals(user1.getFingerprint(), user2.getFingerprint());
+        Assert.assertSame(cache.get(capcoRedactExpression, user1), cache.get(capcoRedactExpression, user2));
+        Assert.assertEquals(1, cache.getHitCount());
+    }
+
+    @Test
+    public void testEqualExpressionsShareEntry() throws Exception {
+        RedactCommandCache cache = new RedactCommandCache(10, 10, TimeUnit.MINUTES);
+        CapcoSecurityAttributes userSecurityAttributes = new CapcoSecurityAttributes();
+        userSecurityAttributes.setClearance("TS");
+
+        // e.g. two collections, each built with its own expression instance
+        Assert.assertEquals(capcoRedactExpression, new CapcoRedactExpression("sl"));
+        Assert.assertSame(cache.get(capcoRedactExpression, userSecurityAttributes),
+                cache.get(new CapcoRedactExpression("sl"), userSecurityAttributes));
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.size());
+
+        Assert.assertFalse(capcoRedactExpression.equals(new StringRedactExpression("sl", CapcoRedactExpression.CAPCO_REDACT_EXPRESSION)));
+    }
+
+    @Test
+    public void testDifferentEntitlementsAndExpressionsDoNotShare() throws Exception {
+        RedactCommandCache cache = new RedactCommandCache(10, 10, TimeUnit.MINUTES);
+
+        CapcoSecurityAttributes userTS = new CapcoSecurityAttributes();
+        userTS.setClearance("TS");
+        CapcoSecurityAttributes userU = new CapcoSecurityAttributes();
+        userU.setClearance("U");
+
+        Assert.assertNotSame(cache.get(capcoRedactExpression, userTS), cache.get(capcoRedactExpression, userU));
+        Assert.assertNotSame(cache.get(capcoRedactExpression, userTS),
+                cache.get(new CapcoRedactExpression("security"), userTS));
+        Assert.assertEquals(3, cache.getMissCount());
+    }
+
+    @Test
+    public void testEvictsLeastRecentlyUsed() throws Exception {
+        RedactCommandCache cache = new RedactCommandCache(2, 0, TimeUnit.MINUTES);
+
+        CapcoSecurityAttributes userTS = new CapcoSecurityAttributes();
+        userTS.setClearance("TS");
+        CapcoSecurityAttributes userS = new CapcoSecurityAttributes();
+        userS.setClearance("S");
+        CapcoSecurityAttributes userU = new CapcoSecurityAttributes();
+        userU.setClearance("U");
+
+        cache.get(capcoRedactExpression, userTS);
+        cache.get(capcoRedactExpression, userS);
+        cache.get(capcoRedactExpression, userTS);     // TS is now the most recently used
+        cache.get(capcoRedactExpression, userU);      // evicts S
+
+        Assert.assertEquals(2, cache.size());
+        Assert.assertEquals(1, cache.getEvictionCount());
+        cache.resetStats();
+        cache.get(capcoRedactExpression, userTS);
+        cache.get(capcoRedactExpression, userS);
+        Assert.assertEquals(1, cache.getHitCount());
+        Assert.assertEquals(1, cache.getMissCount());
+    }
+
+    @Test
+    public void testExpiresAfterWrite() throws Exception {
+        RedactCommandCache cache = new RedactCommandCache(10, 1, TimeUnit.MILLISECONDS);
+        CapcoSecurityAttributes userSecurityAttributes = new CapcoSecurityAttributes();
+        userSecurityAttributes.setClearance("C");
+
+        cache.get(capcoRedactExpression, userSecurityAttributes);
+        Thread.sleep(5);
+        cache.get(capcoRedactExpression, userSecurityAttributes);
+
+        Assert.assertEquals(0, cache.getHitCount());
+        Assert.assertEquals(2, cache.getMissCount());
+    }
+}
@@ -1,27 +1,52 @@
 package com.mongodb.flac;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.assertNotSame;
-
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.io.SequenceInputStream;
 import java.net.UnknownHostException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
 
 import org.junit.Before;
 import org.junit.BeforeClass;
 import org.junit.Test;
 
+import com.mongodb.AggregationOptions;
 import com.mongodb.BasicDBObject;
 import com.mongodb.Cursor;
 import com.mongodb.DB;
 import com.mongodb.DBCollection;
+import com.mongodb.DBDecoder;
 import com.mongodb.DBObject;
+import com.mongodb.DefaultDBDecoder;
 import com.mongodb.MongoClient;
 import com.mongodb.ReadPreference;
 import com.mongodb.WriteConcern;
+import com.mongodb.flac.capco.CapcoEntitlementPrefilter;
+import com.mongodb.flac.capco.CapcoLabelDictionary;
 import com.mongodb.flac.capco.CapcoRedactExpression;
 import com.mongodb.flac.capco.CapcoSecurityAttributes;
 import com.mongodb.util.JSON;
@@ -298,6 +323,638 @@ public class RedactedDBCollectionTest extends TestCase {
         assertNotNull(dbObject);
     }
 
+    // the pushdown plan must return exactly what the redact-first plan returns
+    @Test
+    public void testPredicatePushdownGivesSameResultsAsRedactFirst() throws Exception {
+
+        final DBCollection dbCollectionSrc = getDbCollectionUsedForTesting();
+        final CapcoSecurityAttributes userSecurityAttributes = new CapcoSecurityAttributes();
+        userSecurityAttributes.setClearance("S");
+
+        final RedactedDBCollection redactFirst = new RedactedDBCollection(dbCollectionSrc, userSecurityAttributes, capcoRedactExpression);
+        final RedactedDBCollection pushdown = new RedactedDBCollection(dbCollectionSrc, userSecurityAttributes, capcoRedactExpression);
+        pushdown.setPredicatePushdown(PredicatePushdown.allowlist("firstName", "lastName", "foo"));
+
+        final String[] queries = {
+                "{ _id : \"5375052930040f83a06f115a\" }",
+                "{ firstName : \"Alice\" }",
+                "{ firstName : { $in : [ \"Alice\", \"Sheldon\" ] }, \"favorites.cartoonCharacters\" : \"Rabbit\" }",
+                "{ $or : [ { lastName : \"Fuentes\" }, { foo : \"bar\" } ], \"country.value\" : \"IRAQ\" }",
+                "{ \"ssn.value\" : { $exists : true } }"
+        };
+        final DBObject orderBy = new BasicDBObject("_id", 1);
+        for (String json : queries) {
+            final DBObject query = (DBObject) JSON.parse(json);
+            final List<DBObject> expected = drain(redactFirst.find(query, null, 0, ReadPreference.primary(), orderBy));
+            final List<DBObject> actual = drain(pushdown.find(query, null, 0, ReadPreference.primary(), orderBy));
+            assertEquals(json, expected, actual);
+        }
+
+        List<DBObject> pipelineForAggregate = new ArrayList<DBObject>();
+        pipelineForAggregate.add(new BasicDBObject("$match", JSON.parse(queries[2])));
+        assertEquals(drain(redactFirst.aggregate(pipelineForAggregate)), drain(pushdown.aggregate(pipelineForAggregate)));
+    }
+
+    // the entitlement prefilter must not change what the user sees
+    @Test
+    public void testEntitlementPrefilterGivesSameResults() throws Exception {
+
+        final DBCollection dbCollectionSrc = getDbCollectionUsedForTesting();
+        dbCollectionSrc.insert((DBObject) JSON.parse("{ \"_id\" : \"prefilter-ts\", \"sl\" : [ [ { \"c\" : \"TS\" } ] ], \"firstName\" : \"Top\" }"), WriteConcern.NORMAL);
+        dbCollectionSrc.insert((DBObject) JSON.parse("{ \"_id\" : \"prefilter-s\", \"sl\" : [ [ { \"c\" : \"S\" }, { \"c\" : \"TS\" } ] ], \"firstName\" : \"Secret\" }"), WriteConcern.NORMAL);
+        final CapcoEntitlementPrefilter prefilter = new CapcoEntitlementPrefilter("sl");
+        prefilter.ensureIndex(dbCollectionSrc);
+
+        final DBObject orderBy = new BasicDBObject("_id", 1);
+        for (String clearance : Arrays.asList("TS", "S", "C", "U")) {
+            final CapcoSecurityAttributes userSecurityAttributes = new CapcoSecurityAttributes();
+            userSecurityAttributes.setClearance(clearance);
+
+            final RedactedDBCollection redactOnly = new RedactedDBCollection(dbCollectionSrc, userSecurityAttributes, capcoRedactExpression);
+            final RedactedDBCollection prefiltered = new RedactedDBCollection(dbCollectionSrc, userSecurityAttributes, capcoRedactExpression);
+            prefiltered.setRedactPrefilter(prefilter);
+
+            assertEquals(clearance, drain(redactOnly.find(null, null, 0, ReadPreference.primary(), orderBy)),
+                    drain(prefiltered.find(null, null, 0, ReadPreference.primary(), orderBy)));
+        }
+    }
+
+    // client side redaction must return what the server side $redact returns
+    @Test
+    public void testClientRedactionGivesSameResultsAsServerRedaction() throws Exception {
+
+        final DBCollection dbCollectionSrc = getDbCollectionUsedForTesting();
+        final DBObject orderBy = new BasicDBObject("_id", 1);
+        for (String clearance : Arrays.asList("TS", "S", "U")) {
+            final CapcoSecurityAttributes userSecurityAttributes = new CapcoSecurityAttributes();
+            userSecurityAttributes.setClearance(clearance);
+            userSecurityAttributes.setSci(Arrays.asList("HCS"));
+
+            final RedactedDBCollection serverSide = new RedactedDBCollection(dbCollectionSrc, userSecurityAttributes, capcoRedactExpression);
+            final RedactedDBCollection clientSide = new RedactedDBCollection(dbCollectionSrc, userSecurityAttributes, capcoRedactExpression);
+            clientSide.setPredicatePushdown(PredicatePushdown.allowlist("firstName"));
+            clientSide.setRedactionMode(RedactedDBCollection.RedactionMode.CLIENT);
+
+            assertEquals(clearance, drain(serverSide.find(null, null, 0, ReadPreference.primary(), orderBy)),
+                    drain(clientSide.find(null, null, 0, ReadPreference.primary(), orderBy)));
+            final DBObject query = new BasicDBObject("firstName", "Sheldon");
+            final DBObject keys = new BasicDBObject("country", 1);
+            assertEquals(clearance, serverSide.findOne(query, keys), clientSide.findOne(query, keys));
+        }
+    }
+
+    // the bitmask encoded $redact and prefilter must return what the $redact on the label documents returns
+    @Test
+    public void testBitmaskEncodingGivesSameResults() throws Exception {
+
+        final DBCollection dbCollectionSrc = getDbCollectionUsedForTesting();
+        dbCollectionSrc.insert((DBObject) JSON.parse("{ \"_id\" : \"bitmask-unknown\", \"sl\" : [ [ { \"sci\" : \"XX\" }, { \"c\" : \"U\" } ] ], "
+                + "\"firstName\" : \"Unencodable\", \"note\" : { \"sl\" : [ [ { \"c\" : \"S\" } ] ], \"value\" : \"encodable\" } }"), WriteConcern.NORMAL);
+
+        final CapcoLabelDictionary dictionary = new CapcoLabelDictionary(
+                Collections.singletonMap("sci", Arrays.asList("SI", "TK", "G", "HCS")));
+        final LabelMaskBackfill backfill = new LabelMaskBackfill(dbCollectionSrc, new LabelMaskAnnotator("sl", "slm", dictionary));
+        backfill.setBatchSize(2);
+        assertEquals(3, backfill.run());
+        assertEquals(0, backfill.run());
+
+        final BitmaskRedactExpression bitmaskRedactExpression = new BitmaskRedactExpression("slm", dictionary, capcoRedactExpression);
+        final DBObject orderBy = new BasicDBObject("_id", 1);
+        for (String clearance : Arrays.asList("TS", "S", "U")) {
+            final CapcoSecurityAttributes userSecurityAttributes = new CapcoSecurityAttributes();
+            userSecurityAttributes.setClearance(clearance);
+            userSecurityAttributes.setSci(Arrays.asList("HCS", "TK"));
+
+            final RedactedDBCollection labels = new RedactedDBCollection(dbCollectionSrc, userSecurityAttributes, capcoRedactExpression);
+            final RedactedDBCollection bitmask = new RedactedDBCollection(dbCollectionSrc, userSecurityAttributes, bitmaskRedactExpression);
+            bitmask.setRedactPrefilter(new BitmaskPrefilter("slm", dictionary));
+
+            assertEquals(clearance, drain(labels.find(null, null, 0, ReadPreference.primary(), orderBy)),
+                    drain(bitmask.find(null, null, 0, ReadPreference.primary(), orderBy)));
+        }
+    }
+
+    // concurrent identical finds of users with the same entitlements share one aggregate, and each gets its own copy
+    @Test
+    public void testRequestCoalescerGivesSameResults() throws Exception {
+
+        final DBCollection dbCollectionSrc = getDbCollectionUsedForTesting();
+        final RequestCoalescer coalescer = new RequestCoalescer();
+        final DBObject orderBy = new BasicDBObject("_id", 1);
+
+        final CapcoSecurityAttributes userSecurityAttributes = new CapcoSecurityAttributes();
+        userSecurityAttributes.setClearance("TS");
+        userSecurityAttributes.setSci(Arrays.asList("TK", "SI"));
+        final List<DBObject> expected = drain(new RedactedDBCollection(dbCollectionSrc, userSecurityAttributes,
+                capcoRedactExpression).find(null, null, 0, ReadPreference.primary(), orderBy));
+
+        final int requests = 16;
+        final ExecutorService executor = Executors.newFixedThreadPool(requests);
+        try {
+            final List<Future<List<DBObject>>> results = new ArrayList<Future<List<DBObject>>>();
+            for (int i = 0; i < requests; i++) {
+                results.add(executor.submit(new Callable<List<DBObject>>() {
+                    public List<DBObject> call() throws Exception {
+                        final CapcoSecurityAttributes sameEntitlements = new CapcoSecurityAttributes();
+                        sameEntitlements.setSci(Arrays.asList("SI", "TK"));
+                        sameEntitlements.setClearance("TS");
+                        final RedactedDBCollection redactedDBCollection = new RedactedDBCollection(dbCollectionSrc,
+                                sameEntitlements, capcoRedactExpression);
+                        redactedDBCollection.setRequestCoalescer(coalescer);
+                        final List<DBObject> result = drain(redactedDBCollection.find(null, null, 0, ReadPreference.primary(), orderBy));
+                        result.get(0).put("mutatedBy", Thread.currentThread().getName());
+                        return result;
+                    }
+                }));
+            }
+            for (Future<List<DBObject>> result : results) {
+                final List<DBObject> documents = result.get();
+                documents.get(0).removeField("mutatedBy");
+                assertEquals(expected, documents);
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(requests, coalescer.getRequestCount());
+        assertEquals(requests, coalescer.getExecutedCount() + coalescer.getCollapsedCount());
+        assertEquals(0, coalescer.getInFlightCount());
+    }
+
+    // the ranges of a parallel scan together return what a single find returns
+    @Test
+    public void testParallelScanGivesSameResults() throws Exception {
+
+        final DBCollection dbCollectionSrc = getDbCollectionUsedForTesting();
+        for (int i = 0; i < 50; i++) {
+            dbCollectionSrc.insert((DBObject) JSON.parse("{ \"_id\" : \"scan-" + (100 + i) + "\", \"sl\" : [ [ { \"c\" : \""
+                    + ((i % 3 == 0) ? "TS" : "U") + "\" } ] ], \"n\" : " + i + " }"), WriteConcern.NORMAL);
+        }
+
+        final CapcoSecurityAttributes userSecurityAttributes = new CapcoSecurityAttributes();
+        userSecurityAttributes.setClearance("S");
+        final RedactedDBCollection redactedDBCollection = new RedactedDBCollection(dbCollectionSrc, userSecurityAttributes, capcoRedactExpression);
+        final List<DBObject> expected = drain(redactedDBCollection.find(null, null, 0, ReadPreference.primary(), new BasicDBObject("_id", 1)));
+
+        final RedactedParallelScan scan = new RedactedParallelScan(redactedDBCollection);
+        scan.setPartitions(4);
+        scan.setParallelism(2);
+        scan.setBufferSize(3);
+        assertEquals(expected, drain(scan.execute()));
+
+        long scanned = 0;
+        for (RedactedParallelScan.Partition partition : scan.getPartitionProgress()) {
+            assertEquals(RedactedParallelScan.State.DONE, partition.getState());
+            scanned += partition.getDocumentCount();
+        }
+        assertEquals(expected.size(), scanned);
+
+        scan.setOrdered(false);
+        assertEquals(new HashSet<DBObject>(expected), new HashSet<DBObject>(drain(scan.execute())));
+    }
+
+    @Test
+    public void testCountAndDistinctMatchFind() throws Exception {
+
+        final DBCollection dbCollectionSrc = getDbCollectionUsedForTesting();
+        for (int i = 0; i < 12; i++) {
+            dbCollectionSrc.insert((DBObject) JSON.parse("{ \"_id\" : \"count-" + (100 + i) + "\", \"sl\" : [ [ { \"c\" : \""
+                    + ((i % 3 == 0) ? "TS" : "U") + "\" } ] ], \"color\" : [ \"c" + (i % 4) + "\", \"all\" ] }"), WriteConcern.NORMAL);
+        }
+
+        final CapcoSecurityAttributes userSecurityAttributes = new CapcoSecurityAttributes();
+        userSecurityAttributes.setClearance("S");
+        final RedactedDBCollection redactedDBCollection = new RedactedDBCollection(dbCollectionSrc, userSecurityAttributes, capcoRedactExpression);
+
+        final DBObject query = new BasicDBObject("color", "all");
+        final List<DBObject> visible = drain(redactedDBCollection.find(query));
+        assertEquals(8, visible.size());
+        assertEquals(visible.size(), redactedDBCollection.count(query));
+        assertEquals(drain(redactedDBCollection.find()).size(), redactedDBCollection.count());
+        assertEquals(3, redactedDBCollection.getCount(query, null, 3, 0));
+        assertEquals(6, redactedDBCollection.getCount(query, null, 0, 2));
+        assertEquals(0, redactedDBCollection.count(new BasicDBObject("color", "none")));
+
+        final HashSet<Object> expected = new HashSet<Object>();
+        for (DBObject document : visible) {
+            expected.addAll((List<?>) document.get("color"));
+        }
+        final List<Object> colors = redactedDBCollection.distinct("color", query);
+        assertEquals(expected.size(), colors.size());
+        assertEquals(expected, new HashSet<Object>(colors));
+    }
+
+    @Test
+    public void testMetricsAreRecorded() throws Exception {
+
+        final DBCollection dbCollectionSrc = getDbCollectionUsedForTesting();
+        for (int i = 0; i < 5; i++) {
+            dbCollectionSrc.insert((DBObject) JSON.parse("{ \"_id\" : \"metrics-" + (100 + i) + "\", \"sl\" : [ [ { \"c\" : \""
+                    + ((i % 2 == 0) ? "TS" : "U") + "\" } ] ] }"), WriteConcern.NORMAL);
+        }
+
+        final CapcoSecurityAttributes userSecurityAttributes = new CapcoSecurityAttributes();
+        userSecurityAttributes.setClearance("S");
+        final RedactedDBCollection redactedDBCollection = new RedactedDBCollection(dbCollectionSrc, userSecurityAttributes, capcoRedactExpression);
+        final InMemoryRedactMetrics metrics = new InMemoryRedactMetrics(true);
+        redactedDBCollection.setMetrics(metrics);
+
+        final int visible = drain(redactedDBCollection.find()).size();
+        assertNotNull(redactedDBCollection.findOne(new BasicDBObject("_id", "metrics-101")));
+
+        final String namespace = dbCollectionSrc.getFullName();
+        final InMemoryRedactMetrics.Stats find = metrics.getStats(namespace, RedactMetrics.Operation.FIND);
+        assertEquals(1, find.getPipelineBuild().getCount());
+        assertEquals(1, find.getFirstDocument().getCount());
+        assertEquals(1, find.getDrain().getCount());
+        assertEquals(visible, find.getDocuments());
+        assertTrue(find.getBytes() > 0);
+        assertEquals(1, find.getBatches());
+
+        final InMemoryRedactMetrics.Stats findOne = metrics.getStats(namespace, RedactMetrics.Operation.FIND_ONE);
+        assertEquals(1, findOne.getDrain().getCount());
+        assertEquals(1, findOne.getDocuments());
+
+        assertEquals(2, metrics.snapshotAndReset().size());
+        assertTrue(metrics.snapshot().isEmpty());
+    }
+
+    @Test
+    public void testExplainDiagnosesPushdown() throws Exception {
+
+        final DBCollection dbCollectionSrc = getDbCollectionUsedForTesting();
+        for (int i = 0; i < 6; i++) {
+            dbCollectionSrc.insert((DBObject) JSON.parse("{ \"_id\" : \"explain-" + (100 + i) + "\", \"sl\" : [ [ { \"c\" : \""
+                    + ((i % 3 == 0) ? "TS" : "U") + "\" } ] ] }"), WriteConcern.NORMAL);
+        }
+
+        final CapcoSecurityAttributes userSecurityAttributes = new CapcoSecurityAttributes();
+        userSecurityAttributes.setClearance("S");
+        final RedactedDBCollection redactedDBCollection = new RedactedDBCollection(dbCollectionSrc, userSecurityAttributes, capcoRedactExpression);
+        final DBObject query = new BasicDBObject("_id", new BasicDBObject("$gte", "explain-"));
+
+        final RedactedExplanation redactedFirst = redactedDBCollection.explainFind(query);
+        assertEquals(redactedDBCollection.buildFindPipeline(query, null, 0, 0, null), redactedFirst.getPipeline());
+        assertFalse(redactedFirst.isMatchBeforeRedact());
+        assertFalse(redactedFirst.isIndexUsed());
+        assertEquals(-1, redactedFirst.getDocumentsAfterRedact());
+        assertEquals(-1, redactedFirst.getEstimatedDocumentsRedacted());
+        assertEquals(redactedDBCollection.count(),
+                redactedDBCollection.explainFind(query, null, 0, 0, null, true).getDocumentsAfterRedact());
+
+        redactedDBCollection.setPredicatePushdown(PredicatePushdown.allowlist("_id"));
+        final RedactedExplanation pushedDown = redactedDBCollection.explainFind(query, null, 0, 0, null, true);
+        assertTrue(pushedDown.isMatchBeforeRedact());
+        assertTrue(pushedDown.isIndexUsed());
+        assertEquals(6, pushedDown.getDocumentsBeforeRedact());
+        assertEquals(4, pushedDown.getDocumentsAfterRedact());
+        assertEquals(2, pushedDown.getEstimatedDocumentsRedacted());
+    }
+
+    @Test
+    public void testPreparedQueryGivesSameResults() throws Exception {
+
+        final DBCollection dbCollectionSrc = getDbCollectionUsedForTesting();
+        for (int i = 0; i < 12; i++) {
+            dbCollectionSrc.insert((DBObject) JSON.parse("{ \"_id\" : \"prepared-" + (100 + i) + "\", \"sl\" : [ [ { \"c\" : \""
+                    + ((i % 3 == 0) ? "TS" : "U") + "\" } ] ], \"rank\" : " + (i % 4) + ", \"color\" : \"c" + (i % 2) + "\" }"), WriteConcern.NORMAL);
+        }
+
+        final CapcoSecurityAttributes userSecurityAttributes = new CapcoSecurityAttributes();
+        userSecurityAttributes.setClearance("S");
+        final RedactedDBCollection redactedDBCollection = new RedactedDBCollection(dbCollectionSrc, userSecurityAttributes, capcoRedactExpression);
+        redactedDBCollection.setPredicatePushdown(PredicatePushdown.allowlist("_id", "rank"));
+
+        final DBObject template = new BasicDBObject("rank", new BasicDBObject("$gte", PreparedRedactedQuery.parameter("minRank")))
+                .append("color", PreparedRedactedQuery.parameter("color"));
+        final BasicDBObject orderBy = new BasicDBObject("rank", -1).append("_id", 1);
+        final PreparedRedactedQuery prepared = redactedDBCollection.prepare(template, new BasicDBObject("rank", 1), orderBy, 3);
+        assertEquals(new LinkedHashSet<String>(Arrays.asList("minRank", "color")), prepared.getParameterNames());
+
+        for (int minRank = 0; minRank < 4; minRank++) {
+            final Map<String, Object> parameters = new HashMap<String, Object>();
+            parameters.put("minRank", minRank);
+            parameters.put("color", "c1");
+            final DBObject query = new BasicDBObject("rank", new BasicDBObject("$gte", minRank)).append("color", "c1");
+
+            final List<DBObject> sorted = drain(redactedDBCollection.find(query, new BasicDBObject("rank", 1), 0,
+                    redactedDBCollection.getReadPreference(), orderBy));
+            final List<DBObject> expected = sorted.subList(0, Math.min(3, sorted.size()));
+            assertEquals(expected, drain(prepared.find(parameters)));
+            assertEquals(expected.isEmpty() ? null : expected.get(0), prepared.findOne(parameters));
+        }
+
+        try {
+            prepared.find(Collections.<String, Object>singletonMap("color", "c1"));
+            fail("minRank has no value");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testMaterializedViewGivesSameResults() throws Exception {
+
+        final DBCollection dbCollectionSrc = getDbCollectionUsedForTesting().getDB().getCollection("materialized");
+        dbCollectionSrc.drop();
+        for (int i = 0; i < 6; i++) {
+            dbCollectionSrc.insert((DBObject) JSON.parse("{ \"_id\" : " + (100 + i) + ", \"modified\" : " + i + ", \"sl\" : [ [ { \"c\" : \"" + ((i % 3 == 0) ? "TS" : "U") + "\" } ] ],"
+                    + " \"ssn\" : { \"sl\" : [ [ { \"c\" : \"" + ((i % 2 == 0) ? "TS" : "C") + "\" } ] ], \"value\" : \"" + i + "\" } }"), WriteConcern.NORMAL);
+        }
+
+        final CapcoSecurityAttributes userSecurityAttributes = new CapcoSecurityAttributes();
+        userSecurityAttributes.setClearance("S");
+        final MaterializedRedactionManager manager = new MaterializedRedactionManager(dbCollectionSrc, capcoRedactExpression, "modified");
+        final MaterializedRedactionManager.View view = manager.register(userSecurityAttributes);
+        view.rebuild();
+
+        final RedactedDBCollection redactedDBCollection = new RedactedDBCollection(dbCollectionSrc, userSecurityAttributes, capcoRedactExpression);
+        final RedactedDBCollection routed = new RedactedDBCollection(dbCollectionSrc, userSecurityAttributes, capcoRedactExpression);
+        routed.setMaterializedRedactionManager(manager);
+        final DBObject orderBy = new BasicDBObject("_id", 1);
+        assertEquals(4, view.getCollection().count());
+        assertEquals(drain(redactedDBCollection.find(null, null, 0, redactedDBCollection.getReadPreference(), orderBy)),
+                drain(routed.find(null, null, 0, routed.getReadPreference(), orderBy)));
+
+        // a new document shows in the view after a refresh, which reads again from the last watermark, modified 5, on
+        dbCollectionSrc.insert((DBObject) JSON.parse("{ \"_id\" : 200, \"modified\" : 6, \"sl\" : [ [ { \"c\" : \"C\" } ] ] }"), WriteConcern.NORMAL);
+        assertEquals(4, routed.count());
+        assertEquals(2, view.refresh());
+        assertEquals(5, routed.count());
+        assertEquals(drain(redactedDBCollection.find(null, null, 0, redactedDBCollection.getReadPreference(), orderBy)),
+                drain(routed.find(null, null, 0, routed.getReadPreference(), orderBy)));
+    }
+
+    @Test
+    public void testPartitionedGivesSameResults() throws Exception {
+
+        final DBCollection dbCollectionSrc = getDbCollectionUsedForTesting().getDB().getCollection("partitioned");
+        dbCollectionSrc.drop();
+        final Map<String, DBCollection> partitions = new LinkedHashMap<String, DBCollection>();
+        for (String classification : CapcoEntitlementPrefilter.CAPCO_CLASSIFICATIONS) {
+            partitions.put(classification, dbCollectionSrc.getDB().getCollection("partitioned." + classification));
+            partitions.get(classification).drop();
+        }
+
+        final CapcoSecurityAttributes writerSecurityAttributes = new CapcoSecurityAttributes();
+        writerSecurityAttributes.setClearance("TS");
+        final PartitionedRedactedCollection writer = new PartitionedRedactedCollection(partitions, "sl", "c",
+                writerSecurityAttributes, capcoRedactExpression);
+        writer.setUnredacted("U");
+        final String[] classifications = {"TS", "S", "C", "U"};
+        for (int i = 0; i < 8; i++) {
+            final String classification = classifications[i % 4];
+            final String json = "{ \"_id\" : " + (100 + i) + ", \"sl\" : [ [ { \"c\" : \"" + classification + "\" } ] ], \"rank\" : " + (i * 7 % 8)
+                    + (classification.equals("U") ? "" : ", \"ssn\" : { \"sl\" : [ [ { \"c\" : \"" + ((i % 3 == 0) ? "TS" : "C") + "\" } ] ], \"value\" : \"" + i + "\" }")
+                    + " }";
+            writer.insert(Collections.singletonList((DBObject) JSON.parse(json)), WriteConcern.NORMAL);
+            dbCollectionSrc.insert((DBObject) JSON.parse(json), WriteConcern.NORMAL);
+        }
+        assertEquals(2, partitions.get("S").count());
+
+        final CapcoSecurityAttributes userSecurityAttributes = new CapcoSecurityAttributes();
+        userSecurityAttributes.setClearance("S");
+        final RedactedDBCollection redactedDBCollection = new RedactedDBCollection(dbCollectionSrc, userSecurityAttributes, capcoRedactExpression);
+        final PartitionedRedactedCollection partitioned = new PartitionedRedactedCollection(partitions, "sl", "c",
+                userSecurityAttributes, capcoRedactExpression);
+        partitioned.setUnredacted("U");
+        partitioned.setExecutor(Executors.newFixedThreadPool(3));
+        try {
+            final DBObject orderBy = new BasicDBObject("rank", 1);
+            assertEquals(6, partitioned.count(null));
+            assertEquals(drain(redactedDBCollection.find(null, null, 0, redactedDBCollection.getReadPreference(), orderBy)),
+                    drain(partitioned.find(null, null, 0, 0, orderBy)));
+            assertEquals(drain(redactedDBCollection.find(null, null, 1, 0, 3, 0, redactedDBCollection.getReadPreference(), orderBy)),
+                    drain(partitioned.find(null, null, 1, 3, orderBy)));
+
+            final List<DBObject> pipeline = Arrays.<DBObject>asList(
+                    new BasicDBObject("$match", new BasicDBObject("rank", new BasicDBObject("$gt", 1))),
+                    new BasicDBObject("$sort", new BasicDBObject("rank", -1)),
+                    new BasicDBObject("$limit", 3));
+            assertEquals(drain(redactedDBCollection.aggregate(pipeline, AggregationOptions.builder().build())),
+                    drain(partitioned.aggregate(pipeline, AggregationOptions.builder().build())));
+        } finally {
+            partitioned.getExecutor().shutdown();
+        }
+    }
+
+    @Test
+    public void testLabelSummaryGivesSameResults() throws Exception {
+
+        final DBCollection dbCollectionSrc = getDbCollectionUsedForTesting().getDB().getCollection("labelSummary");
+        dbCollectionSrc.drop();
+
+        final CapcoSecurityAttributes writerSecurityAttributes = new CapcoSecurityAttributes();
+        writerSecurityAttributes.setClearance("TS");
+        final RedactedDBCollection writer = new RedactedDBCollection(dbCollectionSrc, writerSecurityAttributes, capcoRedactExpression);
+        writer.setLabelSummaryAnnotator(new LabelSummaryAnnotator("sl", "sls"));
+        for (int i = 0; i < 6; i++) {
+            writer.insert((DBObject) JSON.parse("{ \"_id\" : \"summary-" + (100 + i) + "\", \"sl\" : [ [ { \"c\" : \"U\" } ] ],"
+                    + " \"ssn\" : { \"sl\" : [ [ { \"c\" : \"" + ((i % 2 == 0) ? "TS" : "C") + "\" } ] ], \"value\" : \"" + i + "\" } }"));
+        }
+        writer.update(new BasicDBObject("_id", "summary-101"), (DBObject) JSON.parse("{ $set : { \"ssn.sl\" : [ [ { \"c\" : \"TS\" } ] ] } }"));
+        assertFalse(dbCollectionSrc.findOne(new BasicDBObject("_id", "summary-101")).containsField("sls"));
+
+        final CapcoSecurityAttributes userSecurityAttributes = new CapcoSecurityAttributes();
+        userSecurityAttributes.setClearance("S");
+        final RedactedDBCollection redactedDBCollection = new RedactedDBCollection(dbCollectionSrc, userSecurityAttributes, capcoRedactExpression);
+        final RedactedDBCollection summarized = new RedactedDBCollection(dbCollectionSrc, userSecurityAttributes,
+                new LabelSummaryRedactExpression(capcoRedactExpression, "sls"));
+        assertEquals(drain(redactedDBCollection.find()), drain(summarized.find()));
+    }
+
+    @Test
+    public void testDocumentLevelGivesSameResults() throws Exception {
+
+        // a collection of its own, marked at the root only
+        final DBCollection dbCollectionSrc = getDbCollectionUsedForTesting().getDB().getCollection("documentLevel");
+        dbCollectionSrc.drop();
+        final String[] classifications = { "TS", "S", "C", "U" };
+        for (int i = 0; i < 8; i++) {
+            final String sl = (i % 4 == 3) ? "" : " \"sl\" : [ [ { \"c\" : \"" + classifications[i % 4] + "\" } ], [ ] ],";
+            dbCollectionSrc.insert((DBObject) JSON.parse("{ \"_id\" : \"doclevel-" + (100 + i) + "\"," + sl
+                    + " \"n\" : " + i + " }"), WriteConcern.NORMAL);
+        }
+
+        final CapcoSecurityAttributes userSecurityAttributes = new CapcoSecurityAttributes();
+        userSecurityAttributes.setClearance("S");
+        final RedactedDBCollection redactedDBCollection = new RedactedDBCollection(dbCollectionSrc, userSecurityAttributes, capcoRedactExpression);
+        final RedactedDBCollection documentLevel = new RedactedDBCollection(dbCollectionSrc, userSecurityAttributes, capcoRedactExpression);
+        documentLevel.setRedactionMode(RedactedDBCollection.RedactionMode.forSchema(new MarkingSchemaSampler(dbCollectionSrc, "sl").getSchema()));
+        assertEquals(RedactedDBCollection.RedactionMode.DOCUMENT_LEVEL, documentLevel.getRedactionMode());
+
+        final DBObject orderBy = new BasicDBObject("n", 1);
+        assertEquals(drain(redactedDBCollection.find(null, null, 0, redactedDBCollection.getReadPreference(), orderBy)),
+                drain(documentLevel.find(null, null, 0, documentLevel.getReadPreference(), orderBy)));
+        assertEquals(6, documentLevel.count());
+
+        // a marked sub-document breaks the document-level assumption, the verifier notices and returns the $redact results
+        final DocumentLevelVerifier verifier = new DocumentLevelVerifier(1);
+        documentLevel.setDocumentLevelVerifier(verifier);
+        dbCollectionSrc.insert((DBObject) JSON.parse("{ \"_id\" : \"doclevel-200\", \"n\" : 9, \"ssn\" : { \"sl\" : [ [ { \"c\" : \"TS\" } ] ], \"value\" : \"1\" } }"),
+                WriteConcern.NORMAL);
+        assertEquals(drain(redactedDBCollection.find(null, null, 0, redactedDBCollection.getReadPreference(), orderBy)),
+                drain(documentLevel.find(null, null, 0, documentLevel.getReadPreference(), orderBy)));
+        assertEquals(1, verifier.getVerifiedCount());
+        assertEquals(1, verifier.getDivergenceCount());
+    }
+
+    @Test
+    public void testMarkingSchemaGivesSameResults() throws Exception {
+
+        final DBCollection dbCollectionSrc = getDbCollectionUsedForTesting();
+        for (int i = 0; i < 6; i++) {
+            dbCollectionSrc.insert((DBObject) JSON.parse("{ \"_id\" : \"schema-" + (100 + i) + "\", \"sl\" : [ [ { \"c\" : \"U\" } ] ],"
+                    + " \"ssn\" : { \"sl\" : [ [ { \"c\" : \"" + ((i % 2 == 0) ? "TS" : "C") + "\" } ] ], \"value\" : \"" + i + "\" },"
+                    + " \"attachment\" : { \"pages\" : [ { \"text\" : \"page " + i + "\" } ] } }"), WriteConcern.NORMAL);
+        }
+
+        final CapcoSecurityAttributes userSecurityAttributes = new CapcoSecurityAttributes();
+        userSecurityAttributes.setClearance("S");
+        final MarkingSchemaSampler sampler = new MarkingSchemaSampler(dbCollectionSrc, "sl");
+        final MarkingSchemaRedactExpression redactExpression = new MarkingSchemaRedactExpression(capcoRedactExpression, sampler);
+        assertTrue(sampler.getSchema().getMarkedPaths().contains("ssn"));
+        final long version = redactExpression.getVersion();
+
+        final RedactedDBCollection redactedDBCollection = new RedactedDBCollection(dbCollectionSrc, userSecurityAttributes, capcoRedactExpression);
+        final RedactedDBCollection schemaRedacted = new RedactedDBCollection(dbCollectionSrc, userSecurityAttributes, redactExpression);
+        assertEquals(drain(redactedDBCollection.find()), drain(schemaRedacted.find()));
+
+        dbCollectionSrc.insert((DBObject) JSON.parse("{ \"_id\" : \"schema-200\", \"attachment\" : { \"pages\" : [ { \"sl\" : [ [ { \"c\" : \"TS\" } ] ], \"text\" : \"secret\" } ] } }"), WriteConcern.NORMAL);
+        assertEquals(version, sampler.refresh().getVersion() - 1);
+        assertEquals(drain(redactedDBCollection.find()), drain(schemaRedacted.find()));
+    }
+
+    @Test
+    public void testFindPageGivesSameResults() throws Exception {
+
+        final DBCollection dbCollectionSrc = getDbCollectionUsedForTesting();
+        for (int i = 0; i < 30; i++) {
+            dbCollectionSrc.insert((DBObject) JSON.parse("{ \"_id\" : \"page-" + (100 + i) + "\", \"sl\" : [ [ { \"c\" : \""
+                    + ((i % 3 == 0) ? "TS" : "U") + "\" } ] ], \"rank\" : " + (i % 7) + " }"), WriteConcern.NORMAL);
+        }
+
+        final CapcoSecurityAttributes userSecurityAttributes = new CapcoSecurityAttributes();
+        userSecurityAttributes.setClearance("S");
+        final RedactedDBCollection redactedDBCollection = new RedactedDBCollection(dbCollectionSrc, userSecurityAttributes, capcoRedactExpression);
+        final DBObject orderBy = new BasicDBObject("rank", -1).append("_id", 1);
+        final List<DBObject> expected = drain(redactedDBCollection.find(null, null, 0, ReadPreference.primary(), orderBy));
+
+        final List<DBObject> paged = new ArrayList<DBObject>();
+        String token = null;
+        int pages = 0;
+        do {
+            final RedactedPage page = redactedDBCollection.findPage(null, null, new BasicDBObject("rank", -1), 4, token);
+            paged.addAll(page.getDocuments());
+            token = page.getContinuationToken();
+            pages++;
+        } while (token != null);
+        assertEquals(expected, paged);
+        assertEquals((expected.size() + 3) / 4, pages);
+    }
+
+    @Test
+    public void testWritesAreValidatedAndGuarded() throws Exception {
+
+        final DBCollection dbCollectionSrc = getDbCollectionUsedForTesting();
+        dbCollectionSrc.insert((DBObject) JSON.parse("{ \"_id\" : \"write-ts\", \"sl\" : [ [ { \"c\" : \"TS\" } ] ], \"n\" : 0 }"), WriteConcern.NORMAL);
+
+        final CapcoSecurityAttributes userSecurityAttributes = new CapcoSecurityAttributes();
+        userSecurityAttributes.setClearance("S");
+        final RedactedDBCollection redactedDBCollection = new RedactedDBCollection(dbCollectionSrc, userSecurityAttributes, capcoRedactExpression);
+
+        redactedDBCollection.insert((DBObject) JSON.parse("{ \"_id\" : \"write-s\", \"sl\" : [ [ { \"c\" : \"S\" } ] ], \"n\" : 0 }"));
+        try {
+            redactedDBCollection.insert((DBObject) JSON.parse("{ \"_id\" : \"write-up\", \"sl\" : [ [ { \"c\" : \"TS\" } ] ] }"));
+            fail("a write above the user's clearance was accepted");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+        assertEquals(null, dbCollectionSrc.findOne(new BasicDBObject("_id", "write-up")));
+
+        final DBObject increment = new BasicDBObject("$inc", new BasicDBObject("n", 1));
+        assertEquals(1, redactedDBCollection.update(new BasicDBObject("_id", "write-s"), increment).getN());
+        assertEquals(0, redactedDBCollection.update(new BasicDBObject("_id", "write-ts"), increment).getN());
+        assertEquals(0, dbCollectionSrc.findOne(new BasicDBObject("_id", "write-ts")).get("n"));
+
+        redactedDBCollection.setWriteBatchSize(3);
+        final RedactedBulkWriter writer = redactedDBCollection.initializeBulkWriter();
+        for (int i = 0; i < 10; i++) {
+            writer.insert((DBObject) JSON.parse("{ \"_id\" : \"write-" + (100 + i) + "\", \"sl\" : [ [ { \"c\" : \"U\" } ] ] }"));
+        }
+        writer.update(new BasicDBObject("_id", new BasicDBObject("$in", Arrays.asList("write-s", "write-ts"))), increment, false, true);
+        writer.flush();
+        assertEquals(4, writer.getBatchCount());
+        assertEquals(10, writer.getInsertedCount());
+        assertEquals(1, writer.getMatchedCount());
+    }
+
+    @Test
+    public void testExportGivesSameResults() throws Exception {
+
+        final DBCollection dbCollectionSrc = getDbCollectionUsedForTesting();
+        for (int i = 0; i < 25; i++) {
+            dbCollectionSrc.insert((DBObject) JSON.parse("{ \"_id\" : \"export-" + (100 + i) + "\", \"sl\" : [ [ { \"c\" : \""
+                    + ((i % 3 == 0) ? "TS" : "U") + "\" } ] ], \"n\" : " + i + " }"), WriteConcern.NORMAL);
+        }
+
+        final CapcoSecurityAttributes userSecurityAttributes = new CapcoSecurityAttributes();
+        userSecurityAttributes.setClearance("S");
+        final RedactedDBCollection redactedDBCollection = new RedactedDBCollection(dbCollectionSrc, userSecurityAttributes, capcoRedactExpression);
+        final List<DBObject> expected = drain(redactedDBCollection.find(null, null, 0, ReadPreference.primary(), new BasicDBObject("_id", 1)));
+
+        final File bsonFile = File.createTempFile("export", ".bson.gz");
+        final File jsonFile = File.createTempFile("export", ".json");
+        try {
+            final RedactedExporter bsonExporter = new RedactedExporter(redactedDBCollection, RedactedExporter.Format.BSON);
+            bsonExporter.setCompression(RedactedExporter.Compression.GZIP);
+            bsonExporter.setCheckpointInterval(4);
+            assertEquals(expected.size(), bsonExporter.export(bsonFile).getDocuments());
+            assertFalse(new File(bsonFile.getPath() + RedactedExporter.CHECKPOINT_SUFFIX).exists());
+
+            final List<DBObject> bsonDocuments = new ArrayList<DBObject>();
+            final DataInputStream in = new DataInputStream(new GZIPInputStream(new FileInputStream(bsonFile)));
+            try {
+                final DBDecoder decoder = new DefaultDBDecoder();
+                final byte[] length = new byte[4];
+                int first;
+                while ((first = in.read()) >= 0) {
+                    length[0] = (byte) first;
+                    in.readFully(length, 1, 3);
+                    bsonDocuments.add(decoder.decode(new SequenceInputStream(new ByteArrayInputStream(length), in), (DBCollection) null));
+                }
+            } finally {
+                in.close();
+            }
+            assertEquals(expected, bsonDocuments);
+
+            final RedactedExporter jsonExporter = new RedactedExporter(redactedDBCollection, RedactedExporter.Format.NDJSON);
+            jsonExporter.export(jsonFile);
+            final List<DBObject> jsonDocuments = new ArrayList<DBObject>();
+            final BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(jsonFile), "UTF-8"));
+            try {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    jsonDocuments.add((DBObject) JSON.parse(line));
+                }
+            } finally {
+                reader.close();
+            }
+            assertEquals(expected, jsonDocuments);
+        } finally {
+            bsonFile.delete();
+            jsonFile.delete();
+        }
+    }
+
+    private static List<DBObject> drain(Cursor cursor) {
+        final List<DBObject> result = new ArrayList<DBObject>();
+        while (cursor.hasNext()) {
+            result.add(cursor.next());
+        }
+        return result;
+    }
+
     @Test
     public void testFindOne1() throws Exception {
 
@@ -0,0 +1,60 @@
+package com.mongodb.flac;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.mongodb.DBObject;
+import com.mongodb.util.JSON;
+
+/**
+ * diagnoses canned explain output, no server is needed
+ */
+public class RedactedExplanationTest {
+
+    private static final RedactedDBCollection.SecureAggregationPipeline PIPELINE = new RedactedDBCollection.SecureAggregationPipeline();
+
+    @Test
+    public void testQueryPlannerHasNoCounts() throws Exception {
+        final RedactedExplanation explanation = new RedactedExplanation(PIPELINE, (DBObject) JSON.parse(
+                "{ stages: [ { $cursor: { queryPlanner: { winningPlan: { stage: 'COLLSCAN' } } } }, { $redact: {} } ] }"), false);
+        assertTrue(explanation.isCollectionScan());
+        assertEquals(-1, explanation.getDocumentsBeforeRedact());
+        assertEquals(-1, explanation.getDocumentsAfterRedact());
+        assertEquals(-1, explanation.getEstimatedDocumentsRedacted());
+    }
+
+    @Test
+    public void testExecutionStatsCounts() throws Exception {
+        final RedactedExplanation explanation = new RedactedExplanation(PIPELINE, (DBObject) JSON.parse(
+                "{ stages: [ { $cursor: { queryPlanner: { winningPlan: { stage: 'FETCH', inputStage: { stage: 'IXSCAN' } } } }, nReturned: 6 },"
+                        + " { $redact: {}, nReturned: 4 }, { $limit: 2, nReturned: 2 } ] }"), true);
+        assertTrue(explanation.isIndexUsed());
+        assertEquals(6, explanation.getDocumentsBeforeRedact());
+        assertEquals(4, explanation.getDocumentsAfterRedact());
+        assertEquals(2, explanation.getEstimatedDocumentsRedacted());
+    }
+
+    @Test
+    public void testCursorExecutionStatsAddedUpAcrossShards() throws Exception {
+        final RedactedExplanation explanation = new RedactedExplanation(PIPELINE, (DBObject) JSON.parse(
+                "{ shards: { a: { stages: [ { $cursor: { executionStats: { nReturned: 5 } } }, { $redact: {}, nReturned: 3 } ] },"
+                        + " b: { stages: [ { $cursor: { executionStats: { nReturned: 2 } } }, { $redact: {}, nReturned: 0 } ] } } }"), false);
+        assertEquals(7, explanation.getDocumentsBeforeRedact());
+        assertEquals(3, explanation.getDocumentsAfterRedact());
+        assertEquals(4, explanation.getEstimatedDocumentsRedacted());
+    }
+
+    @Test
+    public void testClientRedactedFindOnlyCountsTheFind() throws Exception {
+        final RedactedExplanation explanation = new RedactedExplanation(null, (DBObject) JSON.parse(
+                "{ queryPlanner: { winningPlan: { stage: 'COLLSCAN' } }, executionStats: { nReturned: 9 } }"), false);
+        assertTrue(explanation.isClientRedacted());
+        assertFalse(explanation.isIndexUsed());
+        assertEquals(9, explanation.getDocumentsBeforeRedact());
+        assertEquals(-1, explanation.getDocumentsAfterRedact());
+        assertEquals(-1, explanation.getEstimatedDocumentsRedacted());
+    }
+}
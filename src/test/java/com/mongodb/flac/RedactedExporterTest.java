@@ -0,0 +1,159 @@
+package com.mongodb.flac;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.BasicDBObject;
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+import com.mongodb.ReadPreference;
+import com.mongodb.ServerAddress;
+import com.mongodb.flac.capco.CapcoRedactExpression;
+import com.mongodb.flac.capco.CapcoSecurityAttributes;
+import com.mongodb.util.JSON;
+
+/**
+ * exports from a collection whose aggregate is stubbed, so no server is needed
+ */
+public class RedactedExporterTest {
+
+    private File output;
+
+    @Before
+    public void setUp() throws Exception {
+        output = File.createTempFile("export", ".ndjson.gz");
+    }
+
+    @After
+    public void tearDown() {
+        output.delete();
+        new File(output.getPath() + RedactedExporter.CHECKPOINT_SUFFIX).delete();
+    }
+
+    @Test
+    public void testResumedGzipExportIsOneValidStream() throws Exception {
+        RedactedExporter failing = exporter(new StubCollection(20, 7));
+        try {
+            failing.export(output);
+            Assert.fail("the export did not fail");
+        } catch (IllegalStateException expected) {
+            // expected
+        }
+        Assert.assertTrue(new File(output.getPath() + RedactedExporter.CHECKPOINT_SUFFIX).exists());
+
+        RedactedExporter.ExportStats stats = exporter(new StubCollection(20, -1)).export(output);
+        Assert.assertEquals(20, stats.getDocuments());
+        Assert.assertFalse(new File(output.getPath() + RedactedExporter.CHECKPOINT_SUFFIX).exists());
+
+        List<Object> ids = new ArrayList<Object>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new GZIPInputStream(new FileInputStream(output)), "UTF-8"));
+        try {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                ids.add(((DBObject) JSON.parse(line)).get("_id"));
+            }
+        } finally {
+            reader.close();
+        }
+        Assert.assertEquals(StubCollection.ids(0, 20), ids);
+    }
+
+    @Test
+    public void testEmptyGzipExportIsValid() throws Exception {
+        exporter(new StubCollection(0, -1)).export(output);
+        GZIPInputStream in = new GZIPInputStream(new FileInputStream(output));
+        try {
+            Assert.assertEquals(-1, in.read());
+        } finally {
+            in.close();
+        }
+    }
+
+    private static RedactedExporter exporter(StubCollection collection) {
+        RedactedExporter exporter = new RedactedExporter(collection, RedactedExporter.Format.NDJSON);
+        exporter.setCompression(RedactedExporter.Compression.GZIP);
+        exporter.setCheckpointInterval(3);
+        return exporter;
+    }
+
+    /**
+     * serves { _id : 0 } ... { _id : size - 1 } after the $gt of the pipeline's _id range, failing after failAfter
+     * documents were read
+     */
+    private static class StubCollection extends RedactedDBCollection {
+        private final int size;
+        private final int failAfter;
+
+        StubCollection(int size, int failAfter) {
+            super(UnconnectedCollections.get("persons"), attributes(), new CapcoRedactExpression("sl"));
+            this.size = size;
+            this.failAfter = failAfter;
+        }
+
+        private static SecurityAttributes attributes() {
+            CapcoSecurityAttributes attributes = new CapcoSecurityAttributes();
+            attributes.setClearance("S");
+            return attributes;
+        }
+
+        static List<Object> ids(int from, int to) {
+            List<Object> ids = new ArrayList<Object>();
+            for (int i = from; i < to; i++) {
+                ids.add(i);
+            }
+            return ids;
+        }
+
+        @Override
+        Cursor aggregateSecure(SecureAggregationPipeline pipelineSecure, AggregationOptions options, ReadPreference readPref) {
+            int from = 0;
+            for (DBObject stage : pipelineSecure) {
+                DBObject match = (DBObject) stage.get("$match");
+                if (match != null && match.get("_id") instanceof DBObject) {
+                    from = ((Number) ((DBObject) match.get("_id")).get("$gt")).intValue() + 1;
+                }
+            }
+            final List<Object> ids = ids(from, size);
+            return new Cursor() {
+                private int read;
+
+                public boolean hasNext() {
+                    if (read == failAfter) {
+                        throw new IllegalStateException("failed after " + failAfter);
+                    }
+                    return read < ids.size();
+                }
+
+                public DBObject next() {
+                    return new BasicDBObject("_id", ids.get(read++)).append("name", "n");
+                }
+
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+
+                public long getCursorId() {
+                    return 0;
+                }
+
+                public ServerAddress getServerAddress() {
+                    return null;
+                }
+
+                public void close() {
+                }
+            };
+        }
+    }
+}
@@ -0,0 +1,90 @@
+package com.mongodb.flac;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mongodb.AggregationOptions;
+import com.mongodb.Cursor;
+import com.mongodb.DBObject;
+import com.mongodb.ReadPreference;
+import com.mongodb.flac.capco.CapcoRedactExpression;
+import com.mongodb.flac.capco.CapcoSecurityAttributes;
+import com.mongodb.util.JSON;
+
+public class RedactedParallelScanTest {
+
+    private static List<Object> ids(int from, int to) {
+        List<Object> ids = new ArrayList<Object>();
+        for (int i = from; i < to; i++) {
+            ids.add(i);
+        }
+        return ids;
+    }
+
+    @Test
+    public void testPicksEvenlySpacedBoundaries() throws Exception {
+        Assert.assertEquals(Arrays.<Object>asList(25, 50, 75), RedactedParallelScan.pickBoundaries(ids(0, 100), 4));
+        Assert.assertEquals(Collections.emptyList(), RedactedParallelScan.pickBoundaries(ids(0, 100), 1));
+        Assert.assertEquals(Collections.emptyList(), RedactedParallelScan.pickBoundaries(ids(0, 0), 4));
+    }
+
+    @Test
+    public void testSkipsDuplicateBoundaries() throws Exception {
+        List<Object> ids = Arrays.<Object>asList(1, 1, 1, 1, 1, 1, 2, 3);
+        Assert.assertEquals(Arrays.<Object>asList(2), RedactedParallelScan.pickBoundaries(ids, 4));
+    }
+
+    @Test
+    public void testMixedIdTypesGiveSingleRange() throws Exception {
+        List<Object> ids = Arrays.<Object>asList(1, 2, "3", "4");
+        Assert.assertEquals(Collections.emptyList(), RedactedParallelScan.pickBoundaries(ids, 2));
+    }
+
+    @Test
+    public void testRemainingRangeResumesAfterLastId() throws Exception {
+        RedactedParallelScan.Partition first = new RedactedParallelScan.Partition(0, null, 25);
+        Assert.assertEquals(JSON.parse("{ $lt : 25 }"), first.getRemainingRange());
+
+        RedactedParallelScan.Partition middle = new RedactedParallelScan.Partition(1, 25, 50);
+        Assert.assertEquals(JSON.parse("{ $gte : 25, $lt : 50 }"), middle.getRemainingRange());
+
+        RedactedParallelScan.Partition only = new RedactedParallelScan.Partition(0, null, null);
+        Assert.assertNull(only.getRemainingRange());
+    }
+
+    @Test
+    public void testSamplesThroughTheSecurePipeline() throws Exception {
+        CapcoSecurityAttributes userSecurityAttributes = new CapcoSecurityAttributes();
+        userSecurityAttributes.setClearance("C");
+        final List<List<DBObject>> sent = new ArrayList<List<DBObject>>();
+        RedactedDBCollection redactedDBCollection = new RedactedDBCollection(UnconnectedCollections.get("persons"),
+                userSecurityAttributes, new CapcoRedactExpression("sl")) {
+            @Override
+            Cursor aggregateSecure(SecureAggregationPipeline pipelineSecure, AggregationOptions options, ReadPreference readPref) {
+                sent.add(new ArrayList<DBObject>(pipelineSecure));
+                throw new IllegalStateException("sent");
+            }
+        };
+        RedactedParallelScan scan = new RedactedParallelScan(redactedDBCollection);
+        scan.setPartitions(4);
+        scan.setSamplesPerPartition(8);
+        try {
+            scan.sampleBoundaries();
+            Assert.fail();
+        } catch (IllegalStateException expected) {
+            Assert.assertEquals("sent", expected.getMessage());
+        }
+
+        List<String> stages = new ArrayList<String>();
+        for (DBObject stage : sent.get(0)) {
+            stages.add(stage.keySet().iterator().next());
+        }
+        Assert.assertEquals(Arrays.asList("$sample", "$redact", "$project", "$sort"), stages);
+        Assert.assertEquals(JSON.parse("{ size : 32 }"), sent.get(0).get(0).get("$sample"));
+    }
+}
@@ -0,0 +1,113 @@
+package com.mongodb.flac;
+
+import java.util.Arrays;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mongodb.flac.capco.CapcoRedactExpression;
+import com.mongodb.flac.capco.CapcoSecurityAttributes;
+
+public class SecurityAttributesSnapshotTest {
+
+    @Test
+    public void testEncodingIsSortedAndDeduplicated() throws Exception {
+        SecurityAttributes securityAttributes = new SecurityAttributes();
+        securityAttributes.put("sci", Arrays.asList("TK", " SI", "TK"));
+        securityAttributes.put("c", "S");
+        securityAttributes.put("relto", Arrays.<String>asList());
+
+        SecurityAttributesSnapshot snapshot = securityAttributes.snapshot();
+        Assert.assertEquals("[ { c:\"S\" }, { sci:\"SI\" }, { sci:\"TK\" } ]", snapshot.encodeAttributes());
+        Assert.assertEquals(securityAttributes.getFingerprint(), snapshot.getFingerprint());
+        Assert.assertEquals(Arrays.asList("SI", "TK"), snapshot.asMap().get("sci"));
+        Assert.assertFalse(snapshot.asMap().containsKey("relto"));
+    }
+
+    @Test
+    public void testEqualEntitlementsGiveEqualSnapshots() throws Exception {
+        CapcoSecurityAttributes capco = new CapcoSecurityAttributes();
+        capco.setClearance("TS");
+        capco.setSci(Arrays.asList("TK", "SI"));
+
+        SecurityAttributes plain = new SecurityAttributes();
+        plain.put("sci", Arrays.asList("SI", "TK"));
+        plain.put("c", Arrays.asList("U", "C", "S", "TS"));
+
+        SecurityAttributesSnapshot first = new SecurityAttributesSnapshot(capco);
+        SecurityAttributesSnapshot second = new SecurityAttributesSnapshot(plain);
+        Assert.assertEquals(first, second);
+        Assert.assertEquals(first.hashCode(), second.hashCode());
+        Assert.assertEquals(first.encodeAttributes(), second.encodeAttributes());
+        Assert.assertEquals(32, first.getFingerprintHash().length());
+        Assert.assertEquals(first.getFingerprintHash(), second.getFingerprintHash());
+        Assert.assertEquals(first.getFingerprint64(), second.getFingerprint64());
+
+        CapcoRedactExpression redactExpression = new CapcoRedactExpression("sl");
+        Assert.assertEquals(redactExpression.getRedactExpression(first.getSecurityAttributes()),
+                redactExpression.getRedactExpression(second.getSecurityAttributes()));
+        Assert.assertEquals(first.encodeAttributes(), first.getSecurityAttributes().encodeAttributes());
+        Assert.assertEquals(capco.getFingerprint(), first.getSecurityAttributes().getFingerprint());
+
+        plain.put("sci", "TK");
+        Assert.assertFalse(first.equals(plain.snapshot()));
+        Assert.assertEquals(Arrays.asList("SI", "TK"), second.asMap().get("sci"));
+    }
+
+    @Test
+    public void testSnapshotIsImmutable() throws Exception {
+        SecurityAttributes securityAttributes = new SecurityAttributes();
+        securityAttributes.put("c", "S");
+        final SecurityAttributesSnapshot snapshot = securityAttributes.snapshot();
+        final SecurityAttributes attributes = snapshot.getSecurityAttributes();
+        Assert.assertSame(snapshot, attributes.snapshot());
+
+        assertImmutable(new Runnable() {
+            public void run() {
+                snapshot.asMap().put("c", Arrays.asList("TS"));
+            }
+        });
+        assertImmutable(new Runnable() {
+            public void run() {
+                snapshot.asMap().get("c").set(0, "TS");
+            }
+        });
+        assertImmutable(new Runnable() {
+            public void run() {
+                snapshot.getLabels().get("c").add("TS");
+            }
+        });
+        assertImmutable(new Runnable() {
+            public void run() {
+                attributes.put("c", "TS");
+            }
+        });
+        assertImmutable(new Runnable() {
+            public void run() {
+                attributes.remove("c");
+            }
+        });
+        assertImmutable(new Runnable() {
+            public void run() {
+                attributes.keySet().clear();
+            }
+        });
+        assertImmutable(new Runnable() {
+            public void run() {
+                attributes.entrySet().iterator().next().setValue("TS");
+            }
+        });
+        Assert.assertEquals("[ { c:\"S\" } ]", snapshot.encodeAttributes());
+        Assert.assertEquals(Arrays.asList("S"), snapshot.asMap().get("c"));
+        Assert.assertEquals(Arrays.asList("S"), attributes.get("c"));
+    }
+
+    private static void assertImmutable(Runnable mutation) {
+        try {
+            mutation.run();
+            Assert.fail("the snapshot was modified");
+        } catch (UnsupportedOperationException e) {
+            // expected
+        }
+    }
+}
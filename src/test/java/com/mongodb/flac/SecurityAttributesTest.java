@@ -48,4 +48,21 @@ public class SecurityAttributesTest {
         Assert.assertEquals(true, actual.contains("{ sci:\"SI\" }"));
         Assert.assertEquals(true, actual.contains("c:\"X\""));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testFingerprintIgnoresOrder() throws Exception {
+        SecurityAttributes userSecurityAttributesMap1 = new SecurityAttributes();
+        userSecurityAttributesMap1.put("sci", Arrays.asList("TK", "SI"));
+        userSecurityAttributesMap1.put("c", "TS");
+
+        SecurityAttributes userSecurityAttributesMap2 = new SecurityAttributes();
+        userSecurityAttributesMap2.put("c", Arrays.asList("TS"));
+        userSecurityAttributesMap2.put("sci", Arrays.asList("SI", "TK", "SI"));
+        userSecurityAttributesMap2.put("relto", Arrays.<String>asList());
+
+        Assert.assertEquals(userSecurityAttributesMap1.getFingerprint(), userSecurityAttributesMap2.getFingerprint());
+
+        userSecurityAttributesMap2.put("sci", Arrays.asList("SI"));
+        Assert.assertEquals(false, userSecurityAttributesMap1.getFingerprint().equals(userSecurityAttributesMap2.getFingerprint()));
+    }
+}
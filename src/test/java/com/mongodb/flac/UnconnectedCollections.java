@@ -0,0 +1,31 @@
+package com.mongodb.flac;
+
+import java.net.UnknownHostException;
+
+import com.mongodb.DBCollection;
+import com.mongodb.MongoClient;
+
+/**
+ * collections of a client that is closed before it is used, for tests that build requests but must neither read nor
+ * write: every operation on them fails at once instead of reaching a server
+ */
+final class UnconnectedCollections {
+
+    private static final MongoClient CLOSED_CLIENT;
+
+    static {
+        try {
+            CLOSED_CLIENT = new MongoClient();
+        } catch (UnknownHostException e) {
+            throw new IllegalStateException(e);
+        }
+        CLOSED_CLIENT.close();
+    }
+
+    private UnconnectedCollections() {
+    }
+
+    static DBCollection get(String name) {
+        return CLOSED_CLIENT.getDB("flac").getCollection(name);
+    }
+}
@@ -0,0 +1,88 @@
+package com.mongodb.flac;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import com.mongodb.DBObject;
+import com.mongodb.flac.capco.CapcoRedactExpression;
+import com.mongodb.flac.capco.CapcoSecurityAttributes;
+import com.mongodb.util.JSON;
+
+public class WriteValidatorTest {
+
+    private static WriteValidator validatorForClearance(String clearance) {
+        CapcoSecurityAttributes securityAttributes = new CapcoSecurityAttributes();
+        securityAttributes.setClearance(clearance);
+        return new WriteValidator("sl", new UserLabels(securityAttributes));
+    }
+
+    @Test
+    public void testDocumentAtOrBelowClearanceIsAccepted() throws Exception {
+        WriteValidator validator = validatorForClearance("S");
+        validator.validateDocument((DBObject) JSON.parse("{ sl : [ [ { c : \"S\" } ] ], name : { sl : [ [ { c : \"U\" } ] ], value : \"x\" },"
+                + " aliases : [ { sl : [ [ { c : \"C\" } ] ], value : \"y\" } ], plain : 1 }"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRootAboveClearanceIsRejected() throws Exception {
+        validatorForClearance("S").validateDocument((DBObject) JSON.parse("{ sl : [ [ { c : \"TS\" } ] ] }"));
+    }
+
+    @Test
+    public void testSubDocumentInArrayAboveClearanceIsRejectedWithItsPath() throws Exception {
+        try {
+            validatorForClearance("S").validateDocument((DBObject) JSON.parse(
+                    "{ aliases : [ { sl : [ [ { c : \"U\" } ] ] }, { sl : [ [ { c : \"TS\" } ] ] } ] }"));
+            Assert.fail();
+        } catch (IllegalArgumentException e) {
+            Assert.assertTrue(e.getMessage(), e.getMessage().contains("aliases.1"));
+        }
+    }
+
+    @Test
+    public void testUpdateOperators() throws Exception {
+        WriteValidator validator = validatorForClearance("S");
+        validator.validateUpdate((DBObject) JSON.parse("{ $set : { \"name.sl\" : [ [ { c : \"C\" } ] ], \"name.value\" : \"z\" },"
+                + " $push : { aliases : { $each : [ { sl : [ [ { c : \"U\" } ] ] } ] } }, $inc : { n : 1 } }"));
+        assertRejected(validator, "{ $push : { aliases : { $each : [ { sl : [ [ { c : \"TS\" } ] ] } ] } } }");
+        assertRejected(validator, "{ $set : { \"name.sl\" : [ [ { c : \"TS\" } ] ] } }");
+        assertRejected(validator, "{ $unset : { \"name.sl\" : 1 } }");
+        assertRejected(validator, "{ $rename : { \"other\" : \"name.sl\" } }");
+    }
+
+    private static void assertRejected(WriteValidator validator, String update) {
+        try {
+            validator.validateUpdate((DBObject) JSON.parse(update));
+            Assert.fail(update);
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    @Test
+    public void testGuardQueryCoversRootAndUpdatedPaths() throws Exception {
+        WriteValidator validator = validatorForClearance("U");
+        DBObject guarded = validator.guardQuery((DBObject) JSON.parse("{ _id : 1 }"),
+                (DBObject) JSON.parse("{ $set : { \"name.value\" : \"z\", \"aliases.$.value\" : \"y\" } }"));
+        String satisfied = "{ $not : { $elemMatch : { $ne : [], $not : { $elemMatch : { $in : [ { c : \"U\" } ] } } } } }";
+        Assert.assertEquals(JSON.parse("{ _id : 1, sl : " + satisfied + ", \"name.sl\" : " + satisfied
+                + ", \"name.value.sl\" : " + satisfied + ", \"aliases.sl\" : " + satisfied + " }"), guarded);
+    }
+
+    @Test
+    public void testCollectionReusesValidatorWhileLabelsAreUnchanged() throws Exception {
+        CapcoSecurityAttributes securityAttributes = new CapcoSecurityAttributes();
+        securityAttributes.setClearance("S");
+        RedactedDBCollection redactedDBCollection = new RedactedDBCollection(UnconnectedCollections.get("writes"),
+                securityAttributes, new CapcoRedactExpression("sl"));
+
+        WriteValidator validator = redactedDBCollection.getWriteValidator();
+        Assert.assertSame(validator, redactedDBCollection.getWriteValidator());
+        Assert.assertSame(validator.getUserLabels(), redactedDBCollection.getDocumentRedactor().getUserLabels());
+
+        securityAttributes.setClearance("TS");
+        WriteValidator raised = redactedDBCollection.getWriteValidator();
+        Assert.assertNotSame(validator, raised);
+        raised.validateDocument((DBObject) JSON.parse("{ sl : [ [ { c : \"TS\" } ] ] }"));
+    }
+}
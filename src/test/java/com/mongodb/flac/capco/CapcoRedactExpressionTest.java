@@ -0,0 +1,123 @@
+package com.mongodb.flac.capco;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import com.mongodb.BasicDBList;
+import com.mongodb.BasicDBObject;
+import com.mongodb.DBObject;
+import com.mongodb.flac.SecurityAttributes;
+import com.mongodb.util.JSON;
+
+public class CapcoRedactExpressionTest {
+
+    private CapcoRedactExpression capcoRedactExpression = new CapcoRedactExpression("sl");
+
+    private DBObject parsed(SecurityAttributes securityAttributes) {
+        return (DBObject) JSON.parse(capcoRedactExpression.getRedactExpression(securityAttributes));
+    }
+
+    /**
+     * @return the expression with its $let resolved, i.e. the labels in the place of $$userLabels
+     */
+    private DBObject resolved(SecurityAttributes securityAttributes) {
+        DBObject expression = capcoRedactExpression.getRedactExpressionObject(securityAttributes);
+        DBObject let = let(expression);
+        Object labels = ((DBObject) let.get("vars")).get(CapcoRedactExpression.USER_LABELS);
+        DBObject cond = (DBObject) expression.get("$cond");
+        return new BasicDBObject("$cond", new BasicDBObject("if", substitute(let.get("in"), labels))
+                .append("then", cond.get("then"))
+                .append("else", cond.get("else")));
+    }
+
+    private static Object substitute(Object value, Object labels) {
+        if (("$$" + CapcoRedactExpression.USER_LABELS).equals(value)) {
+            return labels;
+        }
+        if (value instanceof List) {
+            BasicDBList list = new BasicDBList();
+            for (Object element : (List<?>) value) {
+                list.add(substitute(element, labels));
+            }
+            return list;
+        }
+        if (value instanceof DBObject) {
+            BasicDBObject document = new BasicDBObject();
+            for (String key : ((DBObject) value).keySet()) {
+                document.put(key, substitute(((DBObject) value).get(key), labels));
+            }
+            return document;
+        }
+        return value;
+    }
+
+    @Test
+    public void testSameExpressionAsStringForm() throws Exception {
+        CapcoSecurityAttributes userTS_SI_TK = new CapcoSecurityAttributes();
+        userTS_SI_TK.setClearance("TS");
+        userTS_SI_TK.setSci(Arrays.asList("SI", "TK"));
+        assertEquals(parsed(userTS_SI_TK), resolved(userTS_SI_TK));
+
+        CapcoSecurityAttributes userU = new CapcoSecurityAttributes();
+        userU.setClearance("U");
+        assertEquals(parsed(userU), resolved(userU));
+
+        CapcoSecurityAttributes nobody = new CapcoSecurityAttributes();
+        assertEquals(parsed(nobody), resolved(nobody));
+    }
+
+    @Test
+    public void testLabelValuesAreNotInterpretedAsJson() throws Exception {
+        SecurityAttributes user = new SecurityAttributes();
+        user.put("c", "TS\" }, { c:\"S");
+
+        DBObject expression = capcoRedactExpression.getRedactExpressionObject(user);
+        BasicDBList userLabels = (BasicDBList) JSON.parse("[ { c : \"TS\\\" }, { c:\\\"S\" } ]");
+        assertEquals(userLabels, ((DBObject) let(expression).get("vars")).get(CapcoRedactExpression.USER_LABELS));
+    }
+
+    @Test
+    public void testUserIndependentPartsAreShared() throws Exception {
+        CapcoSecurityAttributes userTS = new CapcoSecurityAttributes();
+        userTS.setClearance("TS");
+        CapcoSecurityAttributes userU = new CapcoSecurityAttributes();
+        userU.setClearance("U");
+
+        DBObject markingsSatisfied = (DBObject) let(capcoRedactExpression.getRedactExpressionObject(userTS)).get("in");
+        assertSame(markingsSatisfied, let(capcoRedactExpression.getRedactExpressionObject(userU)).get("in"));
+        try {
+            markingsSatisfied.put("$allElementsTrue", true);
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // read only
+        }
+        DBObject input = (DBObject) ((DBObject) ((DBObject) markingsSatisfied.get("$allElementsTrue")).get("$map")).get("input");
+        try {
+            ((List<?>) input.get("$ifNull")).clear();
+            fail();
+        } catch (UnsupportedOperationException e) {
+            // read only
+        }
+    }
+
+    @Test
+    public void testDocumentLevelQueryTestsEveryClause() throws Exception {
+        CapcoSecurityAttributes userC = new CapcoSecurityAttributes();
+        userC.setClearance("C");
+
+        assertEquals(JSON.parse("{ sl : { $not : { $elemMatch : { $ne : [ ], $not : { $elemMatch : { $in : "
+                        + "[ { c : \"C\" }, { c : \"U\" } ] } } } } } }"),
+                capcoRedactExpression.getDocumentLevelQuery(userC));
+    }
+
+    private static DBObject let(DBObject expression) {
+        DBObject cond = (DBObject) expression.get("$cond");
+        return (DBObject) ((DBObject) cond.get("if")).get("$let");
+    }
+}
@@ -4,6 +4,12 @@ import junit.framework.TestCase;
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.mongodb.flac.LabelLattice;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.util.Arrays;
 
 public class CapcoSecurityAttributesTest extends TestCase {
@@ -30,4 +36,58 @@ public class CapcoSecurityAttributesTest extends TestCase {
         Assert.assertEquals(true, actual.contains("{ sci:\"SI\" }"));
         Assert.assertEquals(true, actual.contains("c:\"X\""));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testExpansionFromLattice() throws Exception {
+
+        CapcoSecurityAttributes defaults = new CapcoSecurityAttributes();
+        defaults.setClearance("s");
+        Assert.assertEquals(Arrays.asList("S", "C", "U"), defaults.getClearance());
+
+        LabelLattice lattice = LabelLattice.fromJSON("{ c : { hierarchy : [ \"TS\", \"S\", \"C\", \"U\" ] },"
+                + " relto : { implies : { USA : [ \"FVEY\", \"NOFORN\" ] } }, sci : { implies : { TK : [ \"TK-BLUE\" ] } } }");
+        CapcoSecurityAttributes userSecurityAttributesMap = new CapcoSecurityAttributes(lattice);
+        userSecurityAttributesMap.setCitizenship(Arrays.asList("USA"));
+        userSecurityAttributesMap.setSci(Arrays.asList("TK", "SI"));
+        Assert.assertEquals(Arrays.asList("USA", "FVEY", "NOFORN"), userSecurityAttributesMap.getCitizenship());
+        Assert.assertEquals(Arrays.asList("TK", "TK-BLUE", "SI"), userSecurityAttributesMap.getSci());
+    }
+
+    @Test
+    public void testGettersReturnMutableLists() throws Exception {
+
+        CapcoSecurityAttributes userSecurityAttributesMap = new CapcoSecurityAttributes();
+        userSecurityAttributesMap.setClearance("S");
+        // the setter stores the lattice's closure, not a copy
+        Assert.assertSame(CapcoSecurityAttributes.DEFAULT_LATTICE.getClosure("c", "S"), userSecurityAttributesMap.get("c"));
+        userSecurityAttributesMap.setSci(Arrays.asList("TK"));
+        userSecurityAttributesMap.setCitizenship(Arrays.asList("USA"));
+        userSecurityAttributesMap.getClearance().add("X");
+        userSecurityAttributesMap.getSci().add("SI");
+        userSecurityAttributesMap.getCitizenship().add("GBR");
+        Assert.assertEquals(Arrays.asList("S", "C", "U", "X"), userSecurityAttributesMap.getClearance());
+
+        // the lattice's own closures are untouched
+        Assert.assertEquals(Arrays.asList("S", "C", "U"), CapcoSecurityAttributes.DEFAULT_LATTICE.getClosure("c", "S"));
+    }
+
+    @Test
+    public void testSerializable() throws Exception {
+
+        LabelLattice lattice = LabelLattice.fromJSON("{ c : { hierarchy : [ \"TS\", \"S\" ] },"
+                + " relto : { implies : { USA : [ \"FVEY\" ] } } }");
+        CapcoSecurityAttributes userSecurityAttributesMap = new CapcoSecurityAttributes(lattice);
+        userSecurityAttributesMap.setClearance("TS");
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(userSecurityAttributesMap);
+        out.close();
+        CapcoSecurityAttributes copy = (CapcoSecurityAttributes) new ObjectInputStream(
+                new ByteArrayInputStream(bytes.toByteArray())).readObject();
+
+        Assert.assertEquals(userSecurityAttributesMap, copy);
+        copy.setCitizenship(Arrays.asList("USA"));
+        Assert.assertEquals(Arrays.asList("USA", "FVEY"), copy.getCitizenship());
+    }
+}